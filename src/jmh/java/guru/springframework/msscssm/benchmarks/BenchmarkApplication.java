@@ -0,0 +1,43 @@
+package guru.springframework.msscssm.benchmarks;
+
+import guru.springframework.msscssm.MsscSsmApplication;
+import org.springframework.boot.Banner;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/*
+    avvia l'applicazione per i benchmark: niente web, niente SQL a console, e decisioni di autorizzazione
+    ripetibili (payment.auth.decision=SEEDED) così i risultati di due run sono confrontabili.
+
+    startWeb la avvia con il Tomcat embedded su una porta casuale (local.server.port), per chi misura l'API HTTP
+ */
+final class BenchmarkApplication {
+
+    private BenchmarkApplication() {
+    }
+
+    static ConfigurableApplicationContext start(String... properties) {
+        return builder(WebApplicationType.NONE)
+                .properties(properties)
+                .run();
+    }
+
+    static ConfigurableApplicationContext startWeb(String... properties) {
+        return builder(WebApplicationType.SERVLET)
+                .properties("server.port=0")
+                .properties(properties)
+                .run();
+    }
+
+    private static SpringApplicationBuilder builder(WebApplicationType type) {
+        return new SpringApplicationBuilder(MsscSsmApplication.class)
+                .web(type)
+                .bannerMode(Banner.Mode.OFF)
+                .properties(
+                        "spring.jpa.show-sql=false",
+                        "logging.level.root=WARN",
+                        "payment.auth.decision=SEEDED",
+                        "payment.auth.decision.seed=20190818");
+    }
+}
@@ -0,0 +1,48 @@
+package guru.springframework.msscssm.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/*
+    lancia i benchmark due volte, con un thread e con un thread per core, sempre con il profiler gc
+    (equivalente di -prof gc). I risultati in JSON vanno in target/jmh/results-<threads>t.json, da confrontare
+    tra una release e l'altra.
+
+    il primo argomento è la regex dei benchmark da eseguire (default tutti)
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        String include = args.length > 0 && !args[0].isEmpty() ? args[0] : ".*";
+
+        Path resultDir = Paths.get("target", "jmh");
+        Files.createDirectories(resultDir);
+
+        Set<Integer> threadCounts = new LinkedHashSet<>();
+        threadCounts.add(1);
+        threadCounts.add(Runtime.getRuntime().availableProcessors());
+
+        for (int threads : threadCounts) {
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(resultDir.resolve("results-" + threads + "t.json").toString())
+                    .build();
+
+            new Runner(options).run();
+        }
+    }
+}
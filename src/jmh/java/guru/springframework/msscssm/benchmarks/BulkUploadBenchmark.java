@@ -0,0 +1,125 @@
+package guru.springframework.msscssm.benchmarks;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.services.PaymentService;
+import guru.springframework.msscssm.web.NdjsonUploadClient;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+    upload NDJSON da 100000 righe sul Tomcat embedded, con lo stesso client in streaming di PaymentControllerTest
+    (NdjsonUploadClient): il body parte a pezzi mentre si leggono già le risposte, quindi si misurano anche
+    payment.bulk.max-in-flight e la backpressure sul socket. Ogni invocazione manda LINES righe preAuth / authorize
+    alternate su LINES / 2 pagamenti nuovi.
+
+    Il throughput (righe al secondo) lo dà JMH. La latenza per riga è il campo micros delle risposte, lo stesso
+    tempo che il server registra nel timer payment.bulk.command: finisce in un istogramma HDR e a fine di ogni
+    iterazione si stampano p50, p99, p99.9 e max.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class BulkUploadBenchmark {
+
+    static final int LINES = 100_000;
+
+    private static final String MICROS = "\"micros\":";
+
+    @Param({"ENTITY", "COALESCED"})
+    String persistenceMode;
+
+    ConfigurableApplicationContext context;
+    PaymentService paymentService;
+    int port;
+
+    long[] paymentIds;
+    final Recorder latencies = new Recorder(3);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = BenchmarkApplication.startWeb(
+                "payment.persistence.mode=" + persistenceMode,
+                "payment.auth.decision=APPROVE");
+        paymentService = context.getBean(PaymentService.class);
+        port = context.getEnvironment().getRequiredProperty("local.server.port", Integer.class);
+    }
+
+    @Setup(Level.Invocation)
+    public void newPayments() {
+        List<Payment> payments = new ArrayList<>(LINES / 2);
+        for (int i = 0; i < LINES / 2; i++) {
+            payments.add(Payment.builder().amount(new BigDecimal("12.99")).build());
+        }
+
+        paymentIds = paymentService.newPayments(payments).getCreated().stream().mapToLong(Payment::getId).toArray();
+    }
+
+    @TearDown(Level.Iteration)
+    public void printLatencies() {
+        Histogram histogram = latencies.getIntervalHistogram();
+
+        System.out.printf("%n%s: %d lines, p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms%n", persistenceMode,
+                histogram.getTotalCount(), histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMaxValue() / 1000.0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public long upload() throws Exception {
+        long[] ids = paymentIds;
+        long[] answered = new long[1];
+
+        NdjsonUploadClient.upload(port, LINES,
+                i -> "{\"op\":\"" + (i % 2 == 0 ? "preAuth" : "authorize") + "\",\"paymentId\":" + ids[i / 2] + "}",
+                result -> {
+                    latencies.recordValue(Math.max(1, micros(result)));
+                    answered[0]++;
+                });
+
+        return answered[0];
+    }
+
+    private static long micros(String result) {
+        int start = result.indexOf(MICROS);
+        if (start < 0) {
+            return 0;
+        }
+
+        start += MICROS.length();
+        int end = start;
+        while (end < result.length() && Character.isDigit(result.charAt(end))) {
+            end++;
+        }
+
+        return end == start ? 0 : Long.parseLong(result, start, end, 10);
+    }
+}
@@ -0,0 +1,89 @@
+package guru.springframework.msscssm.benchmarks;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.services.PaymentService;
+import guru.springframework.msscssm.services.PaymentStateChangeInterceptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/*
+    persistenza di un cambio di stato da parte dell'interceptor contro H2, una transazione per invocazione.
+    Ogni thread ha il suo pagamento e lo fa oscillare tra NEW e PRE_AUTH.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class InterceptorPersistenceBenchmark {
+
+    @Param({"ENTITY", "COALESCED"})
+    String persistenceMode;
+
+    ConfigurableApplicationContext context;
+    PaymentStateChangeInterceptor interceptor;
+    PaymentService paymentService;
+    TransactionTemplate transactionTemplate;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = BenchmarkApplication.start("payment.persistence.mode=" + persistenceMode);
+        interceptor = context.getBean(PaymentStateChangeInterceptor.class);
+        paymentService = context.getBean(PaymentService.class);
+        transactionTemplate = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        Long paymentId;
+        PaymentState state;
+
+        @Setup(Level.Trial)
+        public void setUp(InterceptorPersistenceBenchmark benchmark) {
+            paymentId = benchmark.paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+            state = PaymentState.NEW;
+        }
+    }
+
+    @Benchmark
+    public PaymentState persistStateChange(ThreadState thread) {
+        PaymentState next = thread.state == PaymentState.NEW ? PaymentState.PRE_AUTH : PaymentState.NEW;
+        // il ritorno a NEW non esiste nella macchina, lo storico lo registra senza evento
+        PaymentEvent event = next == PaymentState.PRE_AUTH ? PaymentEvent.PRE_AUTH_APPROVED : null;
+
+        transactionTemplate.execute(status -> {
+            interceptor.onStateChange(thread.paymentId, event, thread.state, next);
+            return null;
+        });
+
+        thread.state = next;
+
+        return next;
+    }
+}
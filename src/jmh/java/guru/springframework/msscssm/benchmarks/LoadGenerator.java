@@ -0,0 +1,192 @@
+package guru.springframework.msscssm.benchmarks;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.services.PaymentService;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    generatore di carico per il capacity planning: threads pagamenti alla volta fanno tutto il giro
+    newPayment -> preAuth -> authorizePayment su PaymentService, e alla fine si stampano throughput, latenze
+    p50 / p99 / p99.9 ed errori per passo (LoadReport; le distribuzioni complete vanno in target/load).
+
+        rate=0      closed loop: ogni thread ricomincia appena finito il giro precedente
+        rate=N      open loop a N giri al secondo in totale: ogni giro ha un orario previsto e la latenza del giro
+                    (FLOW) parte da lì, così un rallentamento non abbassa il carico né nasconde le attese
+                    (coordinated omission)
+
+    Un solo argomento, chiave=valore separati da virgole: threads, rate, warmup e duration (secondi) per il
+    generatore, tutto quello che inizia per payment. o spring. va al contesto. Per esempio:
+
+        ./mvnw -Pbenchmark test-compile exec:exec -Dbenchmark.main=guru.springframework.msscssm.benchmarks.LoadGenerator \
+            -Dbenchmark.args=threads=64,rate=5000,duration=60,payment.statemachine.engine=COMPILED
+
+    Le decisioni di autorizzazione sono SEEDED (BenchmarkApplication): due run con gli stessi parametri fanno gli
+    stessi giri.
+ */
+public class LoadGenerator {
+
+    private final PaymentService paymentService;
+    private final int threads;
+    private final double rate;
+    private final LoadReport report = new LoadReport();
+
+    LoadGenerator(PaymentService paymentService, int threads, double rate) {
+        this.paymentService = paymentService;
+        this.threads = threads;
+        this.rate = rate;
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        Map<String, String> options = new LinkedHashMap<>();
+        List<String> properties = new ArrayList<>();
+
+        if (args.length > 0) {
+            for (String option : args[0].split(",")) {
+                String[] keyValue = option.split("=", 2);
+
+                if (keyValue.length != 2) {
+                    continue;
+                }
+                if (keyValue[0].startsWith("payment.") || keyValue[0].startsWith("spring.")) {
+                    properties.add(option);
+                } else {
+                    options.put(keyValue[0], keyValue[1]);
+                }
+            }
+        }
+
+        int threads = Integer.parseInt(options.getOrDefault("threads", "16"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+        long warmup = Long.parseLong(options.getOrDefault("warmup", "10"));
+        long duration = Long.parseLong(options.getOrDefault("duration", "30"));
+
+        try (ConfigurableApplicationContext context = BenchmarkApplication.start(properties.toArray(new String[0]))) {
+            LoadGenerator generator = new LoadGenerator(context.getBean(PaymentService.class), threads, rate);
+
+            System.out.printf("threads=%d rate=%s warmup=%ds duration=%ds %s%n", threads,
+                    rate > 0 ? rate + "/s" : "closed loop", warmup, duration, properties);
+
+            long elapsed = generator.run(TimeUnit.SECONDS.toNanos(warmup), TimeUnit.SECONDS.toNanos(duration));
+            generator.report.print(System.out, elapsed);
+            generator.report.write(Paths.get("target", "load"));
+        }
+    }
+
+    /*
+        ritorna la durata effettiva della misura, in nanosecondi
+     */
+    long run(long warmupNanos, long durationNanos) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        long measureFrom = start + warmupNanos;
+        long end = measureFrom + durationNanos;
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; i++) {
+            int worker = i;
+            executor.execute(() -> {
+                try {
+                    drive(worker, start, end);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        LockSupport.parkNanos(measureFrom - System.nanoTime());
+        report.reset();
+
+        done.await();
+        long measured = System.nanoTime() - measureFrom;
+        report.snapshot();
+        executor.shutdown();
+
+        return measured;
+    }
+
+    private void drive(int worker, long start, long end) {
+        if (rate <= 0) {
+            for (long now = System.nanoTime(); now < end; now = System.nanoTime()) {
+                flow(now);
+            }
+            return;
+        }
+
+        // i giri di ogni thread sono distanziati di threads / rate, sfasati tra un thread e l'altro
+        long interval = (long) (threads * 1e9 / rate);
+        long next = start + interval * worker / threads;
+
+        while (next < end) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            flow(next);
+            next += interval;
+        }
+    }
+
+    private void flow(long intendedStart) {
+        Long paymentId;
+        long stepStart = System.nanoTime();
+
+        try {
+            paymentId = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+            report.record(LoadReport.Step.NEW_PAYMENT, System.nanoTime() - stepStart);
+        } catch (RuntimeException e) {
+            report.error(LoadReport.Step.NEW_PAYMENT);
+            return;
+        }
+
+        PaymentState state;
+        stepStart = System.nanoTime();
+
+        try {
+            state = paymentService.preAuth(paymentId, null);
+            report.record(LoadReport.Step.PRE_AUTH, System.nanoTime() - stepStart);
+        } catch (RuntimeException e) {
+            report.error(LoadReport.Step.PRE_AUTH);
+            return;
+        }
+
+        // PRE_AUTH_ERROR è un esito, non un errore; con payment.auth.mode=ASYNC qui è ancora NEW e ci si ferma
+        if (state != PaymentState.PRE_AUTH) {
+            if (state == PaymentState.PRE_AUTH_ERROR) {
+                report.declined(LoadReport.Step.PRE_AUTH);
+            }
+            report.record(LoadReport.Step.FLOW, System.nanoTime() - intendedStart);
+            return;
+        }
+
+        stepStart = System.nanoTime();
+
+        try {
+            state = paymentService.authorizePayment(paymentId, null);
+            report.record(LoadReport.Step.AUTHORIZE, System.nanoTime() - stepStart);
+        } catch (RuntimeException e) {
+            report.error(LoadReport.Step.AUTHORIZE);
+            return;
+        }
+
+        if (state == PaymentState.AUTH_ERROR) {
+            report.declined(LoadReport.Step.AUTHORIZE);
+        }
+
+        report.record(LoadReport.Step.FLOW, System.nanoTime() - intendedStart);
+    }
+}
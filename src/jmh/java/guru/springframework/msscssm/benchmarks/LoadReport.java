@@ -0,0 +1,98 @@
+package guru.springframework.msscssm.benchmarks;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    latenze (istogrammi HDR, in microsecondi, 3 cifre significative) ed esiti per passo del LoadGenerator.
+
+    Si registra con un Recorder per passo, senza lock; a fine warmup reset() butta quanto registrato fin lì, a fine
+    misura snapshot() prende gli istogrammi del periodo misurato.
+ */
+class LoadReport {
+
+    enum Step {
+        NEW_PAYMENT, PRE_AUTH, AUTHORIZE, FLOW
+    }
+
+    private final Map<Step, Recorder> recorders = new EnumMap<>(Step.class);
+    private final Map<Step, LongAdder> errors = new EnumMap<>(Step.class);
+    private final Map<Step, LongAdder> declined = new EnumMap<>(Step.class);
+    private final Map<Step, Histogram> histograms = new EnumMap<>(Step.class);
+
+    LoadReport() {
+        for (Step step : Step.values()) {
+            recorders.put(step, new Recorder(3));
+            errors.put(step, new LongAdder());
+            declined.put(step, new LongAdder());
+        }
+    }
+
+    void record(Step step, long nanos) {
+        recorders.get(step).recordValue(Math.max(1, TimeUnit.NANOSECONDS.toMicros(nanos)));
+    }
+
+    void error(Step step) {
+        errors.get(step).increment();
+    }
+
+    void declined(Step step) {
+        declined.get(step).increment();
+    }
+
+    void reset() {
+        for (Step step : Step.values()) {
+            recorders.get(step).reset();
+            errors.get(step).reset();
+            declined.get(step).reset();
+        }
+    }
+
+    void snapshot() {
+        for (Step step : Step.values()) {
+            histograms.put(step, recorders.get(step).getIntervalHistogram());
+        }
+    }
+
+    void print(PrintStream out, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+
+        out.printf("%-12s %10s %10s %8s %10s %10s %10s %10s %10s %10s%n",
+                "step", "count", "errors", "err %", "declined", "ops/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+
+        for (Step step : Step.values()) {
+            Histogram histogram = histograms.get(step);
+            long count = histogram.getTotalCount();
+            long failed = errors.get(step).sum();
+
+            out.printf("%-12s %10d %10d %8.3f %10d %10.1f %10.3f %10.3f %10.3f %10.3f%n",
+                    step, count, failed, count + failed == 0 ? 0.0 : 100.0 * failed / (count + failed),
+                    declined.get(step).sum(), count / seconds,
+                    histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0,
+                    histogram.getValueAtPercentile(99.9) / 1000.0, histogram.getMaxValue() / 1000.0);
+        }
+    }
+
+    /*
+        distribuzione completa per passo (.hgrm, in millisecondi), da confrontare tra release o da disegnare con
+        l'HdrHistogram plotter
+     */
+    void write(Path directory) throws IOException {
+        Files.createDirectories(directory);
+
+        for (Step step : Step.values()) {
+            try (PrintStream out = new PrintStream(Files.newOutputStream(directory.resolve(step.name().toLowerCase() + ".hgrm")))) {
+                histograms.get(step).outputPercentileDistribution(out, 1000.0);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package guru.springframework.msscssm.benchmarks;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.services.PaymentCreationResult;
+import guru.springframework.msscssm.services.PaymentService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+    pagamenti creati al secondo: newPayment uno alla volta contro newPayments a blocchi (payment.create.chunk-size).
+    Prima era una stampa in NewPaymentsTest, che ora controlla solo gli statement JDBC
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class NewPaymentsBenchmark {
+
+    static final int PAYMENTS = 5_000;
+
+    ConfigurableApplicationContext context;
+    PaymentService paymentService;
+
+    List<Payment> payments;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = BenchmarkApplication.start();
+        paymentService = context.getBean(PaymentService.class);
+    }
+
+    @Setup(Level.Invocation)
+    public void payments() {
+        payments = new ArrayList<>(PAYMENTS);
+        for (int i = 0; i < PAYMENTS; i++) {
+            payments.add(Payment.builder().amount(new BigDecimal("12.99")).customerId("c-" + (i % 1_000)).build());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAYMENTS)
+    public Long newPayment() {
+        Long last = null;
+        for (Payment payment : payments) {
+            last = paymentService.newPayment(payment).getId();
+        }
+        return last;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAYMENTS)
+    public PaymentCreationResult newPayments() {
+        return paymentService.newPayments(payments);
+    }
+}
@@ -0,0 +1,94 @@
+package guru.springframework.msscssm.benchmarks;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.services.PaymentEventDispatcher;
+import guru.springframework.msscssm.services.PaymentService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.math.BigDecimal;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+    throughput di PaymentEventDispatcher al variare delle corsie: ogni invocazione porta BATCH pagamenti nuovi da
+    NEW ad AUTH (due eventi a testa) e aspetta l'ultimo. Confrontando lanes=1 con lanes=N si vede quanto scala
+    con i core.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Threads(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PaymentEventDispatcherBenchmark {
+
+    static final int BATCH = 512;
+
+    @Param({"1", "2", "4", "8"})
+    int lanes;
+
+    @Param({"ENTITY", "COALESCED"})
+    String persistenceMode;
+
+    ConfigurableApplicationContext context;
+    PaymentService paymentService;
+    PaymentEventDispatcher dispatcher;
+
+    Long[] paymentIds = new Long[BATCH];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = BenchmarkApplication.start(
+                "payment.dispatcher.lanes=" + lanes,
+                "payment.dispatcher.queue-capacity=" + BATCH,
+                "payment.persistence.mode=" + persistenceMode,
+                "payment.auth.decision=APPROVE");
+        paymentService = context.getBean(PaymentService.class);
+        dispatcher = context.getBean(PaymentEventDispatcher.class);
+    }
+
+    @Setup(Level.Invocation)
+    public void newPayments() {
+        for (int i = 0; i < BATCH; i++) {
+            paymentIds[i] = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public PaymentState preAuthAndAuthorize() {
+        CompletableFuture<?>[] results = new CompletableFuture<?>[BATCH];
+
+        for (int i = 0; i < BATCH; i++) {
+            dispatcher.fire(paymentIds[i], PaymentEvent.PRE_AUTHORIZE);
+            results[i] = dispatcher.submit(paymentIds[i], PaymentEvent.AUTHORIZE);
+        }
+
+        CompletableFuture.allOf(results).join();
+
+        return (PaymentState) results[BATCH - 1].join();
+    }
+}
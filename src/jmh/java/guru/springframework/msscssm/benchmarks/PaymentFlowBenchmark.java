@@ -0,0 +1,69 @@
+package guru.springframework.msscssm.benchmarks;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.services.PaymentService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/*
+    il flusso completo attraverso PaymentService: newPayment -> preAuth -> authorizePayment (se pre autorizzato)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PaymentFlowBenchmark {
+
+    @Param({"SPRING", "COMPILED"})
+    String engine;
+
+    @Param({"ENTITY", "COALESCED"})
+    String persistenceMode;
+
+    ConfigurableApplicationContext context;
+    PaymentService paymentService;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = BenchmarkApplication.start(
+                "payment.statemachine.engine=" + engine,
+                "payment.persistence.mode=" + persistenceMode);
+        paymentService = context.getBean(PaymentService.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public PaymentState newPreAuthAuthorize() {
+        Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+
+        PaymentState state = paymentService.preAuth(payment.getId());
+
+        if (state == PaymentState.PRE_AUTH) {
+            state = paymentService.authorizePayment(payment.getId());
+        }
+
+        return state;
+    }
+}
@@ -0,0 +1,95 @@
+package guru.springframework.msscssm.benchmarks;
+
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.services.OffHeapLongByteMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+    l'indice degli stati (OffHeapLongByteMap sotto PaymentStateIndex) con 100 milioni di pagamenti, id della
+    sequence da 1 in su:
+
+        -   randomLookup: id a caso, quasi sempre fuori dalla cache della CPU (è il caso delle richieste di stato)
+        -   sequentialLookup: id consecutivi, il caso migliore
+        -   randomState: come PaymentStateIndex.get, fino alla costante di PaymentState
+
+    L'occupazione (fuori heap, per pagamento, e quanto heap è servito a riempirlo) viene stampata alla fine del
+    setup; il profiler gc di BenchmarkRunner mostra che le letture non allocano. Heap piccolo apposta: l'indice
+    non ci sta.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx512m", "-XX:MaxDirectMemorySize=1g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PaymentStateIndexBenchmark {
+
+    private static final PaymentState[] STATES = PaymentState.values();
+
+    @Param({"100000000"})
+    long payments;
+
+    OffHeapLongByteMap index;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        long start = System.nanoTime();
+
+        index = new OffHeapLongByteMap(payments);
+        for (long id = 1; id <= payments; id++) {
+            index.put(id, (byte) (id % STATES.length));
+        }
+
+        long fillMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.gc();
+        long heapAfter = memory.getHeapMemoryUsage().getUsed();
+
+        System.out.printf("%n%d payments in %d ms: %d bytes off-heap (%.2f per payment), heap %+d bytes%n",
+                index.size(), fillMs, index.memoryBytes(), (double) index.memoryBytes() / index.size(),
+                heapAfter - heapBefore);
+    }
+
+    @State(Scope.Thread)
+    public static class Ids {
+
+        final SplittableRandom random = new SplittableRandom();
+        long next = 1;
+    }
+
+    @Benchmark
+    public byte randomLookup(Ids ids) {
+        return index.get(1 + ids.random.nextLong(payments));
+    }
+
+    @Benchmark
+    public byte sequentialLookup(Ids ids) {
+        long id = ids.next;
+        ids.next = id == payments ? 1 : id + 1;
+        return index.get(id);
+    }
+
+    @Benchmark
+    public PaymentState randomState(Ids ids) {
+        byte ordinal = index.get(1 + ids.random.nextLong(payments));
+        return ordinal == OffHeapLongByteMap.MISSING ? null : STATES[ordinal];
+    }
+}
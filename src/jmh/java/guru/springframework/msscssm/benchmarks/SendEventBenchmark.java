@@ -0,0 +1,105 @@
+package guru.springframework.msscssm.benchmarks;
+
+import guru.springframework.msscssm.config.PaymentTransitionModel;
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.engine.CompiledStateMachineEngine;
+import guru.springframework.msscssm.metrics.PaymentMetrics;
+import guru.springframework.msscssm.services.PaymentStateChangeHub;
+import guru.springframework.msscssm.services.PaymentStateChangeInterceptor;
+import guru.springframework.msscssm.services.PaymentStateMachineProvider;
+import guru.springframework.msscssm.services.PaymentStateWriteBuffer;
+import guru.springframework.msscssm.services.StateMachinePool;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.statemachine.StateMachine;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    giro completo di un evento senza database: macchina nello stato NEW, PRE_AUTHORIZE, la PreAuthAction decide e
+    manda PRE_AUTH_APPROVED/DECLINED, l'interceptor registra il cambio di stato nel PaymentStateWriteBuffer del thread.
+
+    borrowAndRelease è la base, la differenza con preAuthorizeRoundTrip è il costo dell'evento vero e proprio.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SendEventBenchmark {
+
+    @Param({"SPRING", "COMPILED"})
+    String engine;
+
+    ConfigurableApplicationContext context;
+    PaymentStateMachineProvider provider;
+
+    final AtomicLong nextPaymentId = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = BenchmarkApplication.start();
+
+        if ("COMPILED".equals(engine)) {
+            provider = new CompiledStateMachineEngine(context.getBean(PaymentTransitionModel.class),
+                    context.getBean(PaymentStateChangeInterceptor.class), context.getBean(PaymentMetrics.class),
+                    context.getBean(PaymentStateChangeHub.class),
+                    new SimpleMeterRegistry(), 64);
+        } else {
+            provider = context.getBean(StateMachinePool.class);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        Long paymentId;
+
+        @Setup(Level.Trial)
+        public void setUp(SendEventBenchmark benchmark) {
+            paymentId = benchmark.nextPaymentId.incrementAndGet();
+            PaymentStateWriteBuffer.bind();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            PaymentStateWriteBuffer.unbind();
+        }
+    }
+
+    @Benchmark
+    public StateMachine<PaymentState, PaymentEvent> borrowAndRelease(ThreadState thread) {
+        StateMachine<PaymentState, PaymentEvent> sm = provider.borrow(thread.paymentId, PaymentState.NEW);
+        provider.release(sm);
+        return sm;
+    }
+
+    @Benchmark
+    public boolean preAuthorizeRoundTrip(ThreadState thread) {
+        StateMachine<PaymentState, PaymentEvent> sm = provider.borrow(thread.paymentId, PaymentState.NEW);
+        boolean accepted = provider.sendEvent(sm, thread.paymentId, PaymentEvent.PRE_AUTHORIZE);
+        provider.release(sm);
+        return accepted;
+    }
+}
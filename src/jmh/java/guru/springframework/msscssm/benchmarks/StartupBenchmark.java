@@ -0,0 +1,62 @@
+package guru.springframework.msscssm.benchmarks;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.services.PaymentService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/*
+    tempo dall'avvio del contesto alla prima transizione completata (newPayment + preAuth), a JVM fredda: ogni
+    misura è un fork nuovo, niente warmup. Con SPRING l'avvio costruisce anche il factory di Spring State Machine
+    e la prima richiesta la prima macchina, con COMPILED solo la tabella.
+
+    Il costo per macchina a regime è in StateMachineConstructionBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(10)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+public class StartupBenchmark {
+
+    @Param({"SPRING", "COMPILED"})
+    String engine;
+
+    ConfigurableApplicationContext context;
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        if (context != null) {
+            context.close();
+            context = null;
+        }
+    }
+
+    @Benchmark
+    public PaymentState timeToFirstTransition() {
+        // DB per contesto: con più thread i contesti partono insieme
+        context = BenchmarkApplication.start("payment.statemachine.engine=" + engine,
+                "spring.datasource.generate-unique-name=true");
+
+        PaymentService paymentService = context.getBean(PaymentService.class);
+        Long paymentId = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+
+        return paymentService.preAuth(paymentId, null);
+    }
+}
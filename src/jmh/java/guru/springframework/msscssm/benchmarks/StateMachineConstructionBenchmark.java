@@ -0,0 +1,109 @@
+package guru.springframework.msscssm.benchmarks;
+
+import guru.springframework.msscssm.config.PaymentTransitionModel;
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.engine.CompiledStateMachineEngine;
+import guru.springframework.msscssm.metrics.PaymentMetrics;
+import guru.springframework.msscssm.repository.PaymentRepository;
+import guru.springframework.msscssm.services.PaymentService;
+import guru.springframework.msscssm.services.PaymentStateChangeHub;
+import guru.springframework.msscssm.services.PaymentStateChangeInterceptor;
+import guru.springframework.msscssm.services.StateMachinePool;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/*
+    costo di costruzione di una macchina a stati:
+        -   factoryGetStateMachine: StateMachineFactory.getStateMachine, quello che prima succedeva ad ogni richiesta
+        -   pooledRehydrate: macchina dal pool reidratata allo stato persistito
+        -   buildFromDatabase: come PaymentServiceImpl.build, lettura dello stato a DB + macchina dal pool
+        -   compiledBorrow: macchina riusata dal motore compilato sul modello condiviso (payment.statemachine.engine=COMPILED)
+
+    il tempo di avvio fino alla prima transizione è in StartupBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StateMachineConstructionBenchmark {
+
+    ConfigurableApplicationContext context;
+    StateMachineFactory<PaymentState, PaymentEvent> factory;
+    StateMachinePool pool;
+    CompiledStateMachineEngine compiled;
+    PaymentRepository paymentRepository;
+    TransactionTemplate transactionTemplate;
+    Long paymentId;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        context = BenchmarkApplication.start();
+        factory = context.getBean(StateMachineFactory.class);
+        pool = context.getBean(StateMachinePool.class);
+        compiled = new CompiledStateMachineEngine(context.getBean(PaymentTransitionModel.class),
+                context.getBean(PaymentStateChangeInterceptor.class), context.getBean(PaymentMetrics.class),
+                context.getBean(PaymentStateChangeHub.class),
+                new SimpleMeterRegistry(), 64);
+        paymentRepository = context.getBean(PaymentRepository.class);
+        transactionTemplate = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+        paymentId = context.getBean(PaymentService.class)
+                .newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public StateMachine<PaymentState, PaymentEvent> factoryGetStateMachine() {
+        return factory.getStateMachine();
+    }
+
+    @Benchmark
+    public StateMachine<PaymentState, PaymentEvent> pooledRehydrate() {
+        StateMachine<PaymentState, PaymentEvent> sm = pool.borrow(paymentId, PaymentState.PRE_AUTH);
+        pool.release(sm);
+        return sm;
+    }
+
+    @Benchmark
+    public StateMachine<PaymentState, PaymentEvent> buildFromDatabase() {
+        return transactionTemplate.execute(status -> {
+            StateMachine<PaymentState, PaymentEvent> sm = pool.borrow(paymentId, paymentRepository.findStateById(paymentId));
+            pool.release(sm);
+            return sm;
+        });
+    }
+
+    @Benchmark
+    public StateMachine<PaymentState, PaymentEvent> compiledBorrow() {
+        StateMachine<PaymentState, PaymentEvent> sm = compiled.borrow(paymentId, PaymentState.PRE_AUTH);
+        compiled.release(sm);
+        return sm;
+    }
+}
@@ -0,0 +1,72 @@
+package guru.springframework.msscssm.config;
+
+import guru.springframework.msscssm.services.AuthorizationDecisionProvider;
+import guru.springframework.msscssm.services.RandomAuthorizationDecisionProvider;
+import guru.springframework.msscssm.services.RatioAuthorizationDecisionProvider;
+import guru.springframework.msscssm.services.ScriptedAuthorizationDecisionProvider;
+import guru.springframework.msscssm.services.SeededAuthorizationDecisionProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/*
+    payment.auth.decision sceglie come PreAuthAction e AuthAction decidono l'esito:
+
+        RANDOM:     a caso, approval-percent% approvati (default, come prima)
+        SEEDED:     ripetibile a partire da payment.auth.decision.seed, per benchmark e test confrontabili
+        RATIO:      esattamente approval-percent% approvati, senza caso, nell'ordine delle chiamate
+        SCRIPTED:   esiti in ordine da payment.auth.decision.pre-auth-script / auth-script (APPROVE, DECLINE...)
+        APPROVE:    sempre approvato
+ */
+@Configuration
+public class AuthorizationDecisionConfig {
+
+    public enum DecisionMode {
+        RANDOM, SEEDED, RATIO, SCRIPTED, APPROVE
+    }
+
+    @Bean
+    public AuthorizationDecisionProvider authorizationDecisionProvider(
+            @Value("${payment.auth.decision:RANDOM}") DecisionMode mode,
+            @Value("${payment.auth.decision.seed:42}") long seed,
+            @Value("${payment.auth.approval-percent:80}") int approvalPercent,
+            @Value("${payment.auth.decision.pre-auth-script:APPROVE}") List<String> preAuthScript,
+            @Value("${payment.auth.decision.auth-script:APPROVE}") List<String> authScript) {
+
+        switch (mode) {
+            case SEEDED:
+                return new SeededAuthorizationDecisionProvider(seed, approvalPercent);
+            case RATIO:
+                return new RatioAuthorizationDecisionProvider(approvalPercent);
+            case SCRIPTED:
+                return new ScriptedAuthorizationDecisionProvider(script(preAuthScript), script(authScript));
+            case APPROVE:
+                return new SeededAuthorizationDecisionProvider(seed, 100);
+            default:
+                return new RandomAuthorizationDecisionProvider(approvalPercent);
+        }
+    }
+
+    private static List<Boolean> script(List<String> outcomes) {
+        List<Boolean> script = new ArrayList<>();
+
+        for (String outcome : outcomes) {
+            switch (outcome.trim().toUpperCase(Locale.ROOT)) {
+                case "APPROVE":
+                    script.add(Boolean.TRUE);
+                    break;
+                case "DECLINE":
+                    script.add(Boolean.FALSE);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown scripted decision: " + outcome);
+            }
+        }
+
+        return script;
+    }
+}
@@ -0,0 +1,65 @@
+package guru.springframework.msscssm.config;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import lombok.Getter;
+import org.springframework.statemachine.action.Action;
+import org.springframework.statemachine.guard.Guard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    la tabella delle transizioni del pagamento, definita una volta sola in StateMachineConfig.
+
+    Da qui la leggono sia la configurazione di Spring State Machine sia il motore compilato (engine), così le due
+    implementazioni non possono divergere. Una volta costruita è immutabile.
+ */
+@Getter
+public class PaymentTransitionModel {
+
+    private final List<Definition> transitions;
+
+    private PaymentTransitionModel(List<Definition> transitions) {
+        this.transitions = Collections.unmodifiableList(new ArrayList<>(transitions));
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Getter
+    public static class Definition {
+        private final PaymentState source;
+        private final PaymentState target;
+        private final PaymentEvent event;
+        private final Guard<PaymentState, PaymentEvent> guard;
+        private final List<Action<PaymentState, PaymentEvent>> actions;
+
+        Definition(PaymentState source, PaymentState target, PaymentEvent event,
+                   Guard<PaymentState, PaymentEvent> guard, List<Action<PaymentState, PaymentEvent>> actions) {
+            this.source = source;
+            this.target = target;
+            this.event = event;
+            this.guard = guard;
+            this.actions = Collections.unmodifiableList(actions);
+        }
+    }
+
+    public static class Builder {
+
+        private final List<Definition> transitions = new ArrayList<>();
+
+        @SafeVarargs
+        public final Builder transition(PaymentState source, PaymentState target, PaymentEvent event,
+                                        Guard<PaymentState, PaymentEvent> guard, Action<PaymentState, PaymentEvent>... actions) {
+            transitions.add(new Definition(source, target, event, guard, List.of(actions)));
+            return this;
+        }
+
+        public PaymentTransitionModel build() {
+            return new PaymentTransitionModel(transitions);
+        }
+    }
+}
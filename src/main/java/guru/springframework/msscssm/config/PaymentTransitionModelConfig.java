@@ -0,0 +1,78 @@
+package guru.springframework.msscssm.config;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.metrics.PaymentMetrics;
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.statemachine.action.Action;
+import org.springframework.statemachine.guard.Guard;
+
+/*
+    il modello delle transizioni del pagamento, separato da StateMachineConfig: quella serve solo al motore di
+    Spring State Machine, questo a tutti e due (con il motore compilato StateMachineConfig non viene caricata).
+ */
+@RequiredArgsConstructor
+@Configuration
+public class PaymentTransitionModelConfig {
+
+    private final Action<PaymentState, PaymentEvent> preAuthAction;
+    private final Action<PaymentState, PaymentEvent> authAction;
+    private final Guard<PaymentState, PaymentEvent> paymentIdGuard;
+    private final Guard<PaymentState, PaymentEvent> riskRuleGuard;
+    private final Action<PaymentState, PaymentEvent> preAuthApprovedAction;
+    private final Action<PaymentState, PaymentEvent> preAuthDeclinedAction;
+    private final Action<PaymentState, PaymentEvent> authApprovedAction;
+    private final Action<PaymentState, PaymentEvent> authDeclinedAction;
+    private final PaymentMetrics paymentMetrics;
+
+    /*
+        qua in pratica dico alla macchina a stati come effettuare le transizioni in relazione agli eventi che arriveranno.
+
+        p.es.:
+
+        .transition(PaymentState.NEW, PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_APPROVED, ...)
+
+        (che in configure diventa .withExternal().source(PaymentState.NEW).target(PaymentState.PRE_AUTH).event(PaymentEvent.PRE_AUTH_APPROVED))
+
+        significa che se sei nello stato PaymentState.NEW e ti arriva un evento PaymentEvent.PRE_AUTH_APPROVED, allora devi andare
+        nello stato PaymentState.PRE_AUTH
+     */
+
+    /*
+        la tabella delle transizioni sta in PaymentTransitionModel, così la usa anche il motore compilato
+        (payment.statemachine.engine=COMPILED) senza doverla duplicare. Viene costruita una volta sola all'avvio ed
+        è immutabile: tutte le macchine, di tutti e due i motori, condividono la stessa.
+
+        Action e Guard sono avvolte da PaymentMetrics che ne misura la durata. PRE_AUTHORIZE passa prima da
+        paymentIdGuard e poi dalle regole di rischio (riskRuleGuard).
+     */
+    @Bean
+    public PaymentTransitionModel paymentTransitionModel() {
+        return PaymentTransitionModel.builder()
+                .transition(PaymentState.NEW, PaymentState.NEW, PaymentEvent.PRE_AUTHORIZE,
+                        both(paymentMetrics.timed("paymentIdGuard", paymentIdGuard), paymentMetrics.timed("riskRuleGuard", riskRuleGuard)),
+                        paymentMetrics.timed("preAuthAction", preAuthAction))
+                .transition(PaymentState.NEW, PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_APPROVED,
+                        null, paymentMetrics.timed("preAuthApprovedAction", preAuthApprovedAction))
+                .transition(PaymentState.NEW, PaymentState.PRE_AUTH_ERROR, PaymentEvent.PRE_AUTH_DECLINED,
+                        null, paymentMetrics.timed("preAuthDeclinedAction", preAuthDeclinedAction))
+                //preauth to auth
+                .transition(PaymentState.PRE_AUTH, PaymentState.PRE_AUTH, PaymentEvent.AUTHORIZE,
+                        null, paymentMetrics.timed("authAction", authAction))
+                .transition(PaymentState.PRE_AUTH, PaymentState.AUTH, PaymentEvent.AUTH_APPROVED,
+                        null, paymentMetrics.timed("authApprovedAction", authApprovedAction))
+                .transition(PaymentState.PRE_AUTH, PaymentState.AUTH_ERROR, PaymentEvent.AUTH_DECLINED,
+                        null, paymentMetrics.timed("authDeclinedAction", authDeclinedAction))
+                // scadenze (PaymentTimeouts): il processore non ha risposto in tempo
+                .transition(PaymentState.NEW, PaymentState.PRE_AUTH_ERROR, PaymentEvent.PRE_AUTH_TIMEOUT, null)
+                .transition(PaymentState.PRE_AUTH, PaymentState.AUTH_ERROR, PaymentEvent.AUTH_TIMEOUT, null)
+                .build();
+    }
+
+    private static Guard<PaymentState, PaymentEvent> both(Guard<PaymentState, PaymentEvent> first,
+                                                          Guard<PaymentState, PaymentEvent> second) {
+        return context -> first.evaluate(context) && second.evaluate(context);
+    }
+}
@@ -2,16 +2,21 @@ package guru.springframework.msscssm.config;
 
 import guru.springframework.msscssm.domain.PaymentEvent;
 import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.metrics.PaymentMetricsListener;
 import guru.springframework.msscssm.services.PaymentServiceImpl;
+import guru.springframework.msscssm.services.PaymentStateChangeHub;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.statemachine.StateContext;
 import org.springframework.statemachine.action.Action;
 import org.springframework.statemachine.config.EnableStateMachineFactory;
 import org.springframework.statemachine.config.StateMachineConfigurerAdapter;
 import org.springframework.statemachine.config.builders.StateMachineConfigurationConfigurer;
 import org.springframework.statemachine.config.builders.StateMachineStateConfigurer;
 import org.springframework.statemachine.config.builders.StateMachineTransitionConfigurer;
+import org.springframework.statemachine.config.configurers.ExternalTransitionConfigurer;
 import org.springframework.statemachine.guard.Guard;
 import org.springframework.statemachine.listener.StateMachineListenerAdapter;
 import org.springframework.statemachine.state.State;
@@ -31,21 +36,21 @@ import java.util.EnumSet;
     parent parametrizzato)
 
     Il factory è costituito da stati iniziali, enumerazione degli stati e stati finali.g
+
+    Serve solo con payment.statemachine.engine=SPRING: con il motore compilato il factory (e il pool) non vengono
+    proprio creati, e all'avvio resta solo la costruzione della tabella.
  */
 @Slf4j
 /* annotation fondamentale */
 @RequiredArgsConstructor
 @EnableStateMachineFactory
 @Configuration
+@ConditionalOnProperty(name = "payment.statemachine.engine", havingValue = "SPRING", matchIfMissing = true)
 public class StateMachineConfig extends StateMachineConfigurerAdapter<PaymentState, PaymentEvent> {
 
-    private final Action<PaymentState, PaymentEvent> preAuthAction;
-    private final Action<PaymentState, PaymentEvent> authAction;
-    private final Guard<PaymentState, PaymentEvent> paymentIdGuard;
-    private final Action<PaymentState, PaymentEvent> preAuthApprovedAction;
-    private final Action<PaymentState, PaymentEvent> preAuthDeclinedAction;
-    private final Action<PaymentState, PaymentEvent> authApprovedAction;
-    private final Action<PaymentState, PaymentEvent> authDeclinedAction;
+    private final PaymentTransitionModel paymentTransitionModel;
+    private final PaymentMetricsListener paymentMetricsListener;
+    private final PaymentStateChangeHub paymentStateChangeHub;
 
     @Override
     public void configure(StateMachineStateConfigurer<PaymentState, PaymentEvent> states) throws Exception {
@@ -58,41 +63,32 @@ public class StateMachineConfig extends StateMachineConfigurerAdapter<PaymentSta
     }
 
     /*
-        qua in pratica dico alla macchina a stati come effettuare le transizioni in relazione agli eventi che arriveranno.
-
-        p.es.:
-
-        .withExternal().source(PaymentState.NEW).target(PaymentState.PRE_AUTH).event(PaymentEvent.PRE_AUTH_APPROVED)
-
-        significa che se sei nello stato PaymentState.NEW e ti arriva un evento PaymentEvent.PRE_AUTH_APPROVED, allora devi andare
-        nello stato PaymentState.PRE_AUTH
+        la tabella delle transizioni arriva già costruita da PaymentTransitionModelConfig (una volta sola, condivisa
+        con il motore compilato): qui la traduciamo nella configurazione di Spring State Machine
      */
-
     @Override
     public void configure(StateMachineTransitionConfigurer<PaymentState, PaymentEvent> transitions) throws Exception {
-        transitions.withExternal().source(PaymentState.NEW).target(PaymentState.NEW).event(PaymentEvent.PRE_AUTHORIZE)
-                    .action(preAuthAction).guard(paymentIdGuard)
-                .and()
-                .withExternal().source(PaymentState.NEW).target(PaymentState.PRE_AUTH).event(PaymentEvent.PRE_AUTH_APPROVED)
-                    .action(preAuthApprovedAction)
-                .and()
-                .withExternal().source(PaymentState.NEW).target(PaymentState.PRE_AUTH_ERROR).event(PaymentEvent.PRE_AUTH_DECLINED)
-                    .action(preAuthDeclinedAction)
-                //preauth to auth
-                .and()
-                .withExternal().source(PaymentState.PRE_AUTH).target(PaymentState.PRE_AUTH).event(PaymentEvent.AUTHORIZE)
-                    .action(authAction)
-                .and()
-                .withExternal().source(PaymentState.PRE_AUTH).target(PaymentState.AUTH).event(PaymentEvent.AUTH_APPROVED)
-                    .action(authApprovedAction)
-                .and()
-                .withExternal().source(PaymentState.PRE_AUTH).target(PaymentState.AUTH_ERROR).event(PaymentEvent.AUTH_DECLINED)
-                    .action(authDeclinedAction);
+        for (PaymentTransitionModel.Definition definition : paymentTransitionModel.getTransitions()) {
+            ExternalTransitionConfigurer<PaymentState, PaymentEvent> external = transitions.withExternal()
+                    .source(definition.getSource()).target(definition.getTarget()).event(definition.getEvent());
+
+            if (definition.getGuard() != null) {
+                external.guard(definition.getGuard());
+            }
+
+            for (Action<PaymentState, PaymentEvent> action : definition.getActions()) {
+                external.action(action);
+            }
+        }
     }
 
     /*
         Aggiungiamo un listener che ci avvisa alla variazione di stato p.es. così possiamo scrivere qualche
-        log o tracciare o effettuare azioni
+        log o tracciare o effettuare azioni: oltre al log pubblica la transizione su PaymentStateChangeHub (che la
+        consegna agli iscritti solo dopo il commit). Lo stateContext serve perché stateChanged non ha il messaggio,
+        e quindi nemmeno l'id del pagamento.
+
+        il secondo listener (PaymentMetricsListener) misura le transizioni e conta gli eventi non accettati
      */
     @Override
     public void configure(StateMachineConfigurationConfigurer<PaymentState, PaymentEvent> config) throws Exception {
@@ -105,13 +101,26 @@ public class StateMachineConfig extends StateMachineConfigurerAdapter<PaymentSta
                 *
                 *   https://dzone.com/articles/java-string-format-examples
                 *
+                *   ...però così la stringa viene costruita ad ogni cambio di stato anche quando il log è spento:
+                *   meglio i placeholder {} di slf4j, che formattano solo se il livello è attivo
                 */
-                log.info(String.format("stateChanged(from: %s, to: %s)", from, to));
+                log.debug("stateChanged(from: {}, to: {})", from, to);
+            }
+
+            @Override
+            public void stateContext(StateContext<PaymentState, PaymentEvent> stateContext) {
+                if (stateContext.getStage() == StateContext.Stage.STATE_CHANGED && stateContext.getTarget() != null) {
+                    paymentStateChangeHub.publish((Long) stateContext.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER),
+                            stateContext.getEvent(),
+                            stateContext.getSource() == null ? null : stateContext.getSource().getId(),
+                            stateContext.getTarget().getId());
+                }
             }
         };
 
         config.withConfiguration()
-                .listener(adapter);
+                .listener(adapter)
+                .listener(paymentMetricsListener);
     }
 
     /*
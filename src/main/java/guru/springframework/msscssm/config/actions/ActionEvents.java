@@ -0,0 +1,34 @@
+package guru.springframework.msscssm.config.actions;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.engine.CompiledPaymentStateMachine;
+import guru.springframework.msscssm.services.PaymentServiceImpl;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.statemachine.StateContext;
+import org.springframework.statemachine.StateMachine;
+
+/*
+    l'esito che PreAuthAction e AuthAction mandano alla macchina mentre la transizione è in corso.
+
+    Con Spring State Machine l'id del pagamento viaggia nell'header del messaggio, quindi va costruito un Message;
+    la macchina compilata l'id lo tiene già, e l'evento le arriva così com'è, senza allocare nulla.
+ */
+final class ActionEvents {
+
+    private ActionEvents() {
+    }
+
+    static void send(StateContext<PaymentState, PaymentEvent> context, PaymentEvent event) {
+        StateMachine<PaymentState, PaymentEvent> stateMachine = context.getStateMachine();
+
+        if (stateMachine instanceof CompiledPaymentStateMachine) {
+            stateMachine.sendEvent(event);
+            return;
+        }
+
+        stateMachine.sendEvent(MessageBuilder.withPayload(event)
+                .setHeader(PaymentServiceImpl.PAYMENT_ID_HEADER, context.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER))
+                .build());
+    }
+}
@@ -2,35 +2,43 @@ package guru.springframework.msscssm.config.actions;
 
 import guru.springframework.msscssm.domain.PaymentEvent;
 import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.services.AsyncAuthorizer;
+import guru.springframework.msscssm.services.AuthorizationDecisionProvider;
 import guru.springframework.msscssm.services.PaymentServiceImpl;
-import org.springframework.messaging.support.MessageBuilder;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.statemachine.StateContext;
 import org.springframework.statemachine.action.Action;
 import org.springframework.stereotype.Component;
 
-import java.util.Random;
-
 /**
  * Created by jt on 2019-08-18.
  */
+@RequiredArgsConstructor
+@Slf4j
 @Component
 public class AuthAction implements Action<PaymentState, PaymentEvent> {
 
+    private final AuthorizationDecisionProvider authorizationDecisionProvider;
+    private final AsyncAuthorizer asyncAuthorizer;
+
     @Override
     public void execute(StateContext<PaymentState, PaymentEvent> context) {
-        System.out.println("Auth was called!!!");
+        log.debug("Auth was called!!!");
+
+        if (asyncAuthorizer.isEnabled()) {
+            // l'esito arriverà come AUTH_APPROVED / AUTH_DECLINED dopo il commit
+            asyncAuthorizer.authorize((Long) context.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER));
+            return;
+        }
 
-        if (new Random().nextInt(10) < 8) {
-            System.out.println("Auth Approved");
-            context.getStateMachine().sendEvent(MessageBuilder.withPayload(PaymentEvent.AUTH_APPROVED)
-                    .setHeader(PaymentServiceImpl.PAYMENT_ID_HEADER, context.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER))
-                    .build());
+        if (authorizationDecisionProvider.approveAuth((Long) context.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER))) {
+            log.debug("Auth Approved");
+            ActionEvents.send(context, PaymentEvent.AUTH_APPROVED);
 
         } else {
-            System.out.println("Auth Declined! No Credit!!!!!!");
-            context.getStateMachine().sendEvent(MessageBuilder.withPayload(PaymentEvent.AUTH_DECLINED)
-                    .setHeader(PaymentServiceImpl.PAYMENT_ID_HEADER, context.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER))
-                    .build());
+            log.debug("Auth Declined! No Credit!!!!!!");
+            ActionEvents.send(context, PaymentEvent.AUTH_DECLINED);
         }
     }
 }
@@ -2,14 +2,15 @@ package guru.springframework.msscssm.config.actions;
 
 import guru.springframework.msscssm.domain.PaymentEvent;
 import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.services.AsyncAuthorizer;
+import guru.springframework.msscssm.services.AuthorizationDecisionProvider;
 import guru.springframework.msscssm.services.PaymentServiceImpl;
-import org.springframework.messaging.support.MessageBuilder;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.statemachine.StateContext;
 import org.springframework.statemachine.action.Action;
 import org.springframework.stereotype.Component;
 
-import java.util.Random;
-
 /**
  * Created by jt on 2019-08-18.
  */
@@ -22,25 +23,31 @@ import java.util.Random;
          e quindi possiamo usare le lambda)
       */
 
+@RequiredArgsConstructor
+@Slf4j
 @Component
 public class PreAuthAction implements Action<PaymentState, PaymentEvent>{
 
+    private final AuthorizationDecisionProvider authorizationDecisionProvider;
+    private final AsyncAuthorizer asyncAuthorizer;
 
     @Override
     public void execute(StateContext<PaymentState, PaymentEvent> context) {
-        System.out.println("PreAuth was called!!!");
+        log.debug("PreAuth was called!!!");
+
+        if (asyncAuthorizer.isEnabled()) {
+            // l'esito arriverà come PRE_AUTH_APPROVED / PRE_AUTH_DECLINED dopo il commit
+            asyncAuthorizer.preAuthorize((Long) context.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER));
+            return;
+        }
 
-        if (new Random().nextInt(10) < 8) {
-            System.out.println("Pre Auth Approved");
-            context.getStateMachine().sendEvent(MessageBuilder.withPayload(PaymentEvent.PRE_AUTH_APPROVED)
-                    .setHeader(PaymentServiceImpl.PAYMENT_ID_HEADER, context.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER))
-                    .build());
+        if (authorizationDecisionProvider.approvePreAuth((Long) context.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER))) {
+            log.debug("Pre Auth Approved");
+            ActionEvents.send(context, PaymentEvent.PRE_AUTH_APPROVED);
 
         } else {
-            System.out.println("Per Auth Declined! No Credit!!!!!!");
-            context.getStateMachine().sendEvent(MessageBuilder.withPayload(PaymentEvent.PRE_AUTH_DECLINED)
-                    .setHeader(PaymentServiceImpl.PAYMENT_ID_HEADER, context.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER))
-                    .build());
+            log.debug("Per Auth Declined! No Credit!!!!!!");
+            ActionEvents.send(context, PaymentEvent.PRE_AUTH_DECLINED);
         }
     }
 }
@@ -2,6 +2,10 @@ package guru.springframework.msscssm.config.actions;
 
 import guru.springframework.msscssm.domain.PaymentEvent;
 import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.services.PaymentOutbox;
+import guru.springframework.msscssm.services.PaymentServiceImpl;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.statemachine.StateContext;
 import org.springframework.statemachine.action.Action;
 import org.springframework.stereotype.Component;
@@ -9,10 +13,17 @@ import org.springframework.stereotype.Component;
 /**
  * Created by jt on 2019-08-18.
  */
+@RequiredArgsConstructor
+@Slf4j
 @Component
 public class PreAuthDeclinedAction implements Action<PaymentState, PaymentEvent> {
+
+    private final PaymentOutbox paymentOutbox;
+
     @Override
     public void execute(StateContext<PaymentState, PaymentEvent> context) {
-        System.out.println("Sending Notification of PreAuth DECLINED");
+        log.debug("Sending Notification of PreAuth DECLINED");
+        // la notifica vera parte dall'outbox, solo se questa transizione va a commit
+        paymentOutbox.append((Long) context.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER), PaymentEvent.PRE_AUTH_DECLINED);
     }
 }
@@ -0,0 +1,50 @@
+package guru.springframework.msscssm.config.guards;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.risk.PaymentRiskFacts;
+import guru.springframework.msscssm.risk.RiskFacts;
+import guru.springframework.msscssm.risk.RiskRuleEngine;
+import guru.springframework.msscssm.services.PaymentServiceImpl;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.statemachine.StateContext;
+import org.springframework.statemachine.guard.Guard;
+import org.springframework.stereotype.Component;
+
+/*
+    le regole di rischio (RiskRuleEngine) sulla transizione: se una regola respinge il pagamento l'evento non
+    viene accettato e il pagamento resta dov'era.
+
+    Importo e cliente vengono da PaymentRiskFacts, registrati alla creazione del pagamento: di norma nessuna
+    lettura dell'entità.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class RiskRuleGuard implements Guard<PaymentState, PaymentEvent> {
+
+    private final RiskRuleEngine riskRuleEngine;
+    private final PaymentRiskFacts paymentRiskFacts;
+
+    @Override
+    public boolean evaluate(StateContext<PaymentState, PaymentEvent> context) {
+        Long paymentId = (Long) context.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER);
+
+        if (paymentId == null || !riskRuleEngine.hasRules()) {
+            return true;
+        }
+
+        RiskFacts facts = paymentRiskFacts.get(paymentId);
+        if (facts == null) {
+            return false;
+        }
+
+        String rule = riskRuleEngine.evaluate(facts);
+        if (rule != null) {
+            log.info("Payment {} rejected by risk rule {}", paymentId, rule);
+            return false;
+        }
+        return true;
+    }
+}
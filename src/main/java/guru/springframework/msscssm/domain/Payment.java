@@ -7,6 +7,7 @@ import lombok.NoArgsConstructor;
 
 import javax.persistence.*;
 import java.math.BigDecimal;
+import java.time.Instant;
 
 /**
  * Created by jt on 2019-07-23.
@@ -23,12 +24,33 @@ import java.math.BigDecimal;
  */
 public class Payment {
 
+    /*
+        id dalla sequence a gruppi di 50 (ottimizzatore pooled di Hibernate): una chiamata alla sequence ogni 50
+        pagamenti invece che una per INSERT. Gli id restano crescenti, con un buco al più di 49 a ogni riavvio.
+     */
     @Id
-    @GeneratedValue
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "payment_seq")
+    @SequenceGenerator(name = "payment_seq", sequenceName = "payment_seq", allocationSize = 50)
     private Long id;
 
     @Enumerated(EnumType.STRING)
     private PaymentState state;
 
     private BigDecimal amount;
+
+    /*
+        il cliente che paga: serve alle regole di rischio (blocklist e limiti di velocità, vedi RiskRuleEngine)
+     */
+    private String customerId;
+
+    /*
+        quando il pagamento è entrato nello stato corrente: da qui partono le scadenze (PaymentTimeouts)
+     */
+    private Instant stateChangedAt;
+
+    /*
+        versione per il controllo ottimistico della concorrenza: ogni scrittura dello stato la incrementa
+     */
+    @Version
+    private Long version;
 }
@@ -0,0 +1,40 @@
+package guru.springframework.msscssm.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.time.Instant;
+
+/*
+    esito di un comando eseguito con una idempotency key: la chiave, il comando (pagamento + evento) e lo stato
+    in cui è finito il pagamento. Scritto nella stessa transazione della transizione.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(name = "payment_idempotency", indexes = @Index(name = "idx_payment_idempotency_created", columnList = "createdAt"))
+public class PaymentCommandRecord {
+
+    @Id
+    @Column(length = 128)
+    private String idempotencyKey;
+
+    @Column(nullable = false)
+    private Long paymentId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private PaymentEvent event;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private PaymentState state;
+
+    @Column(nullable = false)
+    private Instant createdAt;
+}
@@ -7,5 +7,8 @@ package guru.springframework.msscssm.domain;
     payment event to which the state machine will react
  */
 public enum PaymentEvent {
-    PRE_AUTHORIZE, PRE_AUTH_APPROVED, PRE_AUTH_DECLINED, AUTHORIZE, AUTH_APPROVED, AUTH_DECLINED
+    PRE_AUTHORIZE, PRE_AUTH_APPROVED, PRE_AUTH_DECLINED, AUTHORIZE, AUTH_APPROVED, AUTH_DECLINED,
+
+    // mandati da PaymentTimeouts quando un pagamento resta troppo in NEW / PRE_AUTH
+    PRE_AUTH_TIMEOUT, AUTH_TIMEOUT
 }
@@ -0,0 +1,50 @@
+package guru.springframework.msscssm.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.time.Instant;
+
+/*
+    record dell'outbox: una notifica da mandare (l'evento di esito di un pagamento), scritta nella stessa
+    transazione della transizione e cancellata dal relay quando è stata consegnata.
+
+    claimedBy / claimedUntil: il lotto del relay che la sta consegnando e fino a quando; nextAttemptAt null vuol
+    dire parcheggiata dopo troppi tentativi falliti.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(name = "payment_outbox", indexes = {
+        @Index(name = "idx_payment_outbox_due", columnList = "nextAttemptAt, id"),
+        @Index(name = "idx_payment_outbox_claim", columnList = "claimedBy")
+})
+public class PaymentNotification {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false)
+    private Long paymentId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private PaymentEvent event;
+
+    @Column(nullable = false)
+    private Instant createdAt;
+
+    private int attempts;
+
+    private Instant nextAttemptAt;
+
+    private String claimedBy;
+
+    private Instant claimedUntil;
+}
@@ -0,0 +1,54 @@
+package guru.springframework.msscssm.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+
+/*
+    checkpoint della riconciliazione (PaymentReconciliation): un intervallo di id (fromId escluso, toId incluso)
+    di una run, fin dove è arrivato (lastId) e i conteggi fin lì. Una run con intervalli non ancora done è stata
+    interrotta e la prossima esecuzione riparte da lastId di ognuno.
+
+    nodeId è il nodo che fa la run (PaymentOwnership.getNodeId): in modalità cluster ogni nodo ha i suoi
+    intervalli, con dentro solo i suoi pagamenti.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(name = "payment_reconciliation_range", indexes = {
+        @Index(name = "idx_payment_reconciliation_run", columnList = "runId, id"),
+        @Index(name = "idx_payment_reconciliation_node", columnList = "nodeId, done, id")
+})
+public class PaymentReconciliationRange {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false, length = 36)
+    private String runId;
+
+    @Column(nullable = false, length = 64)
+    private String nodeId;
+
+    private long fromId;
+
+    private long toId;
+
+    private long lastId;
+
+    private boolean done;
+
+    private long scanned;
+
+    private long mismatched;
+
+    private long fixed;
+
+    private long unresolved;
+}
@@ -0,0 +1,41 @@
+package guru.springframework.msscssm.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.time.Instant;
+
+/*
+    stato di un pagamento dopo la transizione lastSequence (id di PaymentTransition), avvenuta in takenAt.
+
+    Per ricostruire lo stato a un certo istante si parte dall'ultimo snapshot precedente e si rigiocano solo le
+    transizioni successive, invece di tutto lo storico.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(indexes = @Index(name = "idx_payment_snapshot_payment", columnList = "paymentId, lastSequence"))
+public class PaymentSnapshot {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false)
+    private Long paymentId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private PaymentState state;
+
+    @Column(nullable = false)
+    private Long lastSequence;
+
+    @Column(nullable = false)
+    private Instant takenAt;
+}
@@ -0,0 +1,30 @@
+package guru.springframework.msscssm.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+
+/*
+    quante transizioni ha fatto un pagamento dal suo ultimo snapshot: una riga per pagamento, incrementata quando
+    lo storico viene scritto e decrementata quando si scrive lo snapshot.
+
+    Il job degli snapshot legge solo le righe arrivate a payment.history.snapshot-every (con l'indice su
+    transitions), invece di contare le transizioni su tutta payment_transition.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(name = "payment_snapshot_due", indexes = @Index(name = "idx_payment_snapshot_due_transitions", columnList = "transitions"))
+public class PaymentSnapshotDue {
+
+    @Id
+    private Long paymentId;
+
+    @Column(nullable = false)
+    private long transitions;
+}
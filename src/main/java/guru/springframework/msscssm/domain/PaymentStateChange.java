@@ -0,0 +1,20 @@
+package guru.springframework.msscssm.domain;
+
+import lombok.Value;
+
+import java.time.Instant;
+
+/*
+    una transizione già committata, come la ricevono gli iscritti di PaymentStateChangeHub. sequence cresce
+    con l'ordine di pubblicazione (fa da id degli eventi SSE).
+ */
+@Value
+public class PaymentStateChange {
+
+    long sequence;
+    Long paymentId;
+    PaymentState source;
+    PaymentState target;
+    PaymentEvent event;
+    Instant occurredAt;
+}
@@ -0,0 +1,28 @@
+package guru.springframework.msscssm.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+
+/*
+    quanti pagamenti ci sono in uno stato: una riga per stato, aggiornata a incrementi da PaymentStateCounters
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(name = "payment_state_count")
+public class PaymentStateCount {
+
+    @Id
+    @Enumerated(EnumType.STRING)
+    @Column(length = 32)
+    private PaymentState state;
+
+    @Column(nullable = false)
+    private long total;
+}
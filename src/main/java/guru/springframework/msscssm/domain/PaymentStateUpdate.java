@@ -0,0 +1,23 @@
+package guru.springframework.msscssm.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/*
+    aggiornamento di stato in attesa di essere scritto a DB: expectedState è lo stato letto all'inizio,
+    state quello finale dopo tutte le transizioni fatte nella stessa unità di lavoro
+ */
+@Data
+@AllArgsConstructor
+public class PaymentStateUpdate {
+
+    private Long paymentId;
+
+    private PaymentState expectedState;
+
+    private PaymentState state;
+
+    public boolean isChanged() {
+        return state != expectedState;
+    }
+}
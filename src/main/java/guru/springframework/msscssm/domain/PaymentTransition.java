@@ -0,0 +1,47 @@
+package guru.springframework.msscssm.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.time.Instant;
+
+/*
+    una riga per ogni transizione vista dall'interceptor, mai aggiornata né cancellata (storico in append).
+
+    L'id è assegnato dal DB (identity) e fa da numero di sequenza: è crescente, quindi ordinando per id si
+    ottiene l'ordine in cui le transizioni sono state scritte, anche per pagamenti diversi.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(indexes = @Index(name = "idx_payment_transition_payment", columnList = "paymentId, id"))
+public class PaymentTransition {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false)
+    private Long paymentId;
+
+    @Enumerated(EnumType.STRING)
+    private PaymentState source;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private PaymentState target;
+
+    /*
+        null per le transizioni senza evento
+     */
+    @Enumerated(EnumType.STRING)
+    private PaymentEvent event;
+
+    @Column(nullable = false)
+    private Instant occurredAt;
+}
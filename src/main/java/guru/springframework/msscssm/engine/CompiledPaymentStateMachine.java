@@ -0,0 +1,353 @@
+package guru.springframework.msscssm.engine;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.metrics.PaymentMetrics;
+import guru.springframework.msscssm.services.PaymentStateChangeHub;
+import guru.springframework.msscssm.services.PaymentStateChangeInterceptor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.messaging.Message;
+import org.springframework.statemachine.ExtendedState;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.access.StateMachineAccessor;
+import org.springframework.statemachine.action.Action;
+import org.springframework.statemachine.listener.StateMachineListener;
+import org.springframework.statemachine.state.ObjectState;
+import org.springframework.statemachine.state.State;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.transition.Transition;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/*
+    macchina a stati "sottile": tutto lo stato per istanza è l'id del pagamento, lo stato corrente e una piccola
+    coda per gli eventi inviati dalle action durante una transizione (PreAuthAction e AuthAction mandano
+    l'esito mentre la transizione è ancora in corso, esattamente come con Spring State Machine l'evento viene
+    processato dopo che la transizione corrente è terminata).
+
+    Implementa StateMachine per intero: accessor (una sola regione, resetStateMachine, interceptor e monitor
+    aggiunti) e listener stanno in CompiledStateMachineAccess, creato solo se qualcuno li usa.
+
+    Un evento non alloca nulla: lookup nell'array, guard, action con un contesto riusato, interceptor.
+ */
+@Slf4j
+public class CompiledPaymentStateMachine implements StateMachine<PaymentState, PaymentEvent> {
+
+    private static final int MAX_QUEUED_EVENTS = 8;
+
+    private static final List<State<PaymentState, PaymentEvent>> STATE_VIEWS = stateViews();
+
+    private final CompiledTransitionTable table;
+    private final PaymentStateChangeInterceptor interceptor;
+    private final PaymentMetrics paymentMetrics;
+    private final PaymentStateChangeHub paymentStateChangeHub;
+
+    // creati solo alla prima transizione con guard o action e al primo evento accodato: per le altre
+    // (timeout, esiti, riconciliazione) la macchina resta i riferimenti condivisi più id e stato
+    private CompiledStateContext context;
+    private PaymentEvent[] queue;
+    private int queueHead;
+    private int queueSize;
+    private boolean processing;
+
+    private Long paymentId;
+    private PaymentState state;
+
+    private CompiledStateMachineAccess access;
+
+    private ExtendedState extendedState;
+    private UUID uuid;
+    private Exception error;
+
+    CompiledPaymentStateMachine(CompiledTransitionTable table, PaymentStateChangeInterceptor interceptor,
+                                PaymentMetrics paymentMetrics, PaymentStateChangeHub paymentStateChangeHub) {
+        this.table = table;
+        this.interceptor = interceptor;
+        this.paymentMetrics = paymentMetrics;
+        this.paymentStateChangeHub = paymentStateChangeHub;
+    }
+
+    void reset(Long paymentId, PaymentState state) {
+        this.paymentId = paymentId;
+        this.state = state;
+        this.queueHead = 0;
+        this.queueSize = 0;
+        this.error = null;
+    }
+
+    /*
+        quando la macchina torna al motore: via interceptor, monitor, listener e variabili di chi l'aveva
+     */
+    void recycle() {
+        if (access != null) {
+            access.clear();
+        }
+        if (extendedState != null) {
+            extendedState.getVariables().clear();
+        }
+        reset(null, null);
+    }
+
+    Long getPaymentId() {
+        return paymentId;
+    }
+
+    static State<PaymentState, PaymentEvent> stateView(PaymentState state) {
+        return state == null ? null : STATE_VIEWS.get(state.ordinal());
+    }
+
+    @Override
+    public boolean sendEvent(Message<PaymentEvent> event) {
+        return sendEvent(event.getPayload());
+    }
+
+    @Override
+    public boolean sendEvent(PaymentEvent event) {
+        if (processing) {
+            enqueue(event);
+            return true;
+        }
+
+        processing = true;
+
+        try {
+            boolean accepted = fire(event);
+
+            while (queueSize > 0) {
+                fire(dequeue());
+            }
+
+            return accepted;
+        } finally {
+            processing = false;
+            queueSize = 0;
+        }
+    }
+
+    private boolean fire(PaymentEvent event) {
+        CompiledStateMachineAccess access = this.access == null || this.access.isEmpty() ? null : this.access;
+
+        if (access != null && !access.preEvent(event)) {
+            notAccepted(event, access);
+            return false;
+        }
+
+        CompiledTransitionTable.Entry transition = table.lookup(state, event);
+
+        if (transition == null) {
+            notAccepted(event, access);
+            return false;
+        }
+
+        long start = System.nanoTime();
+
+        if (transition.getGuard() != null || transition.getActions().length > 0 || access != null) {
+            CompiledStateContext context = context();
+            context.begin(transition);
+
+            try {
+                if (transition.getGuard() != null && !transition.getGuard().evaluate(context)) {
+                    // come Spring State Machine: una guard che dice no vale come evento non accettato
+                    notAccepted(event, access);
+                    return false;
+                }
+
+                if (access != null) {
+                    access.preTransition(context);
+                }
+
+                for (int i = 0; i < transition.getActions().length; i++) {
+                    execute(transition.getActions()[i], context, access);
+                }
+
+                changeState(event, transition, access);
+
+                if (access != null) {
+                    access.postTransition(context);
+                }
+            } finally {
+                context.end();
+            }
+        } else {
+            changeState(event, transition, null);
+        }
+
+        paymentMetrics.recordTransition(transition.getSource(), transition.getTarget(), event, System.nanoTime() - start);
+        paymentStateChangeHub.publish(paymentId, event, transition.getSource(), transition.getTarget());
+        log.debug("stateChanged(from: {}, to: {})", transition.getSource(), transition.getTarget());
+
+        return true;
+    }
+
+    private void changeState(PaymentEvent event, CompiledTransitionTable.Entry transition, CompiledStateMachineAccess access) {
+        if (access != null) {
+            access.preStateChange(event, transition.getTarget());
+        }
+
+        interceptor.onStateChange(paymentId, event, state, transition.getTarget());
+        state = transition.getTarget();
+
+        if (access != null) {
+            access.postStateChange(event, transition.getSource(), transition.getTarget());
+        }
+    }
+
+    private void execute(Action<PaymentState, PaymentEvent> action, CompiledStateContext context, CompiledStateMachineAccess access) {
+        if (access == null || !access.hasMonitors()) {
+            action.execute(context);
+            return;
+        }
+
+        long start = System.nanoTime();
+        action.execute(context);
+        access.action(action, System.nanoTime() - start);
+    }
+
+    private void notAccepted(PaymentEvent event, CompiledStateMachineAccess access) {
+        paymentMetrics.eventNotAccepted(state, event);
+
+        if (access != null) {
+            access.eventNotAccepted(event);
+        }
+    }
+
+    private void enqueue(PaymentEvent event) {
+        if (queueSize == MAX_QUEUED_EVENTS) {
+            throw new IllegalStateException("Too many events sent during a transition of payment " + paymentId);
+        }
+
+        if (queue == null) {
+            queue = new PaymentEvent[MAX_QUEUED_EVENTS];
+        }
+
+        queue[(queueHead + queueSize) % MAX_QUEUED_EVENTS] = event;
+        queueSize++;
+    }
+
+    private CompiledStateContext context() {
+        if (context == null) {
+            context = new CompiledStateContext(this);
+        }
+        return context;
+    }
+
+    private PaymentEvent dequeue() {
+        PaymentEvent event = queue[queueHead];
+        queueHead = (queueHead + 1) % MAX_QUEUED_EVENTS;
+        queueSize--;
+        return event;
+    }
+
+    @Override
+    public State<PaymentState, PaymentEvent> getState() {
+        return stateView(state);
+    }
+
+    @Override
+    public State<PaymentState, PaymentEvent> getInitialState() {
+        return stateView(PaymentState.NEW);
+    }
+
+    @Override
+    public Collection<State<PaymentState, PaymentEvent>> getStates() {
+        return STATE_VIEWS;
+    }
+
+    @Override
+    public Collection<Transition<PaymentState, PaymentEvent>> getTransitions() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isComplete() {
+        return table.isTerminal(state);
+    }
+
+    @Override
+    public ExtendedState getExtendedState() {
+        if (extendedState == null) {
+            extendedState = new DefaultExtendedState();
+        }
+        return extendedState;
+    }
+
+    @Override
+    public UUID getUuid() {
+        if (uuid == null) {
+            uuid = UUID.randomUUID();
+        }
+        return uuid;
+    }
+
+    @Override
+    public String getId() {
+        return paymentId == null ? null : paymentId.toString();
+    }
+
+    @Override
+    public void start() {
+        if (access != null) {
+            access.started();
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (access != null) {
+            access.stopped();
+        }
+    }
+
+    @Override
+    public void setStateMachineError(Exception exception) {
+        this.error = access == null ? exception : access.error(exception);
+    }
+
+    @Override
+    public boolean hasStateMachineError() {
+        return error != null;
+    }
+
+    @Override
+    public StateMachineAccessor<PaymentState, PaymentEvent> getStateMachineAccessor() {
+        return access();
+    }
+
+    @Override
+    public void addStateListener(StateMachineListener<PaymentState, PaymentEvent> listener) {
+        access().addListener(listener);
+    }
+
+    @Override
+    public void removeStateListener(StateMachineListener<PaymentState, PaymentEvent> listener) {
+        if (access != null) {
+            access.removeListener(listener);
+        }
+    }
+
+    private CompiledStateMachineAccess access() {
+        if (access == null) {
+            access = new CompiledStateMachineAccess(this);
+        }
+        return access;
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledPaymentStateMachine[paymentId=" + paymentId + ", state=" + state + "]";
+    }
+
+    private static List<State<PaymentState, PaymentEvent>> stateViews() {
+        List<State<PaymentState, PaymentEvent>> views = new ArrayList<>();
+
+        for (PaymentState state : PaymentState.values()) {
+            views.add(new ObjectState<>(state));
+        }
+
+        return Collections.unmodifiableList(views);
+    }
+}
@@ -0,0 +1,108 @@
+package guru.springframework.msscssm.engine;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.services.PaymentServiceImpl;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.statemachine.ExtendedState;
+import org.springframework.statemachine.StateContext;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.state.State;
+import org.springframework.statemachine.transition.Transition;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/*
+    adattatore sottile che permette di chiamare le Action e le Guard esistenti (PreAuthAction, PaymentIdGuard...)
+    dal motore compilato: un'istanza per macchina, riusata ad ogni transizione.
+
+    Non c'è un Message: l'unico header che le nostre action leggono è payment_id, che prendiamo dalla macchina.
+ */
+class CompiledStateContext implements StateContext<PaymentState, PaymentEvent> {
+
+    private final CompiledPaymentStateMachine stateMachine;
+
+    private CompiledTransitionTable.Entry transition;
+
+    CompiledStateContext(CompiledPaymentStateMachine stateMachine) {
+        this.stateMachine = stateMachine;
+    }
+
+    void begin(CompiledTransitionTable.Entry transition) {
+        this.transition = transition;
+    }
+
+    void end() {
+        this.transition = null;
+    }
+
+    @Override
+    public Stage getStage() {
+        return Stage.TRANSITION;
+    }
+
+    @Override
+    public Message<PaymentEvent> getMessage() {
+        return null;
+    }
+
+    @Override
+    public PaymentEvent getEvent() {
+        return transition == null ? null : transition.getEvent();
+    }
+
+    @Override
+    public MessageHeaders getMessageHeaders() {
+        return null;
+    }
+
+    @Override
+    public Object getMessageHeader(Object header) {
+        if (PaymentServiceImpl.PAYMENT_ID_HEADER.equals(header)) {
+            return stateMachine.getPaymentId();
+        }
+        return null;
+    }
+
+    @Override
+    public ExtendedState getExtendedState() {
+        return stateMachine.getExtendedState();
+    }
+
+    @Override
+    public Transition<PaymentState, PaymentEvent> getTransition() {
+        return null;
+    }
+
+    @Override
+    public StateMachine<PaymentState, PaymentEvent> getStateMachine() {
+        return stateMachine;
+    }
+
+    @Override
+    public State<PaymentState, PaymentEvent> getSource() {
+        return transition == null ? null : CompiledPaymentStateMachine.stateView(transition.getSource());
+    }
+
+    @Override
+    public Collection<State<PaymentState, PaymentEvent>> getSources() {
+        return Collections.singletonList(getSource());
+    }
+
+    @Override
+    public State<PaymentState, PaymentEvent> getTarget() {
+        return transition == null ? null : CompiledPaymentStateMachine.stateView(transition.getTarget());
+    }
+
+    @Override
+    public Collection<State<PaymentState, PaymentEvent>> getTargets() {
+        return Collections.singletonList(getTarget());
+    }
+
+    @Override
+    public Exception getException() {
+        return null;
+    }
+}
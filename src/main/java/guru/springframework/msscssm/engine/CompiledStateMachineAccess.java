@@ -0,0 +1,232 @@
+package guru.springframework.msscssm.engine;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.services.PaymentServiceImpl;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.statemachine.StateContext;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.access.StateMachineAccess;
+import org.springframework.statemachine.access.StateMachineAccessor;
+import org.springframework.statemachine.access.StateMachineFunction;
+import org.springframework.statemachine.action.Action;
+import org.springframework.statemachine.listener.StateMachineListener;
+import org.springframework.statemachine.monitor.StateMachineMonitor;
+import org.springframework.statemachine.state.State;
+import org.springframework.statemachine.support.StateMachineInterceptor;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/*
+    accessor, interceptor, monitor e listener di una CompiledPaymentStateMachine, creato solo quando qualcuno li
+    usa: senza, la macchina non li controlla nemmeno e un evento resta senza allocazioni.
+
+    La macchina è piatta (una sola regione, niente sottomacchine), quindi l'accessor ha una sola "regione", la
+    macchina stessa, e relay, macchina padre, evento iniziale inoltrato non hanno effetto. resetStateMachine
+    porta la macchina allo stato del contesto (null = stato iniziale), come fa lo StateMachinePool.
+
+    Cosa viene chiamato, nell'ordine di Spring State Machine:
+        -   interceptor: preEvent (null = evento rifiutato), preStateChange, postStateChange, preTransition e
+            postTransition con il contesto della transizione, stateMachineError
+        -   monitor: action, con la durata di ogni action (una transizione compilata non ha un oggetto Transition,
+            quindi niente callback transition)
+        -   listener: eventNotAccepted, stateExited, stateEntered, stateChanged, stateContext,
+            stateMachineStarted, stateMachineStopped, stateMachineError
+
+    Il Message passato a interceptor e listener (con l'header payment_id) si costruisce solo se ce n'è qualcuno.
+ */
+@Slf4j
+class CompiledStateMachineAccess implements StateMachineAccessor<PaymentState, PaymentEvent>, StateMachineAccess<PaymentState, PaymentEvent> {
+
+    private final CompiledPaymentStateMachine stateMachine;
+
+    private final List<StateMachineInterceptor<PaymentState, PaymentEvent>> interceptors = new CopyOnWriteArrayList<>();
+    private final List<StateMachineMonitor<PaymentState, PaymentEvent>> monitors = new CopyOnWriteArrayList<>();
+    private final List<StateMachineListener<PaymentState, PaymentEvent>> listeners = new CopyOnWriteArrayList<>();
+
+    CompiledStateMachineAccess(CompiledPaymentStateMachine stateMachine) {
+        this.stateMachine = stateMachine;
+    }
+
+    @Override
+    public void doWithAllRegions(StateMachineFunction<StateMachineAccess<PaymentState, PaymentEvent>> stateMachineAccess) {
+        stateMachineAccess.apply(this);
+    }
+
+    @Override
+    public List<StateMachineAccess<PaymentState, PaymentEvent>> withAllRegions() {
+        return List.of(this);
+    }
+
+    @Override
+    public void doWithRegion(StateMachineFunction<StateMachineAccess<PaymentState, PaymentEvent>> stateMachineAccess) {
+        stateMachineAccess.apply(this);
+    }
+
+    @Override
+    public StateMachineAccess<PaymentState, PaymentEvent> withRegion() {
+        return this;
+    }
+
+    @Override
+    public void setRelay(StateMachine<PaymentState, PaymentEvent> stateMachine) {
+    }
+
+    public void setParentMachine(StateMachine<PaymentState, PaymentEvent> parentMachine) {
+    }
+
+    @Override
+    public void setInitialEnabled(boolean enabled) {
+    }
+
+    public void setForwardedInitialEvent(Message<PaymentEvent> message) {
+    }
+
+    @Override
+    public void resetStateMachine(StateMachineContext<PaymentState, PaymentEvent> stateMachineContext) {
+        PaymentState state = stateMachineContext == null || stateMachineContext.getState() == null
+                ? PaymentState.NEW : stateMachineContext.getState();
+
+        stateMachine.reset(stateMachine.getPaymentId(), state);
+
+        if (stateMachineContext != null && stateMachineContext.getExtendedState() != null) {
+            stateMachine.getExtendedState().getVariables().clear();
+            stateMachine.getExtendedState().getVariables().putAll(stateMachineContext.getExtendedState().getVariables());
+        }
+    }
+
+    @Override
+    public void addStateMachineInterceptor(StateMachineInterceptor<PaymentState, PaymentEvent> interceptor) {
+        interceptors.add(interceptor);
+    }
+
+    @Override
+    public void addStateMachineMonitor(StateMachineMonitor<PaymentState, PaymentEvent> stateMachineMonitor) {
+        monitors.add(stateMachineMonitor);
+    }
+
+    void addListener(StateMachineListener<PaymentState, PaymentEvent> listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(StateMachineListener<PaymentState, PaymentEvent> listener) {
+        listeners.remove(listener);
+    }
+
+    boolean isEmpty() {
+        return interceptors.isEmpty() && monitors.isEmpty() && listeners.isEmpty();
+    }
+
+    boolean hasMonitors() {
+        return !monitors.isEmpty();
+    }
+
+    /*
+        tutto quello che è stato aggiunto da chi aveva la macchina: si toglie quando torna al motore
+     */
+    void clear() {
+        interceptors.clear();
+        monitors.clear();
+        listeners.clear();
+    }
+
+    /*
+        false se un interceptor rifiuta l'evento
+     */
+    boolean preEvent(PaymentEvent event) {
+        if (interceptors.isEmpty()) {
+            return true;
+        }
+
+        Message<PaymentEvent> message = message(event);
+        for (StateMachineInterceptor<PaymentState, PaymentEvent> interceptor : interceptors) {
+            message = interceptor.preEvent(message, stateMachine);
+            if (message == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void eventNotAccepted(PaymentEvent event) {
+        if (!listeners.isEmpty()) {
+            Message<PaymentEvent> message = message(event);
+            listeners.forEach(listener -> listener.eventNotAccepted(message));
+        }
+    }
+
+    void preTransition(StateContext<PaymentState, PaymentEvent> context) {
+        interceptors.forEach(interceptor -> interceptor.preTransition(context));
+    }
+
+    void postTransition(StateContext<PaymentState, PaymentEvent> context) {
+        interceptors.forEach(interceptor -> interceptor.postTransition(context));
+        listeners.forEach(listener -> listener.stateContext(context));
+    }
+
+    void action(Action<PaymentState, PaymentEvent> action, long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        monitors.forEach(monitor -> monitor.action(stateMachine, action, millis));
+    }
+
+    void preStateChange(PaymentEvent event, PaymentState target) {
+        if (!interceptors.isEmpty()) {
+            Message<PaymentEvent> message = message(event);
+            State<PaymentState, PaymentEvent> to = CompiledPaymentStateMachine.stateView(target);
+            interceptors.forEach(interceptor -> interceptor.preStateChange(to, message, null, stateMachine));
+        }
+    }
+
+    void postStateChange(PaymentEvent event, PaymentState source, PaymentState target) {
+        State<PaymentState, PaymentEvent> from = CompiledPaymentStateMachine.stateView(source);
+        State<PaymentState, PaymentEvent> to = CompiledPaymentStateMachine.stateView(target);
+
+        if (!interceptors.isEmpty()) {
+            Message<PaymentEvent> message = message(event);
+            interceptors.forEach(interceptor -> interceptor.postStateChange(to, message, null, stateMachine));
+        }
+
+        for (StateMachineListener<PaymentState, PaymentEvent> listener : listeners) {
+            listener.stateExited(from);
+            listener.stateEntered(to);
+            listener.stateChanged(from, to);
+        }
+    }
+
+    void started() {
+        listeners.forEach(listener -> listener.stateMachineStarted(stateMachine));
+    }
+
+    void stopped() {
+        listeners.forEach(listener -> listener.stateMachineStopped(stateMachine));
+    }
+
+    /*
+        un interceptor può sostituire l'eccezione, come in Spring State Machine
+     */
+    Exception error(Exception exception) {
+        Exception error = exception;
+
+        for (StateMachineInterceptor<PaymentState, PaymentEvent> interceptor : interceptors) {
+            error = interceptor.stateMachineError(stateMachine, error);
+            if (error == null) {
+                return null;
+            }
+        }
+
+        Exception notified = error;
+        listeners.forEach(listener -> listener.stateMachineError(stateMachine, notified));
+        return error;
+    }
+
+    private Message<PaymentEvent> message(PaymentEvent event) {
+        return MessageBuilder.withPayload(event)
+                .setHeader(PaymentServiceImpl.PAYMENT_ID_HEADER, stateMachine.getPaymentId())
+                .build();
+    }
+}
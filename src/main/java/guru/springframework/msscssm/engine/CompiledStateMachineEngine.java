@@ -0,0 +1,101 @@
+package guru.springframework.msscssm.engine;
+
+import guru.springframework.msscssm.config.PaymentTransitionModel;
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.metrics.PaymentMetrics;
+import guru.springframework.msscssm.services.PaymentStateChangeHub;
+import guru.springframework.msscssm.services.PaymentStateChangeInterceptor;
+import guru.springframework.msscssm.services.PaymentStateMachineProvider;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    alternativa al runtime di Spring State Machine (payment.statemachine.engine=COMPILED).
+
+    La tabella viene compilata una volta all'avvio da PaymentTransitionModel, la stessa usata da StateMachineConfig,
+    e le macchine sono oggetti minuscoli, ma non per questo da buttare a ogni evento: come StateMachinePool le
+    macchine rilasciate restano in una deque (fino a payment.statemachine.pool.max-idle) e borrow le riusa con un
+    semplice reset, senza allocare nulla. Alla release si tolgono interceptor, listener e variabili aggiunti da
+    chi l'aveva in prestito.
+ */
+@Primary
+@Component
+@ConditionalOnProperty(name = "payment.statemachine.engine", havingValue = "COMPILED")
+public class CompiledStateMachineEngine implements PaymentStateMachineProvider {
+
+    private final CompiledTransitionTable table;
+    private final PaymentStateChangeInterceptor interceptor;
+    private final PaymentMetrics paymentMetrics;
+    private final PaymentStateChangeHub paymentStateChangeHub;
+    private final int maxIdle;
+
+    private final ConcurrentLinkedDeque<CompiledPaymentStateMachine> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public CompiledStateMachineEngine(PaymentTransitionModel paymentTransitionModel, PaymentStateChangeInterceptor interceptor,
+                                      PaymentMetrics paymentMetrics, PaymentStateChangeHub paymentStateChangeHub,
+                                      MeterRegistry meterRegistry,
+                                      @Value("${payment.statemachine.pool.max-idle:64}") int maxIdle) {
+        this.table = new CompiledTransitionTable(paymentTransitionModel);
+        this.interceptor = interceptor;
+        this.paymentMetrics = paymentMetrics;
+        this.paymentStateChangeHub = paymentStateChangeHub;
+        this.maxIdle = maxIdle;
+
+        // stesse metriche di StateMachinePool: i due motori non sono mai attivi insieme
+        FunctionCounter.builder("payment.statemachine.pool.hits", hits, LongAdder::sum).register(meterRegistry);
+        FunctionCounter.builder("payment.statemachine.pool.misses", misses, LongAdder::sum).register(meterRegistry);
+        FunctionCounter.builder("payment.statemachine.pool.evictions", evictions, LongAdder::sum).register(meterRegistry);
+        Gauge.builder("payment.statemachine.pool.idle", idleCount, AtomicInteger::get).register(meterRegistry);
+    }
+
+    @Override
+    public StateMachine<PaymentState, PaymentEvent> borrow(Long paymentId, PaymentState state) {
+        CompiledPaymentStateMachine sm = idle.pollFirst();
+
+        if (sm != null) {
+            idleCount.decrementAndGet();
+            hits.increment();
+        } else {
+            misses.increment();
+            sm = new CompiledPaymentStateMachine(table, interceptor, paymentMetrics, paymentStateChangeHub);
+        }
+
+        sm.reset(paymentId, state);
+        return sm;
+    }
+
+    @Override
+    public boolean sendEvent(StateMachine<PaymentState, PaymentEvent> sm, Long paymentId, PaymentEvent event) {
+        return sm.sendEvent(event);
+    }
+
+    @Override
+    public void release(StateMachine<PaymentState, PaymentEvent> sm) {
+        CompiledPaymentStateMachine compiled = (CompiledPaymentStateMachine) sm;
+        compiled.recycle();
+
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            evictions.increment();
+            return;
+        }
+
+        idle.offerFirst(compiled);
+    }
+}
@@ -0,0 +1,81 @@
+package guru.springframework.msscssm.engine;
+
+import guru.springframework.msscssm.config.PaymentTransitionModel;
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import lombok.Getter;
+import org.springframework.statemachine.action.Action;
+import org.springframework.statemachine.guard.Guard;
+
+/*
+    PaymentTransitionModel compilato in un array denso indicizzato per (stato, evento):
+
+        table[state.ordinal() * EVENTS + event.ordinal()]
+
+    null vuol dire che l'evento non è accettato in quello stato. Viene costruito una volta all'avvio ed è
+    immutabile, quindi può essere condiviso da tutte le macchine senza sincronizzazione.
+ */
+public class CompiledTransitionTable {
+
+    private static final PaymentState[] STATES = PaymentState.values();
+    private static final int EVENTS = PaymentEvent.values().length;
+
+    private final Entry[] table = new Entry[STATES.length * EVENTS];
+
+    public CompiledTransitionTable(PaymentTransitionModel model) {
+        for (PaymentTransitionModel.Definition definition : model.getTransitions()) {
+            int index = index(definition.getSource(), definition.getEvent());
+
+            if (table[index] != null) {
+                throw new IllegalStateException("Duplicate transition for " + definition.getSource() + " on " + definition.getEvent());
+            }
+
+            @SuppressWarnings("unchecked")
+            Action<PaymentState, PaymentEvent>[] actions = definition.getActions().toArray(new Action[0]);
+
+            table[index] = new Entry(definition.getSource(), definition.getTarget(), definition.getEvent(),
+                    definition.getGuard(), actions);
+        }
+    }
+
+    public Entry lookup(PaymentState state, PaymentEvent event) {
+        return table[index(state, event)];
+    }
+
+    /*
+        stato senza transizioni in uscita (AUTH, PRE_AUTH_ERROR, AUTH_ERROR)
+     */
+    public boolean isTerminal(PaymentState state) {
+        int from = state.ordinal() * EVENTS;
+
+        for (int i = from; i < from + EVENTS; i++) {
+            if (table[i] != null) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int index(PaymentState state, PaymentEvent event) {
+        return state.ordinal() * EVENTS + event.ordinal();
+    }
+
+    @Getter
+    public static class Entry {
+        private final PaymentState source;
+        private final PaymentState target;
+        private final PaymentEvent event;
+        private final Guard<PaymentState, PaymentEvent> guard;
+        private final Action<PaymentState, PaymentEvent>[] actions;
+
+        Entry(PaymentState source, PaymentState target, PaymentEvent event,
+              Guard<PaymentState, PaymentEvent> guard, Action<PaymentState, PaymentEvent>[] actions) {
+            this.source = source;
+            this.target = target;
+            this.event = event;
+            this.guard = guard;
+            this.actions = actions;
+        }
+    }
+}
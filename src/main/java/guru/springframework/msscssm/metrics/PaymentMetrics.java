@@ -0,0 +1,137 @@
+package guru.springframework.msscssm.metrics;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.statemachine.action.Action;
+import org.springframework.statemachine.guard.Guard;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+    metriche Micrometer della macchina a stati, esposte dall'actuator (/actuator/metrics e /actuator/prometheus):
+
+        payment.transitions             timer (conteggio + istogramma) per source, target, event
+        payment.events.not-accepted     eventi che la macchina non accetta nello stato corrente, per state ed event
+        payment.action / payment.guard  durata di ogni Action e Guard, per nome del bean
+        payment.build                   reidratazione della macchina in PaymentServiceImpl
+        payment.persistence.write       scritture dello stato fatte dall'interceptor, per tipo
+
+    Sul percorso caldo non si costruiscono stringhe né tag: i meter sono in array indicizzati per ordinale e
+    vengono registrati solo la prima volta che servono.
+ */
+@Component
+public class PaymentMetrics {
+
+    private static final PaymentState[] STATES = PaymentState.values();
+    private static final PaymentEvent[] EVENTS = PaymentEvent.values();
+
+    public enum WriteKind {
+        /* getOne + save */
+        ENTITY,
+        /* update condizionale singolo */
+        COMPARE_AND_SET,
+        /* batch JDBC dell'API batch */
+        JDBC_BATCH
+    }
+
+    private final MeterRegistry meterRegistry;
+
+    private final AtomicReferenceArray<Timer> transitions = new AtomicReferenceArray<>(STATES.length * STATES.length * EVENTS.length);
+    private final AtomicReferenceArray<Counter> notAccepted = new AtomicReferenceArray<>(STATES.length * EVENTS.length);
+    private final Timer[] writes = new Timer[WriteKind.values().length];
+    private final Timer build;
+
+    public PaymentMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+
+        this.build = Timer.builder("payment.build")
+                .description("State machine rehydration in PaymentServiceImpl")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+
+        for (WriteKind kind : WriteKind.values()) {
+            writes[kind.ordinal()] = Timer.builder("payment.persistence.write")
+                    .description("State writes issued by PaymentStateChangeInterceptor")
+                    .tag("kind", kind.name())
+                    .publishPercentileHistogram()
+                    .register(meterRegistry);
+        }
+    }
+
+    public void recordTransition(PaymentState source, PaymentState target, PaymentEvent event, long nanos) {
+        int index = (source.ordinal() * STATES.length + target.ordinal()) * EVENTS.length + event.ordinal();
+        Timer timer = transitions.get(index);
+
+        if (timer == null) {
+            timer = Timer.builder("payment.transitions")
+                    .description("State machine transitions")
+                    .tag("source", source.name())
+                    .tag("target", target.name())
+                    .tag("event", event.name())
+                    .publishPercentileHistogram()
+                    .register(meterRegistry);
+            transitions.set(index, timer);
+        }
+
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void eventNotAccepted(PaymentState state, PaymentEvent event) {
+        if (state == null || event == null) {
+            return;
+        }
+
+        int index = state.ordinal() * EVENTS.length + event.ordinal();
+        Counter counter = notAccepted.get(index);
+
+        if (counter == null) {
+            counter = Counter.builder("payment.events.not-accepted")
+                    .description("Events not accepted by the state machine in the current state")
+                    .tag("state", state.name())
+                    .tag("event", event.name())
+                    .register(meterRegistry);
+            notAccepted.set(index, counter);
+        }
+
+        counter.increment();
+    }
+
+    public void recordBuild(long nanos) {
+        build.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordWrite(WriteKind kind, long nanos) {
+        writes[kind.ordinal()].record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public Action<PaymentState, PaymentEvent> timed(String name, Action<PaymentState, PaymentEvent> action) {
+        Timer timer = Timer.builder("payment.action").tag("action", name).register(meterRegistry);
+
+        return context -> {
+            long start = System.nanoTime();
+            try {
+                action.execute(context);
+            } finally {
+                timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        };
+    }
+
+    public Guard<PaymentState, PaymentEvent> timed(String name, Guard<PaymentState, PaymentEvent> guard) {
+        Timer timer = Timer.builder("payment.guard").tag("guard", name).register(meterRegistry);
+
+        return context -> {
+            long start = System.nanoTime();
+            try {
+                return guard.evaluate(context);
+            } finally {
+                timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        };
+    }
+}
@@ -0,0 +1,74 @@
+package guru.springframework.msscssm.metrics;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import lombok.RequiredArgsConstructor;
+import org.springframework.statemachine.StateContext;
+import org.springframework.statemachine.listener.StateMachineListenerAdapter;
+import org.springframework.statemachine.state.State;
+import org.springframework.statemachine.transition.Transition;
+import org.springframework.stereotype.Component;
+
+/*
+    listener di Spring State Machine che alimenta PaymentMetrics: durata di ogni transizione (da TRANSITION_START a
+    TRANSITION_END) ed eventi non accettati.
+
+    Gli eventi inviati dalle action vengono accodati e processati dopo la transizione corrente, quindi per thread
+    c'è al massimo una transizione in corso: basta un solo slot.
+ */
+@RequiredArgsConstructor
+@Component
+public class PaymentMetricsListener extends StateMachineListenerAdapter<PaymentState, PaymentEvent> {
+
+    private static final ThreadLocal<InFlight> IN_FLIGHT = ThreadLocal.withInitial(InFlight::new);
+
+    private final PaymentMetrics paymentMetrics;
+
+    @Override
+    public void stateContext(StateContext<PaymentState, PaymentEvent> stateContext) {
+        switch (stateContext.getStage()) {
+            case TRANSITION_START:
+                transitionStarted(stateContext.getTransition());
+                break;
+            case TRANSITION_END:
+                transitionEnded(stateContext.getTransition());
+                break;
+            case EVENT_NOT_ACCEPTED:
+                State<PaymentState, PaymentEvent> state = stateContext.getStateMachine().getState();
+                paymentMetrics.eventNotAccepted(state == null ? null : state.getId(), stateContext.getEvent());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void transitionStarted(Transition<PaymentState, PaymentEvent> transition) {
+        InFlight inFlight = IN_FLIGHT.get();
+        inFlight.transition = transition;
+        inFlight.start = System.nanoTime();
+    }
+
+    private void transitionEnded(Transition<PaymentState, PaymentEvent> transition) {
+        InFlight inFlight = IN_FLIGHT.get();
+
+        if (transition == null || inFlight.transition != transition) {
+            return;
+        }
+
+        inFlight.transition = null;
+
+        // la transizione iniziale (start della macchina) non ha sorgente né trigger
+        if (transition.getSource() == null || transition.getTarget() == null || transition.getTrigger() == null
+                || transition.getTrigger().getEvent() == null) {
+            return;
+        }
+
+        paymentMetrics.recordTransition(transition.getSource().getId(), transition.getTarget().getId(),
+                transition.getTrigger().getEvent(), System.nanoTime() - inFlight.start);
+    }
+
+    private static class InFlight {
+        private Transition<PaymentState, PaymentEvent> transition;
+        private long start;
+    }
+}
@@ -0,0 +1,16 @@
+package guru.springframework.msscssm.repository;
+
+import guru.springframework.msscssm.domain.PaymentCommandRecord;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.Instant;
+
+public interface PaymentCommandRecordRepository extends JpaRepository<PaymentCommandRecord, String>, PaymentCommandRecordRepositoryCustom {
+
+    @Modifying
+    @Query("delete from PaymentCommandRecord r where r.createdAt < :before")
+    int deleteCreatedBefore(@Param("before") Instant before);
+}
@@ -0,0 +1,12 @@
+package guru.springframework.msscssm.repository;
+
+import guru.springframework.msscssm.domain.PaymentCommandRecord;
+
+public interface PaymentCommandRecordRepositoryCustom {
+
+    /*
+        solo INSERT (save farebbe prima una SELECT, l'id è assegnato): se la chiave esiste già fallisce con
+        DataIntegrityViolationException
+     */
+    void insert(PaymentCommandRecord record);
+}
@@ -0,0 +1,25 @@
+package guru.springframework.msscssm.repository;
+
+import guru.springframework.msscssm.domain.PaymentCommandRecord;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+
+/*
+    come PaymentRepositoryImpl, trovata da Spring Data per convenzione sul nome
+ */
+@RequiredArgsConstructor
+public class PaymentCommandRecordRepositoryImpl implements PaymentCommandRecordRepositoryCustom {
+
+    private static final String INSERT = "INSERT INTO payment_idempotency (idempotency_key, payment_id, event, state, created_at)"
+            + " VALUES (?, ?, ?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Override
+    public void insert(PaymentCommandRecord record) {
+        jdbcTemplate.update(INSERT, record.getIdempotencyKey(), record.getPaymentId(), record.getEvent().name(),
+                record.getState().name(), Timestamp.from(record.getCreatedAt()));
+    }
+}
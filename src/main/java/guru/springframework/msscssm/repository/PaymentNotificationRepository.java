@@ -0,0 +1,9 @@
+package guru.springframework.msscssm.repository;
+
+import guru.springframework.msscssm.domain.PaymentNotification;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface PaymentNotificationRepository extends JpaRepository<PaymentNotification, Long>, PaymentNotificationRepositoryCustom {
+
+    long countByNextAttemptAtIsNull();
+}
@@ -0,0 +1,29 @@
+package guru.springframework.msscssm.repository;
+
+import guru.springframework.msscssm.domain.PaymentNotification;
+
+import java.time.Instant;
+import java.util.List;
+
+public interface PaymentNotificationRepositoryCustom {
+
+    /*
+        insert di tutte le notifiche con un unico batch JDBC
+     */
+    void appendAll(List<PaymentNotification> notifications);
+
+    /*
+        prenota fino a limit notifiche scadute e non prenotate da altri (o con la prenotazione scaduta) e le ritorna
+     */
+    List<PaymentNotification> claim(String claimToken, Instant now, Instant claimedUntil, int limit);
+
+    /*
+        cancella le notifiche consegnate, solo se sono ancora prenotate da claimToken
+     */
+    int deleteClaimed(String claimToken, List<Long> ids);
+
+    /*
+        libera le notifiche non consegnate con i nuovi attempts / nextAttemptAt
+     */
+    int reschedule(String claimToken, List<PaymentNotification> notifications);
+}
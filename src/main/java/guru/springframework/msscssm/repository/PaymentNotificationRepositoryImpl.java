@@ -0,0 +1,118 @@
+package guru.springframework.msscssm.repository;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentNotification;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.List;
+
+/*
+    come PaymentRepositoryImpl, trovata da Spring Data per convenzione sul nome. Tutto a batch JDBC: il relay
+    lavora a lotti di centinaia o migliaia di notifiche.
+ */
+@RequiredArgsConstructor
+public class PaymentNotificationRepositoryImpl implements PaymentNotificationRepositoryCustom {
+
+    private static final String APPEND = "INSERT INTO payment_outbox (payment_id, event, created_at, attempts, next_attempt_at)"
+            + " VALUES (?, ?, ?, 0, ?)";
+
+    private static final String CLAIMABLE = "next_attempt_at <= ? AND (claimed_until IS NULL OR claimed_until < ?)";
+
+    private static final String CLAIM = "UPDATE payment_outbox SET claimed_by = ?, claimed_until = ?"
+            + " WHERE id IN (SELECT id FROM payment_outbox WHERE " + CLAIMABLE + " ORDER BY id LIMIT ?)"
+            + " AND " + CLAIMABLE;
+
+    private static final String CLAIMED = "SELECT id, payment_id, event, created_at, attempts FROM payment_outbox"
+            + " WHERE claimed_by = ? ORDER BY id";
+
+    private static final String DELETE_CLAIMED = "DELETE FROM payment_outbox WHERE id = ? AND claimed_by = ?";
+
+    private static final String RESCHEDULE = "UPDATE payment_outbox SET attempts = ?, next_attempt_at = ?,"
+            + " claimed_by = NULL, claimed_until = NULL WHERE id = ? AND claimed_by = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Override
+    public void appendAll(List<PaymentNotification> notifications) {
+        if (notifications.isEmpty()) {
+            return;
+        }
+
+        jdbcTemplate.batchUpdate(APPEND, notifications, notifications.size(), (ps, notification) -> {
+            ps.setLong(1, notification.getPaymentId());
+            ps.setString(2, notification.getEvent().name());
+            ps.setTimestamp(3, Timestamp.from(notification.getCreatedAt()));
+            ps.setTimestamp(4, Timestamp.from(notification.getCreatedAt()));
+        });
+    }
+
+    @Override
+    public List<PaymentNotification> claim(String claimToken, Instant now, Instant claimedUntil, int limit) {
+        Timestamp at = Timestamp.from(now);
+
+        int claimed = jdbcTemplate.update(CLAIM, claimToken, Timestamp.from(claimedUntil), at, at, limit, at, at);
+
+        if (claimed == 0) {
+            return List.of();
+        }
+
+        return jdbcTemplate.query(CLAIMED, (rs, row) -> PaymentNotification.builder()
+                .id(rs.getLong(1))
+                .paymentId(rs.getLong(2))
+                .event(PaymentEvent.valueOf(rs.getString(3)))
+                .createdAt(rs.getTimestamp(4).toInstant())
+                .attempts(rs.getInt(5))
+                .claimedBy(claimToken)
+                .build(), claimToken);
+    }
+
+    @Override
+    public int deleteClaimed(String claimToken, List<Long> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+
+        return sum(jdbcTemplate.batchUpdate(DELETE_CLAIMED, ids, ids.size(), (ps, id) -> {
+            ps.setLong(1, id);
+            ps.setString(2, claimToken);
+        }));
+    }
+
+    @Override
+    public int reschedule(String claimToken, List<PaymentNotification> notifications) {
+        if (notifications.isEmpty()) {
+            return 0;
+        }
+
+        return sum(jdbcTemplate.batchUpdate(RESCHEDULE, notifications, notifications.size(), (ps, notification) -> {
+            ps.setInt(1, notification.getAttempts());
+
+            if (notification.getNextAttemptAt() == null) {
+                ps.setNull(2, Types.TIMESTAMP);
+            } else {
+                ps.setTimestamp(2, Timestamp.from(notification.getNextAttemptAt()));
+            }
+
+            ps.setLong(3, notification.getId());
+            ps.setString(4, claimToken);
+        }));
+    }
+
+    /*
+        un solo lotto: batchUpdate ritorna un array di conteggi per lotto
+     */
+    private static int sum(int[][] counts) {
+        int total = 0;
+
+        for (int count : counts[0]) {
+            // alcuni driver rispondono SUCCESS_NO_INFO (-2) invece del numero di righe
+            total += count < 0 ? 1 : count;
+        }
+
+        return total;
+    }
+}
@@ -0,0 +1,37 @@
+package guru.springframework.msscssm.repository;
+
+import guru.springframework.msscssm.domain.PaymentReconciliationRange;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+import java.util.Optional;
+
+public interface PaymentReconciliationRangeRepository extends JpaRepository<PaymentReconciliationRange, Long> {
+
+    /*
+        un intervallo di una run interrotta del nodo, se c'è
+     */
+    Optional<PaymentReconciliationRange> findFirstByNodeIdAndDoneFalseOrderById(String nodeId);
+
+    List<PaymentReconciliationRange> findByRunIdOrderById(String runId);
+
+    @Transactional
+    @Modifying
+    @Query("delete from PaymentReconciliationRange r where r.nodeId = :nodeId")
+    int deleteByNodeId(@Param("nodeId") String nodeId);
+
+    /*
+        checkpoint dopo una pagina: i conteggi si sommano a quelli già salvati
+     */
+    @Transactional
+    @Modifying
+    @Query("update PaymentReconciliationRange r set r.lastId = :lastId, r.done = :done, r.scanned = r.scanned + :scanned,"
+            + " r.mismatched = r.mismatched + :mismatched, r.fixed = r.fixed + :fixed, r.unresolved = r.unresolved + :unresolved"
+            + " where r.id = :id")
+    int checkpoint(@Param("id") Long id, @Param("lastId") long lastId, @Param("done") boolean done, @Param("scanned") long scanned,
+                   @Param("mismatched") long mismatched, @Param("fixed") long fixed, @Param("unresolved") long unresolved);
+}
@@ -1,7 +1,14 @@
 package guru.springframework.msscssm.repository;
 
 import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentState;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
 
 /**
  * Created by jt on 2019-07-23.
@@ -10,5 +17,31 @@ import org.springframework.data.jpa.repository.JpaRepository;
 /*
     repository payment -
  */
-public interface PaymentRepository extends JpaRepository<Payment, Long> {
+public interface PaymentRepository extends JpaRepository<Payment, Long>, PaymentRepositoryCustom {
+
+    /*
+        solo lo stato, senza caricare l'entità nel persistence context
+     */
+    @Query("select p.state from Payment p where p.id = :id")
+    PaymentState findStateById(@Param("id") Long id);
+
+    /*
+        estremi degli id, per dividere la tabella in intervalli (null se è vuota)
+     */
+    @Query("select min(p.id) from Payment p")
+    Long findMinId();
+
+    @Query("select max(p.id) from Payment p")
+    Long findMaxId();
+
+    /*
+        compare-and-set: aggiorna solo se a DB c'è ancora lo stato atteso, ritorna le righe aggiornate (0 o 1).
+        Incrementa anche la versione, così chi ha caricato l'entità prima di noi fallisce al flush.
+     */
+    @Transactional
+    @Modifying(clearAutomatically = true)
+    @Query("update Payment p set p.state = :state, p.stateChangedAt = :changedAt, p.version = p.version + 1"
+            + " where p.id = :id and p.state = :expected")
+    int compareAndSetState(@Param("id") Long id, @Param("expected") PaymentState expected, @Param("state") PaymentState state,
+                           @Param("changedAt") Instant changedAt);
 }
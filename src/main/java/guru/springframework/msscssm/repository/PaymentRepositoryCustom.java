@@ -0,0 +1,34 @@
+package guru.springframework.msscssm.repository;
+
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.domain.PaymentStateUpdate;
+import guru.springframework.msscssm.store.PaymentStateVisitor;
+
+import java.util.List;
+import java.util.Set;
+
+/*
+    operazioni che non passano dall'ORM, implementate a mano in PaymentRepositoryImpl
+ */
+public interface PaymentRepositoryCustom {
+
+    /*
+        esegue tutti gli update come un unico batch JDBC, ognuno con la condizione sullo stato atteso:
+
+            UPDATE payment SET state = ?, state_changed_at = ?, version = version + 1 WHERE id = ? AND state = ?
+
+        ritorna il numero di righe aggiornate per ogni update, nello stesso ordine della lista
+     */
+    int[] compareAndSetStates(List<PaymentStateUpdate> updates);
+
+    /*
+        una sola query sui pagamenti in questi stati, letta in streaming
+     */
+    void scanByState(Set<PaymentState> states, PaymentStateVisitor visitor);
+
+    /*
+        una pagina in keyset: al massimo limit pagamenti con afterId < id <= toId, in ordine di id. Ritorna quanti
+        ne ha visitati (meno di limit = intervallo finito)
+     */
+    int scanRange(long afterId, long toId, int limit, PaymentStateVisitor visitor);
+}
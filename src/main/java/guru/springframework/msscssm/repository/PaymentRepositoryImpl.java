@@ -0,0 +1,88 @@
+package guru.springframework.msscssm.repository;
+
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.domain.PaymentStateUpdate;
+import guru.springframework.msscssm.store.PaymentStateVisitor;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/*
+    Spring Data trova questa classe per convenzione sul nome (PaymentRepository + Impl) e la usa per i metodi
+    di PaymentRepositoryCustom
+ */
+@RequiredArgsConstructor
+public class PaymentRepositoryImpl implements PaymentRepositoryCustom {
+
+    private static final String COMPARE_AND_SET_STATE = "UPDATE payment SET state = ?, state_changed_at = ?, version = version + 1"
+            + " WHERE id = ? AND state = ?";
+
+    private static final String SCAN_RANGE = "SELECT id, state, state_changed_at FROM payment WHERE id > ? AND id <= ?"
+            + " ORDER BY id LIMIT ?";
+
+    private static final int SCAN_FETCH_SIZE = 1000;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Override
+    public int[] compareAndSetStates(List<PaymentStateUpdate> updates) {
+        if (updates.isEmpty()) {
+            return new int[0];
+        }
+
+        Timestamp changedAt = Timestamp.from(Instant.now());
+
+        return jdbcTemplate.batchUpdate(COMPARE_AND_SET_STATE, updates, updates.size(), (ps, update) -> {
+            ps.setString(1, update.getState().name());
+            ps.setTimestamp(2, changedAt);
+            ps.setLong(3, update.getPaymentId());
+            ps.setString(4, update.getExpectedState().name());
+        })[0];
+    }
+
+    @Override
+    public void scanByState(Set<PaymentState> states, PaymentStateVisitor visitor) {
+        if (states.isEmpty()) {
+            return;
+        }
+
+        List<PaymentState> filter = new ArrayList<>(states);
+        String sql = "SELECT id, state, state_changed_at FROM payment WHERE state IN ("
+                + String.join(", ", Collections.nCopies(filter.size(), "?")) + ")";
+
+        // forward only e fetch size: il driver passa le righe a blocchi invece di caricarle tutte
+        jdbcTemplate.query(connection -> {
+            PreparedStatement ps = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(SCAN_FETCH_SIZE);
+            for (int i = 0; i < filter.size(); i++) {
+                ps.setString(i + 1, filter.get(i).name());
+            }
+            return ps;
+        }, (RowCallbackHandler) rs -> {
+            Timestamp changedAt = rs.getTimestamp(3);
+            visitor.visit(rs.getLong(1), PaymentState.valueOf(rs.getString(2)), changedAt == null ? null : changedAt.toInstant());
+        });
+    }
+
+    @Override
+    public int scanRange(long afterId, long toId, int limit, PaymentStateVisitor visitor) {
+        int[] visited = new int[1];
+
+        jdbcTemplate.query(SCAN_RANGE, (RowCallbackHandler) rs -> {
+            Timestamp changedAt = rs.getTimestamp(3);
+            visitor.visit(rs.getLong(1), PaymentState.valueOf(rs.getString(2)), changedAt == null ? null : changedAt.toInstant());
+            visited[0]++;
+        }, afterId, toId, limit);
+
+        return visited[0];
+    }
+}
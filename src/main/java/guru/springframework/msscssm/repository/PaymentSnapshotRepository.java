@@ -0,0 +1,12 @@
+package guru.springframework.msscssm.repository;
+
+import guru.springframework.msscssm.domain.PaymentSnapshot;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+import java.time.Instant;
+import java.util.Optional;
+
+public interface PaymentSnapshotRepository extends JpaRepository<PaymentSnapshot, Long> {
+
+    Optional<PaymentSnapshot> findFirstByPaymentIdAndTakenAtLessThanEqualOrderByLastSequenceDesc(Long paymentId, Instant at);
+}
@@ -0,0 +1,8 @@
+package guru.springframework.msscssm.repository;
+
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.domain.PaymentStateCount;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface PaymentStateCountRepository extends JpaRepository<PaymentStateCount, PaymentState>, PaymentStateCountRepositoryCustom {
+}
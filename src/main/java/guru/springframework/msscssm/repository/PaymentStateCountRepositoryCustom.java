@@ -0,0 +1,23 @@
+package guru.springframework.msscssm.repository;
+
+import guru.springframework.msscssm.domain.PaymentState;
+
+import java.util.Map;
+
+public interface PaymentStateCountRepositoryCustom {
+
+    /*
+        total += delta per ogni stato, un solo batch JDBC
+     */
+    void addAll(Map<PaymentState, Long> deltas);
+
+    /*
+        total = valore, un solo batch JDBC
+     */
+    void replaceAll(Map<PaymentState, Long> totals);
+
+    /*
+        il conteggio vero, GROUP BY state su tutta la tabella payment: costa, serve solo alla riconciliazione
+     */
+    Map<PaymentState, Long> countPaymentsByState();
+}
@@ -0,0 +1,55 @@
+package guru.springframework.msscssm.repository;
+
+import guru.springframework.msscssm.domain.PaymentState;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Map;
+
+/*
+    come PaymentRepositoryImpl, trovata da Spring Data per convenzione sul nome
+ */
+@RequiredArgsConstructor
+public class PaymentStateCountRepositoryImpl implements PaymentStateCountRepositoryCustom {
+
+    private static final String ADD = "UPDATE payment_state_count SET total = total + ? WHERE state = ?";
+
+    private static final String REPLACE = "UPDATE payment_state_count SET total = ? WHERE state = ?";
+
+    private static final String COUNT_PAYMENTS = "SELECT state, COUNT(*) FROM payment WHERE state IS NOT NULL GROUP BY state";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Override
+    public void addAll(Map<PaymentState, Long> deltas) {
+        update(ADD, deltas);
+    }
+
+    @Override
+    public void replaceAll(Map<PaymentState, Long> totals) {
+        update(REPLACE, totals);
+    }
+
+    @Override
+    public Map<PaymentState, Long> countPaymentsByState() {
+        Map<PaymentState, Long> counts = new EnumMap<>(PaymentState.class);
+
+        jdbcTemplate.query(COUNT_PAYMENTS, (RowCallbackHandler) rs -> counts.put(PaymentState.valueOf(rs.getString(1)), rs.getLong(2)));
+
+        return counts;
+    }
+
+    private void update(String sql, Map<PaymentState, Long> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+
+        jdbcTemplate.batchUpdate(sql, new ArrayList<>(values.entrySet()), values.size(), (ps, entry) -> {
+            ps.setLong(1, entry.getValue());
+            ps.setString(2, entry.getKey().name());
+        });
+    }
+}
@@ -0,0 +1,22 @@
+package guru.springframework.msscssm.repository;
+
+import guru.springframework.msscssm.domain.PaymentTransition;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.Instant;
+import java.util.List;
+
+public interface PaymentTransitionRepository extends JpaRepository<PaymentTransition, Long>, PaymentTransitionRepositoryCustom {
+
+    List<PaymentTransition> findByPaymentIdOrderByIdAsc(Long paymentId);
+
+    /*
+        le transizioni da rigiocare sopra uno snapshot: quelle dopo afterSequence e non oltre l'istante richiesto
+     */
+    @Query("select t from PaymentTransition t where t.paymentId = :paymentId and t.id > :afterSequence"
+            + " and t.occurredAt <= :at order by t.id")
+    List<PaymentTransition> findForReplay(@Param("paymentId") Long paymentId, @Param("afterSequence") Long afterSequence,
+                                          @Param("at") Instant at);
+}
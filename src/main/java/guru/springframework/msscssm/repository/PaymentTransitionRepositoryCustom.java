@@ -0,0 +1,20 @@
+package guru.springframework.msscssm.repository;
+
+import guru.springframework.msscssm.domain.PaymentTransition;
+
+import java.util.List;
+
+public interface PaymentTransitionRepositoryCustom {
+
+    /*
+        insert di tutte le transizioni con un unico batch JDBC, e per ogni pagamento quante ne mancano allo
+        snapshot (payment_snapshot_due)
+     */
+    void appendAll(List<PaymentTransition> transitions);
+
+    /*
+        uno snapshot per ogni pagamento con almeno minTransitions transizioni dopo il suo ultimo snapshot (letti da
+        payment_snapshot_due, non da payment_transition), ritorna quanti ne sono stati scritti
+     */
+    int snapshotAll(int minTransitions);
+}
@@ -0,0 +1,116 @@
+package guru.springframework.msscssm.repository;
+
+import guru.springframework.msscssm.domain.PaymentTransition;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    come PaymentRepositoryImpl, trovata da Spring Data per convenzione sul nome
+ */
+@RequiredArgsConstructor
+public class PaymentTransitionRepositoryImpl implements PaymentTransitionRepositoryCustom {
+
+    private static final String APPEND = "INSERT INTO payment_transition (payment_id, source, target, event, occurred_at) VALUES (?, ?, ?, ?, ?)";
+
+    private static final String COUNT_DUE = "UPDATE payment_snapshot_due SET transitions = transitions + ? WHERE payment_id = ?";
+
+    private static final String INSERT_DUE = "INSERT INTO payment_snapshot_due (payment_id, transitions) VALUES (?, ?)";
+
+    private static final String PENDING_SNAPSHOTS = "SELECT payment_id, transitions FROM payment_snapshot_due WHERE transitions >= ?";
+
+    private static final String SNAPSHOT = "INSERT INTO payment_snapshot (payment_id, state, last_sequence, taken_at)"
+            + " SELECT payment_id, target, id, occurred_at FROM payment_transition"
+            + " WHERE id = (SELECT MAX(id) FROM payment_transition WHERE payment_id = ?)";
+
+    private static final String SNAPSHOT_TAKEN = "UPDATE payment_snapshot_due SET transitions = transitions - ? WHERE payment_id = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Override
+    public void appendAll(List<PaymentTransition> transitions) {
+        if (transitions.isEmpty()) {
+            return;
+        }
+
+        jdbcTemplate.batchUpdate(APPEND, transitions, transitions.size(), (ps, transition) -> {
+            ps.setLong(1, transition.getPaymentId());
+
+            if (transition.getSource() == null) {
+                ps.setNull(2, Types.VARCHAR);
+            } else {
+                ps.setString(2, transition.getSource().name());
+            }
+
+            ps.setString(3, transition.getTarget().name());
+
+            if (transition.getEvent() == null) {
+                ps.setNull(4, Types.VARCHAR);
+            } else {
+                ps.setString(4, transition.getEvent().name());
+            }
+
+            ps.setTimestamp(5, Timestamp.from(transition.getOccurredAt()));
+        });
+
+        countDue(transitions);
+    }
+
+    /*
+        un update per pagamento (non per transizione); la riga la crea la prima transizione, quella di creazione
+     */
+    private void countDue(List<PaymentTransition> transitions) {
+        Map<Long, Integer> counts = new LinkedHashMap<>();
+        for (PaymentTransition transition : transitions) {
+            counts.merge(transition.getPaymentId(), 1, Integer::sum);
+        }
+
+        List<Map.Entry<Long, Integer>> entries = new ArrayList<>(counts.entrySet());
+        int[] updated = jdbcTemplate.batchUpdate(COUNT_DUE, entries, entries.size(), (ps, entry) -> {
+            ps.setInt(1, entry.getValue());
+            ps.setLong(2, entry.getKey());
+        })[0];
+
+        List<Map.Entry<Long, Integer>> missing = new ArrayList<>();
+        for (int i = 0; i < updated.length; i++) {
+            if (updated[i] == 0) {
+                missing.add(entries.get(i));
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            jdbcTemplate.batchUpdate(INSERT_DUE, missing, missing.size(), (ps, entry) -> {
+                ps.setLong(1, entry.getKey());
+                ps.setInt(2, entry.getValue());
+            });
+        }
+    }
+
+    /*
+        le transizioni arrivate tra la lettura e lo snapshot finiscono nello snapshot ma restano contate: al massimo
+        il prossimo arriva un po' prima
+     */
+    @Override
+    public int snapshotAll(int minTransitions) {
+        List<Map.Entry<Long, Long>> due = jdbcTemplate.query(PENDING_SNAPSHOTS,
+                (rs, rowNum) -> Map.entry(rs.getLong(1), rs.getLong(2)), minTransitions);
+
+        if (due.isEmpty()) {
+            return 0;
+        }
+
+        jdbcTemplate.batchUpdate(SNAPSHOT, due, due.size(), (ps, payment) -> ps.setLong(1, payment.getKey()));
+        jdbcTemplate.batchUpdate(SNAPSHOT_TAKEN, due, due.size(), (ps, payment) -> {
+            ps.setLong(1, payment.getValue());
+            ps.setLong(2, payment.getKey());
+        });
+
+        return due.size();
+    }
+}
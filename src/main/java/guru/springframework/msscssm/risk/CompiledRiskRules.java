@@ -0,0 +1,24 @@
+package guru.springframework.msscssm.risk;
+
+/*
+    le regole compilate, immutabili: RiskRuleEngine le sostituisce in blocco a ogni ricaricamento.
+    counters sono i contatori di velocità usati da almeno una regola, ognuno una volta sola.
+ */
+final class CompiledRiskRules {
+
+    static final CompiledRiskRules EMPTY = new CompiledRiskRules(new String[0], new RiskPredicate[0], new VelocityCounter[0]);
+
+    final String[] names;
+    final RiskPredicate[] predicates;
+    final VelocityCounter[] counters;
+
+    CompiledRiskRules(String[] names, RiskPredicate[] predicates, VelocityCounter[] counters) {
+        this.names = names;
+        this.predicates = predicates;
+        this.counters = counters;
+    }
+
+    int size() {
+        return names.length;
+    }
+}
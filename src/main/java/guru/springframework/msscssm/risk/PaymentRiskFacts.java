@@ -0,0 +1,60 @@
+package guru.springframework.msscssm.risk;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.repository.PaymentRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/*
+    importo e cliente dei pagamenti per RiskRuleGuard, senza leggere l'entità ad ogni PRE_AUTHORIZE.
+
+    Non cambiano dopo la creazione: PaymentServiceImpl li registra quando crea i pagamenti (newPayment,
+    newPayments) e la guard li trova qui; solo un pagamento non in cache (creato da un altro nodo, uscito per
+    payment.risk.facts.max-size, creato prima che ci fossero regole) si legge dal repository, una volta.
+    Senza regole non si tiene nulla.
+ */
+@Component
+public class PaymentRiskFacts {
+
+    private final RiskRuleEngine riskRuleEngine;
+    private final PaymentRepository paymentRepository;
+    private final Cache<Long, RiskFacts> facts;
+    private final Counter loads;
+
+    public PaymentRiskFacts(RiskRuleEngine riskRuleEngine, PaymentRepository paymentRepository, MeterRegistry meterRegistry,
+                            @Value("${payment.risk.facts.max-size:100000}") long maxSize) {
+        this.riskRuleEngine = riskRuleEngine;
+        this.paymentRepository = paymentRepository;
+        this.facts = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .build();
+        this.loads = Counter.builder("payment.risk.facts.loads")
+                .description("Risk facts read from the repository because they were not cached")
+                .register(meterRegistry);
+    }
+
+    public void created(Payment payment) {
+        if (riskRuleEngine.hasRules()) {
+            facts.put(payment.getId(), new RiskFacts(payment.getId(), payment.getCustomerId(), payment.getAmount()));
+        }
+    }
+
+    /*
+        null se il pagamento non esiste
+     */
+    public RiskFacts get(Long paymentId) {
+        return facts.get(paymentId, this::load);
+    }
+
+    private RiskFacts load(Long paymentId) {
+        loads.increment();
+
+        return paymentRepository.findById(paymentId)
+                .map(payment -> new RiskFacts(paymentId, payment.getCustomerId(), payment.getAmount()))
+                .orElse(null);
+    }
+}
@@ -0,0 +1,20 @@
+package guru.springframework.msscssm.risk;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.math.BigDecimal;
+
+/*
+    quello che le regole di rischio sanno del pagamento
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class RiskFacts {
+
+    private final Long paymentId;
+    private final String customerId;
+    private final BigDecimal amount;
+}
@@ -0,0 +1,10 @@
+package guru.springframework.msscssm.risk;
+
+/*
+    una condizione compilata: nowMs è lo stesso per tutte le regole di una valutazione
+ */
+@FunctionalInterface
+interface RiskPredicate {
+
+    boolean test(RiskFacts facts, long nowMs);
+}
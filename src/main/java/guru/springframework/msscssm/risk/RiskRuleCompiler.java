@@ -0,0 +1,190 @@
+package guru.springframework.msscssm.risk;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.LongFunction;
+
+/*
+    da RiskRuleSet alle regole compilate.
+
+    Ogni condizione diventa un RiskPredicate con le soglie già convertite e le liste già in un HashSet, e l'albero
+    viene appiattito: all dentro all e any dentro any si fondono in un solo livello, all/any con un solo figlio
+    diventano il figlio e not(not x) diventa x. A ogni valutazione restano solo confronti e letture di array,
+    niente mappe di proprietà né reflection.
+
+    Le condizioni sbagliate (nessun campo o più di uno, soglie mancanti) fanno fallire la compilazione di tutto il
+    file con il nome della regola: meglio tenere le regole precedenti che applicarne una parte.
+ */
+final class RiskRuleCompiler {
+
+    private RiskRuleCompiler() {
+    }
+
+    /*
+        counters dà il contatore di velocità di una finestra (lo stesso per tutte le regole con quella finestra)
+     */
+    static CompiledRiskRules compile(RiskRuleSet ruleSet, LongFunction<VelocityCounter> counters) {
+        List<RiskRuleSet.Rule> rules = ruleSet.getRules() == null ? List.of() : ruleSet.getRules();
+        String[] names = new String[rules.size()];
+        RiskPredicate[] predicates = new RiskPredicate[rules.size()];
+        Set<String> seen = new HashSet<>();
+        Set<VelocityCounter> used = new LinkedHashSet<>();
+
+        for (int i = 0; i < rules.size(); i++) {
+            RiskRuleSet.Rule rule = rules.get(i);
+
+            if (rule.getName() == null || rule.getName().isEmpty()) {
+                throw new IllegalArgumentException("Risk rule #" + i + " has no name");
+            }
+            if (!seen.add(rule.getName())) {
+                throw new IllegalArgumentException("Duplicate risk rule " + rule.getName());
+            }
+
+            try {
+                names[i] = rule.getName();
+                predicates[i] = new Compilation(counters, used).compile(rule.getWhen());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Risk rule " + rule.getName() + ": " + e.getMessage(), e);
+            }
+        }
+
+        return new CompiledRiskRules(names, predicates, used.toArray(new VelocityCounter[0]));
+    }
+
+    private static final class Compilation {
+
+        private final LongFunction<VelocityCounter> counters;
+        private final Set<VelocityCounter> used;
+
+        Compilation(LongFunction<VelocityCounter> counters, Set<VelocityCounter> used) {
+            this.counters = counters;
+            this.used = used;
+        }
+
+        RiskPredicate compile(RiskRuleSet.Condition condition) {
+            if (condition == null) {
+                throw new IllegalArgumentException("missing condition");
+            }
+
+            int fields = count(condition.getAmountAbove(), condition.getAmountBelow(), condition.getCustomerIn(),
+                    condition.getVelocity(), condition.getAll(), condition.getAny(), condition.getNot());
+            if (fields != 1) {
+                throw new IllegalArgumentException("a condition must have exactly one of amountAbove, amountBelow,"
+                        + " customerIn, velocity, all, any, not (found " + fields + ")");
+            }
+
+            if (condition.getAmountAbove() != null) {
+                BigDecimal threshold = condition.getAmountAbove();
+                return (facts, nowMs) -> facts.getAmount() != null && facts.getAmount().compareTo(threshold) > 0;
+            }
+            if (condition.getAmountBelow() != null) {
+                BigDecimal threshold = condition.getAmountBelow();
+                return (facts, nowMs) -> facts.getAmount() != null && facts.getAmount().compareTo(threshold) < 0;
+            }
+            if (condition.getCustomerIn() != null) {
+                Set<String> customers = new HashSet<>(condition.getCustomerIn());
+                return (facts, nowMs) -> facts.getCustomerId() != null && customers.contains(facts.getCustomerId());
+            }
+            if (condition.getVelocity() != null) {
+                return velocity(condition.getVelocity());
+            }
+            if (condition.getNot() != null) {
+                return not(condition.getNot());
+            }
+            if (condition.getAll() != null) {
+                return all(flatten(condition.getAll(), true));
+            }
+            return any(flatten(condition.getAny(), false));
+        }
+
+        private RiskPredicate velocity(RiskRuleSet.Velocity velocity) {
+            if (velocity.getMax() < 0 || velocity.getMax() >= VelocityCounter.MAX_TRACKED || velocity.getWindowMs() <= 0) {
+                throw new IllegalArgumentException("velocity needs 0 <= max < " + VelocityCounter.MAX_TRACKED + " and windowMs > 0");
+            }
+
+            int max = velocity.getMax();
+            VelocityCounter counter = counters.apply(velocity.getWindowMs());
+            used.add(counter);
+
+            return (facts, nowMs) -> facts.getCustomerId() != null && counter.count(facts.getCustomerId(), nowMs) > max;
+        }
+
+        private RiskPredicate not(RiskRuleSet.Condition condition) {
+            if (condition.getNot() != null && count(condition.getAmountAbove(), condition.getAmountBelow(),
+                    condition.getCustomerIn(), condition.getVelocity(), condition.getAll(), condition.getAny()) == 0) {
+                return compile(condition.getNot());
+            }
+
+            RiskPredicate negated = compile(condition);
+            return (facts, nowMs) -> !negated.test(facts, nowMs);
+        }
+
+        /*
+            i figli dello stesso tipo vengono portati su di un livello, ricorsivamente
+         */
+        private List<RiskPredicate> flatten(List<RiskRuleSet.Condition> conditions, boolean all) {
+            if (conditions.isEmpty()) {
+                throw new IllegalArgumentException((all ? "all" : "any") + " needs at least one condition");
+            }
+
+            List<RiskPredicate> flat = new ArrayList<>();
+            for (RiskRuleSet.Condition child : conditions) {
+                List<RiskRuleSet.Condition> nested = child == null ? null : all ? child.getAll() : child.getAny();
+
+                if (nested != null && count(child.getAmountAbove(), child.getAmountBelow(), child.getCustomerIn(),
+                        child.getVelocity(), child.getNot(), all ? child.getAny() : child.getAll()) == 0) {
+                    flat.addAll(flatten(nested, all));
+                } else {
+                    flat.add(compile(child));
+                }
+            }
+            return flat;
+        }
+
+        private static RiskPredicate all(List<RiskPredicate> predicates) {
+            if (predicates.size() == 1) {
+                return predicates.get(0);
+            }
+
+            RiskPredicate[] array = predicates.toArray(new RiskPredicate[0]);
+            return (facts, nowMs) -> {
+                for (RiskPredicate predicate : array) {
+                    if (!predicate.test(facts, nowMs)) {
+                        return false;
+                    }
+                }
+                return true;
+            };
+        }
+
+        private static RiskPredicate any(List<RiskPredicate> predicates) {
+            if (predicates.size() == 1) {
+                return predicates.get(0);
+            }
+
+            RiskPredicate[] array = predicates.toArray(new RiskPredicate[0]);
+            return (facts, nowMs) -> {
+                for (RiskPredicate predicate : array) {
+                    if (predicate.test(facts, nowMs)) {
+                        return true;
+                    }
+                }
+                return false;
+            };
+        }
+
+        private static int count(Object... fields) {
+            int count = 0;
+            for (Object field : fields) {
+                if (field != null) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+}
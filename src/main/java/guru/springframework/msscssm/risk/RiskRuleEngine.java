@@ -0,0 +1,218 @@
+package guru.springframework.msscssm.risk;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+    regole di rischio valutate in processo, al posto della chiamata al servizio remoto prima di preAuth.
+
+    Le regole (vedi RiskRuleSet per il formato) si leggono da payment.risk.rules all'avvio e poi, ogni
+    payment.risk.reload-interval-ms, di nuovo se il file è cambiato. Un file che non si compila all'avvio ferma
+    l'applicazione; durante un ricaricamento invece viene scartato e restano in vigore le regole precedenti.
+    payment.risk.rules vuoto = nessuna regola.
+
+    evaluate registra il tentativo nei contatori di velocità del cliente e poi prova le regole in ordine: la prima
+    vera respinge il pagamento e le successive non vengono valutate. Metriche per regola:
+
+        payment.risk.rule           timer (conteggio + durata) di ogni valutazione, per rule
+        payment.risk.rule.matches   pagamenti respinti, per rule
+        payment.risk.reloads        ricaricamenti, per result (applied / rejected)
+
+    Viene usata da RiskRuleGuard sulla transizione PRE_AUTHORIZE.
+ */
+@Slf4j
+@Component
+public class RiskRuleEngine {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Resource resource;
+    private final MeterRegistry meterRegistry;
+    private final long maxCustomers;
+    private final Counter reloadsApplied;
+    private final Counter reloadsRejected;
+
+    private volatile Active active = new Active(CompiledRiskRules.EMPTY, new Timer[0], new Counter[0]);
+
+    /* contatori di velocità per finestra, li tocca solo chi tiene il lock di this */
+    private Map<Long, VelocityCounter> counters = new HashMap<>();
+    private long lastModified;
+
+    public RiskRuleEngine(ResourceLoader resourceLoader, MeterRegistry meterRegistry,
+                          @Value("${payment.risk.rules:}") String location,
+                          @Value("${payment.risk.velocity.max-customers:100000}") long maxCustomers) {
+        this.resource = location == null || location.isEmpty() ? null : resourceLoader.getResource(location);
+        this.meterRegistry = meterRegistry;
+        this.maxCustomers = maxCustomers;
+        this.reloadsApplied = reloads(meterRegistry, "applied");
+        this.reloadsRejected = reloads(meterRegistry, "rejected");
+    }
+
+    @PostConstruct
+    public synchronized void load() {
+        if (resource == null) {
+            log.info("No risk rules configured");
+            return;
+        }
+        if (!resource.exists()) {
+            log.warn("Risk rules {} not found, no rule applied", resource.getDescription());
+            return;
+        }
+
+        long modified = lastModified();
+        apply(read());
+        lastModified = modified;
+        log.info("Loaded {} risk rules from {}", active.rules.size(), resource.getDescription());
+    }
+
+    /*
+        true se le regole sono state sostituite
+     */
+    @Scheduled(fixedDelayString = "${payment.risk.reload-interval-ms:5000}",
+            initialDelayString = "${payment.risk.reload-interval-ms:5000}")
+    public synchronized boolean reload() {
+        if (resource == null || !resource.exists()) {
+            return false;
+        }
+
+        long modified = lastModified();
+        if (modified == lastModified) {
+            return false;
+        }
+        // anche se il file è sbagliato: si riprova solo quando cambia di nuovo
+        lastModified = modified;
+
+        try {
+            apply(read());
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            reloadsRejected.increment();
+            log.error("Risk rules {} rejected, keeping the previous {} rules: {}", resource.getDescription(),
+                    active.rules.size(), e.getMessage());
+            return false;
+        }
+
+        reloadsApplied.increment();
+        log.info("Reloaded {} risk rules from {}", active.rules.size(), resource.getDescription());
+        return true;
+    }
+
+    /*
+        il nome della prima regola che respinge il pagamento, null se passa
+     */
+    public String evaluate(RiskFacts facts) {
+        return evaluate(facts, System.currentTimeMillis());
+    }
+
+    String evaluate(RiskFacts facts, long nowMs) {
+        Active active = this.active;
+        CompiledRiskRules rules = active.rules;
+
+        if (facts.getCustomerId() != null) {
+            for (VelocityCounter counter : rules.counters) {
+                counter.record(facts.getCustomerId(), facts.getPaymentId(), nowMs);
+            }
+        }
+
+        for (int i = 0; i < rules.predicates.length; i++) {
+            long start = System.nanoTime();
+            boolean matched = rules.predicates[i].test(facts, nowMs);
+            active.timers[i].record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+            if (matched) {
+                active.matches[i].increment();
+                return rules.names[i];
+            }
+        }
+        return null;
+    }
+
+    public boolean hasRules() {
+        return active.rules.size() > 0;
+    }
+
+    public List<String> getRuleNames() {
+        return Arrays.asList(active.rules.names.clone());
+    }
+
+    private RiskRuleSet read() {
+        try (InputStream in = resource.getInputStream()) {
+            return objectMapper.readValue(in, RiskRuleSet.class);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read risk rules " + resource.getDescription(), e);
+        }
+    }
+
+    /*
+        i contatori delle finestre ancora in uso passano alle nuove regole, quelli delle altre si buttano
+     */
+    private void apply(RiskRuleSet ruleSet) {
+        Map<Long, VelocityCounter> previous = counters;
+        Map<Long, VelocityCounter> next = new HashMap<>();
+
+        CompiledRiskRules rules = RiskRuleCompiler.compile(ruleSet, windowMs -> next.computeIfAbsent(windowMs, window -> {
+            VelocityCounter counter = previous.get(window);
+            return counter != null ? counter : new VelocityCounter(window, maxCustomers);
+        }));
+
+        Timer[] timers = new Timer[rules.size()];
+        Counter[] matches = new Counter[rules.size()];
+        for (int i = 0; i < rules.size(); i++) {
+            timers[i] = Timer.builder("payment.risk.rule")
+                    .description("Risk rule evaluations")
+                    .tag("rule", rules.names[i])
+                    .register(meterRegistry);
+            matches[i] = Counter.builder("payment.risk.rule.matches")
+                    .description("Payments rejected by the risk rule")
+                    .tag("rule", rules.names[i])
+                    .register(meterRegistry);
+        }
+
+        counters = next;
+        active = new Active(rules, timers, matches);
+    }
+
+    private long lastModified() {
+        try {
+            return resource.lastModified();
+        } catch (IOException e) {
+            // non è un file (p.es. dentro il jar): si legge una volta sola
+            return lastModified;
+        }
+    }
+
+    private static Counter reloads(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("payment.risk.reloads")
+                .description("Risk rule reloads")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    private static final class Active {
+
+        final CompiledRiskRules rules;
+        final Timer[] timers;
+        final Counter[] matches;
+
+        Active(CompiledRiskRules rules, Timer[] timers, Counter[] matches) {
+            this.rules = rules;
+            this.timers = timers;
+            this.matches = matches;
+        }
+    }
+}
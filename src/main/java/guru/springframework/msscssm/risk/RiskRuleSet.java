@@ -0,0 +1,67 @@
+package guru.springframework.msscssm.risk;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/*
+    le regole di rischio come stanno nel file JSON (payment.risk.rules), p.es.:
+
+        {
+          "rules": [
+            { "name": "amount-cap",   "when": { "amountAbove": 10000 } },
+            { "name": "blocklist",    "when": { "customerIn": ["c-13", "c-666"] } },
+            { "name": "too-fast",     "when": { "velocity": { "max": 5, "windowMs": 60000 } } },
+            { "name": "big-and-fast", "when": { "all": [ { "amountAbove": 1000 },
+                                                         { "velocity": { "max": 2, "windowMs": 10000 } } ] } }
+          ]
+        }
+
+    ogni regola è un divieto: se la sua condizione è vera il pagamento viene respinto. In ogni Condition va
+    valorizzato un solo campo; RiskRuleCompiler la trasforma nel predicato che viene davvero valutato.
+ */
+@Data
+@NoArgsConstructor
+public class RiskRuleSet {
+
+    private List<Rule> rules = new ArrayList<>();
+
+    @Data
+    @NoArgsConstructor
+    public static class Rule {
+
+        private String name;
+        private Condition when;
+    }
+
+    @Data
+    @NoArgsConstructor
+    public static class Condition {
+
+        /* importo strettamente maggiore / minore della soglia */
+        private BigDecimal amountAbove;
+        private BigDecimal amountBelow;
+
+        /* il cliente è in lista */
+        private Set<String> customerIn;
+
+        /* il cliente ha fatto più di max tentativi negli ultimi windowMs (questo compreso) */
+        private Velocity velocity;
+
+        private List<Condition> all;
+        private List<Condition> any;
+        private Condition not;
+    }
+
+    @Data
+    @NoArgsConstructor
+    public static class Velocity {
+
+        private int max;
+        private long windowMs;
+    }
+}
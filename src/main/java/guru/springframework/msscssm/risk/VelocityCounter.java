@@ -0,0 +1,116 @@
+package guru.springframework.msscssm.risk;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+    tentativi per cliente in una finestra scorrevole di windowMs, tutto in memoria.
+
+    La finestra è divisa in SLOTS intervalli: ogni cliente ha un anello di SLOTS contatori, ognuno marcato con
+    l'intervallo a cui si riferisce, e un contatore di un intervallo ormai uscito dalla finestra viene azzerato
+    quando l'anello ci ripassa sopra. Il conteggio ha quindi la granularità di windowMs / SLOTS.
+
+    Ogni cliente ricorda anche i pagamenti contati nella finestra (al massimo MAX_TRACKED, i più vecchi escono
+    per primi): un pagamento già contato non conta di nuovo, anche se nel frattempo ne sono arrivati altri (A, B,
+    A conta due). Il compilatore accetta solo velocity con max < MAX_TRACKED, così un pagamento dimenticato per
+    il limite può contare due volte solo quando la regola respinge già.
+
+    I clienti stanno in una cache Caffeine limitata che li dimentica dopo una finestra senza tentativi.
+    Un contatore è condiviso da tutte le regole con la stessa finestra e sopravvive al ricaricamento delle regole.
+
+    Conta i tentativi visti da questo nodo: in modalità cluster i pagamenti sono divisi per id, non per cliente.
+ */
+class VelocityCounter {
+
+    static final int SLOTS = 16;
+    static final int MAX_TRACKED = 4096;
+
+    private final long windowMs;
+    private final long slotMs;
+    private final Cache<String, Window> windows;
+
+    VelocityCounter(long windowMs, long maxCustomers) {
+        if (windowMs <= 0) {
+            throw new IllegalArgumentException("velocity windowMs must be positive");
+        }
+        this.windowMs = windowMs;
+        this.slotMs = Math.max(1, (windowMs + SLOTS - 1) / SLOTS);
+        this.windows = Caffeine.newBuilder()
+                .maximumSize(maxCustomers)
+                .expireAfterAccess(Duration.ofMillis(windowMs))
+                .build();
+    }
+
+    long getWindowMs() {
+        return windowMs;
+    }
+
+    /*
+        lo stesso pagamento valutato di nuovo (p.es. dopo un conflitto ottimistico) non conta due volte
+     */
+    void record(String customerId, Long paymentId, long nowMs) {
+        windows.get(customerId, key -> new Window()).add(nowMs / slotMs, paymentId);
+    }
+
+    int count(String customerId, long nowMs) {
+        Window window = windows.getIfPresent(customerId);
+        return window == null ? 0 : window.sum(nowMs / slotMs);
+    }
+
+    private static final class Window {
+
+        private final long[] slots = new long[SLOTS];
+        private final int[] counts = new int[SLOTS];
+        /* pagamento -> intervallo in cui è stato contato, in ordine di arrivo */
+        private final Map<Long, Long> counted = new LinkedHashMap<>();
+
+        synchronized void add(long slot, Long paymentId) {
+            forget(slot);
+
+            if (paymentId != null) {
+                if (counted.containsKey(paymentId)) {
+                    return;
+                }
+                if (counted.size() == MAX_TRACKED) {
+                    Iterator<Long> oldest = counted.keySet().iterator();
+                    oldest.next();
+                    oldest.remove();
+                }
+                counted.put(paymentId, slot);
+            }
+
+            int index = (int) (slot % SLOTS);
+            if (slots[index] != slot) {
+                slots[index] = slot;
+                counts[index] = 0;
+            }
+            counts[index]++;
+        }
+
+        /*
+            via i pagamenti contati in intervalli ormai fuori dalla finestra
+         */
+        private void forget(long current) {
+            Iterator<Long> slotsByArrival = counted.values().iterator();
+
+            while (slotsByArrival.hasNext() && current - slotsByArrival.next() >= SLOTS) {
+                slotsByArrival.remove();
+            }
+        }
+
+        synchronized int sum(long current) {
+            int total = 0;
+            for (int i = 0; i < SLOTS; i++) {
+                if (current - slots[i] < SLOTS) {
+                    total += counts[i];
+                }
+            }
+            return total;
+        }
+    }
+}
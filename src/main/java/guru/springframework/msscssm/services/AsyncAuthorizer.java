@@ -0,0 +1,192 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/*
+    modalità asincrona delle autorizzazioni (payment.auth.mode=ASYNC).
+
+    PreAuthAction e AuthAction invece di decidere subito chiedono qui l'autorizzazione e tornano: la transizione
+    finisce e la transazione di PaymentServiceImpl fa commit senza aspettare il processore.
+
+    La chiamata all'AuthorizationGateway parte solo dopo il commit (così la risposta non può arrivare prima che lo
+    stato sia a DB), e l'esito torna come evento *_APPROVED / *_DECLINED con PaymentService.sendEvent, cioè in una
+    nuova transazione breve che reidrata la macchina.
+
+    La transizione che chiede l'autorizzazione è una self-transition (NEW -> NEW, PRE_AUTH -> PRE_AUTH) e non scrive
+    nulla, quindi due richieste insieme sullo stesso pagamento arrivano entrambe al commit. Per questo:
+
+        -   le richieste restano legate alla transazione fino al commit, e l'API batch toglie (discard) quelle dei
+            pagamenti andati in conflitto
+        -   un pagamento ha al massimo una richiesta al gateway alla volta: le altre vengono scartate, e anche quelle
+            che arrivano quando il pagamento non è più nello stato da cui sono partite (l'esito è già arrivato)
+
+    PaymentService lo prendiamo dall'ObjectProvider perché le action (e quindi noi) servono per costruirlo.
+ */
+@Slf4j
+@Component
+public class AsyncAuthorizer {
+
+    public enum Mode {
+        SYNC, ASYNC
+    }
+
+    /*
+        stato in cui deve essere il pagamento quando si chiama il gateway, la chiamata e gli eventi dell'esito
+     */
+    private enum Request {
+        PRE_AUTHORIZE(PaymentState.NEW, AuthorizationGateway::preAuthorize, PaymentEvent.PRE_AUTH_APPROVED, PaymentEvent.PRE_AUTH_DECLINED),
+        AUTHORIZE(PaymentState.PRE_AUTH, AuthorizationGateway::authorize, PaymentEvent.AUTH_APPROVED, PaymentEvent.AUTH_DECLINED);
+
+        private final PaymentState expected;
+        private final BiFunction<AuthorizationGateway, Long, CompletableFuture<Boolean>> call;
+        private final PaymentEvent approved;
+        private final PaymentEvent declined;
+
+        Request(PaymentState expected, BiFunction<AuthorizationGateway, Long, CompletableFuture<Boolean>> call,
+                PaymentEvent approved, PaymentEvent declined) {
+            this.expected = expected;
+            this.call = call;
+            this.approved = approved;
+            this.declined = declined;
+        }
+    }
+
+    private final AuthorizationGateway authorizationGateway;
+    private final ObjectProvider<PaymentService> paymentService;
+    private final ExecutorService callbackExecutor;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Set<Long> outstanding = ConcurrentHashMap.newKeySet();
+
+    @Value("${payment.auth.mode:SYNC}")
+    private Mode mode;
+
+    public AsyncAuthorizer(AuthorizationGateway authorizationGateway, ObjectProvider<PaymentService> paymentService,
+                           @Value("${payment.auth.callback-threads:4}") int callbackThreads) {
+        this.authorizationGateway = authorizationGateway;
+        this.paymentService = paymentService;
+        this.callbackExecutor = Executors.newFixedThreadPool(callbackThreads, runnable -> {
+            Thread thread = new Thread(runnable, "auth-callback");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public boolean isEnabled() {
+        return mode == Mode.ASYNC;
+    }
+
+    /*
+        autorizzazioni richieste al gateway e non ancora riportate alla macchina a stati
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public void preAuthorize(Long paymentId) {
+        requestAfterCommit(paymentId, Request.PRE_AUTHORIZE);
+    }
+
+    public void authorize(Long paymentId) {
+        requestAfterCommit(paymentId, Request.AUTHORIZE);
+    }
+
+    /*
+        toglie dalla transazione corrente le richieste di questi pagamenti (conflitti dell'API batch)
+     */
+    public void discard(Collection<Long> paymentIds) {
+        Map<Long, Request> pending = TransactionCallbacks.current(AsyncAuthorizer.class);
+
+        if (pending != null && !paymentIds.isEmpty()) {
+            pending.keySet().removeAll(paymentIds);
+        }
+    }
+
+    private void requestAfterCommit(Long paymentId, Request request) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            submit(paymentId, request);
+            return;
+        }
+
+        pending().put(paymentId, request);
+    }
+
+    private Map<Long, Request> pending() {
+        return TransactionCallbacks.bound(AsyncAuthorizer.class, LinkedHashMap::new, bound -> bound.forEach(this::submit));
+    }
+
+    /*
+        il controllo dello stato legge lo store: va fatto fuori dalla transazione appena conclusa
+     */
+    private void submit(Long paymentId, Request request) {
+        inFlight.incrementAndGet();
+        callbackExecutor.execute(() -> request(paymentId, request));
+    }
+
+    private void request(Long paymentId, Request request) {
+        if (!outstanding.add(paymentId)) {
+            log.debug("Payment {} already waits for the gateway, dropping {}", paymentId, request);
+            inFlight.decrementAndGet();
+            return;
+        }
+
+        try {
+            PaymentState state = paymentService.getObject().currentState(paymentId);
+
+            if (state != request.expected) {
+                log.debug("Payment {} is {}, no longer {}: dropping {}", paymentId, state, request.expected, request);
+                completed(paymentId);
+                return;
+            }
+
+            request.call.apply(authorizationGateway, paymentId).whenCompleteAsync((result, error) -> {
+                try {
+                    if (error != null) {
+                        // lo stato resta quello attuale, ci penseranno i timeout
+                        log.warn("Authorization request for payment {} failed", paymentId, error);
+                        return;
+                    }
+
+                    paymentService.getObject().sendEvent(paymentId, Boolean.TRUE.equals(result) ? request.approved : request.declined);
+                } catch (RuntimeException e) {
+                    log.error("Could not apply authorization result for payment {}", paymentId, e);
+                } finally {
+                    completed(paymentId);
+                }
+            }, callbackExecutor);
+        } catch (RuntimeException e) {
+            log.error("Could not request authorization for payment {}", paymentId, e);
+            completed(paymentId);
+        }
+    }
+
+    /*
+        il pagamento torna libero solo quando l'esito è già a DB: una richiesta che arriva dopo trova lo stato nuovo
+     */
+    private void completed(Long paymentId) {
+        outstanding.remove(paymentId);
+        inFlight.decrementAndGet();
+    }
+
+    @PreDestroy
+    void shutdown() {
+        callbackExecutor.shutdown();
+    }
+}
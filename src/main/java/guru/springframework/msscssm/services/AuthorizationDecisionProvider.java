@@ -0,0 +1,13 @@
+package guru.springframework.msscssm.services;
+
+/*
+    decide se una pre autorizzazione / autorizzazione viene approvata (PreAuthAction, AuthAction).
+
+    L'implementazione si sceglie con payment.auth.decision, vedi AuthorizationDecisionConfig.
+ */
+public interface AuthorizationDecisionProvider {
+
+    boolean approvePreAuth(Long paymentId);
+
+    boolean approveAuth(Long paymentId);
+}
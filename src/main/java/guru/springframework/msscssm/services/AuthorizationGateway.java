@@ -0,0 +1,14 @@
+package guru.springframework.msscssm.services;
+
+import java.util.concurrent.CompletableFuture;
+
+/*
+    il processore di pagamento esterno. Le chiamate non bloccano: il risultato (true = approvato) arriva più tardi
+    sul future, vedi AsyncAuthorizer.
+ */
+public interface AuthorizationGateway {
+
+    CompletableFuture<Boolean> preAuthorize(Long paymentId);
+
+    CompletableFuture<Boolean> authorize(Long paymentId);
+}
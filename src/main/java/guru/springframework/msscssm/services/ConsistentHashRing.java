@@ -0,0 +1,112 @@
+package guru.springframework.msscssm.services;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/*
+    anello di consistent hashing dei pagamenti, immutabile: a ogni cambio di membri se ne costruisce uno nuovo.
+
+    Un pagamento sta in una partizione fissa (hash dell'id modulo partitions), indipendente dai membri. Ogni nodo
+    mette virtualNodes punti sull'anello e una partizione è del primo punto dopo il suo hash: quando un nodo entra
+    o esce si spostano solo le partizioni tra i suoi punti e i precedenti, circa 1/n del totale.
+ */
+public final class ConsistentHashRing {
+
+    private final int partitions;
+    private final Set<String> members;
+    private final String[] owners;
+
+    public ConsistentHashRing(Collection<String> members, int partitions, int virtualNodes) {
+        if (partitions <= 0 || virtualNodes <= 0) {
+            throw new IllegalArgumentException("Partitions and virtual nodes must be positive");
+        }
+
+        this.partitions = partitions;
+        this.members = Collections.unmodifiableSet(new TreeSet<>(members));
+        this.owners = new String[partitions];
+
+        if (this.members.isEmpty()) {
+            return;
+        }
+
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (String member : this.members) {
+            for (int i = 0; i < virtualNodes; i++) {
+                // in caso di collisione vince il nome minore, così tutti i nodi costruiscono lo stesso anello
+                ring.merge(hash(member + "#" + i), member, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+        }
+
+        for (int partition = 0; partition < partitions; partition++) {
+            Map.Entry<Long, String> point = ring.ceilingEntry(mix(partition));
+            owners[partition] = (point != null ? point : ring.firstEntry()).getValue();
+        }
+    }
+
+    public int partitionOf(long paymentId) {
+        return (int) Math.floorMod(mix(paymentId), (long) partitions);
+    }
+
+    /*
+        null se l'anello non ha membri
+     */
+    public String ownerOf(long paymentId) {
+        return owners[partitionOf(paymentId)];
+    }
+
+    public String ownerOfPartition(int partition) {
+        return owners[partition];
+    }
+
+    public Set<Integer> partitionsOf(String member) {
+        Set<Integer> owned = new HashSet<>();
+
+        for (int partition = 0; partition < partitions; partition++) {
+            if (member.equals(owners[partition])) {
+                owned.add(partition);
+            }
+        }
+
+        return owned;
+    }
+
+    public Set<String> getMembers() {
+        return members;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /*
+        FNV-1a a 64 bit sui byte UTF-8, poi mescolato: uguale su ogni JVM (String.hashCode sarebbe troppo povero)
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+
+        return mix(hash);
+    }
+
+    /*
+        finalizzatore di MurmurHash3: id consecutivi finiscono in punti lontani dell'anello
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
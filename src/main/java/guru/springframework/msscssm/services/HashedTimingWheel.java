@@ -0,0 +1,249 @@
+package guru.springframework.msscssm.services;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/*
+    hashed timing wheel: scadenze per chiave (id del pagamento) con schedule e cancel O(1), pensata per milioni di
+    scadenze pendenti.
+
+    La ruota ha wheelSize bucket (potenza di 2) da tick millisecondi ciascuno; una scadenza finisce nel bucket
+    (tick di scadenza & mask) con il numero di giri che mancano. Un solo thread fa girare la ruota: ad ogni tick
+    sposta nei bucket le scadenze nuove, toglie quelle cancellate e fa scadere quelle del bucket corrente con zero
+    giri rimasti. I bucket li tocca solo lui, quindi niente lock: gli altri thread passano da due code.
+
+    Una chiave ha al massimo una scadenza: schedule sostituisce quella precedente. Chi scade viene passato a
+    onExpiry sul thread della ruota, che quindi deve solo passare il lavoro a qualcun altro.
+ */
+@Slf4j
+public class HashedTimingWheel<T> {
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    // oltre, le scadenze nuove aspettano il tick successivo: la ruota non si ferma mai troppo su un tick
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private final long tickNanos;
+    private final int mask;
+    private final Bucket<T>[] wheel;
+    private final BiConsumer<Long, T> onExpiry;
+
+    private final ConcurrentHashMap<Long, Timeout<T>> byKey = new ConcurrentHashMap<>();
+    private final Queue<Timeout<T>> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout<T>> cancelled = new ConcurrentLinkedQueue<>();
+
+    private final long startNanos = System.nanoTime();
+    private final Thread worker;
+    private long tick;
+    private volatile boolean running = true;
+
+    @SuppressWarnings("unchecked")
+    public HashedTimingWheel(String name, long tickMs, int wheelSize, BiConsumer<Long, T> onExpiry) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Wheel size must be a power of 2: " + wheelSize);
+        }
+
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMs));
+        this.mask = wheelSize - 1;
+        this.wheel = new Bucket[wheelSize];
+        this.onExpiry = onExpiry;
+
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new Bucket<>();
+        }
+
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public void schedule(Long key, T payload, long delayMs) {
+        Timeout<T> timeout = new Timeout<>(key, payload, System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs)));
+        Timeout<T> previous = byKey.put(key, timeout);
+
+        if (previous != null) {
+            cancel(previous);
+        }
+
+        added.add(timeout);
+    }
+
+    /*
+        false se per la chiave non c'era nessuna scadenza pendente
+     */
+    public boolean cancel(Long key) {
+        Timeout<T> timeout = byKey.remove(key);
+        return timeout != null && cancel(timeout);
+    }
+
+    public int size() {
+        return byKey.size();
+    }
+
+    public void stop() {
+        running = false;
+        worker.interrupt();
+
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean cancel(Timeout<T> timeout) {
+        if (timeout.state.compareAndSet(PENDING, CANCELLED)) {
+            cancelled.add(timeout);
+            return true;
+        }
+        return false;
+    }
+
+    private void run() {
+        while (running) {
+            long tickEnd = (tick + 1) * tickNanos;
+            long sleepNanos = startNanos + tickEnd - System.nanoTime();
+
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            removeCancelled();
+            transferAdded();
+            expire(wheel[(int) (tick & mask)], tickEnd);
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout<T> timeout;
+
+        while ((timeout = cancelled.poll()) != null) {
+            // null se era ancora in coda tra quelle nuove: transferAdded la salta
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void transferAdded() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout<T> timeout = added.poll();
+
+            if (timeout == null) {
+                return;
+            }
+
+            if (timeout.state.get() != PENDING) {
+                continue;
+            }
+
+            long expiryTick = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.rounds = (expiryTick - tick) / wheel.length;
+            wheel[(int) (expiryTick & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Bucket<T> bucket, long tickEnd) {
+        Timeout<T> timeout = bucket.head;
+
+        while (timeout != null) {
+            Timeout<T> next = timeout.next;
+
+            if (timeout.state.get() != PENDING) {
+                bucket.remove(timeout);
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else if (timeout.deadline < tickEnd) {
+                bucket.remove(timeout);
+
+                if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+                    byKey.remove(timeout.key, timeout);
+
+                    try {
+                        onExpiry.accept(timeout.key, timeout.payload);
+                    } catch (RuntimeException e) {
+                        log.error("Timeout handler failed for {}", timeout.key, e);
+                    }
+                }
+            }
+
+            timeout = next;
+        }
+    }
+
+    private static final class Timeout<T> {
+
+        private final Long key;
+        private final T payload;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        // solo il thread della ruota
+        private long rounds;
+        private Bucket<T> bucket;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+
+        private Timeout(Long key, T payload, long deadline) {
+            this.key = key;
+            this.payload = payload;
+            this.deadline = deadline;
+        }
+    }
+
+    /*
+        lista doppiamente concatenata: add e remove O(1)
+     */
+    private static final class Bucket<T> {
+
+        private Timeout<T> head;
+        private Timeout<T> tail;
+
+        private void add(Timeout<T> timeout) {
+            timeout.bucket = this;
+
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        private void remove(Timeout<T> timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import lombok.Getter;
+
+/*
+    la chiave di idempotenza era già stata usata per un altro pagamento o un altro evento (vedi IdempotentCommands)
+ */
+@Getter
+public class IdempotencyKeyReusedException extends RuntimeException {
+
+    private final String idempotencyKey;
+    private final Long recordedPaymentId;
+    private final PaymentEvent recordedEvent;
+
+    public IdempotencyKeyReusedException(String idempotencyKey, Long recordedPaymentId, PaymentEvent recordedEvent) {
+        super("Idempotency key " + idempotencyKey + " was already used for " + recordedEvent + " of payment " + recordedPaymentId);
+        this.idempotencyKey = idempotencyKey;
+        this.recordedPaymentId = recordedPaymentId;
+        this.recordedEvent = recordedEvent;
+    }
+}
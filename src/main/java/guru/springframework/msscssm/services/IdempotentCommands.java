@@ -0,0 +1,202 @@
+package guru.springframework.msscssm.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import guru.springframework.msscssm.domain.PaymentCommandRecord;
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.repository.PaymentCommandRecordRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/*
+    deduplica dei comandi con idempotency key (PaymentService.sendEvent con chiave).
+
+    Dove si cerca l'esito di una chiave, in ordine:
+
+        -   una cache Caffeine limitata (payment.idempotency.max-size) con scadenza dopo payment.idempotency.ttl-ms
+        -   i comandi in corso in questo nodo: un duplicato arrivato mentre il primo gira aspetta il suo esito
+            invece di eseguire di nuovo
+        -   la tabella payment_idempotency, che sopravvive ai riavvii e vede i comandi degli altri nodi
+
+    Se non c'è da nessuna parte il comando viene eseguito, e chi lo esegue chiama record nella stessa transazione
+    della transizione. Se due nodi eseguono la stessa chiave insieme il secondo INSERT fallisce sulla chiave
+    primaria, la sua transizione va in rollback e torna l'esito del primo.
+
+    Ogni payment.idempotency.purge-interval-ms si cancellano dalla tabella le chiavi più vecchie del ttl.
+ */
+@Slf4j
+@Component
+public class IdempotentCommands {
+
+    private final PaymentCommandRecordRepository repository;
+    private final Cache<String, PaymentCommandRecord> completed;
+    private final ConcurrentMap<String, InFlight> inFlight = new ConcurrentHashMap<>();
+    private final Duration ttl;
+
+    private final Counter memoryHits;
+    private final Counter inFlightHits;
+    private final Counter tableHits;
+    private final Counter executions;
+
+    public IdempotentCommands(PaymentCommandRecordRepository repository, MeterRegistry meterRegistry,
+                              @Value("${payment.idempotency.ttl-ms:86400000}") long ttlMs,
+                              @Value("${payment.idempotency.max-size:100000}") long maxSize) {
+        this.repository = repository;
+        this.ttl = Duration.ofMillis(ttlMs);
+        this.completed = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .build();
+
+        this.memoryHits = hits(meterRegistry, "memory");
+        this.inFlightHits = hits(meterRegistry, "in-flight");
+        this.tableHits = hits(meterRegistry, "table");
+        this.executions = Counter.builder("payment.idempotency.executions")
+                .description("Keyed commands actually executed")
+                .register(meterRegistry);
+    }
+
+    /*
+        command esegue l'evento e chiama record nella sua transazione; key null = nessuna deduplica
+     */
+    public PaymentState execute(String key, Long paymentId, PaymentEvent event, Supplier<PaymentState> command) {
+        if (key == null) {
+            return command.get();
+        }
+
+        PaymentCommandRecord done = completed.getIfPresent(key);
+        if (done != null) {
+            memoryHits.increment();
+            return outcome(done, key, paymentId, event);
+        }
+
+        InFlight execution = new InFlight(paymentId, event, new CompletableFuture<>());
+        InFlight running = inFlight.putIfAbsent(key, execution);
+
+        if (running != null) {
+            inFlightHits.increment();
+            check(running.paymentId, running.event, key, paymentId, event);
+            return await(running.result);
+        }
+
+        try {
+            PaymentState state = executeOnce(key, paymentId, event, command);
+            execution.result.complete(state);
+            return state;
+        } catch (RuntimeException e) {
+            execution.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, execution);
+        }
+    }
+
+    /*
+        da chiamare dentro la transazione del comando; la chiave va in cache solo dopo il commit
+     */
+    public void record(String key, Long paymentId, PaymentEvent event, PaymentState state) {
+        PaymentCommandRecord record = PaymentCommandRecord.builder()
+                .idempotencyKey(key)
+                .paymentId(paymentId)
+                .event(event)
+                .state(state)
+                .createdAt(Instant.now())
+                .build();
+
+        repository.insert(record);
+        TransactionCallbacks.afterCommit(() -> completed.put(key, record));
+    }
+
+    @Scheduled(fixedDelayString = "${payment.idempotency.purge-interval-ms:600000}",
+            initialDelayString = "${payment.idempotency.purge-interval-ms:600000}")
+    @Transactional
+    public int purge() {
+        int purged = repository.deleteCreatedBefore(Instant.now().minus(ttl));
+
+        if (purged > 0) {
+            log.debug("Purged {} expired idempotency keys", purged);
+        }
+
+        return purged;
+    }
+
+    private PaymentState executeOnce(String key, Long paymentId, PaymentEvent event, Supplier<PaymentState> command) {
+        // può essere arrivata mentre prendevamo il posto tra i comandi in corso
+        PaymentCommandRecord done = completed.getIfPresent(key);
+        if (done != null) {
+            memoryHits.increment();
+            return outcome(done, key, paymentId, event);
+        }
+
+        done = repository.findById(key).orElse(null);
+        if (done != null) {
+            tableHits.increment();
+            completed.put(key, done);
+            return outcome(done, key, paymentId, event);
+        }
+
+        try {
+            executions.increment();
+            return command.get();
+        } catch (DataIntegrityViolationException e) {
+            // un altro nodo ha eseguito la stessa chiave nel frattempo, la nostra transazione è già annullata
+            PaymentCommandRecord other = repository.findById(key).orElseThrow(() -> e);
+            tableHits.increment();
+            completed.put(key, other);
+            return outcome(other, key, paymentId, event);
+        }
+    }
+
+    private static PaymentState outcome(PaymentCommandRecord record, String key, Long paymentId, PaymentEvent event) {
+        check(record.getPaymentId(), record.getEvent(), key, paymentId, event);
+        return record.getState();
+    }
+
+    private static void check(Long recordedPaymentId, PaymentEvent recordedEvent, String key, Long paymentId, PaymentEvent event) {
+        if (!recordedPaymentId.equals(paymentId) || recordedEvent != event) {
+            throw new IdempotencyKeyReusedException(key, recordedPaymentId, recordedEvent);
+        }
+    }
+
+    private static PaymentState await(CompletableFuture<PaymentState> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static Counter hits(MeterRegistry meterRegistry, String where) {
+        return Counter.builder("payment.idempotency.hits")
+                .description("Keyed commands answered without executing them")
+                .tag("where", where)
+                .register(meterRegistry);
+    }
+
+    @AllArgsConstructor
+    private static final class InFlight {
+
+        private final Long paymentId;
+        private final PaymentEvent event;
+        private final CompletableFuture<PaymentState> result;
+    }
+}
@@ -0,0 +1,43 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentState;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+    stub locale del processore: decide con AuthorizationDecisionProvider e risponde dopo
+    payment.auth.gateway.latency-ms, senza tenere occupato nessun thread durante l'attesa. Gli esiti restano in
+    LocalPaymentProcessorRecords, come i record del processore vero.
+ */
+@RequiredArgsConstructor
+@Component
+public class LocalAuthorizationGateway implements AuthorizationGateway {
+
+    private final AuthorizationDecisionProvider authorizationDecisionProvider;
+    private final LocalPaymentProcessorRecords processorRecords;
+
+    @Value("${payment.auth.gateway.latency-ms:0}")
+    private long latencyMs;
+
+    @Override
+    public CompletableFuture<Boolean> preAuthorize(Long paymentId) {
+        return CompletableFuture.supplyAsync(() -> {
+            boolean approved = authorizationDecisionProvider.approvePreAuth(paymentId);
+            processorRecords.record(paymentId, approved ? PaymentState.PRE_AUTH : PaymentState.PRE_AUTH_ERROR);
+            return approved;
+        }, CompletableFuture.delayedExecutor(latencyMs, TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> authorize(Long paymentId) {
+        return CompletableFuture.supplyAsync(() -> {
+            boolean approved = authorizationDecisionProvider.approveAuth(paymentId);
+            processorRecords.record(paymentId, approved ? PaymentState.AUTH : PaymentState.AUTH_ERROR);
+            return approved;
+        }, CompletableFuture.delayedExecutor(latencyMs, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,44 @@
+package guru.springframework.msscssm.services;
+
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/*
+    trasporto in-process: consegna subito, sul thread di chi pubblica, a tutte le altre cache iscritte
+ */
+@Slf4j
+@Component
+public class LocalPaymentCacheInvalidation implements PaymentCacheInvalidation {
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void publish(String origin, Long paymentId) {
+        for (Subscriber subscriber : subscribers) {
+            if (!subscriber.origin.equals(origin)) {
+                try {
+                    subscriber.listener.accept(paymentId);
+                } catch (RuntimeException e) {
+                    log.warn("Cache invalidation of payment {} failed on {}", paymentId, subscriber.origin, e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(String origin, Consumer<Long> listener) {
+        subscribers.add(new Subscriber(origin, listener));
+    }
+
+    @AllArgsConstructor
+    private static final class Subscriber {
+
+        private final String origin;
+        private final Consumer<Long> listener;
+    }
+}
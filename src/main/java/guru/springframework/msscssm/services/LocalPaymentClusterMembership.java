@@ -0,0 +1,60 @@
+package guru.springframework.msscssm.services;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/*
+    membership in-process: i nodi sono oggetti dello stesso processo e l'inoltro è una chiamata diretta.
+    I cambi di membri arrivano agli iscritti sul thread di chi entra o esce, uno alla volta.
+ */
+@Slf4j
+@Component
+public class LocalPaymentClusterMembership implements PaymentClusterMembership {
+
+    private final Map<String, PaymentService> members = new ConcurrentHashMap<>();
+    private final List<Consumer<Set<String>>> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public synchronized void join(String nodeId, PaymentService endpoint) {
+        members.put(nodeId, endpoint);
+        notifyListeners();
+    }
+
+    @Override
+    public synchronized void leave(String nodeId) {
+        if (members.remove(nodeId) != null) {
+            notifyListeners();
+        }
+    }
+
+    @Override
+    public PaymentService endpoint(String nodeId) {
+        return members.get(nodeId);
+    }
+
+    @Override
+    public synchronized void subscribe(Consumer<Set<String>> listener) {
+        listeners.add(listener);
+        listener.accept(new HashSet<>(members.keySet()));
+    }
+
+    private void notifyListeners() {
+        Set<String> current = new HashSet<>(members.keySet());
+
+        for (Consumer<Set<String>> listener : listeners) {
+            try {
+                listener.accept(current);
+            } catch (RuntimeException e) {
+                log.warn("Cluster membership listener failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package guru.springframework.msscssm.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import guru.springframework.msscssm.domain.PaymentNotification;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    sink locale: non c'è ancora un sistema di notifiche vero, quindi le notifiche finiscono nel log e si contano.
+
+    Come chiede PaymentNotificationSink, gli id consegnati restano in memoria per payment.outbox.sink.dedup-ms
+    (al massimo dedup-max-size): una notifica riconsegnata dal relay in quella finestra non viene né loggata né
+    contata di nuovo.
+ */
+@Slf4j
+@Component
+public class LocalPaymentNotificationSink implements PaymentNotificationSink {
+
+    private final Cache<Long, Boolean> deliveredIds;
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+
+    public LocalPaymentNotificationSink(@Value("${payment.outbox.sink.dedup-ms:600000}") long dedupMs,
+                                        @Value("${payment.outbox.sink.dedup-max-size:100000}") long dedupMaxSize) {
+        this.deliveredIds = Caffeine.newBuilder()
+                .maximumSize(dedupMaxSize)
+                .expireAfterWrite(Duration.ofMillis(dedupMs))
+                .build();
+    }
+
+    @Override
+    public synchronized Set<Long> deliver(List<PaymentNotification> notifications) {
+        for (PaymentNotification notification : notifications) {
+            if (deliveredIds.getIfPresent(notification.getId()) != null) {
+                duplicates.increment();
+                continue;
+            }
+
+            log.debug("Sending Notification of {} for payment {}", notification.getEvent(), notification.getPaymentId());
+            deliveredIds.put(notification.getId(), Boolean.TRUE);
+            delivered.increment();
+        }
+
+        return Set.of();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+}
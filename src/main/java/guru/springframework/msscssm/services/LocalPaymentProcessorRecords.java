@@ -0,0 +1,37 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentState;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    stub locale dei record del processore: gli esiti decisi da LocalAuthorizationGateway, tenuti in memoria
+    (solo per lo stub: niente limite e niente persistenza)
+ */
+@Component
+public class LocalPaymentProcessorRecords implements PaymentProcessorRecords {
+
+    private final Map<Long, PaymentState> records = new ConcurrentHashMap<>();
+
+    public void record(Long paymentId, PaymentState state) {
+        records.put(paymentId, state);
+    }
+
+    @Override
+    public Map<Long, PaymentState> lookup(Collection<Long> paymentIds) {
+        Map<Long, PaymentState> found = new HashMap<>();
+
+        for (Long paymentId : paymentIds) {
+            PaymentState state = records.get(paymentId);
+            if (state != null) {
+                found.put(paymentId, state);
+            }
+        }
+
+        return found;
+    }
+}
@@ -0,0 +1,337 @@
+package guru.springframework.msscssm.services;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongPredicate;
+
+/*
+    mappa long -> byte ad indirizzamento aperto (linear probing) fuori dallo heap, pensata per id di pagamento
+    sequenziali e valori piccoli (ordinal di PaymentState): niente Long, niente Byte, niente Entry.
+
+    Ogni slot è un long in un ByteBuffer diretto e contiene un blocco di 8 chiavi consecutive:
+
+        | blocco + 1 (32 bit, 0 = slot vuoto) | 8 nibble da 4 bit: valore + 1 per chiave (0 = assente) |
+
+    quindi le chiavi vanno da 0 a MAX_KEY e i valori da 0 a MAX_VALUE. Con id densi (sequence) ogni slot porta 8
+    chiavi: al fattore di carico massimo 0.75 sono circa 1.3 byte per chiave, 8 / 0.75 se le chiavi sono sparse.
+    I ByteBuffer sono segmenti da al più 2^27 slot (1 GB), così la tabella può superare i 2 GB.
+
+    Concorrenza:
+        -   get non prende lock: legge lo slot con getVolatile, e non essendoci cancellazioni di slot una catena di
+            probing non si interrompe mai
+        -   le scritture fanno compare-and-set sullo slot, sotto il read lock (tra loro non si bloccano)
+        -   la crescita (raddoppio quando i blocchi superano il 75% degli slot) prende il write lock, copia tutto e
+            pubblica la nuova tabella; chi legge nel frattempo vede ancora la vecchia, che è completa
+
+    La memoria di una tabella sostituita torna al sistema quando il GC raccoglie i suoi ByteBuffer: meglio
+    dimensionarla dall'inizio (expectedKeys).
+ */
+public final class OffHeapLongByteMap {
+
+    public static final byte MISSING = -1;
+    public static final int MAX_VALUE = 14;
+    public static final long MAX_KEY = ((1L << 32) - 1) * 8 - 1;
+
+    private static final VarHandle SLOTS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private static final int SEGMENT_SHIFT = 27;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+    private static final long TAG_MASK = 0xFFFFFFFF00000000L;
+    private static final double LOAD_FACTOR = 0.75;
+    private static final long MIN_CAPACITY = 64;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicLong blocks = new AtomicLong();
+    private final LongAdder size = new LongAdder();
+
+    private volatile Table table;
+
+    /*
+        expectedKeys: quante chiavi (dense) ci si aspetta, per non dover crescere
+     */
+    public OffHeapLongByteMap(long expectedKeys) {
+        long expectedBlocks = Math.max(1, (expectedKeys + 7) / 8);
+        long capacity = MIN_CAPACITY;
+        while (capacity * LOAD_FACTOR < expectedBlocks) {
+            capacity <<= 1;
+        }
+        this.table = new Table(capacity);
+    }
+
+    /*
+        MISSING se la chiave non c'è
+     */
+    public byte get(long key) {
+        if (key < 0 || key > MAX_KEY) {
+            return MISSING;
+        }
+
+        Table table = this.table;
+        long tag = tag(key);
+        int shift = shift(key);
+        long index = hash(key >>> 3) & table.mask;
+
+        while (true) {
+            long slot = table.get(index);
+
+            if (slot == 0) {
+                return MISSING;
+            }
+            if ((slot & TAG_MASK) == tag) {
+                return (byte) (((slot >>> shift) & 0xF) - 1);
+            }
+            index = (index + 1) & table.mask;
+        }
+    }
+
+    public void put(long key, byte value) {
+        checkValue(value);
+        update(key, value + 1, false);
+    }
+
+    /*
+        false se la chiave aveva già un valore (che resta quello)
+     */
+    public boolean putIfAbsent(long key, byte value) {
+        checkValue(value);
+        return update(key, value + 1, true);
+    }
+
+    /*
+        toglie la chiave; lo slot del blocco resta occupato anche se si svuota
+     */
+    public void remove(long key) {
+        if (key >= 0 && key <= MAX_KEY) {
+            update(key, 0, false);
+        }
+    }
+
+    /*
+        toglie tutte le chiavi per cui filter è true, con una passata su tutta la tabella; ritorna quante
+     */
+    public long removeIf(LongPredicate filter) {
+        long removed = 0;
+
+        lock.readLock().lock();
+        try {
+            Table table = this.table;
+
+            for (long index = 0; index < table.capacity; index++) {
+                while (true) {
+                    long slot = table.get(index);
+                    if (slot == 0) {
+                        break;
+                    }
+
+                    long firstKey = ((slot >>> 32) - 1) << 3;
+                    long next = slot;
+                    int count = 0;
+
+                    for (int i = 0; i < 8; i++) {
+                        int shift = i << 2;
+                        if (((slot >>> shift) & 0xF) != 0 && filter.test(firstKey + i)) {
+                            next &= ~(0xFL << shift);
+                            count++;
+                        }
+                    }
+
+                    if (count == 0) {
+                        break;
+                    }
+                    if (table.compareAndSet(index, slot, next)) {
+                        size.add(-count);
+                        removed += count;
+                        break;
+                    }
+                    // scritto nel frattempo: si rifà lo slot
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return removed;
+    }
+
+    public long size() {
+        return size.sum();
+    }
+
+    public long capacity() {
+        return table.capacity;
+    }
+
+    /*
+        memoria fuori heap della tabella corrente
+     */
+    public long memoryBytes() {
+        return table.capacity * Long.BYTES;
+    }
+
+    /*
+        nibble 0 = togli; ritorna true se lo slot è cambiato
+     */
+    private boolean update(long key, int nibble, boolean onlyIfAbsent) {
+        if (key < 0 || key > MAX_KEY) {
+            throw new IllegalArgumentException("Key " + key + " out of range [0, " + MAX_KEY + "]");
+        }
+
+        long tag = tag(key);
+        int shift = shift(key);
+        long mask = 0xFL << shift;
+        long bits = (long) nibble << shift;
+        boolean grow = false;
+        boolean changed = false;
+
+        lock.readLock().lock();
+        try {
+            Table table = this.table;
+            long index = hash(key >>> 3) & table.mask;
+
+            while (true) {
+                long slot = table.get(index);
+
+                if (slot == 0) {
+                    if (nibble == 0) {
+                        break;
+                    }
+                    if (table.compareAndSet(index, 0, tag | bits)) {
+                        size.increment();
+                        grow = blocks.incrementAndGet() > table.threshold;
+                        changed = true;
+                        break;
+                    }
+                    // qualcuno ha appena occupato lo slot: si rilegge
+                    continue;
+                }
+
+                if ((slot & TAG_MASK) == tag) {
+                    long current = slot & mask;
+                    if (onlyIfAbsent && current != 0) {
+                        break;
+                    }
+
+                    long next = (slot & ~mask) | bits;
+                    if (next == slot) {
+                        break;
+                    }
+                    if (table.compareAndSet(index, slot, next)) {
+                        if (current == 0) {
+                            size.increment();
+                        } else if (nibble == 0) {
+                            size.decrement();
+                        }
+                        changed = true;
+                        break;
+                    }
+                    continue;
+                }
+
+                index = (index + 1) & table.mask;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (grow) {
+            grow();
+        }
+        return changed;
+    }
+
+    private void grow() {
+        lock.writeLock().lock();
+        try {
+            Table old = this.table;
+            if (blocks.get() <= old.threshold) {
+                return;
+            }
+
+            Table next = new Table(old.capacity << 1);
+            for (long i = 0; i < old.capacity; i++) {
+                long slot = old.get(i);
+
+                if (slot != 0) {
+                    long index = hash((slot >>> 32) - 1) & next.mask;
+                    while (next.get(index) != 0) {
+                        index = (index + 1) & next.mask;
+                    }
+                    next.set(index, slot);
+                }
+            }
+
+            this.table = next;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static long tag(long key) {
+        return ((key >>> 3) + 1) << 32;
+    }
+
+    private static int shift(long key) {
+        return (int) (key & 7) << 2;
+    }
+
+    private static void checkValue(byte value) {
+        if (value < 0 || value > MAX_VALUE) {
+            throw new IllegalArgumentException("Value " + value + " out of range [0, " + MAX_VALUE + "]");
+        }
+    }
+
+    /*
+        fmix64 di murmur3: i blocchi sono consecutivi, senza mescolarli il linear probing farebbe file lunghissime
+     */
+    private static long hash(long block) {
+        block ^= block >>> 33;
+        block *= 0xff51afd7ed558ccdL;
+        block ^= block >>> 33;
+        block *= 0xc4ceb9fe1a85ec53L;
+        block ^= block >>> 33;
+        return block;
+    }
+
+    private static final class Table {
+
+        final long capacity;
+        final long mask;
+        final long threshold;
+        final ByteBuffer[] segments;
+
+        Table(long capacity) {
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.threshold = (long) (capacity * LOAD_FACTOR);
+
+            int segmentSlots = (int) Math.min(capacity, 1L << SEGMENT_SHIFT);
+            this.segments = new ByteBuffer[(int) (capacity / segmentSlots)];
+            for (int i = 0; i < segments.length; i++) {
+                // allocateDirect azzera la memoria: tutti gli slot partono vuoti
+                segments[i] = ByteBuffer.allocateDirect(segmentSlots * Long.BYTES).order(ByteOrder.nativeOrder());
+            }
+        }
+
+        long get(long index) {
+            return (long) SLOTS.getVolatile(segments[(int) (index >>> SEGMENT_SHIFT)], offset(index));
+        }
+
+        void set(long index, long value) {
+            SLOTS.set(segments[(int) (index >>> SEGMENT_SHIFT)], offset(index), value);
+        }
+
+        boolean compareAndSet(long index, long expected, long value) {
+            return SLOTS.compareAndSet(segments[(int) (index >>> SEGMENT_SHIFT)], offset(index), expected, value);
+        }
+
+        private static int offset(long index) {
+            return (int) ((index & SEGMENT_MASK) << 3);
+        }
+    }
+}
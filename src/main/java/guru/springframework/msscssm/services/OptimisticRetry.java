@@ -0,0 +1,80 @@
+package guru.springframework.msscssm.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/*
+    riesegue un'intera transizione (transazione compresa) quando la scrittura dello stato perde la gara con un
+    altro nodo: versione cambiata (modalità ENTITY) o compare-and-set fallito (modalità COALESCED).
+
+    Tra un tentativo e l'altro aspettiamo un tempo casuale tra 0 e base * 2^tentativo (al massimo max-backoff),
+    così i nodi in conflitto non si ripresentano tutti insieme.
+
+    Se il chiamante ha già una transazione aperta non possiamo ritentare (il rollback è il suo), quindi in quel
+    caso il lavoro viene eseguito una volta sola.
+ */
+@Slf4j
+@Component
+public class OptimisticRetry {
+
+    private final Counter conflicts;
+    private final Counter retries;
+    private final Counter exhausted;
+
+    @Value("${payment.retry.max-attempts:5}")
+    private int maxAttempts;
+
+    @Value("${payment.retry.base-backoff-ms:5}")
+    private long baseBackoffMs;
+
+    @Value("${payment.retry.max-backoff-ms:200}")
+    private long maxBackoffMs;
+
+    public OptimisticRetry(MeterRegistry meterRegistry) {
+        this.conflicts = meterRegistry.counter("payment.transition.conflicts");
+        this.retries = meterRegistry.counter("payment.transition.retries");
+        this.exhausted = meterRegistry.counter("payment.transition.retries.exhausted");
+    }
+
+    public <T> T execute(Supplier<T> work) {
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            return work.get();
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return work.get();
+            } catch (OptimisticLockingFailureException e) {
+                conflicts.increment();
+
+                if (attempt >= maxAttempts) {
+                    exhausted.increment();
+                    throw e;
+                }
+
+                log.debug("Optimistic conflict on attempt {}, retrying: {}", attempt, e.getMessage());
+                retries.increment();
+                backoff(attempt, e);
+            }
+        }
+    }
+
+    private void backoff(int attempt, OptimisticLockingFailureException cause) {
+        long ceiling = Math.min(maxBackoffMs, baseBackoffMs << Math.min(attempt, 20));
+
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw cause;
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/*
+    modalità cluster (payment.cluster.enabled=true): i pagamenti sono divisi in partizioni su un anello di
+    consistent hashing (ConsistentHashRing, payment.cluster.partitions e virtual-nodes) e ogni nodo esegue le
+    operazioni solo per i pagamenti delle partizioni che possiede, con il PaymentServiceImpl locale. Le altre
+    richieste vanno al nodo proprietario attraverso PaymentClusterMembership; le batch si dividono per proprietario.
+
+    Quello che un nodo espone agli altri (OwnerEndpoint) passa dalle corsie del suo PaymentEventDispatcher, come
+    le richieste che gli arrivano dal controller: gli eventi di un pagamento restano in ordine sul proprietario
+    da qualunque nodo arrivino. Nelle corsie del proprietario gira solo il PaymentServiceImpl locale, che non
+    inoltra mai, quindi una corsia non aspetta mai un'altra corsia che a sua volta aspetta lei.
+
+    Scadenze, indice degli stati e riconciliazione guardano solo i pagamenti delle partizioni del nodo
+    (PaymentOwnership) e si rifanno ad ogni ribilanciamento (subscribe).
+
+    Così ogni riga è scritta quasi sempre da un nodo solo (niente conflitti ottimistici tra nodi) e la cache e le
+    macchine di ogni nodo vedono solo i suoi pagamenti.
+
+    Quando un nodo entra o esce l'anello si ricostruisce e le partizioni si ribilanciano (si sposta circa 1/n).
+    Nel frattempo due nodi possono credersi proprietari dello stesso pagamento: la correttezza resta quella degli
+    update condizionali, la partizione serve solo a non farli scontrare.
+
+    newPayment resta locale: l'id lo decide il DB al salvataggio.
+ */
+@Slf4j
+@Primary
+@Service
+@ConditionalOnProperty(name = "payment.cluster.enabled", havingValue = "true")
+public class PartitionedPaymentService implements PaymentService {
+
+    private final String nodeId;
+    private final PaymentClusterMembership membership;
+    private final PaymentService local;
+    private final ObjectProvider<PaymentEventDispatcher> paymentEventDispatcher;
+    private final int partitions;
+    private final int virtualNodes;
+
+    private final Counter localRequests;
+    private final Counter forwardedRequests;
+    private final List<Runnable> rebalanceListeners = new CopyOnWriteArrayList<>();
+
+    private volatile ConsistentHashRing ring;
+    private volatile int ownedPartitions;
+
+    public PartitionedPaymentService(@Value("${payment.cluster.node-id:}") String nodeId,
+                                     PaymentClusterMembership membership,
+                                     @Qualifier("paymentServiceImpl") PaymentService local,
+                                     ObjectProvider<PaymentEventDispatcher> paymentEventDispatcher,
+                                     MeterRegistry meterRegistry,
+                                     @Value("${payment.cluster.partitions:1024}") int partitions,
+                                     @Value("${payment.cluster.virtual-nodes:128}") int virtualNodes) {
+        this.nodeId = nodeId.isEmpty() ? UUID.randomUUID().toString() : nodeId;
+        this.membership = membership;
+        this.local = local;
+        this.paymentEventDispatcher = paymentEventDispatcher;
+        this.partitions = partitions;
+        this.virtualNodes = virtualNodes;
+        this.ring = new ConsistentHashRing(Set.of(), partitions, virtualNodes);
+
+        this.localRequests = Counter.builder("payment.cluster.requests")
+                .tag("node", this.nodeId)
+                .tag("route", "local")
+                .register(meterRegistry);
+        this.forwardedRequests = Counter.builder("payment.cluster.requests")
+                .tag("node", this.nodeId)
+                .tag("route", "forwarded")
+                .register(meterRegistry);
+        Gauge.builder("payment.cluster.partitions.owned", this, service -> service.ownedPartitions)
+                .tag("node", this.nodeId)
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        membership.subscribe(this::rebalance);
+        membership.join(nodeId, new OwnerEndpoint());
+    }
+
+    @PreDestroy
+    public void stop() {
+        membership.leave(nodeId);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /*
+        null se il cluster è vuoto
+     */
+    public String ownerOf(Long paymentId) {
+        return ring.ownerOf(paymentId);
+    }
+
+    public boolean isOwner(Long paymentId) {
+        return nodeId.equals(ring.ownerOf(paymentId));
+    }
+
+    /*
+        true se le richieste per questo pagamento girano qui: è nostro, o il proprietario non è raggiungibile
+        (cluster vuoto, nodo appena uscito), come in route
+     */
+    public boolean owns(Long paymentId) {
+        String owner = ring.ownerOf(paymentId);
+
+        return owner == null || owner.equals(nodeId) || membership.endpoint(owner) == null;
+    }
+
+    public int getOwnedPartitions() {
+        return ownedPartitions;
+    }
+
+    /*
+        listener viene chiamato dopo ogni ribilanciamento, con l'anello nuovo già in uso
+     */
+    public void subscribe(Runnable listener) {
+        rebalanceListeners.add(listener);
+    }
+
+    @Override
+    public Payment newPayment(Payment payment) {
+        localRequests.increment();
+        return local.newPayment(payment);
+    }
+
+    /*
+        come newPayment: il pagamento non ha ancora un id, lo crea chi lo riceve
+     */
+    @Override
+    public PaymentCreationResult newPayments(List<Payment> payments) {
+        localRequests.increment();
+        return local.newPayments(payments);
+    }
+
+    @Override
+    public PaymentState currentState(long paymentId) {
+        return route(paymentId).currentState(paymentId);
+    }
+
+    @Override
+    public PaymentState preAuth(Long paymentId) {
+        return route(paymentId).preAuth(paymentId);
+    }
+
+    @Override
+    public PaymentState authorizePayment(Long paymentId) {
+        return route(paymentId).authorizePayment(paymentId);
+    }
+
+    @Deprecated
+    @Override
+    public PaymentState declineAuth(Long paymentId) {
+        return route(paymentId).declineAuth(paymentId);
+    }
+
+    @Override
+    public PaymentState sendEvent(Long paymentId, PaymentEvent event) {
+        return route(paymentId).sendEvent(paymentId, event);
+    }
+
+    @Override
+    public PaymentState sendEvent(Long paymentId, PaymentEvent event, String idempotencyKey) {
+        return route(paymentId).sendEvent(paymentId, event, idempotencyKey);
+    }
+
+    @Override
+    public PaymentState preAuth(Long paymentId, String idempotencyKey) {
+        return route(paymentId).preAuth(paymentId, idempotencyKey);
+    }
+
+    @Override
+    public PaymentState authorizePayment(Long paymentId, String idempotencyKey) {
+        return route(paymentId).authorizePayment(paymentId, idempotencyKey);
+    }
+
+    @Override
+    public PaymentBatchResult preAuthAll(Collection<Long> paymentIds) {
+        return routeAll(paymentIds, PaymentService::preAuthAll);
+    }
+
+    @Override
+    public PaymentBatchResult authorizeAll(Collection<Long> paymentIds) {
+        return routeAll(paymentIds, PaymentService::authorizeAll);
+    }
+
+    @Override
+    public PaymentBatchResult sendEventAll(Collection<Long> paymentIds, PaymentEvent event) {
+        return routeAll(paymentIds, (service, ids) -> service.sendEventAll(ids, event));
+    }
+
+    /*
+        il servizio locale se il pagamento è nostro (o se il proprietario è appena uscito e l'anello non lo sa
+        ancora), altrimenti quello del proprietario
+     */
+    private PaymentService route(Long paymentId) {
+        String owner = ring.ownerOf(paymentId);
+
+        if (owner != null && !owner.equals(nodeId)) {
+            PaymentService endpoint = membership.endpoint(owner);
+
+            if (endpoint != null) {
+                forwardedRequests.increment();
+                return endpoint;
+            }
+        }
+
+        localRequests.increment();
+        return local;
+    }
+
+    private PaymentBatchResult routeAll(Collection<Long> paymentIds,
+                                        BiFunction<PaymentService, List<Long>, PaymentBatchResult> operation) {
+        ConsistentHashRing current = ring;
+        Map<String, List<Long>> byOwner = paymentIds.stream().distinct().collect(Collectors.groupingBy(
+                paymentId -> {
+                    String owner = current.ownerOf(paymentId);
+                    return owner == null || membership.endpoint(owner) == null ? nodeId : owner;
+                },
+                LinkedHashMap::new, Collectors.toList()));
+
+        PaymentBatchResult result = new PaymentBatchResult();
+
+        for (Map.Entry<String, List<Long>> group : byOwner.entrySet()) {
+            boolean isLocal = group.getKey().equals(nodeId);
+            PaymentService service = isLocal ? local : membership.endpoint(group.getKey());
+
+            if (service == null) {
+                // uscito proprio adesso
+                service = local;
+                isLocal = true;
+            }
+
+            (isLocal ? localRequests : forwardedRequests).increment(group.getValue().size());
+            result.merge(operation.apply(service, group.getValue()));
+        }
+
+        return result;
+    }
+
+    private synchronized void rebalance(Set<String> members) {
+        ConsistentHashRing previous = ring;
+        ConsistentHashRing next = new ConsistentHashRing(members, partitions, virtualNodes);
+
+        Set<Integer> before = previous.partitionsOf(nodeId);
+        Set<Integer> after = next.partitionsOf(nodeId);
+        long gained = after.stream().filter(partition -> !before.contains(partition)).count();
+        long lost = before.stream().filter(partition -> !after.contains(partition)).count();
+
+        ring = next;
+        ownedPartitions = after.size();
+
+        log.info("Node {}: {} members, owns {} of {} partitions (+{} -{})", nodeId, members.size(), after.size(),
+                partitions, gained, lost);
+
+        if (gained > 0 || lost > 0) {
+            for (Runnable listener : rebalanceListeners) {
+                try {
+                    listener.run();
+                } catch (RuntimeException e) {
+                    log.warn("Rebalance listener failed", e);
+                }
+            }
+        }
+    }
+
+    /*
+        quello che gli altri nodi chiamano: le operazioni su un pagamento entrano nella sua corsia, le batch in un
+        lavoro per corsia (PaymentEventDispatcher.executeAll), e dentro la corsia gira il servizio locale
+     */
+    private class OwnerEndpoint implements PaymentService {
+
+        @Override
+        public Payment newPayment(Payment payment) {
+            return local.newPayment(payment);
+        }
+
+        @Override
+        public PaymentCreationResult newPayments(List<Payment> payments) {
+            return local.newPayments(payments);
+        }
+
+        @Override
+        public PaymentState currentState(long paymentId) {
+            return local.currentState(paymentId);
+        }
+
+        @Override
+        public PaymentState preAuth(Long paymentId) {
+            return inLane(paymentId, () -> local.preAuth(paymentId));
+        }
+
+        @Override
+        public PaymentState authorizePayment(Long paymentId) {
+            return inLane(paymentId, () -> local.authorizePayment(paymentId));
+        }
+
+        @Deprecated
+        @Override
+        public PaymentState declineAuth(Long paymentId) {
+            return inLane(paymentId, () -> local.declineAuth(paymentId));
+        }
+
+        @Override
+        public PaymentState sendEvent(Long paymentId, PaymentEvent event) {
+            return inLane(paymentId, () -> local.sendEvent(paymentId, event));
+        }
+
+        @Override
+        public PaymentState sendEvent(Long paymentId, PaymentEvent event, String idempotencyKey) {
+            return inLane(paymentId, () -> local.sendEvent(paymentId, event, idempotencyKey));
+        }
+
+        @Override
+        public PaymentState preAuth(Long paymentId, String idempotencyKey) {
+            return inLane(paymentId, () -> local.preAuth(paymentId, idempotencyKey));
+        }
+
+        @Override
+        public PaymentState authorizePayment(Long paymentId, String idempotencyKey) {
+            return inLane(paymentId, () -> local.authorizePayment(paymentId, idempotencyKey));
+        }
+
+        @Override
+        public PaymentBatchResult preAuthAll(Collection<Long> paymentIds) {
+            return paymentEventDispatcher.getObject().executeAll(paymentIds, local::preAuthAll);
+        }
+
+        @Override
+        public PaymentBatchResult authorizeAll(Collection<Long> paymentIds) {
+            return paymentEventDispatcher.getObject().executeAll(paymentIds, local::authorizeAll);
+        }
+
+        @Override
+        public PaymentBatchResult sendEventAll(Collection<Long> paymentIds, PaymentEvent event) {
+            return paymentEventDispatcher.getObject().executeAll(paymentIds, ids -> local.sendEventAll(ids, event));
+        }
+
+        private PaymentState inLane(Long paymentId, Supplier<PaymentState> operation) {
+            return paymentEventDispatcher.getObject().executeAndAwait(paymentId, operation);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentState;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+    esito per singolo pagamento delle operazioni batch di PaymentService (preAuthAll, authorizeAll)
+ */
+@ToString
+public class PaymentBatchResult {
+
+    public enum Status {
+        /* l'evento è stato accettato e lo stato finale è stato scritto */
+        TRANSITIONED,
+        /* la macchina a stati non ha accettato l'evento nello stato corrente */
+        NOT_ACCEPTED,
+        /* nessun pagamento con questo id */
+        NOT_FOUND,
+        /* lo stato a DB è cambiato nel frattempo, l'update condizionale non ha trovato la riga */
+        CONFLICT,
+        /* eccezione durante la transizione */
+        FAILED
+    }
+
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public static class Outcome {
+        private final Status status;
+        private final PaymentState state;
+    }
+
+    private final Map<Long, Outcome> outcomes = new LinkedHashMap<>();
+
+    void put(Long paymentId, Status status, PaymentState state) {
+        outcomes.put(paymentId, new Outcome(status, state));
+    }
+
+    /*
+        aggiunge gli esiti di un'altra parte dello stesso batch (PartitionedPaymentService)
+     */
+    void merge(PaymentBatchResult other) {
+        outcomes.putAll(other.outcomes);
+    }
+
+    public Outcome get(Long paymentId) {
+        return outcomes.get(paymentId);
+    }
+
+    public Map<Long, Outcome> getOutcomes() {
+        return Collections.unmodifiableMap(outcomes);
+    }
+
+    public long count(Status status) {
+        return outcomes.values().stream().filter(outcome -> outcome.getStatus() == status).count();
+    }
+
+    public int size() {
+        return outcomes.size();
+    }
+}
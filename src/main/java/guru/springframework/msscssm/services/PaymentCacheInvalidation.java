@@ -0,0 +1,17 @@
+package guru.springframework.msscssm.services;
+
+import java.util.function.Consumer;
+
+/*
+    trasporto delle invalidazioni di PaymentNearCache tra nodi: chi scrive uno stato pubblica l'id del pagamento,
+    gli altri nodi lo tolgono dalla loro cache. origin identifica la cache che pubblica, così non riceve le sue.
+
+    Un trasporto vero (broker, multicast...) non c'è ancora: LocalPaymentCacheInvalidation collega le cache dello
+    stesso processo.
+ */
+public interface PaymentCacheInvalidation {
+
+    void publish(String origin, Long paymentId);
+
+    void subscribe(String origin, Consumer<Long> listener);
+}
@@ -0,0 +1,28 @@
+package guru.springframework.msscssm.services;
+
+import java.util.Set;
+import java.util.function.Consumer;
+
+/*
+    chi fa parte del cluster (PartitionedPaymentService) e come raggiungerlo: ogni nodo entra con il suo id e il
+    PaymentService locale, a cui gli altri nodi inoltrano le richieste dei pagamenti che possiede.
+
+    Un trasporto vero (registry, HTTP...) non c'è ancora: LocalPaymentClusterMembership collega i nodi dello
+    stesso processo.
+ */
+public interface PaymentClusterMembership {
+
+    void join(String nodeId, PaymentService endpoint);
+
+    void leave(String nodeId);
+
+    /*
+        null se il nodo non è (più) nel cluster
+     */
+    PaymentService endpoint(String nodeId);
+
+    /*
+        listener riceve subito i membri attuali e poi di nuovo ad ogni ingresso o uscita
+     */
+    void subscribe(Consumer<Set<String>> listener);
+}
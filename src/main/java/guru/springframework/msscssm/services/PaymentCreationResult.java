@@ -0,0 +1,64 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.Payment;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/*
+    esito di PaymentService.newPayments blocco per blocco (payment.create.chunk-size): ogni blocco ha la sua
+    transazione, quindi uno fallito non annulla quelli prima e non ferma quelli dopo. I pagamenti di un blocco
+    fallito tornano senza id.
+ */
+@ToString
+public class PaymentCreationResult {
+
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public static class Chunk {
+        /* posizione del primo pagamento del blocco nella lista passata a newPayments */
+        private final int from;
+        @ToString.Exclude
+        private final List<Payment> payments;
+        /* null se il blocco è stato creato */
+        private final String error;
+
+        public boolean isCreated() {
+            return error == null;
+        }
+    }
+
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    void add(Chunk chunk) {
+        chunks.add(chunk);
+    }
+
+    public List<Chunk> getChunks() {
+        return Collections.unmodifiableList(chunks);
+    }
+
+    public List<Chunk> getFailed() {
+        return chunks.stream().filter(chunk -> !chunk.isCreated()).collect(Collectors.toList());
+    }
+
+    /*
+        i pagamenti creati, nell'ordine in cui sono stati passati
+     */
+    public List<Payment> getCreated() {
+        return chunks.stream()
+                .filter(Chunk::isCreated)
+                .flatMap(chunk -> chunk.getPayments().stream())
+                .collect(Collectors.toList());
+    }
+
+    public boolean isComplete() {
+        return chunks.stream().allMatch(Chunk::isCreated);
+    }
+}
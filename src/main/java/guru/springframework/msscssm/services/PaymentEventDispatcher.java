@@ -0,0 +1,219 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/*
+    smista gli eventi dei pagamenti su un numero fisso di corsie (payment.dispatcher.lanes), ognuna con un solo
+    thread e una coda limitata (payment.dispatcher.queue-capacity).
+
+    La corsia si sceglie dall'id del pagamento, quindi gli eventi di uno stesso pagamento vengono eseguiti uno alla
+    volta e nell'ordine in cui sono arrivati, mentre pagamenti diversi vanno in parallelo su corsie diverse.
+
+    Quando la coda di una corsia è piena chi invia aspetta (backpressure) invece di far crescere la memoria.
+    Attenzione quindi a non inviare eventi da dentro una corsia, aspettandone il risultato: la corsia aspetterebbe
+    sé stessa.
+
+    Siamo su Java 11, niente virtual thread: le corsie sono normali thread di piattaforma.
+ */
+@Slf4j
+@Component
+public class PaymentEventDispatcher {
+
+    private final PaymentService paymentService;
+    private final ThreadPoolExecutor[] lanes;
+    private final Counter backpressure;
+
+    public PaymentEventDispatcher(PaymentService paymentService, MeterRegistry meterRegistry,
+                                  @Value("${payment.dispatcher.lanes:0}") int lanes,
+                                  @Value("${payment.dispatcher.queue-capacity:1024}") int queueCapacity) {
+        this.paymentService = paymentService;
+        this.lanes = new ThreadPoolExecutor[lanes > 0 ? lanes : Runtime.getRuntime().availableProcessors()];
+        this.backpressure = Counter.builder("payment.dispatcher.backpressure")
+                .description("Submissions that had to wait for room in a full lane")
+                .register(meterRegistry);
+
+        RejectedExecutionHandler waitForRoom = (task, executor) -> {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Payment event dispatcher is shut down");
+            }
+
+            backpressure.increment();
+
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for room in the lane", e);
+            }
+        };
+
+        for (int i = 0; i < this.lanes.length; i++) {
+            String name = "payment-lane-" + i;
+
+            this.lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), runnable -> new Thread(runnable, name), waitForRoom);
+
+            ThreadPoolExecutor lane = this.lanes[i];
+            Gauge.builder("payment.dispatcher.queue.depth", () -> lane.getQueue().size())
+                    .description("Events waiting in the lane")
+                    .tag("lane", Integer.toString(i))
+                    .register(meterRegistry);
+        }
+    }
+
+    /*
+        il future si completa con lo stato in cui è finito il pagamento, o con l'eccezione della transizione
+     */
+    public CompletableFuture<PaymentState> submit(Long paymentId, PaymentEvent event) {
+        return execute(paymentId, () -> paymentService.sendEvent(paymentId, event));
+    }
+
+    /*
+        come submit, con una idempotency key (null = nessuna): vedi PaymentService.sendEvent
+     */
+    public CompletableFuture<PaymentState> submit(Long paymentId, PaymentEvent event, String idempotencyKey) {
+        return execute(paymentId, () -> paymentService.sendEvent(paymentId, event, idempotencyKey));
+    }
+
+    /*
+        un lavoro qualsiasi nella corsia di key, ordinato rispetto agli eventi dello stesso pagamento (se key è un
+        id di pagamento) o solo distribuito sulle corsie (p.es. la creazione di pagamenti nuovi, che un id non ce
+        l'hanno ancora)
+     */
+    public <T> CompletableFuture<T> execute(Long key, Supplier<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        laneFor(key).execute(() -> {
+            try {
+                result.complete(task.get());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+
+        return result;
+    }
+
+    public PaymentState submitAndAwait(Long paymentId, PaymentEvent event) {
+        return submitAndAwait(paymentId, event, null);
+    }
+
+    public PaymentState submitAndAwait(Long paymentId, PaymentEvent event, String idempotencyKey) {
+        return await(submit(paymentId, event, idempotencyKey));
+    }
+
+    /*
+        come execute, aspettando il risultato: l'eccezione del lavoro arriva a chi chiama così com'è
+     */
+    public <T> T executeAndAwait(Long key, Supplier<T> task) {
+        return await(execute(key, task));
+    }
+
+    /*
+        un lavoro batch (p.es. PaymentService.sendEventAll) diviso per corsia: ogni corsia riceve in un unico
+        lavoro gli id che le spettano, in ordine con gli altri eventi di quei pagamenti, e i risultati si uniscono
+     */
+    public PaymentBatchResult executeAll(Collection<Long> paymentIds, Function<List<Long>, PaymentBatchResult> batch) {
+        Map<ThreadPoolExecutor, List<Long>> byLane = new LinkedHashMap<>();
+        for (Long paymentId : paymentIds) {
+            byLane.computeIfAbsent(laneFor(paymentId), lane -> new ArrayList<>()).add(paymentId);
+        }
+
+        List<CompletableFuture<PaymentBatchResult>> results = new ArrayList<>();
+        for (Map.Entry<ThreadPoolExecutor, List<Long>> group : byLane.entrySet()) {
+            CompletableFuture<PaymentBatchResult> result = new CompletableFuture<>();
+            group.getKey().execute(() -> {
+                try {
+                    result.complete(batch.apply(group.getValue()));
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+            results.add(result);
+        }
+
+        PaymentBatchResult merged = new PaymentBatchResult();
+        for (CompletableFuture<PaymentBatchResult> result : results) {
+            merged.merge(await(result));
+        }
+        return merged;
+    }
+
+    /*
+        fire and forget: gli errori finiscono solo nel log
+     */
+    public void fire(Long paymentId, PaymentEvent event) {
+        laneFor(paymentId).execute(() -> {
+            try {
+                paymentService.sendEvent(paymentId, event);
+            } catch (RuntimeException e) {
+                log.error("Event {} for payment {} failed", event, paymentId, e);
+            }
+        });
+    }
+
+    public int getLanes() {
+        return lanes.length;
+    }
+
+    public int getQueueDepth(int lane) {
+        return lanes[lane].getQueue().size();
+    }
+
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private ThreadPoolExecutor laneFor(Long paymentId) {
+        // gli id sono sequenziali: li mescoliamo prima del modulo per non dipendere dal numero di corsie
+        long spread = paymentId * 0x9E3779B97F4A7C15L;
+
+        return lanes[Math.floorMod(Long.hashCode(spread), lanes.length)];
+    }
+
+    /*
+        gli eventi già in coda vengono ancora eseguiti prima di chiudere
+     */
+    @PreDestroy
+    void shutdown() throws InterruptedException {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+
+        for (ThreadPoolExecutor lane : lanes) {
+            if (!lane.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.warn("Payment lane did not drain in time, {} events dropped", lane.shutdownNow().size());
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentSnapshot;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.domain.PaymentTransition;
+import guru.springframework.msscssm.repository.PaymentSnapshotRepository;
+import guru.springframework.msscssm.repository.PaymentTransitionRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/*
+    storico delle transizioni (PaymentTransition) e ricostruzione dello stato di un pagamento nel passato.
+
+    L'interceptor chiama record ad ogni transizione: le righe si accumulano in una lista legata alla transazione
+    e vengono scritte tutte insieme con un batch JDBC subito prima del commit, quindi nessun round trip in più
+    per transizione. Se la transazione va in rollback lo storico se ne va con lei.
+
+    Ogni payment.history.snapshot-interval-ms si scrive uno snapshot per i pagamenti che hanno accumulato almeno
+    payment.history.snapshot-every transizioni dall'ultimo, così stateAt non deve mai rigiocare più di tanto. Quante
+    transizioni mancano allo snapshot si conta mentre si scrive lo storico (payment_snapshot_due), quindi il job
+    non rilegge lo storico.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Service
+public class PaymentHistory {
+
+    private final PaymentTransitionRepository transitionRepository;
+    private final PaymentSnapshotRepository snapshotRepository;
+
+    @Value("${payment.history.enabled:true}")
+    private boolean enabled;
+
+    @Value("${payment.history.snapshot-every:32}")
+    private int snapshotEvery;
+
+    public void record(Long paymentId, PaymentEvent event, PaymentState from, PaymentState to) {
+        if (!enabled) {
+            return;
+        }
+
+        PaymentTransition transition = PaymentTransition.builder()
+                .paymentId(paymentId)
+                .source(from)
+                .target(to)
+                .event(event)
+                .occurredAt(Instant.now())
+                .build();
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            transitionRepository.appendAll(List.of(transition));
+            return;
+        }
+
+        pending().add(transition);
+    }
+
+    /*
+        scrive subito quanto accumulato nella transazione corrente, per chi in una transazione sola fa molte
+        transizioni (l'API batch lo chiama ad ogni blocco)
+     */
+    public void flush() {
+        List<PaymentTransition> pending = TransactionCallbacks.current(PaymentHistory.class);
+
+        if (pending != null) {
+            transitionRepository.appendAll(pending);
+            pending.clear();
+        }
+    }
+
+    /*
+        toglie dalla transazione corrente le transizioni non ancora scritte di questi pagamenti
+     */
+    public void discard(Collection<Long> paymentIds) {
+        List<PaymentTransition> pending = TransactionCallbacks.current(PaymentHistory.class);
+
+        if (pending != null && !paymentIds.isEmpty()) {
+            pending.removeIf(transition -> paymentIds.contains(transition.getPaymentId()));
+        }
+    }
+
+    @Transactional(readOnly = true)
+    public List<PaymentTransition> history(Long paymentId) {
+        return transitionRepository.findByPaymentIdOrderByIdAsc(paymentId);
+    }
+
+    /*
+        stato del pagamento all'istante at: ultimo snapshot non successivo ad at più le transizioni seguenti.
+        null se a quell'istante il pagamento non aveva ancora fatto nessuna transizione.
+     */
+    @Transactional(readOnly = true)
+    public PaymentState stateAt(Long paymentId, Instant at) {
+        PaymentSnapshot snapshot = snapshotRepository
+                .findFirstByPaymentIdAndTakenAtLessThanEqualOrderByLastSequenceDesc(paymentId, at)
+                .orElse(null);
+
+        PaymentState state = snapshot == null ? null : snapshot.getState();
+        long afterSequence = snapshot == null ? 0L : snapshot.getLastSequence();
+
+        for (PaymentTransition transition : transitionRepository.findForReplay(paymentId, afterSequence, at)) {
+            if (state != null && transition.getSource() != state) {
+                log.warn("History of payment {} has a gap: transition {} starts from {} but state was {}",
+                        paymentId, transition.getId(), transition.getSource(), state);
+            }
+
+            state = transition.getTarget();
+        }
+
+        return state;
+    }
+
+    @Scheduled(fixedDelayString = "${payment.history.snapshot-interval-ms:60000}",
+            initialDelayString = "${payment.history.snapshot-interval-ms:60000}")
+    @Transactional
+    public int snapshot() {
+        int written = transitionRepository.snapshotAll(snapshotEvery);
+
+        if (written > 0) {
+            log.debug("Wrote {} payment snapshots", written);
+        }
+
+        return written;
+    }
+
+    private List<PaymentTransition> pending() {
+        return TransactionCallbacks.boundUntilCommit(PaymentHistory.class, ArrayList::new, bound -> {
+            transitionRepository.appendAll(bound);
+            bound.clear();
+        });
+    }
+}
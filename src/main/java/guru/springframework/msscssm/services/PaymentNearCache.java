@@ -0,0 +1,144 @@
+package guru.springframework.msscssm.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import guru.springframework.msscssm.domain.PaymentState;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+
+/*
+    cache in memoria dello stato dei pagamenti, per non rileggere dal DB ad ogni transizione (build) né ad ogni
+    richiesta di stato (GET /api/v1/payments/{id}).
+
+    Si riempie solo leggendo (get con il loader), e cambia solo dal percorso di scrittura dell'interceptor:
+
+        -   written: la transizione è stata scritta con certezza (entità o compare-and-set dell'interceptor), al
+            commit la cache prende il nuovo stato
+        -   invalidate: scritta da qualcun altro (buffer dell'API batch, che può scartare i conflitti), al termine
+            della transazione l'id esce dalla cache
+        -   in rollback gli id toccati escono sempre dalla cache
+
+    Dopo ogni commit gli id scritti vengono pubblicati su PaymentCacheInvalidation per le cache degli altri nodi.
+    Le transizioni leggono dalla cache solo quando scrivono con compare-and-set (COALESCED o store diverso da JPA):
+    uno stato vecchio (p.es. invalidazione non ancora arrivata) fa fallire il compare-and-set, l'id esce dalla
+    cache e OptimisticRetry rilegge dal DB. In modalità ENTITY la transizione legge comunque l'entità, una volta.
+
+    Dimensione e durata: payment.cache.max-size, payment.cache.ttl-ms; payment.cache.enabled=false la spegne.
+ */
+@Component
+public class PaymentNearCache {
+
+    private final boolean enabled;
+    private final Cache<Long, PaymentState> cache;
+    private final PaymentCacheInvalidation invalidation;
+    private final String origin = UUID.randomUUID().toString();
+
+    public PaymentNearCache(PaymentCacheInvalidation invalidation, MeterRegistry meterRegistry,
+                            @Value("${payment.cache.enabled:true}") boolean enabled,
+                            @Value("${payment.cache.max-size:100000}") long maxSize,
+                            @Value("${payment.cache.ttl-ms:60000}") long ttlMs) {
+        this.enabled = enabled;
+        this.invalidation = invalidation;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofMillis(ttlMs))
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "payments");
+        Gauge.builder("payment.cache.hit.ratio", cache, c -> c.stats().hitRate())
+                .description("Share of payment state lookups answered by the near cache")
+                .register(meterRegistry);
+
+        invalidation.subscribe(origin, cache::invalidate);
+    }
+
+    /*
+        loader legge dal DB quando l'id non c'è; se torna null (pagamento inesistente) non si mette in cache nulla
+     */
+    public PaymentState get(Long paymentId, Function<Long, PaymentState> loader) {
+        if (!enabled) {
+            return loader.apply(paymentId);
+        }
+
+        return cache.get(paymentId, loader);
+    }
+
+    public PaymentState getIfPresent(Long paymentId) {
+        return enabled ? cache.getIfPresent(paymentId) : null;
+    }
+
+    /*
+        l'origine con cui questa cache pubblica: chi si iscrive con la stessa riceve solo le scritture degli altri nodi
+     */
+    String getOrigin() {
+        return origin;
+    }
+
+    /*
+        solo per PaymentStateChangeInterceptor: to è stato scritto e vale dal commit
+     */
+    void written(Long paymentId, PaymentState to) {
+        changed(paymentId, to);
+    }
+
+    /*
+        solo per PaymentStateChangeInterceptor: lo stato di paymentId non è più affidabile
+     */
+    void invalidate(Long paymentId) {
+        changed(paymentId, null);
+    }
+
+    /*
+        subito, fuori da ogni transazione: p.es. dopo un conflitto, prima che OptimisticRetry ritenti
+     */
+    void evict(Long paymentId) {
+        if (enabled) {
+            cache.invalidate(paymentId);
+        }
+    }
+
+    private void changed(Long paymentId, PaymentState to) {
+        if (!enabled) {
+            return;
+        }
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            apply(paymentId, to);
+            invalidation.publish(origin, paymentId);
+            return;
+        }
+
+        pending().put(paymentId, to);
+    }
+
+    private void apply(Long paymentId, PaymentState to) {
+        if (to == null) {
+            cache.invalidate(paymentId);
+        } else {
+            cache.put(paymentId, to);
+        }
+    }
+
+    /*
+        id -> stato scritto (null = da invalidare) per la transazione corrente
+     */
+    private Map<Long, PaymentState> pending() {
+        return TransactionCallbacks.bound(PaymentNearCache.class, HashMap::new,
+                bound -> {
+                    bound.forEach(this::apply);
+                    bound.keySet().forEach(paymentId -> invalidation.publish(origin, paymentId));
+                },
+                bound -> bound.keySet().forEach(cache::invalidate));
+    }
+}
@@ -0,0 +1,23 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentNotification;
+
+import java.util.List;
+import java.util.Set;
+
+/*
+    dove PaymentOutboxRelay consegna le notifiche, un lotto alla volta.
+
+    Ritorna gli id delle notifiche non consegnate (verranno riprovate), un'eccezione vale come lotto intero non
+    consegnato.
+
+    Il relay consegna almeno una volta: se si ferma tra la consegna e la cancellazione, allo scadere della
+    prenotazione la stessa notifica (stesso id, che non cambia tra un tentativo e l'altro) arriva di nuovo.
+    L'effetto una volta sola lo garantisce il sink: deliver DEVE scartare le notifiche con un id già consegnato
+    almeno per payment.outbox.lease-ms più il backoff massimo, e contarle come consegnate (non tornarle tra le
+    fallite, o verrebbero riprovate per sempre).
+ */
+public interface PaymentNotificationSink {
+
+    Set<Long> deliver(List<PaymentNotification> notifications);
+}
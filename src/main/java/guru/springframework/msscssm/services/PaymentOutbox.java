@@ -0,0 +1,73 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentNotification;
+import guru.springframework.msscssm.repository.PaymentNotificationRepository;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/*
+    outbox transazionale delle notifiche di esito (PRE_AUTH_APPROVED / DECLINED, AUTH_APPROVED / DECLINED).
+
+    Le action chiamano append: come per PaymentHistory le notifiche si accumulano nella transazione e vengono
+    scritte con un batch JDBC subito prima del commit, quindi esistono se e solo se la transizione è arrivata a DB
+    e sul percorso di autorizzazione non si aggiunge nessuna chiamata esterna. La consegna la fa
+    PaymentOutboxRelay, a parte.
+ */
+@RequiredArgsConstructor
+@Service
+public class PaymentOutbox {
+
+    private final PaymentNotificationRepository notificationRepository;
+
+    public void append(Long paymentId, PaymentEvent event) {
+        PaymentNotification notification = PaymentNotification.builder()
+                .paymentId(paymentId)
+                .event(event)
+                .createdAt(Instant.now())
+                .build();
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            notificationRepository.appendAll(List.of(notification));
+            return;
+        }
+
+        pending().add(notification);
+    }
+
+    /*
+        scrive subito quanto accumulato nella transazione corrente (l'API batch lo chiama ad ogni blocco)
+     */
+    public void flush() {
+        List<PaymentNotification> pending = TransactionCallbacks.current(PaymentOutbox.class);
+
+        if (pending != null) {
+            notificationRepository.appendAll(pending);
+            pending.clear();
+        }
+    }
+
+    /*
+        toglie dalla transazione corrente le notifiche non ancora scritte di questi pagamenti
+     */
+    public void discard(Collection<Long> paymentIds) {
+        List<PaymentNotification> pending = TransactionCallbacks.current(PaymentOutbox.class);
+
+        if (pending != null && !paymentIds.isEmpty()) {
+            pending.removeIf(notification -> paymentIds.contains(notification.getPaymentId()));
+        }
+    }
+
+    private List<PaymentNotification> pending() {
+        return TransactionCallbacks.boundUntilCommit(PaymentOutbox.class, ArrayList::new, bound -> {
+            notificationRepository.appendAll(bound);
+            bound.clear();
+        });
+    }
+}
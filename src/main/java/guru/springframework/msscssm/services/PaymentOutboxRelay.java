@@ -0,0 +1,177 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentNotification;
+import guru.springframework.msscssm.repository.PaymentNotificationRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/*
+    svuota l'outbox (PaymentOutbox) verso PaymentNotificationSink, a lotti di payment.outbox.batch-size:
+
+        -   un solo UPDATE prenota il lotto con un token nuovo, per payment.outbox.lease-ms: un altro relay
+            (anche su un altro nodo) non lo vede finché la prenotazione non scade
+        -   il lotto va al sink con una chiamata sola
+        -   in una transazione, un batch JDBC cancella le consegnate e uno rimette in coda le altre con backoff
+            esponenziale (payment.outbox.base-backoff-ms * 2^tentativi, al massimo max-backoff-ms); dopo
+            payment.outbox.max-attempts tentativi la notifica resta in tabella parcheggiata (nextAttemptAt null)
+
+    Cancellazione e rimessa in coda valgono solo se il lotto è ancora nostro, quindi ogni notifica passa a un solo
+    relay alla volta. Se il relay si ferma dopo la consegna e prima della cancellazione la notifica viene
+    riconsegnata allo scadere della prenotazione, con lo stesso id: la consegna è almeno una volta, il sink scarta
+    i duplicati per id (è il contratto di PaymentNotificationSink) e l'effetto è una volta sola.
+
+    Ogni payment.outbox.relay-interval-ms si prendono lotti finché ce ne sono di pieni.
+ */
+@Slf4j
+@Component
+public class PaymentOutboxRelay {
+
+    private final PaymentNotificationRepository notificationRepository;
+    private final PaymentNotificationSink sink;
+    private final TransactionTemplate transactionTemplate;
+
+    private final Counter delivered;
+    private final Counter retried;
+    private final Counter parked;
+    private final Timer batchTimer;
+
+    @Value("${payment.outbox.relay-enabled:true}")
+    private boolean enabled;
+
+    @Value("${payment.outbox.batch-size:1000}")
+    private int batchSize;
+
+    @Value("${payment.outbox.lease-ms:30000}")
+    private long leaseMs;
+
+    @Value("${payment.outbox.max-attempts:10}")
+    private int maxAttempts;
+
+    @Value("${payment.outbox.base-backoff-ms:100}")
+    private long baseBackoffMs;
+
+    @Value("${payment.outbox.max-backoff-ms:60000}")
+    private long maxBackoffMs;
+
+    public PaymentOutboxRelay(PaymentNotificationRepository notificationRepository, PaymentNotificationSink sink,
+                              PlatformTransactionManager transactionManager, MeterRegistry meterRegistry) {
+        this.notificationRepository = notificationRepository;
+        this.sink = sink;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+
+        this.delivered = Counter.builder("payment.outbox.delivered")
+                .description("Notifications handed to the sink and removed from the outbox")
+                .register(meterRegistry);
+        this.retried = Counter.builder("payment.outbox.retried")
+                .description("Notifications the sink did not accept, scheduled again")
+                .register(meterRegistry);
+        this.parked = Counter.builder("payment.outbox.parked")
+                .description("Notifications left in the outbox after payment.outbox.max-attempts failures")
+                .register(meterRegistry);
+        this.batchTimer = Timer.builder("payment.outbox.batch")
+                .description("Claim, delivery and cleanup of one outbox batch")
+                .register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${payment.outbox.relay-interval-ms:100}")
+    public void relay() {
+        if (!enabled) {
+            return;
+        }
+
+        try {
+            drain();
+        } catch (RuntimeException e) {
+            log.error("Outbox relay failed, will retry", e);
+        }
+    }
+
+    /*
+        lotti finché l'outbox ha notifiche pronte; ritorna quante ne ha prese in carico
+     */
+    public synchronized long drain() {
+        long total = 0;
+        int claimed;
+
+        do {
+            claimed = relayBatch();
+            total += claimed;
+        } while (claimed == batchSize);
+
+        return total;
+    }
+
+    private int relayBatch() {
+        long start = System.nanoTime();
+        String claimToken = UUID.randomUUID().toString();
+        Instant now = Instant.now();
+
+        List<PaymentNotification> claimed = notificationRepository.claim(claimToken, now, now.plusMillis(leaseMs), batchSize);
+
+        if (claimed.isEmpty()) {
+            return 0;
+        }
+
+        Set<Long> failed;
+        try {
+            failed = sink.deliver(claimed);
+        } catch (RuntimeException e) {
+            log.warn("Notification sink failed on a batch of {}", claimed.size(), e);
+            failed = null;
+        }
+
+        List<Long> deliveredIds = new ArrayList<>(claimed.size());
+        List<PaymentNotification> failedNotifications = new ArrayList<>();
+
+        for (PaymentNotification notification : claimed) {
+            if (failed != null && !failed.contains(notification.getId())) {
+                deliveredIds.add(notification.getId());
+            } else {
+                failedNotifications.add(nextAttempt(notification, now));
+            }
+        }
+
+        transactionTemplate.execute(status -> {
+            notificationRepository.deleteClaimed(claimToken, deliveredIds);
+            notificationRepository.reschedule(claimToken, failedNotifications);
+            return null;
+        });
+
+        delivered.increment(deliveredIds.size());
+        batchTimer.record(Duration.ofNanos(System.nanoTime() - start));
+
+        return claimed.size();
+    }
+
+    private PaymentNotification nextAttempt(PaymentNotification notification, Instant now) {
+        int attempts = notification.getAttempts() + 1;
+        notification.setAttempts(attempts);
+
+        if (attempts >= maxAttempts) {
+            log.error("Parking notification {} of payment {} after {} attempts",
+                    notification.getId(), notification.getPaymentId(), attempts);
+            notification.setNextAttemptAt(null);
+            parked.increment();
+        } else {
+            long backoff = Math.min(maxBackoffMs, baseBackoffMs << Math.min(attempts, 20));
+            notification.setNextAttemptAt(now.plusMillis(backoff));
+            retried.increment();
+        }
+
+        return notification;
+    }
+}
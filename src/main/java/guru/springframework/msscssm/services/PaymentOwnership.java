@@ -0,0 +1,65 @@
+package guru.springframework.msscssm.services;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+/*
+    quali pagamenti sono di questo nodo, per chi lavora in background su tutti i pagamenti (scadenze, indice degli
+    stati, riconciliazione): senza modalità cluster tutti, con PartitionedPaymentService quelli delle partizioni
+    del nodo.
+
+    PartitionedPaymentService si risolve alla prima chiamata e non nel costruttore, perché dipende (attraverso
+    PaymentServiceImpl) da chi usa questa classe. Va quindi chiamata a contesto avviato.
+ */
+@Component
+public class PaymentOwnership {
+
+    /*
+        id del nodo senza modalità cluster
+     */
+    public static final String LOCAL_NODE = "local";
+
+    private final ObjectProvider<PartitionedPaymentService> partitionedPaymentService;
+
+    private volatile boolean resolved;
+    private volatile PartitionedPaymentService partitioned;
+
+    public PaymentOwnership(ObjectProvider<PartitionedPaymentService> partitionedPaymentService) {
+        this.partitionedPaymentService = partitionedPaymentService;
+    }
+
+    public boolean owns(Long paymentId) {
+        PartitionedPaymentService partitioned = partitioned();
+
+        return partitioned == null || partitioned.owns(paymentId);
+    }
+
+    public boolean isPartitioned() {
+        return partitioned() != null;
+    }
+
+    public String getNodeId() {
+        PartitionedPaymentService partitioned = partitioned();
+
+        return partitioned == null ? LOCAL_NODE : partitioned.getNodeId();
+    }
+
+    /*
+        listener dopo ogni ribilanciamento delle partizioni; senza modalità cluster non viene mai chiamato
+     */
+    public void onRebalance(Runnable listener) {
+        PartitionedPaymentService partitioned = partitioned();
+
+        if (partitioned != null) {
+            partitioned.subscribe(listener);
+        }
+    }
+
+    private PartitionedPaymentService partitioned() {
+        if (!resolved) {
+            partitioned = partitionedPaymentService.getIfAvailable();
+            resolved = true;
+        }
+        return partitioned;
+    }
+}
@@ -0,0 +1,13 @@
+package guru.springframework.msscssm.services;
+
+/*
+    come PaymentStateChangeInterceptor scrive il nuovo stato (payment.persistence.mode)
+
+    ENTITY:     getOne + save ad ogni transizione, il comportamento originale
+    COALESCED:  nessun caricamento dell'entità, le self-transition non scrivono nulla e dentro una transazione
+                si tiene solo lo stato finale, scritto al commit con un unico update condizionale
+                (UPDATE payment SET state=? WHERE id=? AND state=?)
+ */
+public enum PaymentPersistenceMode {
+    ENTITY, COALESCED
+}
@@ -0,0 +1,18 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentState;
+
+import java.util.Collection;
+import java.util.Map;
+
+/*
+    quello che il processore di pagamento sa dei nostri pagamenti, per la riconciliazione (PaymentReconciliation).
+    Una chiamata per pagina di pagamenti.
+ */
+public interface PaymentProcessorRecords {
+
+    /*
+        lo stato in cui il processore dice che è ogni pagamento, solo per quelli che conosce
+     */
+    Map<Long, PaymentState> lookup(Collection<Long> paymentIds);
+}
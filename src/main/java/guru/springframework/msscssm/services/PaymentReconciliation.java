@@ -0,0 +1,316 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentReconciliationRange;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.repository.PaymentReconciliationRangeRepository;
+import guru.springframework.msscssm.repository.PaymentRepository;
+import guru.springframework.msscssm.store.PaymentStateStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    riconciliazione di tutti i pagamenti con i record del processore (PaymentProcessorRecords):
+
+        -   gli id (min..max della tabella payment) si dividono in payment.reconciliation.partitions intervalli,
+            salvati come checkpoint (PaymentReconciliationRange)
+        -   gli intervalli girano in parallelo su un ForkJoinPool di payment.reconciliation.parallelism thread
+            (non oltre le connessioni del pool JDBC, ogni thread ne tiene una mentre legge una pagina)
+        -   ogni intervallo si legge a pagine di payment.reconciliation.page-size con paginazione keyset
+            (id > ultimo visto), quindi in memoria c'è al massimo una pagina per thread
+        -   per ogni pagina una chiamata al processore; i pagamenti in uno stato diverso vengono portati allo
+            stato del processore con gli eventi di esito, mandati con l'API batch di PaymentService (stessa
+            macchina a stati, storico, outbox e contatori delle transizioni normali)
+        -   dopo ogni pagina il checkpoint dell'intervallo avanza
+
+    Se l'esecuzione si interrompe (cancel, riavvio) la successiva riprende la stessa run dai checkpoint. Una pagina
+    corretta ma non ancora segnata viene rifatta: i pagamenti già corretti non risultano più diversi.
+
+    In modalità cluster ogni nodo riconcilia solo i pagamenti delle sue partizioni (PaymentOwnership), con i suoi
+    checkpoint: gli intervalli coprono tutti gli id ma nelle pagine restano solo i pagamenti del nodo. Dopo un
+    ribilanciamento a metà run i pagamenti passati di mano possono restare fuori fino alla run successiva.
+
+    Solo avanti: un pagamento che è più avanti del processore, o in un esito diverso, resta com'è e si conta
+    come unresolved.
+ */
+@Slf4j
+@Component
+public class PaymentReconciliation {
+
+    /*
+        gli eventi che portano da uno stato a quello del processore, in ordine
+     */
+    private static final Map<PaymentState, Map<PaymentState, List<PaymentEvent>>> FIXES = new EnumMap<>(PaymentState.class);
+
+    static {
+        FIXES.put(PaymentState.NEW, Map.of(
+                PaymentState.PRE_AUTH, List.of(PaymentEvent.PRE_AUTH_APPROVED),
+                PaymentState.PRE_AUTH_ERROR, List.of(PaymentEvent.PRE_AUTH_DECLINED),
+                PaymentState.AUTH, List.of(PaymentEvent.PRE_AUTH_APPROVED, PaymentEvent.AUTH_APPROVED),
+                PaymentState.AUTH_ERROR, List.of(PaymentEvent.PRE_AUTH_APPROVED, PaymentEvent.AUTH_DECLINED)));
+        FIXES.put(PaymentState.PRE_AUTH, Map.of(
+                PaymentState.AUTH, List.of(PaymentEvent.AUTH_APPROVED),
+                PaymentState.AUTH_ERROR, List.of(PaymentEvent.AUTH_DECLINED)));
+    }
+
+    private final PaymentRepository paymentRepository;
+    private final PaymentReconciliationRangeRepository rangeRepository;
+    private final PaymentStateStore paymentStateStore;
+    private final PaymentProcessorRecords processorRecords;
+    private final PaymentService paymentService;
+    private final PaymentOwnership paymentOwnership;
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    private final int partitions;
+    private final int parallelism;
+    private final int pageSize;
+
+    private volatile boolean cancelled;
+
+    public PaymentReconciliation(PaymentRepository paymentRepository, PaymentReconciliationRangeRepository rangeRepository,
+                                 PaymentStateStore paymentStateStore, PaymentProcessorRecords processorRecords,
+                                 PaymentService paymentService, PaymentOwnership paymentOwnership,
+                                 @Value("${payment.reconciliation.partitions:64}") int partitions,
+                                 @Value("${payment.reconciliation.parallelism:0}") int parallelism,
+                                 @Value("${payment.reconciliation.page-size:500}") int pageSize) {
+        this.paymentRepository = paymentRepository;
+        this.rangeRepository = rangeRepository;
+        this.paymentStateStore = paymentStateStore;
+        this.processorRecords = processorRecords;
+        this.paymentService = paymentService;
+        this.paymentOwnership = paymentOwnership;
+        this.partitions = Math.max(1, partitions);
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.pageSize = pageSize;
+    }
+
+    /*
+        una esecuzione alla volta: riprende la run interrotta se c'è, altrimenti ne inizia una nuova
+     */
+    public synchronized PaymentReconciliationReport run() {
+        cancelled = false;
+        long start = System.nanoTime();
+
+        String nodeId = paymentOwnership.getNodeId();
+        Optional<PaymentReconciliationRange> interrupted = rangeRepository.findFirstByNodeIdAndDoneFalseOrderById(nodeId);
+        String runId = interrupted.map(PaymentReconciliationRange::getRunId).orElseGet(() -> plan(nodeId));
+
+        List<PaymentReconciliationRange> pending = new ArrayList<>();
+        for (PaymentReconciliationRange range : rangeRepository.findByRunIdOrderById(runId)) {
+            if (!range.isDone()) {
+                pending.add(range);
+            }
+        }
+
+        log.info("{} reconciliation run {}: {} ranges to go", interrupted.isPresent() ? "Resuming" : "Starting", runId, pending.size());
+
+        Progress progress = new Progress();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try {
+            pool.invoke(new RangeTask(pending, progress));
+        } finally {
+            pool.shutdown();
+        }
+
+        return report(runId, interrupted.isPresent(), progress, System.nanoTime() - start);
+    }
+
+    /*
+        ferma l'esecuzione in corso dopo la pagina corrente di ogni intervallo; la prossima run() riprende da lì
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /*
+        nuova run: via i checkpoint della precedente (finita) del nodo e intervalli nuovi sugli id di adesso
+     */
+    private String plan(String nodeId) {
+        String runId = UUID.randomUUID().toString();
+        rangeRepository.deleteByNodeId(nodeId);
+
+        Long minId = paymentRepository.findMinId();
+        Long maxId = paymentRepository.findMaxId();
+
+        if (minId == null) {
+            return runId;
+        }
+
+        long from = minId - 1;
+        long span = Math.max(1, (maxId - from + partitions - 1) / partitions);
+        List<PaymentReconciliationRange> ranges = new ArrayList<>();
+
+        while (from < maxId) {
+            long to = Math.min(maxId, from + span);
+            ranges.add(PaymentReconciliationRange.builder().runId(runId).nodeId(nodeId).fromId(from).toId(to).lastId(from).build());
+            from = to;
+        }
+
+        rangeRepository.saveAll(ranges);
+        return runId;
+    }
+
+    /*
+        divide la lista degli intervalli a metà finché ne resta uno, e quello lo elabora
+     */
+    private class RangeTask extends RecursiveAction {
+
+        private final List<PaymentReconciliationRange> ranges;
+        private final Progress progress;
+
+        private RangeTask(List<PaymentReconciliationRange> ranges, Progress progress) {
+            this.ranges = ranges;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            if (ranges.size() > 1) {
+                int half = ranges.size() / 2;
+                invokeAll(new RangeTask(ranges.subList(0, half), progress), new RangeTask(ranges.subList(half, ranges.size()), progress));
+            } else if (ranges.size() == 1) {
+                reconcile(ranges.get(0), progress);
+            }
+        }
+    }
+
+    private void reconcile(PaymentReconciliationRange range, Progress progress) {
+        long lastId = range.getLastId();
+        boolean done = false;
+
+        while (!done && !cancelled) {
+            Map<Long, PaymentState> page = new LinkedHashMap<>();
+            long[] last = {lastId};
+            int visited = paymentRepository.scanRange(lastId, range.getToId(), pageSize, (paymentId, state, changedAt) -> {
+                last[0] = paymentId;
+                if (paymentOwnership.owns(paymentId)) {
+                    page.put(paymentId, state);
+                }
+            });
+
+            done = visited < pageSize;
+
+            if (visited == 0) {
+                rangeRepository.checkpoint(range.getId(), lastId, true, 0, 0, 0, 0);
+                break;
+            }
+
+            lastId = last[0];
+
+            // con uno store diverso da JPA la colonna state non è lo stato corrente
+            PageResult result = new PageResult();
+            if (!page.isEmpty()) {
+                Map<Long, PaymentState> states = paymentStateStore.isEntityBacked() ? page : paymentStateStore.loadAll(page.keySet());
+                result = reconcilePage(states);
+            }
+
+            rangeRepository.checkpoint(range.getId(), lastId, done, visited, result.mismatched, result.fixed, result.unresolved);
+            progress.scanned.add(visited);
+            progress.peakHeap.accumulate(memory.getHeapMemoryUsage().getUsed());
+        }
+    }
+
+    private PageResult reconcilePage(Map<Long, PaymentState> states) {
+        PageResult result = new PageResult();
+        Map<Long, PaymentState> processor = processorRecords.lookup(states.keySet());
+        Map<Long, List<PaymentEvent>> fixes = new HashMap<>();
+
+        processor.forEach((paymentId, expected) -> {
+            PaymentState actual = states.get(paymentId);
+
+            if (actual == null || actual == expected) {
+                return;
+            }
+
+            result.mismatched++;
+            List<PaymentEvent> events = FIXES.getOrDefault(actual, Map.of()).get(expected);
+
+            if (events == null) {
+                log.warn("Payment {} is {} but the processor has it {}: cannot be fixed", paymentId, actual, expected);
+                result.unresolved++;
+            } else {
+                fixes.put(paymentId, events);
+            }
+        });
+
+        // un passo alla volta (al massimo due): a ogni passo un batch per evento, chi non passa si ferma lì
+        for (int step = 0; !fixes.isEmpty(); step++) {
+            Map<PaymentEvent, List<Long>> byEvent = new EnumMap<>(PaymentEvent.class);
+            for (Map.Entry<Long, List<PaymentEvent>> fix : fixes.entrySet()) {
+                byEvent.computeIfAbsent(fix.getValue().get(step), event -> new ArrayList<>()).add(fix.getKey());
+            }
+
+            for (Map.Entry<PaymentEvent, List<Long>> batch : byEvent.entrySet()) {
+                PaymentBatchResult outcomes = paymentService.sendEventAll(batch.getValue(), batch.getKey());
+
+                for (Long paymentId : batch.getValue()) {
+                    PaymentBatchResult.Outcome outcome = outcomes.get(paymentId);
+
+                    if (outcome == null || outcome.getStatus() != PaymentBatchResult.Status.TRANSITIONED) {
+                        log.warn("Payment {} not fixed with {}: {}", paymentId, batch.getKey(), outcome);
+                        result.unresolved++;
+                        fixes.remove(paymentId);
+                    } else if (fixes.get(paymentId).size() == step + 1) {
+                        result.fixed++;
+                        fixes.remove(paymentId);
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private PaymentReconciliationReport report(String runId, boolean resumed, Progress progress, long elapsedNanos) {
+        List<PaymentReconciliationRange> ranges = rangeRepository.findByRunIdOrderById(runId);
+        long elapsedMs = Duration.ofNanos(elapsedNanos).toMillis();
+        long scanned = progress.scanned.sum();
+
+        PaymentReconciliationReport report = PaymentReconciliationReport.builder()
+                .runId(runId)
+                .resumed(resumed)
+                .completed(ranges.stream().allMatch(PaymentReconciliationRange::isDone))
+                .ranges(ranges.size())
+                .scanned(ranges.stream().mapToLong(PaymentReconciliationRange::getScanned).sum())
+                .mismatched(ranges.stream().mapToLong(PaymentReconciliationRange::getMismatched).sum())
+                .fixed(ranges.stream().mapToLong(PaymentReconciliationRange::getFixed).sum())
+                .unresolved(ranges.stream().mapToLong(PaymentReconciliationRange::getUnresolved).sum())
+                .elapsedMs(elapsedMs)
+                .rowsPerSecond(elapsedNanos == 0 ? 0 : scanned * 1_000_000_000L / elapsedNanos)
+                .heapUsedBytes(memory.getHeapMemoryUsage().getUsed())
+                .peakHeapUsedBytes(progress.peakHeap.get())
+                .build();
+
+        log.info("Reconciliation {}", report);
+        return report;
+    }
+
+    private static class Progress {
+        private final LongAdder scanned = new LongAdder();
+        private final LongAccumulator peakHeap = new LongAccumulator(Math::max, 0);
+    }
+
+    private static class PageResult {
+        private long mismatched;
+        private long fixed;
+        private long unresolved;
+    }
+}
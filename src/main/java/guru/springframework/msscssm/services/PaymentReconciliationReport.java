@@ -0,0 +1,44 @@
+package guru.springframework.msscssm.services;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/*
+    esito di una esecuzione di PaymentReconciliation. I conteggi sono di tutta la run (anche delle esecuzioni
+    precedenti, se questa l'ha ripresa), velocità e memoria solo di questa esecuzione.
+ */
+@Getter
+@Builder
+@ToString
+public class PaymentReconciliationReport {
+
+    private final String runId;
+
+    /* true se ha ripreso una run interrotta */
+    private final boolean resumed;
+
+    /* false se è stata interrotta (cancel) prima di finire tutti gli intervalli */
+    private final boolean completed;
+
+    private final int ranges;
+
+    private final long scanned;
+
+    /* pagamenti in uno stato diverso da quello del processore */
+    private final long mismatched;
+
+    /* di questi, quelli portati allo stato del processore */
+    private final long fixed;
+
+    /* quelli che la macchina a stati non può portare allo stato del processore (o che hanno fallito) */
+    private final long unresolved;
+
+    private final long elapsedMs;
+
+    private final long rowsPerSecond;
+
+    private final long heapUsedBytes;
+
+    private final long peakHeapUsedBytes;
+}
@@ -3,7 +3,9 @@ package guru.springframework.msscssm.services;
 import guru.springframework.msscssm.domain.Payment;
 import guru.springframework.msscssm.domain.PaymentEvent;
 import guru.springframework.msscssm.domain.PaymentState;
-import org.springframework.statemachine.StateMachine;
+
+import java.util.Collection;
+import java.util.List;
 
 /**
  * Created by jt on 2019-08-10.
@@ -14,15 +16,62 @@ import org.springframework.statemachine.StateMachine;
 
     Questa classe in pratica crea, persiste e ripristina una macchina a stati da e verso il DB
 
-    StateMachine è una classe di spring.
+    Le macchine a stati arrivano da un pool (StateMachinePool) e ci tornano a transazione conclusa, quindi non
+    escono da qui: le transizioni ritornano lo stato in cui è finito il pagamento.
  */
 public interface PaymentService {
 
     Payment newPayment(Payment payment);
 
-    StateMachine<PaymentState, PaymentEvent> preAuth(Long paymentId);
+    /*
+        tanti pagamenti nuovi insieme, a blocchi ognuno con la sua transazione (payment.create.chunk-size):
+        per milioni di pagamenti, dove newPayment costerebbe due round trip ciascuno. Un pagamento con id o
+        versione è un IllegalArgumentException prima di scrivere qualsiasi cosa; l'esito è per blocco
+     */
+    PaymentCreationResult newPayments(List<Payment> payments);
+
+    /*
+        lo stato corrente del pagamento, null se non esiste: è la lettura delle richieste di stato e non tocca la
+        macchina a stati
+     */
+    PaymentState currentState(long paymentId);
+
+    PaymentState preAuth(Long paymentId);
+
+    PaymentState authorizePayment(Long paymentId);
+
+    PaymentState declineAuth(Long paymentId);
+
+    /*
+        manda un evento qualsiasi al pagamento, in una transazione sua: serve a chi riporta alla macchina esiti
+        arrivati da fuori, per esempio le risposte asincrone del processore (AsyncAuthorizer). Torna lo stato
+        in cui è finito il pagamento, così si può chiamare da più thread senza toccare macchine già tornate nel pool
+     */
+    PaymentState sendEvent(Long paymentId, PaymentEvent event);
+
+    /*
+        con una idempotency key (null = come sopra): la prima chiamata con una chiave esegue l'evento e ne salva
+        l'esito, le successive con la stessa chiave (anche in contemporanea, anche dopo un riavvio, finché la chiave
+        non scade) tornano quell'esito senza toccare la macchina a stati. Una chiave riusata per un altro pagamento
+        o evento è un IllegalArgumentException.
+     */
+    PaymentState sendEvent(Long paymentId, PaymentEvent event, String idempotencyKey);
+
+    PaymentState preAuth(Long paymentId, String idempotencyKey);
+
+    PaymentState authorizePayment(Long paymentId, String idempotencyKey);
+
+    /*
+        varianti batch: i pagamenti vengono caricati a blocchi con un solo findAllById e gli stati finali scritti
+        con un unico batch JDBC per blocco (payment.batch.chunk-size)
+     */
+    PaymentBatchResult preAuthAll(Collection<Long> paymentIds);
 
-    StateMachine<PaymentState, PaymentEvent> authorizePayment(Long paymentId);
+    PaymentBatchResult authorizeAll(Collection<Long> paymentIds);
 
-    StateMachine<PaymentState, PaymentEvent> declineAuth(Long paymentId);
+    /*
+        lo stesso evento a tutti, a blocchi come sopra: per chi riporta alla macchina esiti arrivati da fuori in
+        blocco, per esempio la riconciliazione (PaymentReconciliation)
+     */
+    PaymentBatchResult sendEventAll(Collection<Long> paymentIds, PaymentEvent event);
 }
@@ -3,19 +3,33 @@ package guru.springframework.msscssm.services;
 import guru.springframework.msscssm.domain.Payment;
 import guru.springframework.msscssm.domain.PaymentEvent;
 import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.domain.PaymentStateUpdate;
+import guru.springframework.msscssm.metrics.PaymentMetrics;
 import guru.springframework.msscssm.repository.PaymentRepository;
+import guru.springframework.msscssm.risk.PaymentRiskFacts;
+import guru.springframework.msscssm.store.PaymentStateStore;
 import lombok.RequiredArgsConstructor;
-import org.springframework.messaging.Message;
-import org.springframework.messaging.support.MessageBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.statemachine.StateMachine;
-import org.springframework.statemachine.config.StateMachineFactory;
-import org.springframework.statemachine.support.DefaultStateMachineContext;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.PersistenceContext;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Created by jt on 2019-08-10.
  */
+@Slf4j
 @RequiredArgsConstructor
 @Service
 /*
@@ -23,7 +37,8 @@ import org.springframework.transaction.annotation.Transactional;
         - recuperare lo stato della macchina a stati
         - inviarle un evento
 
-    li mette in transazionalità per evitare situazioni inconsistenti
+    li mette in transazionalità per evitare situazioni inconsistenti (con TransactionTemplate, perché in caso di
+    conflitto ottimistico la transazione va ripetuta da fuori, vedi OptimisticRetry)
 
     L'invio del messaggio avviene tramite messaging, spring messaging, quindi con il builder già fatto ad hoc.
 
@@ -35,13 +50,58 @@ public class PaymentServiceImpl implements PaymentService {
 
     private final PaymentRepository paymentRepository;
     /*
-        state machine factory, classe di spring per la creazione di state machine
+        pool di macchine a stati già costruite (con l'interceptor già agganciato) oppure motore compilato,
+        a seconda di payment.statemachine.engine
      */
-    private final StateMachineFactory<PaymentState, PaymentEvent> stateMachineFactory;
+    private final PaymentStateMachineProvider stateMachineProvider;
+
+    private final PlatformTransactionManager transactionManager;
+
+    private final OptimisticRetry optimisticRetry;
+
+    private final PaymentMetrics paymentMetrics;
+
+    private final PaymentHistory paymentHistory;
+
+    private final PaymentOutbox paymentOutbox;
+
+    private final IdempotentCommands idempotentCommands;
+
+    private final PaymentNearCache paymentNearCache;
+
+    private final PaymentStateCounters paymentStateCounters;
+
+    private final PaymentTimeouts paymentTimeouts;
+
+    private final PaymentStateIndex paymentStateIndex;
+
+    private final PaymentStateStore paymentStateStore;
+
+    private final PaymentStateChangeInterceptor paymentStateChangeInterceptor;
+
+    private final PaymentRiskFacts paymentRiskFacts;
+
+    private final PaymentStateChangeHub paymentStateChangeHub;
+
+    private final AsyncAuthorizer asyncAuthorizer;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Value("${payment.batch.chunk-size:500}")
+    private int batchChunkSize;
+
     /*
-        interceptor della macchina a stati
+        true: ogni blocco ha la sua transazione, false: tutto il batch in un'unica transazione
      */
-    private final PaymentStateChangeInterceptor paymentStateChangeInterceptor;
+    @Value("${payment.batch.commit-per-chunk:true}")
+    private boolean commitPerChunk;
+
+    /*
+        pagamenti per transazione in newPayments: meglio un multiplo di hibernate.jdbc.batch_size
+     */
+    @Value("${payment.create.chunk-size:1000}")
+    private int createChunkSize;
 
     /*
         p.es. qua restituiamo un oggetto Payment con uno stato NEW e lo salviamo a DB.
@@ -49,79 +109,322 @@ public class PaymentServiceImpl implements PaymentService {
     @Override
     public Payment newPayment(Payment payment) {
         payment.setState(PaymentState.NEW);
-        return paymentRepository.save(payment);
+        payment.setStateChangedAt(Instant.now());
+        Payment saved = paymentRepository.save(payment);
+        created(saved);
+        return saved;
     }
 
-    @Transactional
+    /*
+        a blocchi di payment.create.chunk-size, ognuno nella sua transazione: persist di tutto il blocco (gli id
+        arrivano dalla sequence a gruppi di 50, senza query per pagamento), un flush che diventa INSERT in batch
+        JDBC ordinati (hibernate.jdbc.batch_size, hibernate.order_inserts) e poi clear, così il persistence
+        context non tiene mai più di un blocco. Anche storico, contatori e scadenze vengono scritti al commit di
+        ogni blocco.
+
+        Prima di scrivere si controllano tutti: un pagamento già persistito (con id o versione) farebbe un merge
+        al posto della INSERT, quindi si rifiuta l'intera lista. Un blocco che fallisce non tocca gli altri, già
+        creati o ancora da creare: l'esito dice quali blocchi sono stati scritti, e i pagamenti di quelli falliti
+        tornano senza id. Tornano le stesse istanze, staccate dal persistence context.
+     */
     @Override
-    public StateMachine<PaymentState, PaymentEvent> preAuth(Long paymentId) {
-        StateMachine<PaymentState, PaymentEvent> sm = build(paymentId);
+    public PaymentCreationResult newPayments(List<Payment> payments) {
+        for (int i = 0; i < payments.size(); i++) {
+            Payment payment = payments.get(i);
 
-        sendEvent(paymentId, sm, PaymentEvent.PRE_AUTHORIZE);
+            if (payment == null || payment.getId() != null || payment.getVersion() != null) {
+                throw new IllegalArgumentException("Payment at position " + i + " is null or already persisted: " + payment);
+            }
+        }
 
-        return sm;
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        PaymentCreationResult result = new PaymentCreationResult();
+
+        for (int from = 0; from < payments.size(); from += createChunkSize) {
+            List<Payment> chunk = payments.subList(from, Math.min(from + createChunkSize, payments.size()));
+
+            try {
+                createChunk(transactionTemplate, chunk);
+                result.add(new PaymentCreationResult.Chunk(from, chunk, null));
+            } catch (RuntimeException e) {
+                log.warn("Creation of payments {}..{} failed, the other chunks are not affected", from, from + chunk.size() - 1, e);
+
+                for (Payment payment : chunk) {
+                    payment.setId(null);
+                    payment.setVersion(null);
+                }
+                result.add(new PaymentCreationResult.Chunk(from, chunk, e.toString()));
+            }
+        }
+
+        return result;
+    }
+
+    private void createChunk(TransactionTemplate transactionTemplate, List<Payment> chunk) {
+        transactionTemplate.execute(status -> {
+            Instant now = Instant.now();
+
+            for (Payment payment : chunk) {
+                payment.setState(PaymentState.NEW);
+                payment.setStateChangedAt(now);
+                entityManager.persist(payment);
+            }
+
+            entityManager.flush();
+            entityManager.clear();
+
+            for (Payment payment : chunk) {
+                created(payment);
+            }
+            return null;
+        });
     }
 
-    @Transactional
+    private void created(Payment payment) {
+        Long paymentId = payment.getId();
+
+        paymentRiskFacts.created(payment);
+        paymentStateStore.create(paymentId, PaymentState.NEW);
+        paymentHistory.record(paymentId, null, null, PaymentState.NEW);
+        paymentStateCounters.record(paymentId, null, PaymentState.NEW);
+        paymentTimeouts.stateChanged(paymentId, null, PaymentState.NEW);
+        paymentStateIndex.stateChanged(paymentId, PaymentState.NEW);
+    }
+
+    /*
+        dall'indice in memoria (PaymentStateIndex), senza oggetti; se il pagamento non c'è, dalla cache o dallo store
+     */
     @Override
-    public StateMachine<PaymentState, PaymentEvent> authorizePayment(Long paymentId) {
-        StateMachine<PaymentState, PaymentEvent> sm = build(paymentId);
+    public PaymentState currentState(long paymentId) {
+        PaymentState state = paymentStateIndex.get(paymentId);
 
-        sendEvent(paymentId, sm, PaymentEvent.AUTHORIZE);
+        return state != null ? state : paymentNearCache.get(paymentId, paymentStateStore::load);
+    }
 
-        return sm;
+    @Override
+    public PaymentState preAuth(Long paymentId) {
+        return sendEvent(paymentId, PaymentEvent.PRE_AUTHORIZE);
+    }
+
+    @Override
+    public PaymentState authorizePayment(Long paymentId) {
+        return sendEvent(paymentId, PaymentEvent.AUTHORIZE);
     }
 
     @Deprecated // not needed
-    @Transactional
     @Override
-    public StateMachine<PaymentState, PaymentEvent> declineAuth(Long paymentId) {
+    public PaymentState declineAuth(Long paymentId) {
+        return sendEvent(paymentId, PaymentEvent.AUTH_DECLINED);
+    }
+
+    /*
+        ogni transizione gira nella sua transazione (o in quella del chiamante, se c'è), e se la scrittura dello
+        stato va in conflitto con un altro nodo viene ripetuta da capo, rileggendo lo stato dal DB
+     */
+    @Override
+    public PaymentState sendEvent(Long paymentId, PaymentEvent event) {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+
+        // lo stato va letto dentro la transazione, prima che la macchina torni nel pool
+        return optimisticRetry.execute(() -> transactionTemplate.execute(
+                status -> transitionInTransaction(paymentId, event).getState().getId()));
+    }
+
+    @Override
+    public PaymentState sendEvent(Long paymentId, PaymentEvent event, String idempotencyKey) {
+        if (idempotencyKey == null) {
+            return sendEvent(paymentId, event);
+        }
+
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+
+        // l'esito viene salvato nella transazione della transizione: o ci sono tutti e due o nessuno
+        return idempotentCommands.execute(idempotencyKey, paymentId, event, () -> optimisticRetry.execute(
+                () -> transactionTemplate.execute(status -> {
+                    PaymentState state = transitionInTransaction(paymentId, event).getState().getId();
+                    idempotentCommands.record(idempotencyKey, paymentId, event, state);
+                    return state;
+                })));
+    }
+
+    @Override
+    public PaymentState preAuth(Long paymentId, String idempotencyKey) {
+        return sendEvent(paymentId, PaymentEvent.PRE_AUTHORIZE, idempotencyKey);
+    }
+
+    @Override
+    public PaymentState authorizePayment(Long paymentId, String idempotencyKey) {
+        return sendEvent(paymentId, PaymentEvent.AUTHORIZE, idempotencyKey);
+    }
+
+
+    /*
+        la macchina torna nel pool solo a transazione conclusa, fino ad allora è riservata a questa richiesta
+     */
+    private StateMachine<PaymentState, PaymentEvent> transitionInTransaction(Long paymentId, PaymentEvent event) {
         StateMachine<PaymentState, PaymentEvent> sm = build(paymentId);
 
-        sendEvent(paymentId, sm, PaymentEvent.AUTH_DECLINED);
+        try {
+            sendEvent(paymentId, sm, event);
+        } finally {
+            TransactionCallbacks.afterCompletion(() -> stateMachineProvider.release(sm));
+        }
 
         return sm;
     }
 
+    @Override
+    public PaymentBatchResult preAuthAll(Collection<Long> paymentIds) {
+        return transitionAll(paymentIds, PaymentEvent.PRE_AUTHORIZE);
+    }
 
-    private void sendEvent(Long paymentId, StateMachine<PaymentState, PaymentEvent> sm, PaymentEvent event){
+    @Override
+    public PaymentBatchResult authorizeAll(Collection<Long> paymentIds) {
+        return transitionAll(paymentIds, PaymentEvent.AUTHORIZE);
+    }
+
+    @Override
+    public PaymentBatchResult sendEventAll(Collection<Long> paymentIds, PaymentEvent event) {
+        return transitionAll(paymentIds, event);
+    }
+
+    /*
+        gli id vengono divisi in blocchi da batchChunkSize, per ogni blocco:
+            -   una sola lettura degli stati dal PaymentStateStore (con JPA un findAllById)
+            -   una macchina dal pool per ogni pagamento, con lo stato appena letto
+            -   l'interceptor registra i cambi di stato nel PaymentStateWriteBuffer invece di scrivere
+            -   a fine blocco tutti gli update partono in un unico batch (JDBC con lo store JPA)
+     */
+    private PaymentBatchResult transitionAll(Collection<Long> paymentIds, PaymentEvent event) {
+        PaymentBatchResult result = new PaymentBatchResult();
+        List<Long> ids = new ArrayList<>(new LinkedHashSet<>(paymentIds));
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+
+        if (commitPerChunk) {
+            for (int from = 0; from < ids.size(); from += batchChunkSize) {
+                List<Long> chunk = ids.subList(from, Math.min(from + batchChunkSize, ids.size()));
+                transactionTemplate.execute(status -> {
+                    transitionChunk(chunk, event, result);
+                    return null;
+                });
+            }
+        } else {
+            transactionTemplate.execute(status -> {
+                for (int from = 0; from < ids.size(); from += batchChunkSize) {
+                    transitionChunk(ids.subList(from, Math.min(from + batchChunkSize, ids.size())), event, result);
+                    entityManager.clear();
+                }
+                return null;
+            });
+        }
+
+        return result;
+    }
+
+    private void transitionChunk(List<Long> chunk, PaymentEvent event, PaymentBatchResult result) {
+        PaymentStateWriteBuffer buffer = PaymentStateWriteBuffer.bind();
 
-        Message msg = MessageBuilder.withPayload(event)
-                .setHeader(PAYMENT_ID_HEADER, paymentId)
-                .build();
+        try {
+            for (Map.Entry<Long, PaymentState> payment : paymentStateStore.loadAll(chunk).entrySet()) {
+                StateMachine<PaymentState, PaymentEvent> sm = stateMachineProvider.borrow(payment.getKey(), payment.getValue());
 
-        sm.sendEvent(msg);
+                try {
+                    boolean accepted = sendEvent(payment.getKey(), sm, event);
+                    result.put(payment.getKey(), accepted ? PaymentBatchResult.Status.TRANSITIONED : PaymentBatchResult.Status.NOT_ACCEPTED,
+                            sm.getState().getId());
+                } catch (RuntimeException e) {
+                    log.warn("Batch {} failed for payment {}", event, payment.getKey(), e);
+                    result.put(payment.getKey(), PaymentBatchResult.Status.FAILED, payment.getValue());
+                } finally {
+                    stateMachineProvider.release(sm);
+                }
+            }
+
+            for (Long id : chunk) {
+                if (result.get(id) == null) {
+                    result.put(id, PaymentBatchResult.Status.NOT_FOUND, null);
+                }
+            }
+
+            List<PaymentStateUpdate> updates = buffer.drain();
+            long start = System.nanoTime();
+            int[] counts = paymentStateStore.compareAndSetAll(updates);
+            paymentMetrics.recordWrite(PaymentMetrics.WriteKind.JDBC_BATCH, System.nanoTime() - start);
+
+            List<Long> conflicts = new ArrayList<>();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) {
+                    PaymentStateUpdate update = updates.get(i);
+                    result.put(update.getPaymentId(), PaymentBatchResult.Status.CONFLICT, null);
+                    conflicts.add(update.getPaymentId());
+                }
+            }
+
+            // nello storico, nell'outbox, nei contatori, agli iscritti e al gateway solo le transizioni arrivate
+            // davvero a DB
+            paymentHistory.discard(conflicts);
+            paymentStateCounters.discard(conflicts);
+            paymentTimeouts.discard(conflicts);
+            paymentStateIndex.discard(conflicts);
+            paymentStateChangeHub.discard(conflicts);
+            asyncAuthorizer.discard(conflicts);
+            paymentHistory.flush();
+            paymentOutbox.discard(conflicts);
+            paymentOutbox.flush();
+        } finally {
+            PaymentStateWriteBuffer.unbind();
+        }
+    }
+
+    private boolean sendEvent(Long paymentId, StateMachine<PaymentState, PaymentEvent> sm, PaymentEvent event){
+        return stateMachineProvider.sendEvent(sm, paymentId, event);
     }
 
 
 
     /*
         ciò che fa questo metodo è semplicemente:
-            -   recuperare l'entità Payment dal repository
-            -   ricreare un'entità StateMachine con il factory
-            -   stoppare la macchina a stati
-            -   impostare la macchina a stati tramite l'accessor allo stato che era presente a DB
-            -   ristartare la macchina a stati
+            -   recuperare lo stato del Payment dal repository
+            -   prendere una macchina a stati dal provider (pool o motore compilato)
+            -   il pool la stoppa, la imposta tramite l'accessor allo stato che era presente a DB e la ristarta
             -   ritornarla
 
+        in modalità COALESCED, o con uno store diverso da JPA, leggiamo solo lo stato dal PaymentStateStore
+        (nessuna entità caricata) e, se nella transazione c'è già un cambio di stato non ancora scritto, usiamo quello
+
         questo metodo è utilizzato in tutti gli altri metodi poi...
 
      */
     private StateMachine<PaymentState, PaymentEvent> build(Long paymentId){
-        Payment payment = paymentRepository.getOne(paymentId);
+        long start = System.nanoTime();
 
-        StateMachine<PaymentState, PaymentEvent> sm = stateMachineFactory.getStateMachine(Long.toString(payment.getId()));
+        try {
+            if (!paymentStateChangeInterceptor.isEntityWrites()) {
+                return stateMachineProvider.borrow(paymentId, stateForTransition(paymentId));
+            }
 
-        sm.stop();
+            // niente cache: l'entità serve comunque all'interceptor per scrivere, e letta qui resta nel
+            // persistence context, quindi è l'unica lettura della transizione
+            Payment payment = paymentRepository.getOne(paymentId);
 
-        sm.getStateMachineAccessor()
-                .doWithAllRegions(sma -> {
-                    sma.addStateMachineInterceptor(paymentStateChangeInterceptor);
-                    sma.resetStateMachine(new DefaultStateMachineContext<>(payment.getState(), null, null, null));
-                });
+            return stateMachineProvider.borrow(paymentId, payment.getState());
+        } finally {
+            paymentMetrics.recordBuild(System.nanoTime() - start);
+        }
+    }
 
-        sm.start();
+    private PaymentState stateForTransition(Long paymentId) {
+        PaymentStateWriteBuffer buffer = PaymentStateWriteBuffer.current();
+        PaymentState state = buffer == null ? null : buffer.pendingState(paymentId);
 
-        return sm;
+        if (state == null) {
+            state = paymentNearCache.get(paymentId, paymentStateStore::load);
+        }
+
+        if (state == null) {
+            throw new EntityNotFoundException("Unable to find Payment with id " + paymentId);
+        }
+
+        return state;
     }
 }
@@ -0,0 +1,388 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.domain.PaymentStateChange;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    broadcast in-process delle transizioni, per chi vuole sapere quando un pagamento cambia stato senza fare
+    polling sul DB (p.es. via SSE, vedi PaymentEventsController).
+
+    Chi fa le transizioni non aspetta mai gli iscritti:
+
+        -   publish accumula le transizioni nella transazione e al commit le mette in una coda limitata
+            (payment.events.queue-capacity, se è piena si perdono e si contano); in rollback non escono
+        -   un thread le smista agli iscritti interessati, trovati per indice (id del pagamento, stato di arrivo)
+            invece di guardarli tutti
+        -   ogni iscritto ha il suo buffer di payment.events.buffer-size transizioni e un invio alla volta su un
+            pool condiviso (payment.events.delivery-threads), così anche migliaia di iscritti costano pochi thread
+
+    Quando il buffer di un iscritto è pieno: DROP_OLDEST scarta la transizione più vecchia, DISCONNECT chiude
+    l'iscrizione (payment.events.overflow, o per singola iscrizione).
+ */
+@Slf4j
+@Component
+public class PaymentStateChangeHub {
+
+    public enum OverflowPolicy {
+        DROP_OLDEST, DISCONNECT
+    }
+
+    /*
+        dove finiscono le transizioni di un iscritto; send può bloccare, lo chiama solo il pool di consegna
+     */
+    public interface Sink {
+
+        void send(PaymentStateChange change) throws Exception;
+
+        void close();
+    }
+
+    private static final int DRAIN_BATCH = 64;
+
+    private final int bufferSize;
+    private final OverflowPolicy defaultPolicy;
+    private final BlockingQueue<PaymentStateChange> published;
+    private final ExecutorService delivery;
+    private final Thread fanOut;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final Set<Subscription> unfiltered = ConcurrentHashMap.newKeySet();
+    private final Map<Long, Set<Subscription>> byPayment = new ConcurrentHashMap<>();
+    private final Map<PaymentState, Set<Subscription>> byState = new EnumMap<>(PaymentState.class);
+
+    private final Counter publishedCounter;
+    private final Counter hubDropped;
+    private final Counter subscriberDropped;
+    private final Counter disconnected;
+
+    public PaymentStateChangeHub(MeterRegistry meterRegistry,
+                                 @Value("${payment.events.buffer-size:256}") int bufferSize,
+                                 @Value("${payment.events.overflow:DROP_OLDEST}") OverflowPolicy defaultPolicy,
+                                 @Value("${payment.events.queue-capacity:65536}") int queueCapacity,
+                                 @Value("${payment.events.delivery-threads:4}") int deliveryThreads) {
+        this.bufferSize = bufferSize;
+        this.defaultPolicy = defaultPolicy;
+        this.published = new ArrayBlockingQueue<>(queueCapacity);
+        this.delivery = Executors.newFixedThreadPool(deliveryThreads, runnable -> {
+            Thread thread = new Thread(runnable, "payment-events-delivery");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (PaymentState state : PaymentState.values()) {
+            byState.put(state, ConcurrentHashMap.newKeySet());
+        }
+
+        this.publishedCounter = Counter.builder("payment.events.published")
+                .description("Committed transitions handed to the hub")
+                .register(meterRegistry);
+        this.hubDropped = Counter.builder("payment.events.dropped")
+                .description("Transitions lost because a queue was full")
+                .tag("where", "hub")
+                .register(meterRegistry);
+        this.subscriberDropped = Counter.builder("payment.events.dropped")
+                .description("Transitions lost because a queue was full")
+                .tag("where", "subscriber")
+                .register(meterRegistry);
+        this.disconnected = Counter.builder("payment.events.disconnected")
+                .description("Subscribers closed because they could not keep up")
+                .register(meterRegistry);
+        Gauge.builder("payment.events.subscribers", subscriberCount, AtomicInteger::get)
+                .description("Active subscribers")
+                .register(meterRegistry);
+
+        this.fanOut = new Thread(this::fanOutLoop, "payment-events-fan-out");
+        this.fanOut.setDaemon(true);
+        this.fanOut.start();
+    }
+
+    /*
+        chiamato ad ogni transizione: senza iscritti non costa nulla
+     */
+    public void publish(Long paymentId, PaymentEvent event, PaymentState from, PaymentState to) {
+        if (subscriberCount.get() == 0 || paymentId == null) {
+            return;
+        }
+
+        Pending change = new Pending(paymentId, event, from, to, Instant.now());
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            enqueue(change);
+            return;
+        }
+
+        pending().add(change);
+    }
+
+    /*
+        toglie dalla transazione corrente le transizioni di questi pagamenti (conflitti dell'API batch): non sono
+        arrivate a DB, quindi non devono uscire al commit
+     */
+    public void discard(Collection<Long> paymentIds) {
+        List<Pending> pending = TransactionCallbacks.current(PaymentStateChangeHub.class);
+
+        if (pending != null && !paymentIds.isEmpty()) {
+            Set<Long> discarded = new HashSet<>(paymentIds);
+            pending.removeIf(change -> discarded.contains(change.paymentId));
+        }
+    }
+
+    /*
+        paymentId e states sono filtri opzionali (null = tutti); policy null = payment.events.overflow
+     */
+    public Subscription subscribe(Long paymentId, Set<PaymentState> states, OverflowPolicy policy, Sink sink) {
+        Set<PaymentState> filter = states == null || states.isEmpty() ? null : Collections.unmodifiableSet(EnumSet.copyOf(states));
+        Subscription subscription = new Subscription(paymentId, filter, policy == null ? defaultPolicy : policy, sink);
+
+        if (paymentId != null) {
+            byPayment.compute(paymentId, (id, subscriptions) -> {
+                Set<Subscription> updated = subscriptions == null ? ConcurrentHashMap.newKeySet() : subscriptions;
+                updated.add(subscription);
+                return updated;
+            });
+        } else if (filter != null) {
+            filter.forEach(state -> byState.get(state).add(subscription));
+        } else {
+            unfiltered.add(subscription);
+        }
+
+        subscriberCount.incrementAndGet();
+
+        return subscription;
+    }
+
+    public int getSubscribers() {
+        return subscriberCount.get();
+    }
+
+    private List<Pending> pending() {
+        return TransactionCallbacks.bound(PaymentStateChangeHub.class, ArrayList::new, bound -> bound.forEach(this::enqueue));
+    }
+
+    private void enqueue(Pending pending) {
+        PaymentStateChange change = new PaymentStateChange(sequence.incrementAndGet(), pending.paymentId,
+                pending.from, pending.to, pending.event, pending.occurredAt);
+
+        if (published.offer(change)) {
+            publishedCounter.increment();
+        } else {
+            hubDropped.increment();
+        }
+    }
+
+    private void fanOutLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            PaymentStateChange change;
+
+            try {
+                change = published.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                for (Subscription subscription : unfiltered) {
+                    subscription.offer(change);
+                }
+
+                Set<Subscription> forPayment = byPayment.get(change.getPaymentId());
+                if (forPayment != null) {
+                    for (Subscription subscription : forPayment) {
+                        if (subscription.states == null || subscription.states.contains(change.getTarget())) {
+                            subscription.offer(change);
+                        }
+                    }
+                }
+
+                for (Subscription subscription : byState.get(change.getTarget())) {
+                    subscription.offer(change);
+                }
+            } catch (RuntimeException e) {
+                log.error("Could not deliver state change {}", change, e);
+            }
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        fanOut.interrupt();
+
+        List<Subscription> all = new ArrayList<>(unfiltered);
+        byPayment.values().forEach(all::addAll);
+        byState.values().forEach(all::addAll);
+        all.forEach(Subscription::cancel);
+
+        delivery.shutdown();
+    }
+
+    public final class Subscription {
+
+        private final Long paymentId;
+        private final Set<PaymentState> states;
+        private final OverflowPolicy policy;
+        private final Sink sink;
+
+        private final ArrayDeque<PaymentStateChange> buffer = new ArrayDeque<>();
+        private boolean scheduled;
+        private boolean closed;
+        private long dropped;
+
+        private Subscription(Long paymentId, Set<PaymentState> states, OverflowPolicy policy, Sink sink) {
+            this.paymentId = paymentId;
+            this.states = states;
+            this.policy = policy;
+            this.sink = sink;
+        }
+
+        public synchronized long getDropped() {
+            return dropped;
+        }
+
+        public synchronized boolean isClosed() {
+            return closed;
+        }
+
+        /*
+            si può chiamare più volte e da qualsiasi thread (p.es. quando il client SSE se ne va)
+         */
+        public void cancel() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+
+            close();
+        }
+
+        private void close() {
+            synchronized (this) {
+                buffer.clear();
+            }
+
+            if (paymentId != null) {
+                byPayment.computeIfPresent(paymentId, (id, subscriptions) -> {
+                    subscriptions.remove(this);
+                    return subscriptions.isEmpty() ? null : subscriptions;
+                });
+            } else if (states != null) {
+                states.forEach(state -> byState.get(state).remove(this));
+            } else {
+                unfiltered.remove(this);
+            }
+
+            subscriberCount.decrementAndGet();
+
+            try {
+                sink.close();
+            } catch (RuntimeException e) {
+                log.debug("Error closing subscriber", e);
+            }
+        }
+
+        private void offer(PaymentStateChange change) {
+            boolean overflow = false;
+
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+
+                if (buffer.size() >= bufferSize) {
+                    if (policy == OverflowPolicy.DISCONNECT) {
+                        // da qui in poi non riceve più nulla, la chiusura vera la fa il pool
+                        closed = true;
+                        overflow = true;
+                    } else {
+                        buffer.pollFirst();
+                        dropped++;
+                        subscriberDropped.increment();
+                    }
+                }
+
+                if (!overflow) {
+                    buffer.addLast(change);
+
+                    if (!scheduled) {
+                        scheduled = true;
+                        delivery.execute(this::drain);
+                    }
+                }
+            }
+
+            if (overflow) {
+                disconnected.increment();
+                delivery.execute(this::close);
+            }
+        }
+
+        /*
+            al massimo DRAIN_BATCH invii per volta, poi si rimette in coda per non monopolizzare un thread
+         */
+        private void drain() {
+            for (int i = 0; i < DRAIN_BATCH; i++) {
+                PaymentStateChange change;
+
+                synchronized (this) {
+                    change = closed ? null : buffer.pollFirst();
+
+                    if (change == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+
+                try {
+                    sink.send(change);
+                } catch (Exception e) {
+                    log.debug("Subscriber failed, closing it", e);
+                    cancel();
+                    return;
+                }
+            }
+
+            delivery.execute(this::drain);
+        }
+    }
+
+    @AllArgsConstructor
+    private static final class Pending {
+
+        private final Long paymentId;
+        private final PaymentEvent event;
+        private final PaymentState from;
+        private final PaymentState to;
+        private final Instant occurredAt;
+    }
+}
@@ -3,15 +3,23 @@ package guru.springframework.msscssm.services;
 import guru.springframework.msscssm.domain.Payment;
 import guru.springframework.msscssm.domain.PaymentEvent;
 import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.domain.PaymentStateUpdate;
+import guru.springframework.msscssm.metrics.PaymentMetrics;
 import guru.springframework.msscssm.repository.PaymentRepository;
+import guru.springframework.msscssm.store.PaymentStateStore;
 import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.messaging.Message;
 import org.springframework.statemachine.StateMachine;
 import org.springframework.statemachine.state.State;
 import org.springframework.statemachine.support.StateMachineInterceptorAdapter;
 import org.springframework.statemachine.transition.Transition;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.time.Instant;
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -33,10 +41,33 @@ import java.util.Optional;
     e noi poco prima che vari lo stato facciamo la nostra logica di set nuovo stato
     (ce lo passa l'interceptor che conosce il nuovo stato) e persist nel DB essendoci legato al
     relativo evento di variazione della macchina a stati (che non c'entra nulla con gli eventi di pagamento)
+
+    Se sulla transazione è legato un PaymentStateWriteBuffer (API batch) non scriviamo subito: registriamo il cambio
+    di stato nel buffer e sarà chi lo ha aperto a scriverlo con un unico batch JDBC.
+
+    In modalità COALESCED (payment.persistence.mode) il buffer lo apriamo noi alla prima transizione della
+    transazione e lo scriviamo al commit con un update condizionale per pagamento.
+
+    Con uno store diverso da JPA (payment.state-store) l'entità non c'entra più: si scrive sempre con update
+    condizionali sullo store, come in COALESCED.
+
+    In ogni caso la transizione finisce anche nello storico (PaymentHistory) e nei contatori per stato
+    (PaymentStateCounters), sposta o cancella la scadenza del pagamento (PaymentTimeouts), aggiorna l'indice in memoria
+    degli stati (PaymentStateIndex), e questo è l'unico punto che aggiorna o invalida PaymentNearCache.
  */
 public class PaymentStateChangeInterceptor extends StateMachineInterceptorAdapter<PaymentState, PaymentEvent> {
 
     private final PaymentRepository paymentRepository;
+    private final PaymentStateStore paymentStateStore;
+    private final PaymentMetrics paymentMetrics;
+    private final PaymentHistory paymentHistory;
+    private final PaymentNearCache paymentNearCache;
+    private final PaymentStateCounters paymentStateCounters;
+    private final PaymentTimeouts paymentTimeouts;
+    private final PaymentStateIndex paymentStateIndex;
+
+    @Value("${payment.persistence.mode:ENTITY}")
+    private PaymentPersistenceMode persistenceMode;
 
     @Override
     public void preStateChange(State<PaymentState, PaymentEvent> state, Message<PaymentEvent> message,
@@ -44,11 +75,91 @@ public class PaymentStateChangeInterceptor extends StateMachineInterceptorAdapte
 
         Optional.ofNullable(message).ifPresent(msg -> {
             Optional.ofNullable(Long.class.cast(msg.getHeaders().getOrDefault(PaymentServiceImpl.PAYMENT_ID_HEADER, -1L)))
-                    .ifPresent(paymentId -> {
-                        Payment payment = paymentRepository.getOne(paymentId);
-                        payment.setState(state.getId());
-                        paymentRepository.save(payment);
-                    });
+                    .ifPresent(paymentId -> onStateChange(paymentId, msg.getPayload(), stateMachine.getState().getId(), state.getId()));
         });
     }
+
+    /*
+        la persistenza vera e propria, chiamata direttamente anche dal motore compilato che non ha Message
+     */
+    public void onStateChange(Long paymentId, PaymentEvent event, PaymentState from, PaymentState to) {
+        paymentHistory.record(paymentId, event, from, to);
+        paymentStateCounters.record(paymentId, from, to);
+        paymentTimeouts.stateChanged(paymentId, from, to);
+        paymentStateIndex.stateChanged(paymentId, to);
+
+        PaymentStateWriteBuffer buffer = PaymentStateWriteBuffer.current();
+
+        if (buffer != null && !buffer.isFlushedAtCommit()) {
+            // chi ha aperto il buffer può scartare la scrittura (conflitto nel batch): meglio rileggere
+            buffer.record(paymentId, from, to);
+            paymentNearCache.invalidate(paymentId);
+            return;
+        }
+
+        if (!isEntityWrites()) {
+            if (buffer == null) {
+                buffer = coalescingBuffer();
+            }
+
+            if (buffer != null) {
+                buffer.record(paymentId, from, to);
+            } else {
+                writeThrough(paymentId, from, to);
+            }
+
+            paymentNearCache.written(paymentId, to);
+            return;
+        }
+
+        long start = System.nanoTime();
+        Payment payment = paymentRepository.getOne(paymentId);
+        // una self-transition (NEW -> NEW di preAuth) non sposta l'istante di ingresso nello stato: da lì
+        // PaymentTimeouts ricostruisce le scadenze, e la ruota in memoria la ignora allo stesso modo
+        if (from != to) {
+            payment.setState(to);
+            payment.setStateChangedAt(Instant.now());
+        }
+        paymentRepository.save(payment);
+        paymentMetrics.recordWrite(PaymentMetrics.WriteKind.ENTITY, System.nanoTime() - start);
+        paymentNearCache.written(paymentId, to);
+    }
+
+    /*
+        l'entità si salva solo in modalità ENTITY e se lo stato sta davvero nell'entità (store JPA)
+     */
+    public boolean isEntityWrites() {
+        return persistenceMode == PaymentPersistenceMode.ENTITY && paymentStateStore.isEntityBacked();
+    }
+
+    /*
+        null se non siamo dentro una transazione: in quel caso si scrive subito
+     */
+    private PaymentStateWriteBuffer coalescingBuffer() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return null;
+        }
+
+        return PaymentStateWriteBuffer.bindToTransaction(this::compareAndSet);
+    }
+
+    private void writeThrough(Long paymentId, PaymentState from, PaymentState to) {
+        if (from != to) {
+            compareAndSet(List.of(new PaymentStateUpdate(paymentId, from, to)));
+        }
+    }
+
+    private void compareAndSet(List<PaymentStateUpdate> updates) {
+        for (PaymentStateUpdate update : updates) {
+            long start = System.nanoTime();
+            boolean updated = paymentStateStore.compareAndSet(update);
+            paymentMetrics.recordWrite(PaymentMetrics.WriteKind.COMPARE_AND_SET, System.nanoTime() - start);
+
+            if (!updated) {
+                paymentNearCache.evict(update.getPaymentId());
+                throw new OptimisticLockingFailureException("Payment " + update.getPaymentId()
+                        + " is no longer in state " + update.getExpectedState());
+            }
+        }
+    }
 }
@@ -0,0 +1,216 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.domain.PaymentStateCount;
+import guru.springframework.msscssm.repository.PaymentStateCountRepository;
+import guru.springframework.msscssm.store.PaymentStateStore;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    quanti pagamenti ci sono in ogni stato, senza GROUP BY sulla tabella payment.
+
+        -   l'interceptor (e newPayment) chiamano record ad ogni transizione; le variazioni si accumulano nella
+            transazione e al commit finiscono in un LongAdder per stato (nessuna contesa tra thread)
+        -   count / counts sono O(1): ultimo totale letto dalla tabella payment_state_count + variazioni di questo
+            nodo non ancora scritte
+        -   ogni payment.counters.flush-interval-ms le variazioni vanno in payment_state_count con un batch di
+            UPDATE total = total + delta, poi si rileggono i totali (che comprendono quelli degli altri nodi)
+        -   all'avvio si parte dai totali salvati; reconcile (ogni payment.counters.reconcile-interval-ms, o a
+            mano) li riallinea al GROUP BY vero. Le transizioni che fanno commit durante la riconciliazione
+            possono lasciare una differenza di qualche unità, corretta dalla riconciliazione successiva.
+
+    La riconciliazione guarda la colonna state della tabella payment, quindi si fa solo con lo store JPA.
+ */
+@Slf4j
+@Component
+public class PaymentStateCounters {
+
+    private static final PaymentState[] STATES = PaymentState.values();
+
+    private final PaymentStateCountRepository countRepository;
+    private final PaymentStateStore paymentStateStore;
+    private final TransactionTemplate transactionTemplate;
+
+    private final LongAdder[] unflushed = new LongAdder[STATES.length];
+    private final AtomicLongArray persisted = new AtomicLongArray(STATES.length);
+
+    public PaymentStateCounters(PaymentStateCountRepository countRepository, PaymentStateStore paymentStateStore,
+                                PlatformTransactionManager transactionManager, MeterRegistry meterRegistry) {
+        this.countRepository = countRepository;
+        this.paymentStateStore = paymentStateStore;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+
+        for (PaymentState state : STATES) {
+            unflushed[state.ordinal()] = new LongAdder();
+
+            Gauge.builder("payment.state.count", this, counters -> counters.count(state))
+                    .description("Payments currently in a state")
+                    .tag("state", state.name())
+                    .register(meterRegistry);
+        }
+    }
+
+    @PostConstruct
+    void load() {
+        boolean empty = countRepository.count() == 0;
+
+        for (PaymentState state : STATES) {
+            if (!countRepository.existsById(state)) {
+                countRepository.save(new PaymentStateCount(state, 0));
+            }
+        }
+
+        // tabella nuova su un DB con dei pagamenti: si parte dal conteggio vero
+        if (empty && paymentStateStore.isEntityBacked()) {
+            reconcile();
+        } else {
+            refresh();
+        }
+    }
+
+    /*
+        from null = pagamento nuovo
+     */
+    public void record(Long paymentId, PaymentState from, PaymentState to) {
+        if (from == to) {
+            return;
+        }
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            apply(from, to);
+            return;
+        }
+
+        Map<Long, PaymentState[]> pending = pending();
+        PaymentState[] change = pending.get(paymentId);
+
+        if (change == null) {
+            pending.put(paymentId, new PaymentState[]{from, to});
+        } else {
+            change[1] = to;
+        }
+    }
+
+    /*
+        toglie dalla transazione corrente le variazioni di questi pagamenti (conflitti dell'API batch)
+     */
+    public void discard(Collection<Long> paymentIds) {
+        Map<Long, PaymentState[]> pending = TransactionCallbacks.current(PaymentStateCounters.class);
+
+        if (pending != null && !paymentIds.isEmpty()) {
+            pending.keySet().removeAll(paymentIds);
+        }
+    }
+
+    public long count(PaymentState state) {
+        return persisted.get(state.ordinal()) + unflushed[state.ordinal()].sum();
+    }
+
+    public Map<PaymentState, Long> counts() {
+        Map<PaymentState, Long> counts = new EnumMap<>(PaymentState.class);
+
+        for (PaymentState state : STATES) {
+            counts.put(state, count(state));
+        }
+
+        return counts;
+    }
+
+    @Scheduled(fixedDelayString = "${payment.counters.flush-interval-ms:1000}")
+    public synchronized void flush() {
+        Map<PaymentState, Long> deltas = new EnumMap<>(PaymentState.class);
+
+        for (PaymentState state : STATES) {
+            long delta = unflushed[state.ordinal()].sum();
+
+            if (delta != 0) {
+                deltas.put(state, delta);
+            }
+        }
+
+        if (!deltas.isEmpty()) {
+            transactionTemplate.execute(status -> {
+                countRepository.addAll(deltas);
+                return null;
+            });
+
+            // scritte: passano dal non scritto al totale, così count non le vede mai due volte o nessuna
+            // (se non per l'istante tra le due righe)
+            deltas.forEach((state, delta) -> {
+                persisted.addAndGet(state.ordinal(), delta);
+                unflushed[state.ordinal()].add(-delta);
+            });
+        }
+
+        refresh();
+    }
+
+    @Scheduled(fixedDelayString = "${payment.counters.reconcile-interval-ms:3600000}",
+            initialDelayString = "${payment.counters.reconcile-interval-ms:3600000}")
+    public synchronized void reconcile() {
+        if (!paymentStateStore.isEntityBacked()) {
+            log.debug("State counters are not reconciled: payment states are not in the payment table");
+            return;
+        }
+
+        flush();
+
+        Map<PaymentState, Long> actual = transactionTemplate.execute(status -> {
+            Map<PaymentState, Long> counts = countRepository.countPaymentsByState();
+            Map<PaymentState, Long> totals = new EnumMap<>(PaymentState.class);
+
+            for (PaymentState state : STATES) {
+                totals.put(state, counts.getOrDefault(state, 0L));
+            }
+
+            countRepository.replaceAll(totals);
+            return totals;
+        });
+
+        actual.forEach((state, total) -> {
+            long drift = total - count(state);
+
+            if (drift != 0) {
+                log.info("Payment count for {} drifted by {}, fixed", state, drift);
+            }
+
+            persisted.set(state.ordinal(), total - unflushed[state.ordinal()].sum());
+        });
+    }
+
+    private synchronized void refresh() {
+        for (PaymentStateCount count : countRepository.findAll()) {
+            persisted.set(count.getState().ordinal(), count.getTotal());
+        }
+    }
+
+    private void apply(PaymentState from, PaymentState to) {
+        if (from != null) {
+            unflushed[from.ordinal()].decrement();
+        }
+        if (to != null) {
+            unflushed[to.ordinal()].increment();
+        }
+    }
+
+    private Map<Long, PaymentState[]> pending() {
+        return TransactionCallbacks.bound(PaymentStateCounters.class, LinkedHashMap::new,
+                bound -> bound.values().forEach(change -> apply(change[0], change[1])));
+    }
+}
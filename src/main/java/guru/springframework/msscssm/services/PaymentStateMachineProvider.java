@@ -0,0 +1,26 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import org.springframework.statemachine.StateMachine;
+
+/*
+    da dove PaymentServiceImpl prende le macchine a stati (payment.statemachine.engine):
+
+    SPRING:     StateMachinePool, macchine di Spring State Machine riusate
+    COMPILED:   CompiledStateMachineEngine, la stessa tabella delle transizioni compilata in un array
+ */
+public interface PaymentStateMachineProvider {
+
+    /*
+        una macchina già nello stato persistito del pagamento, riservata al chiamante fino alla release
+     */
+    StateMachine<PaymentState, PaymentEvent> borrow(Long paymentId, PaymentState state);
+
+    /*
+        invia l'evento nel modo più economico per il tipo di macchina, true se è stato accettato
+     */
+    boolean sendEvent(StateMachine<PaymentState, PaymentEvent> sm, Long paymentId, PaymentEvent event);
+
+    void release(StateMachine<PaymentState, PaymentEvent> sm);
+}
@@ -0,0 +1,99 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.domain.PaymentStateUpdate;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/*
+    buffer delle variazioni di stato legato alla transazione corrente.
+
+    Quando è attivo l'interceptor non scrive più a DB ad ogni transizione, ma registra qui il cambio di stato:
+    per ogni pagamento teniamo lo stato di partenza e l'ultimo stato raggiunto, così alla fine c'è un solo
+    update per pagamento (le self-transition tipo NEW -> NEW non producono nulla).
+
+    Il buffer viene legato alla transazione come risorsa, quindi è visibile solo al thread che la sta eseguendo.
+ */
+public class PaymentStateWriteBuffer {
+
+    private final Map<Long, PaymentStateUpdate> updates = new LinkedHashMap<>();
+
+    private boolean flushedAtCommit;
+
+    public static PaymentStateWriteBuffer current() {
+        return (PaymentStateWriteBuffer) TransactionSynchronizationManager.getResource(PaymentStateWriteBuffer.class);
+    }
+
+    public static PaymentStateWriteBuffer bind() {
+        PaymentStateWriteBuffer buffer = new PaymentStateWriteBuffer();
+        TransactionSynchronizationManager.bindResource(PaymentStateWriteBuffer.class, buffer);
+        return buffer;
+    }
+
+    /*
+        lega un buffer alla transazione corrente e lo fa scrivere da flush subito prima del commit; se la
+        transazione ne ha già uno (anche quello dell'API batch) ritorna quello
+     */
+    public static PaymentStateWriteBuffer bindToTransaction(Consumer<List<PaymentStateUpdate>> flush) {
+        return TransactionCallbacks.boundUntilCommit(PaymentStateWriteBuffer.class, () -> {
+            PaymentStateWriteBuffer buffer = new PaymentStateWriteBuffer();
+            buffer.flushedAtCommit = true;
+            return buffer;
+        }, buffer -> flush.accept(buffer.drain()));
+    }
+
+    public static void unbind() {
+        TransactionSynchronizationManager.unbindResourceIfPossible(PaymentStateWriteBuffer.class);
+    }
+
+    public void record(Long paymentId, PaymentState from, PaymentState to) {
+        if (from == to) {
+            return;
+        }
+
+        PaymentStateUpdate update = updates.get(paymentId);
+
+        if (update == null) {
+            updates.put(paymentId, new PaymentStateUpdate(paymentId, from, to));
+        } else {
+            update.setState(to);
+        }
+    }
+
+    /*
+        true se lo scrive bindToTransaction al commit, false se lo scrive chi lo ha aperto (API batch)
+     */
+    public boolean isFlushedAtCommit() {
+        return flushedAtCommit;
+    }
+
+    /*
+        stato non ancora scritto a DB, null se per questo pagamento non c'è nulla in sospeso
+     */
+    public PaymentState pendingState(Long paymentId) {
+        PaymentStateUpdate update = updates.get(paymentId);
+        return update == null ? null : update.getState();
+    }
+
+    /*
+        svuota il buffer e ritorna solo gli update che cambiano davvero lo stato
+     */
+    public List<PaymentStateUpdate> drain() {
+        List<PaymentStateUpdate> changed = new ArrayList<>(updates.size());
+
+        for (PaymentStateUpdate update : updates.values()) {
+            if (update.isChanged()) {
+                changed.add(update);
+            }
+        }
+
+        updates.clear();
+
+        return changed;
+    }
+}
@@ -0,0 +1,186 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.store.PaymentStateStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    scadenze dei pagamenti fermi: un pagamento che resta in NEW per payment.timeouts.new-ms riceve
+    PRE_AUTH_TIMEOUT (-> PRE_AUTH_ERROR), uno che resta in PRE_AUTH per payment.timeouts.pre-auth-ms riceve
+    AUTH_TIMEOUT (-> AUTH_ERROR). 0 (il default) spegne la scadenza di quello stato.
+
+        -   le scadenze stanno in una HashedTimingWheel (payment.timeouts.tick-ms, payment.timeouts.wheel-size)
+        -   l'interceptor (e newPayment) chiamano stateChanged: al commit la scadenza del pagamento viene
+            rimpiazzata da quella del nuovo stato, o cancellata se il nuovo stato non ne ha (stati finali)
+        -   all'avvio le scadenze si ricostruiscono con un'unica scansione in streaming dello store, partendo da
+            quando il pagamento è entrato nello stato (quelle già passate scadono subito)
+        -   l'evento di scadenza passa dal PaymentEventDispatcher, in ordine con gli altri eventi del pagamento
+        -   in modalità cluster ogni nodo tiene solo le scadenze dei suoi pagamenti (PaymentOwnership): la
+            ricostruzione salta gli altri e si rifà quando le partizioni si ribilanciano, una scadenza di un
+            pagamento che nel frattempo è passato a un altro nodo si butta (la ha già il nuovo proprietario)
+
+    Una scadenza arrivata in ritardo o ricostruita da uno stato vecchio non fa danni: se il pagamento nel frattempo
+    ha cambiato stato la macchina non accetta l'evento. Allo stesso modo un esito del processore che arriva dopo la
+    scadenza viene rifiutato.
+ */
+@Slf4j
+@Component
+public class PaymentTimeouts {
+
+    private static final Map<PaymentState, PaymentEvent> TIMEOUT_EVENTS = new EnumMap<>(Map.of(
+            PaymentState.NEW, PaymentEvent.PRE_AUTH_TIMEOUT,
+            PaymentState.PRE_AUTH, PaymentEvent.AUTH_TIMEOUT));
+
+    private final ObjectProvider<PaymentEventDispatcher> paymentEventDispatcher;
+    private final PaymentStateStore paymentStateStore;
+    private final PaymentOwnership paymentOwnership;
+    private final HashedTimingWheel<PaymentEvent> wheel;
+    private final Map<PaymentState, Duration> timeouts = new EnumMap<>(PaymentState.class);
+    private final Counter expired;
+
+    public PaymentTimeouts(ObjectProvider<PaymentEventDispatcher> paymentEventDispatcher, PaymentStateStore paymentStateStore,
+                           PaymentOwnership paymentOwnership, MeterRegistry meterRegistry,
+                           @Value("${payment.timeouts.new-ms:0}") long newMs,
+                           @Value("${payment.timeouts.pre-auth-ms:0}") long preAuthMs,
+                           @Value("${payment.timeouts.tick-ms:100}") long tickMs,
+                           @Value("${payment.timeouts.wheel-size:4096}") int wheelSize) {
+        this.paymentEventDispatcher = paymentEventDispatcher;
+        this.paymentStateStore = paymentStateStore;
+        this.paymentOwnership = paymentOwnership;
+        this.wheel = new HashedTimingWheel<>("payment-timeouts", tickMs, wheelSize, this::expire);
+
+        if (newMs > 0) {
+            timeouts.put(PaymentState.NEW, Duration.ofMillis(newMs));
+        }
+        if (preAuthMs > 0) {
+            timeouts.put(PaymentState.PRE_AUTH, Duration.ofMillis(preAuthMs));
+        }
+
+        this.expired = Counter.builder("payment.timeouts.expired")
+                .description("Payments that reached a timeout")
+                .register(meterRegistry);
+        Gauge.builder("payment.timeouts.pending", wheel, HashedTimingWheel::size)
+                .description("Payments with a pending timeout")
+                .register(meterRegistry);
+    }
+
+    /*
+        from null = pagamento nuovo; vale dal commit della transazione corrente
+     */
+    public void stateChanged(Long paymentId, PaymentState from, PaymentState to) {
+        if (from == to) {
+            return;
+        }
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            apply(paymentId, to, Instant.now());
+            return;
+        }
+
+        pending().put(paymentId, to);
+    }
+
+    /*
+        toglie dalla transazione corrente i cambi di stato di questi pagamenti (conflitti dell'API batch)
+     */
+    public void discard(Collection<Long> paymentIds) {
+        Map<Long, PaymentState> pending = TransactionCallbacks.current(PaymentTimeouts.class);
+
+        if (pending != null && !paymentIds.isEmpty()) {
+            pending.keySet().removeAll(paymentIds);
+        }
+    }
+
+    public int getPending() {
+        return wheel.size();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (timeouts.isEmpty()) {
+            return;
+        }
+
+        paymentOwnership.onRebalance(this::rebuild);
+        rebuild();
+    }
+
+    /*
+        le scadenze già in ruota vengono rimpiazzate da quelle ricostruite
+     */
+    public void rebuild() {
+        if (timeouts.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        AtomicLong rebuilt = new AtomicLong();
+        Instant now = Instant.now();
+
+        paymentStateStore.scan(timeouts.keySet(), (paymentId, state, changedAt) -> {
+            if (paymentOwnership.owns(paymentId)) {
+                apply(paymentId, state, changedAt == null ? now : changedAt);
+                rebuilt.incrementAndGet();
+            }
+        });
+
+        log.info("Rebuilt {} payment timeouts in {} ms", rebuilt.get(), Duration.ofNanos(System.nanoTime() - start).toMillis());
+    }
+
+    @PreDestroy
+    void shutdown() {
+        wheel.stop();
+    }
+
+    private void apply(Long paymentId, PaymentState state, Instant changedAt) {
+        Duration timeout = timeouts.get(state);
+
+        if (timeout == null) {
+            wheel.cancel(paymentId);
+            return;
+        }
+
+        long delayMs = Duration.between(Instant.now(), changedAt.plus(timeout)).toMillis();
+        wheel.schedule(paymentId, TIMEOUT_EVENTS.get(state), delayMs);
+    }
+
+    /*
+        sul thread della ruota: si passa subito la mano alla corsia del pagamento
+     */
+    private void expire(Long paymentId, PaymentEvent event) {
+        if (!paymentOwnership.owns(paymentId)) {
+            log.debug("Payment {} moved to another node, dropping its {}", paymentId, event);
+            return;
+        }
+
+        expired.increment();
+        log.debug("Payment {} timed out, sending {}", paymentId, event);
+        paymentEventDispatcher.getObject().fire(paymentId, event);
+    }
+
+    private Map<Long, PaymentState> pending() {
+        return TransactionCallbacks.bound(PaymentTimeouts.class, LinkedHashMap::new, bound -> {
+            Instant now = Instant.now();
+            bound.forEach((paymentId, state) -> apply(paymentId, state, now));
+        });
+    }
+}
@@ -0,0 +1,25 @@
+package guru.springframework.msscssm.services;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+    il comportamento originale: approvato nell'approvalPercent% dei casi, a caso
+ */
+public class RandomAuthorizationDecisionProvider implements AuthorizationDecisionProvider {
+
+    private final int approvalPercent;
+
+    public RandomAuthorizationDecisionProvider(int approvalPercent) {
+        this.approvalPercent = approvalPercent;
+    }
+
+    @Override
+    public boolean approvePreAuth(Long paymentId) {
+        return ThreadLocalRandom.current().nextInt(100) < approvalPercent;
+    }
+
+    @Override
+    public boolean approveAuth(Long paymentId) {
+        return ThreadLocalRandom.current().nextInt(100) < approvalPercent;
+    }
+}
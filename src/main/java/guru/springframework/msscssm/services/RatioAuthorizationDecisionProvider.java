@@ -0,0 +1,34 @@
+package guru.springframework.msscssm.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    esattamente approvalPercent% di approvati, senza caso: la n-esima decisione di ogni passo è approvata se con
+    lei il numero di approvati arriva a floor(n * approvalPercent / 100). Su qualunque finestra di 100 decisioni
+    consecutive il rapporto è quello giusto, anche con pochi pagamenti (un test con 10 pagamenti ne vede 8 approvati).
+ */
+public class RatioAuthorizationDecisionProvider implements AuthorizationDecisionProvider {
+
+    private final int approvalPercent;
+    private final AtomicLong preAuthDecisions = new AtomicLong();
+    private final AtomicLong authDecisions = new AtomicLong();
+
+    public RatioAuthorizationDecisionProvider(int approvalPercent) {
+        this.approvalPercent = approvalPercent;
+    }
+
+    @Override
+    public boolean approvePreAuth(Long paymentId) {
+        return decide(preAuthDecisions);
+    }
+
+    @Override
+    public boolean approveAuth(Long paymentId) {
+        return decide(authDecisions);
+    }
+
+    private boolean decide(AtomicLong decisions) {
+        long n = decisions.getAndIncrement();
+        return (n + 1) * approvalPercent / 100 > n * approvalPercent / 100;
+    }
+}
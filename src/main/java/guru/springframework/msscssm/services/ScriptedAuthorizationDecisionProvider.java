@@ -0,0 +1,40 @@
+package guru.springframework.msscssm.services;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    esiti presi in ordine da uno script (true = approvato), uno per passo, ricominciando dall'inizio quando finisce.
+    Lo script segue l'ordine delle chiamate, non gli id: ripetibile con un solo thread o quando l'ordine lo decide
+    il test.
+ */
+public class ScriptedAuthorizationDecisionProvider implements AuthorizationDecisionProvider {
+
+    private final List<Boolean> preAuthScript;
+    private final List<Boolean> authScript;
+    private final AtomicLong preAuthDecisions = new AtomicLong();
+    private final AtomicLong authDecisions = new AtomicLong();
+
+    public ScriptedAuthorizationDecisionProvider(List<Boolean> preAuthScript, List<Boolean> authScript) {
+        if (preAuthScript.isEmpty() || authScript.isEmpty()) {
+            throw new IllegalArgumentException("Decision scripts must not be empty");
+        }
+
+        this.preAuthScript = List.copyOf(preAuthScript);
+        this.authScript = List.copyOf(authScript);
+    }
+
+    @Override
+    public boolean approvePreAuth(Long paymentId) {
+        return next(preAuthScript, preAuthDecisions);
+    }
+
+    @Override
+    public boolean approveAuth(Long paymentId) {
+        return next(authScript, authDecisions);
+    }
+
+    private static boolean next(List<Boolean> script, AtomicLong decisions) {
+        return script.get((int) (decisions.getAndIncrement() % script.size()));
+    }
+}
@@ -0,0 +1,43 @@
+package guru.springframework.msscssm.services;
+
+/*
+    decisione ripetibile: dipende solo dal seed, dall'id del pagamento e dal passo (pre auth / auth), quindi lo
+    stesso pagamento ha sempre lo stesso esito, qualunque sia l'ordine o il thread con cui viene processato.
+ */
+public class SeededAuthorizationDecisionProvider implements AuthorizationDecisionProvider {
+
+    private static final long PRE_AUTH_STEP = 0x9E3779B97F4A7C15L;
+    private static final long AUTH_STEP = 0xC2B2AE3D27D4EB4FL;
+
+    private final long seed;
+    private final int approvalPercent;
+
+    public SeededAuthorizationDecisionProvider(long seed, int approvalPercent) {
+        this.seed = seed;
+        this.approvalPercent = approvalPercent;
+    }
+
+    @Override
+    public boolean approvePreAuth(Long paymentId) {
+        return decide(paymentId, PRE_AUTH_STEP);
+    }
+
+    @Override
+    public boolean approveAuth(Long paymentId) {
+        return decide(paymentId, AUTH_STEP);
+    }
+
+    private boolean decide(Long paymentId, long step) {
+        long hash = mix(seed ^ (paymentId == null ? 0L : paymentId) * step);
+        return Long.remainderUnsigned(hash, 100) < approvalPercent;
+    }
+
+    /*
+        finalizer di SplitMix64
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,142 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    pool limitato di macchine a stati già costruite.
+
+    Costruire una macchina col factory è l'operazione più costosa di tutto il flusso, quindi le teniamo da parte:
+        -   borrow: prende una macchina libera (o ne crea una nuova se il pool è vuoto) e la reidrata con lo stato
+            persistito del Payment
+        -   release: la rimette nel pool, oppure la scarta se ci sono già maxIdle macchine libere
+
+    L'interceptor viene aggiunto una volta sola, alla creazione della macchina.
+
+    Una macchina presa in prestito è usata da un solo thread alla volta, la deque è thread safe.
+
+    Solo con payment.statemachine.engine=SPRING, come il factory da cui prende le macchine.
+ */
+@RequiredArgsConstructor
+@Component
+@ConditionalOnProperty(name = "payment.statemachine.engine", havingValue = "SPRING", matchIfMissing = true)
+public class StateMachinePool implements PaymentStateMachineProvider {
+
+    private final StateMachineFactory<PaymentState, PaymentEvent> stateMachineFactory;
+    private final PaymentStateChangeInterceptor paymentStateChangeInterceptor;
+    private final MeterRegistry meterRegistry;
+
+    private final ConcurrentLinkedDeque<StateMachine<PaymentState, PaymentEvent>> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    @Value("${payment.statemachine.pool.max-idle:64}")
+    private int maxIdle;
+
+    @Override
+    public StateMachine<PaymentState, PaymentEvent> borrow(Long paymentId, PaymentState state) {
+        StateMachine<PaymentState, PaymentEvent> sm = idle.pollFirst();
+
+        if (sm != null) {
+            idleCount.decrementAndGet();
+            hits.increment();
+        } else {
+            misses.increment();
+            sm = create();
+        }
+
+        rehydrate(sm, state);
+
+        return sm;
+    }
+
+    /*
+        l'id del pagamento viaggia nell'header del messaggio, è lì che lo cercano guard e interceptor
+     */
+    @Override
+    public boolean sendEvent(StateMachine<PaymentState, PaymentEvent> sm, Long paymentId, PaymentEvent event) {
+        return sm.sendEvent(MessageBuilder.withPayload(event)
+                .setHeader(PaymentServiceImpl.PAYMENT_ID_HEADER, paymentId)
+                .build());
+    }
+
+    @Override
+    public void release(StateMachine<PaymentState, PaymentEvent> sm) {
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            evictions.increment();
+            sm.stop();
+            return;
+        }
+
+        idle.offerFirst(sm);
+    }
+
+    /*
+        le stesse statistiche anche come metriche
+     */
+    @PostConstruct
+    void registerMetrics() {
+        FunctionCounter.builder("payment.statemachine.pool.hits", hits, LongAdder::sum).register(meterRegistry);
+        FunctionCounter.builder("payment.statemachine.pool.misses", misses, LongAdder::sum).register(meterRegistry);
+        FunctionCounter.builder("payment.statemachine.pool.evictions", evictions, LongAdder::sum).register(meterRegistry);
+        Gauge.builder("payment.statemachine.pool.idle", idleCount, AtomicInteger::get).register(meterRegistry);
+    }
+
+    public Stats getStats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), idleCount.get());
+    }
+
+    private StateMachine<PaymentState, PaymentEvent> create() {
+        StateMachine<PaymentState, PaymentEvent> sm = stateMachineFactory.getStateMachine();
+
+        sm.getStateMachineAccessor()
+                .doWithAllRegions(sma -> sma.addStateMachineInterceptor(paymentStateChangeInterceptor));
+
+        return sm;
+    }
+
+    /*
+        stessa sequenza che prima faceva PaymentServiceImpl.build: stop, reset allo stato del DB, start
+     */
+    private void rehydrate(StateMachine<PaymentState, PaymentEvent> sm, PaymentState state) {
+        sm.stop();
+
+        sm.getStateMachineAccessor()
+                .doWithAllRegions(sma -> sma.resetStateMachine(new DefaultStateMachineContext<>(state, null, null, null)));
+
+        sm.start();
+    }
+
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public static class Stats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final int idle;
+    }
+}
@@ -0,0 +1,161 @@
+package guru.springframework.msscssm.services;
+
+import org.springframework.core.Ordered;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/*
+    piccolo helper per agganciare del lavoro alla fine della transazione corrente.
+
+    Se non c'è una transazione attiva (nessuna synchronization registrata) la callback viene eseguita subito.
+
+    Le varianti bound tengono un accumulatore (lista, mappa...) legato alla transazione con chiave key: la prima
+    chiamata della transazione lo crea con supplier e registra la synchronization, le successive ritornano lo
+    stesso oggetto. A fine transazione viene sempre slegato. Vanno chiamate solo con una transazione attiva.
+ */
+public final class TransactionCallbacks {
+
+    private TransactionCallbacks() {
+    }
+
+    static void afterCompletion(Runnable callback) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    callback.run();
+                }
+            });
+        } else {
+            callback.run();
+        }
+    }
+
+    /*
+        solo se la transazione va a buon fine (o subito, se non c'è transazione)
+     */
+    static void afterCommit(Runnable callback) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    callback.run();
+                }
+            });
+        } else {
+            callback.run();
+        }
+    }
+
+    /*
+        l'accumulatore legato alla transazione corrente, null se non c'è
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T current(Object key) {
+        return (T) TransactionSynchronizationManager.getResource(key);
+    }
+
+    /*
+        onCommit dopo il commit, in rollback l'accumulatore si butta
+     */
+    public static <T> T bound(Object key, Supplier<T> supplier, Consumer<T> onCommit) {
+        return bound(key, supplier, onCommit, null);
+    }
+
+    /*
+        onCommit dopo il commit, onRollback (se non null) dopo un rollback
+     */
+    public static <T> T bound(Object key, Supplier<T> supplier, Consumer<T> onCommit, Consumer<T> onRollback) {
+        T current = current(key);
+        if (current != null) {
+            return current;
+        }
+
+        T bound = supplier.get();
+        TransactionSynchronizationManager.bindResource(key, bound);
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResourceIfPossible(key);
+
+                if (status == TransactionSynchronization.STATUS_COMMITTED) {
+                    onCommit.accept(bound);
+                } else if (onRollback != null) {
+                    onRollback.accept(bound);
+                }
+            }
+        });
+
+        return bound;
+    }
+
+    /*
+        onCommit subito dopo il commit, prima di tutte le altre callback di fine transazione (afterCommit di chi
+        reagisce al commit compreso); onRollback (se non null) dopo un rollback. Per chi deve rendere visibile il
+        commit prima che qualcuno ci reagisca
+     */
+    public static <T> T boundFirst(Object key, Supplier<T> supplier, Consumer<T> onCommit, Consumer<T> onRollback) {
+        T current = current(key);
+        if (current != null) {
+            return current;
+        }
+
+        T bound = supplier.get();
+        TransactionSynchronizationManager.bindResource(key, bound);
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public int getOrder() {
+                return Ordered.HIGHEST_PRECEDENCE;
+            }
+
+            @Override
+            public void afterCommit() {
+                onCommit.accept(bound);
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResourceIfPossible(key);
+
+                if (status != TransactionSynchronization.STATUS_COMMITTED && onRollback != null) {
+                    onRollback.accept(bound);
+                }
+            }
+        });
+
+        return bound;
+    }
+
+    /*
+        beforeCommit prima del commit, dentro la transazione: per scrivere l'accumulatore nella stessa transazione
+     */
+    public static <T> T boundUntilCommit(Object key, Supplier<T> supplier, Consumer<T> beforeCommit) {
+        T current = current(key);
+        if (current != null) {
+            return current;
+        }
+
+        T bound = supplier.get();
+        TransactionSynchronizationManager.bindResource(key, bound);
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void beforeCommit(boolean readOnly) {
+                beforeCommit.accept(bound);
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResourceIfPossible(key);
+            }
+        });
+
+        return bound;
+    }
+}
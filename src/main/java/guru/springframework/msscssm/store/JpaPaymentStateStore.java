@@ -0,0 +1,64 @@
+package guru.springframework.msscssm.store;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.domain.PaymentStateUpdate;
+import guru.springframework.msscssm.repository.PaymentRepository;
+import lombok.RequiredArgsConstructor;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+    lo stato è la colonna state della tabella payment (come è sempre stato)
+ */
+@RequiredArgsConstructor
+public class JpaPaymentStateStore implements PaymentStateStore {
+
+    private final PaymentRepository paymentRepository;
+
+    @Override
+    public void create(Long paymentId, PaymentState state) {
+        // già scritto con l'entità
+    }
+
+    @Override
+    public PaymentState load(Long paymentId) {
+        return paymentRepository.findStateById(paymentId);
+    }
+
+    @Override
+    public Map<Long, PaymentState> loadAll(Collection<Long> paymentIds) {
+        Map<Long, PaymentState> states = new HashMap<>();
+
+        for (Payment payment : paymentRepository.findAllById(paymentIds)) {
+            states.put(payment.getId(), payment.getState());
+        }
+
+        return states;
+    }
+
+    @Override
+    public boolean compareAndSet(PaymentStateUpdate update) {
+        return paymentRepository.compareAndSetState(update.getPaymentId(), update.getExpectedState(), update.getState(), Instant.now()) > 0;
+    }
+
+    @Override
+    public int[] compareAndSetAll(List<PaymentStateUpdate> updates) {
+        return paymentRepository.compareAndSetStates(updates);
+    }
+
+    @Override
+    public void scan(Set<PaymentState> states, PaymentStateVisitor visitor) {
+        paymentRepository.scanByState(states, visitor);
+    }
+
+    @Override
+    public boolean isEntityBacked() {
+        return true;
+    }
+}
@@ -0,0 +1,653 @@
+package guru.springframework.msscssm.store;
+
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.domain.PaymentStateUpdate;
+import guru.springframework.msscssm.services.TransactionCallbacks;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/*
+    stato dei pagamenti in un file mappato in memoria, un record di lunghezza fissa per pagamento: il record del
+    pagamento con id N sta all'offset N * RECORD_BYTES, quindi niente indice (gli id sono sequenziali).
+
+    Ogni record ha due slot, ognuno con versione, timestamp (millisecondi), stato (ordinal + 1, 0 = vuoto) e CRC:
+
+        | versione (8) | timestamp (8) | stato (1) | - (3) | crc32c (4) | - (8) |    slot 0 (versioni pari)
+        | versione (8) | timestamp (8) | stato (1) | - (3) | crc32c (4) | - (8) |    slot 1 (versioni dispari)
+
+    una scrittura va sempre nello slot che non contiene la versione corrente, e il CRC è l'ultima cosa scritta: se
+    il processo muore a metà, lo slot scritto a metà ha il CRC sbagliato e vale ancora l'altro. Alla ripartenza
+    (open) si controlla tutto il file e gli slot rotti vengono azzerati.
+
+    Quando i dati arrivano davvero su disco lo decide payment.state-store.mapped.sync:
+
+        NONE:   ci pensa il sistema operativo (sopravvive al crash del processo, non a quello della macchina)
+        EACH:   force del file ad ogni scrittura
+        GROUP:  chi scrive aspetta il prossimo force, fatto da un thread ogni group-commit-ms per tutte le scritture
+                arrivate nel frattempo
+
+    Dentro una transazione il file segue il DB: create e compareAndSet controllano lo stato e prenotano il
+    pagamento, ma la scrittura resta in sospeso (legata alla transazione) e va nel file solo dopo il commit, con un
+    solo sync per tutta la transazione, prima di ogni altra callback di commit (chi reagisce al commit, come
+    AsyncAuthorizer, trova già il nuovo stato); in rollback si butta. La transazione vede le proprie scritture in sospeso
+    (load e compareAndSet successivi), le altre no: finché la prenotazione non è rilasciata, un compareAndSet di
+    un'altra transazione sullo stesso pagamento fallisce, come un conflitto di versione, e ci pensa OptimisticRetry.
+    Se il processo muore tra il commit e la scrittura del file, il file resta indietro di quella transazione.
+
+    Senza transazione si scrive subito.
+
+    temporary() crea un file temporaneo cancellato al close, per quando il DB non sopravvive al processo (H2 in
+    memoria): un file di una corsa precedente avrebbe stati di pagamenti che il DB non ha più.
+ */
+@Slf4j
+public class MappedPaymentStateStore implements PaymentStateStore {
+
+    public enum SyncMode {
+        NONE, EACH, GROUP
+    }
+
+    static final int RECORD_BYTES = 64;
+    static final int SLOT_BYTES = 32;
+    static final int RECORDS_PER_SEGMENT = 1 << 16;
+    static final long SEGMENT_BYTES = (long) RECORD_BYTES * RECORDS_PER_SEGMENT;
+
+    // posizioni dentro lo slot
+    static final int VERSION = 0;
+    static final int TIMESTAMP = 8;
+    static final int STATE = 16;
+    static final int CRC = 20;
+
+    private static final int LOCK_STRIPES = 1024;
+    private static final PaymentState[] STATES = PaymentState.values();
+
+    private final Path file;
+    private final SyncMode syncMode;
+    private final long groupCommitMs;
+    private final boolean deleteOnClose;
+
+    /*
+        pagamento -> scritture in sospeso della transazione che l'ha prenotato
+     */
+    private final Map<Long, Map<Long, PaymentState>> inFlight = new ConcurrentHashMap<>();
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final Object groupLock = new Object();
+
+    private FileChannel channel;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    private long syncRequested;
+    private long syncCompleted;
+    private volatile boolean open;
+    private Thread groupCommitter;
+
+    public MappedPaymentStateStore(Path file, SyncMode syncMode, long groupCommitMs) {
+        this(file, syncMode, groupCommitMs, false);
+    }
+
+    private MappedPaymentStateStore(Path file, SyncMode syncMode, long groupCommitMs, boolean deleteOnClose) {
+        this.file = file;
+        this.syncMode = syncMode;
+        this.groupCommitMs = groupCommitMs;
+        this.deleteOnClose = deleteOnClose;
+
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /*
+        su un file temporaneo nuovo, cancellato al close
+     */
+    public static MappedPaymentStateStore temporary(SyncMode syncMode, long groupCommitMs) {
+        try {
+            return new MappedPaymentStateStore(Files.createTempFile("payment-states-", ".dat"), syncMode, groupCommitMs, true);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to create a temporary payment state file", e);
+        }
+    }
+
+    /*
+        mappa il file esistente (o lo crea) e ripara i record lasciati a metà da un crash
+     */
+    public synchronized void open() {
+        try {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            int count = (int) ((channel.size() + SEGMENT_BYTES - 1) / SEGMENT_BYTES);
+            MappedByteBuffer[] mapped = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                mapped[i] = map(i);
+            }
+            segments = mapped;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open payment state file " + file, e);
+        }
+
+        recover();
+        open = true;
+
+        if (syncMode == SyncMode.GROUP) {
+            groupCommitter = new Thread(this::groupCommitLoop, "payment-state-group-commit");
+            groupCommitter.setDaemon(true);
+            groupCommitter.start();
+        }
+    }
+
+    public synchronized void close() {
+        if (!open) {
+            return;
+        }
+
+        open = false;
+
+        if (groupCommitter != null) {
+            synchronized (groupLock) {
+                groupLock.notifyAll();
+            }
+
+            try {
+                groupCommitter.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        force();
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Unable to close payment state file {}", file, e);
+        }
+
+        if (deleteOnClose) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn("Unable to delete temporary payment state file {}", file, e);
+            }
+        }
+    }
+
+    @Override
+    public void create(Long paymentId, PaymentState state) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            Map<Long, PaymentState> pending = pending();
+
+            if (inFlight.putIfAbsent(paymentId, pending) != null) {
+                throw new IllegalStateException("Payment " + paymentId + " is being written by another transaction");
+            }
+            pending.put(paymentId, state);
+            return;
+        }
+
+        ByteBuffer segment = segment(paymentId, true);
+        int record = recordOffset(paymentId);
+
+        synchronized (lock(paymentId)) {
+            int current = currentSlot(segment, record);
+            write(segment, record, current < 0 ? 1 : segment.getLong(current + VERSION) + 1, state);
+        }
+
+        sync(paymentId);
+    }
+
+    @Override
+    public PaymentState load(Long paymentId) {
+        Map<Long, PaymentState> pending = TransactionCallbacks.current(this);
+
+        if (pending != null && pending.containsKey(paymentId)) {
+            return pending.get(paymentId);
+        }
+
+        return loadCommitted(paymentId);
+    }
+
+    private PaymentState loadCommitted(Long paymentId) {
+        ByteBuffer segment = segment(paymentId, false);
+
+        if (segment == null) {
+            return null;
+        }
+
+        synchronized (lock(paymentId)) {
+            int current = currentSlot(segment, recordOffset(paymentId));
+            return current < 0 ? null : STATES[segment.get(current + STATE) - 1];
+        }
+    }
+
+    @Override
+    public Map<Long, PaymentState> loadAll(Collection<Long> paymentIds) {
+        Map<Long, PaymentState> states = new HashMap<>();
+
+        for (Long paymentId : paymentIds) {
+            PaymentState state = load(paymentId);
+
+            if (state != null) {
+                states.put(paymentId, state);
+            }
+        }
+
+        return states;
+    }
+
+    /*
+        tutto il file, un record alla volta; changedAt è il timestamp dello slot corrente
+     */
+    @Override
+    public void scan(Set<PaymentState> states, PaymentStateVisitor visitor) {
+        MappedByteBuffer[] current = segments;
+
+        for (int index = 0; index < current.length; index++) {
+            MappedByteBuffer segment = current[index];
+
+            for (int record = 0; record < SEGMENT_BYTES; record += RECORD_BYTES) {
+                long paymentId = (long) index * RECORDS_PER_SEGMENT + record / RECORD_BYTES;
+                PaymentState state;
+                long timestamp;
+
+                synchronized (lock(paymentId)) {
+                    int slot = currentSlot(segment, record);
+
+                    if (slot < 0) {
+                        continue;
+                    }
+
+                    state = STATES[segment.get(slot + STATE) - 1];
+                    timestamp = segment.getLong(slot + TIMESTAMP);
+                }
+
+                if (states.contains(state)) {
+                    visitor.visit(paymentId, state, Instant.ofEpochMilli(timestamp));
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean compareAndSet(PaymentStateUpdate update) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            return compareAndSetPending(update, pending());
+        }
+
+        boolean written = compareAndSetNoSync(update);
+
+        if (written) {
+            sync(update.getPaymentId());
+        }
+
+        return written;
+    }
+
+    /*
+        un solo sync per tutto il blocco
+     */
+    @Override
+    public int[] compareAndSetAll(List<PaymentStateUpdate> updates) {
+        int[] counts = new int[updates.size()];
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            Map<Long, PaymentState> pending = pending();
+
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = compareAndSetPending(updates.get(i), pending) ? 1 : 0;
+            }
+            return counts;
+        }
+
+        Long last = null;
+
+        for (int i = 0; i < counts.length; i++) {
+            if (compareAndSetNoSync(updates.get(i))) {
+                counts[i] = 1;
+                last = updates.get(i).getPaymentId();
+            }
+        }
+
+        if (last != null) {
+            sync(last);
+        }
+
+        return counts;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /*
+        versione corrente del record, 0 se il pagamento non c'è
+     */
+    public long version(Long paymentId) {
+        ByteBuffer segment = segment(paymentId, false);
+
+        if (segment == null) {
+            return 0L;
+        }
+
+        synchronized (lock(paymentId)) {
+            int current = currentSlot(segment, recordOffset(paymentId));
+            return current < 0 ? 0L : segment.getLong(current + VERSION);
+        }
+    }
+
+    /*
+        controlla lo stato (quello in sospeso della transazione, se c'è) e prenota il pagamento; nel file ci va
+        al commit
+     */
+    private boolean compareAndSetPending(PaymentStateUpdate update, Map<Long, PaymentState> pending) {
+        Long paymentId = update.getPaymentId();
+
+        synchronized (lock(paymentId)) {
+            PaymentState current = pending.containsKey(paymentId) ? pending.get(paymentId) : loadCommitted(paymentId);
+
+            if (current == null || current != update.getExpectedState()) {
+                return false;
+            }
+
+            Map<Long, PaymentState> owner = inFlight.putIfAbsent(paymentId, pending);
+            if (owner != null && owner != pending) {
+                return false;
+            }
+
+            pending.put(paymentId, update.getState());
+            return true;
+        }
+    }
+
+    /*
+        le scritture in sospeso della transazione corrente: al commit nel file, poi via le prenotazioni
+     */
+    private Map<Long, PaymentState> pending() {
+        return TransactionCallbacks.boundFirst(this, LinkedHashMap::new, this::apply, this::release);
+    }
+
+    private void apply(Map<Long, PaymentState> pending) {
+        try {
+            pending.forEach((paymentId, state) -> {
+                ByteBuffer segment = segment(paymentId, true);
+                int record = recordOffset(paymentId);
+
+                synchronized (lock(paymentId)) {
+                    int current = currentSlot(segment, record);
+                    write(segment, record, current < 0 ? 1 : segment.getLong(current + VERSION) + 1, state);
+                }
+            });
+        } finally {
+            release(pending);
+        }
+
+        if (!pending.isEmpty()) {
+            sync(pending.keySet().iterator().next());
+        }
+    }
+
+    private void release(Map<Long, PaymentState> pending) {
+        pending.keySet().forEach(paymentId -> inFlight.remove(paymentId, pending));
+    }
+
+    private boolean compareAndSetNoSync(PaymentStateUpdate update) {
+        ByteBuffer segment = segment(update.getPaymentId(), false);
+
+        if (segment == null) {
+            return false;
+        }
+
+        int record = recordOffset(update.getPaymentId());
+
+        synchronized (lock(update.getPaymentId())) {
+            if (inFlight.containsKey(update.getPaymentId())) {
+                return false;
+            }
+
+            int current = currentSlot(segment, record);
+
+            if (current < 0 || STATES[segment.get(current + STATE) - 1] != update.getExpectedState()) {
+                return false;
+            }
+
+            write(segment, record, segment.getLong(current + VERSION) + 1, update.getState());
+            return true;
+        }
+    }
+
+    /*
+        va nello slot della parità della versione, quindi mai in quello corrente; il CRC per ultimo
+     */
+    private void write(ByteBuffer segment, int record, long version, PaymentState state) {
+        int slot = record + (int) (version & 1) * SLOT_BYTES;
+
+        segment.putLong(slot + VERSION, version);
+        segment.putLong(slot + TIMESTAMP, System.currentTimeMillis());
+        segment.put(slot + STATE, (byte) (state.ordinal() + 1));
+        segment.putInt(slot + CRC, crc(segment, slot));
+    }
+
+    /*
+        offset dello slot valido con la versione più alta, -1 se il record è vuoto
+     */
+    private static int currentSlot(ByteBuffer segment, int record) {
+        int first = record;
+        int second = record + SLOT_BYTES;
+        boolean firstValid = isValid(segment, first);
+        boolean secondValid = isValid(segment, second);
+
+        if (firstValid && secondValid) {
+            return segment.getLong(first + VERSION) > segment.getLong(second + VERSION) ? first : second;
+        }
+
+        return firstValid ? first : secondValid ? second : -1;
+    }
+
+    private static boolean isValid(ByteBuffer segment, int slot) {
+        int state = segment.get(slot + STATE);
+
+        return state > 0 && state <= STATES.length && segment.getInt(slot + CRC) == crc(segment, slot);
+    }
+
+    private static boolean isEmpty(ByteBuffer segment, int slot) {
+        for (int i = 0; i < SLOT_BYTES; i += Long.BYTES) {
+            if (segment.getLong(slot + i) != 0L) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /*
+        versione, timestamp e stato
+     */
+    private static int crc(ByteBuffer segment, int slot) {
+        ByteBuffer covered = segment.duplicate();
+        covered.limit(slot + STATE + 1).position(slot);
+
+        CRC32C crc = new CRC32C();
+        crc.update(covered);
+
+        return (int) crc.getValue();
+    }
+
+    private void recover() {
+        long records = 0;
+        long repaired = 0;
+        long lost = 0;
+
+        for (MappedByteBuffer segment : segments) {
+            for (int record = 0; record < SEGMENT_BYTES; record += RECORD_BYTES) {
+                int current = currentSlot(segment, record);
+                int other = current == record ? record + SLOT_BYTES : record;
+
+                if (current < 0) {
+                    if (!isEmpty(segment, record) || !isEmpty(segment, record + SLOT_BYTES)) {
+                        lost++;
+                    }
+                    continue;
+                }
+
+                records++;
+
+                if (!isValid(segment, other) && !isEmpty(segment, other)) {
+                    // scrittura interrotta a metà: vale la versione precedente
+                    for (int i = 0; i < SLOT_BYTES; i += Long.BYTES) {
+                        segment.putLong(other + i, 0L);
+                    }
+                    repaired++;
+                }
+            }
+        }
+
+        if (repaired > 0 || lost > 0) {
+            force();
+            log.warn("Payment state file {}: {} torn writes repaired, {} unreadable records", file, repaired, lost);
+        }
+
+        log.info("Payment state file {} opened with {} payments", file, records);
+    }
+
+    private void sync(Long paymentId) {
+        switch (syncMode) {
+            case EACH:
+                segment(paymentId, false).force();
+                break;
+            case GROUP:
+                awaitGroupCommit();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void awaitGroupCommit() {
+        synchronized (groupLock) {
+            long ticket = ++syncRequested;
+            groupLock.notifyAll();
+
+            while (syncCompleted < ticket && open) {
+                try {
+                    groupLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for the payment state group commit", e);
+                }
+            }
+        }
+    }
+
+    /*
+        aspetta che qualcuno abbia scritto, lascia passare group-commit-ms per raccogliere altre scritture e fa un
+        solo force per tutte
+     */
+    private void groupCommitLoop() {
+        while (open) {
+            long target;
+
+            synchronized (groupLock) {
+                while (open && syncRequested == syncCompleted) {
+                    try {
+                        groupLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            try {
+                Thread.sleep(groupCommitMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            synchronized (groupLock) {
+                target = syncRequested;
+            }
+
+            force();
+
+            synchronized (groupLock) {
+                syncCompleted = target;
+                groupLock.notifyAll();
+            }
+        }
+    }
+
+    private void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    private ByteBuffer segment(Long paymentId, boolean create) {
+        if (paymentId == null || paymentId <= 0) {
+            if (create) {
+                throw new IllegalArgumentException("Payment id must be positive: " + paymentId);
+            }
+            return null;
+        }
+
+        int index = (int) (paymentId / RECORDS_PER_SEGMENT);
+        MappedByteBuffer[] current = segments;
+
+        if (index < current.length) {
+            return current[index];
+        }
+
+        return create ? grow(index) : null;
+    }
+
+    private synchronized ByteBuffer grow(int index) {
+        MappedByteBuffer[] current = segments;
+
+        if (index >= current.length) {
+            MappedByteBuffer[] grown = Arrays.copyOf(current, index + 1);
+
+            try {
+                for (int i = current.length; i < grown.length; i++) {
+                    grown[i] = map(i);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to grow payment state file " + file, e);
+            }
+
+            segments = grown;
+        }
+
+        return segments[index];
+    }
+
+    private MappedByteBuffer map(int index) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, index * SEGMENT_BYTES, SEGMENT_BYTES);
+    }
+
+    private static int recordOffset(Long paymentId) {
+        return (int) (paymentId % RECORDS_PER_SEGMENT) * RECORD_BYTES;
+    }
+
+    private Object lock(long paymentId) {
+        return locks[(int) (paymentId & (LOCK_STRIPES - 1))];
+    }
+}
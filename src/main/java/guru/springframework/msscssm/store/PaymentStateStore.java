@@ -0,0 +1,54 @@
+package guru.springframework.msscssm.store;
+
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.domain.PaymentStateUpdate;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+    dove vive lo stato corrente dei pagamenti, per PaymentStateChangeInterceptor (scritture) e per
+    PaymentServiceImpl (reidratazione della macchina). Si sceglie con payment.state-store, vedi PaymentStateStoreConfig.
+
+    Le scritture sono tutte condizionali (compare and set sullo stato atteso): chi non riesce a scrivere perché lo
+    stato è cambiato nel frattempo lo segnala e ci pensa OptimisticRetry.
+ */
+public interface PaymentStateStore {
+
+    /*
+        registra un pagamento appena creato
+     */
+    void create(Long paymentId, PaymentState state);
+
+    /*
+        null se il pagamento non esiste
+     */
+    PaymentState load(Long paymentId);
+
+    /*
+        solo i pagamenti trovati
+     */
+    Map<Long, PaymentState> loadAll(Collection<Long> paymentIds);
+
+    boolean compareAndSet(PaymentStateUpdate update);
+
+    /*
+        per ogni update 1 se scritto, 0 se lo stato non era più quello atteso
+     */
+    int[] compareAndSetAll(List<PaymentStateUpdate> updates);
+
+    /*
+        tutti i pagamenti che sono in uno di questi stati, in streaming (mai tutti in memoria insieme)
+     */
+    void scan(Set<PaymentState> states, PaymentStateVisitor visitor);
+
+    /*
+        true solo se lo stato sta nell'entità Payment, e quindi l'interceptor può anche salvare l'entità
+        (payment.persistence.mode=ENTITY)
+     */
+    default boolean isEntityBacked() {
+        return false;
+    }
+}
@@ -0,0 +1,47 @@
+package guru.springframework.msscssm.store;
+
+import guru.springframework.msscssm.repository.PaymentRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.nio.file.Paths;
+
+/*
+    payment.state-store sceglie dove sta lo stato corrente dei pagamenti:
+
+        JPA:    colonna state della tabella payment (default)
+        MAPPED: file mappato in memoria (payment.state-store.mapped.*), la tabella payment tiene solo i dati
+                del pagamento e lo stato con cui è stato creato. Senza payment.state-store.mapped.file il file è
+                temporaneo e dura quanto il processo, come il DB H2 in memoria di default: un file persistente ha
+                senso solo insieme a un DB persistente
+ */
+@Configuration
+public class PaymentStateStoreConfig {
+
+    public enum StoreType {
+        JPA, MAPPED
+    }
+
+    /*
+        il close di MappedPaymentStateStore (force e chiusura del file) lo chiama Spring, trovandolo da solo
+     */
+    @Bean
+    public PaymentStateStore paymentStateStore(
+            @Value("${payment.state-store:JPA}") StoreType type,
+            @Value("${payment.state-store.mapped.file:}") String file,
+            @Value("${payment.state-store.mapped.sync:GROUP}") MappedPaymentStateStore.SyncMode syncMode,
+            @Value("${payment.state-store.mapped.group-commit-ms:2}") long groupCommitMs,
+            PaymentRepository paymentRepository) {
+
+        if (type == StoreType.MAPPED) {
+            MappedPaymentStateStore store = file.isBlank()
+                    ? MappedPaymentStateStore.temporary(syncMode, groupCommitMs)
+                    : new MappedPaymentStateStore(Paths.get(file), syncMode, groupCommitMs);
+            store.open();
+            return store;
+        }
+
+        return new JpaPaymentStateStore(paymentRepository);
+    }
+}
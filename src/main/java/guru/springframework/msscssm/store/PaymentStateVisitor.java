@@ -0,0 +1,15 @@
+package guru.springframework.msscssm.store;
+
+import guru.springframework.msscssm.domain.PaymentState;
+
+import java.time.Instant;
+
+/*
+    riceve i pagamenti di PaymentStateStore.scan, uno alla volta; changedAt è null se non si sa quando il pagamento
+    è entrato nello stato
+ */
+@FunctionalInterface
+public interface PaymentStateVisitor {
+
+    void visit(long paymentId, PaymentState state, Instant changedAt);
+}
@@ -0,0 +1,20 @@
+package guru.springframework.msscssm.web;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class NewPaymentRequest {
+
+    private BigDecimal amount;
+    private String customerId;
+
+    public NewPaymentRequest(BigDecimal amount) {
+        this(amount, null);
+    }
+}
@@ -0,0 +1,231 @@
+package guru.springframework.msscssm.web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.services.PaymentEventDispatcher;
+import guru.springframework.msscssm.services.PaymentService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityNotFoundException;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+    l'upload NDJSON di /api/v1/payments/bulk, tutto sul thread della richiesta:
+
+        -   legge una riga alla volta (il body non viene mai tenuto tutto in memoria)
+        -   passa il comando al PaymentEventDispatcher e va avanti a leggere senza aspettarlo, così mentre le
+            corsie lavorano un blocco di righe si legge già il successivo
+        -   scrive le risposte appena i comandi finiscono, e fa flush quando non c'è altro input già arrivato
+            o dopo payment.bulk.flush-every righe
+
+    Al massimo payment.bulk.max-in-flight comandi possono essere letti e non ancora risposti: oltre si smette di
+    leggere finché non ne finisce qualcuno, e la backpressure arriva fino al client tramite TCP.
+ */
+@Slf4j
+@Component
+public class PaymentBulkProcessor {
+
+    private static final byte[] NEW_LINE = {'\n'};
+
+    private final PaymentService paymentService;
+    private final PaymentEventDispatcher paymentEventDispatcher;
+    private final ObjectMapper objectMapper;
+    private final Map<PaymentCommand.Op, Timer> commandTimers = new EnumMap<>(PaymentCommand.Op.class);
+
+    @Value("${payment.bulk.max-in-flight:2048}")
+    private int maxInFlight;
+
+    @Value("${payment.bulk.flush-every:256}")
+    private int flushEvery;
+
+    public PaymentBulkProcessor(PaymentService paymentService, PaymentEventDispatcher paymentEventDispatcher,
+                                ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        this.paymentService = paymentService;
+        this.paymentEventDispatcher = paymentEventDispatcher;
+        this.objectMapper = objectMapper;
+
+        for (PaymentCommand.Op op : PaymentCommand.Op.values()) {
+            commandTimers.put(op, Timer.builder("payment.bulk.command")
+                    .description("Time from reading a bulk command to its result")
+                    .tag("op", op.name())
+                    .publishPercentileHistogram()
+                    .register(meterRegistry));
+        }
+    }
+
+    public void process(InputStream in, OutputStream out) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        BufferedOutputStream output = new BufferedOutputStream(out, 64 * 1024);
+        BlockingQueue<PaymentCommandResult> completed = new LinkedBlockingQueue<>();
+
+        long lineNumber = 0;
+        int inFlight = 0;
+        int unflushed = 0;
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+
+            if (line.isBlank()) {
+                continue;
+            }
+
+            while (inFlight >= maxInFlight) {
+                write(take(completed), output);
+                inFlight--;
+                unflushed++;
+            }
+
+            submit(lineNumber, line, completed);
+            inFlight++;
+
+            PaymentCommandResult result;
+            while ((result = completed.poll()) != null) {
+                write(result, output);
+                inFlight--;
+                unflushed++;
+            }
+
+            if (unflushed >= flushEvery || (unflushed > 0 && !reader.ready())) {
+                output.flush();
+                unflushed = 0;
+            }
+        }
+
+        while (inFlight > 0) {
+            write(take(completed), output);
+            inFlight--;
+        }
+
+        output.flush();
+    }
+
+    private void submit(long lineNumber, String line, BlockingQueue<PaymentCommandResult> completed) {
+        long start = System.nanoTime();
+        PaymentCommand command;
+
+        try {
+            command = objectMapper.readValue(line, PaymentCommand.class);
+        } catch (IOException e) {
+            completed.add(invalid(lineNumber, null, null, "Unreadable command: " + e.getMessage(), start));
+            return;
+        }
+
+        if (command.getOp() == null) {
+            completed.add(invalid(lineNumber, command, null, "op is required", start));
+            return;
+        }
+
+        CompletableFuture<PaymentResponse> execution;
+
+        switch (command.getOp()) {
+            case NEW_PAYMENT:
+                if (command.getAmount() == null) {
+                    completed.add(invalid(lineNumber, command, null, "amount is required", start));
+                    return;
+                }
+                // nessun id ancora: la riga decide solo la corsia
+                execution = paymentEventDispatcher.execute(lineNumber, () -> {
+                    Payment payment = paymentService.newPayment(Payment.builder()
+                            .amount(command.getAmount())
+                            .customerId(command.getCustomerId())
+                            .build());
+                    return new PaymentResponse(payment.getId(), payment.getState());
+                });
+                break;
+            case PRE_AUTH:
+                execution = sendEvent(command, PaymentEvent.PRE_AUTHORIZE);
+                break;
+            default:
+                execution = sendEvent(command, PaymentEvent.AUTHORIZE);
+                break;
+        }
+
+        if (execution == null) {
+            completed.add(invalid(lineNumber, command, null, "paymentId is required", start));
+            return;
+        }
+
+        execution.whenComplete((response, error) -> completed.add(error == null
+                ? result(lineNumber, command, response.getPaymentId(), response.getState(), PaymentCommandResult.Status.OK, null, start)
+                : failure(lineNumber, command, error, start)));
+    }
+
+    private CompletableFuture<PaymentResponse> sendEvent(PaymentCommand command, PaymentEvent event) {
+        if (command.getPaymentId() == null) {
+            return null;
+        }
+
+        return paymentEventDispatcher.submit(command.getPaymentId(), event)
+                .thenApply(state -> new PaymentResponse(command.getPaymentId(), state));
+    }
+
+    private PaymentCommandResult failure(long lineNumber, PaymentCommand command, Throwable error, long start) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+
+        if (cause instanceof EntityNotFoundException) {
+            return result(lineNumber, command, command.getPaymentId(), null, PaymentCommandResult.Status.NOT_FOUND, null, start);
+        }
+
+        log.warn("Bulk command at line {} failed", lineNumber, cause);
+
+        return result(lineNumber, command, command.getPaymentId(), null, PaymentCommandResult.Status.ERROR, cause.toString(), start);
+    }
+
+    private PaymentCommandResult invalid(long lineNumber, PaymentCommand command, Long paymentId, String error, long start) {
+        return result(lineNumber, command, paymentId, null, PaymentCommandResult.Status.INVALID, error, start);
+    }
+
+    private PaymentCommandResult result(long lineNumber, PaymentCommand command, Long paymentId, PaymentState state,
+                                        PaymentCommandResult.Status status, String error, long start) {
+        long elapsed = System.nanoTime() - start;
+
+        if (command != null && command.getOp() != null) {
+            commandTimers.get(command.getOp()).record(elapsed, TimeUnit.NANOSECONDS);
+        }
+
+        return PaymentCommandResult.builder()
+                .line(lineNumber)
+                .op(command == null ? null : command.getOp())
+                .paymentId(paymentId)
+                .state(state)
+                .status(status)
+                .error(error)
+                .micros(TimeUnit.NANOSECONDS.toMicros(elapsed))
+                .build();
+    }
+
+    private void write(PaymentCommandResult result, OutputStream output) throws IOException {
+        output.write(objectMapper.writeValueAsBytes(result));
+        output.write(NEW_LINE);
+    }
+
+    private static PaymentCommandResult take(BlockingQueue<PaymentCommandResult> completed) throws IOException {
+        try {
+            return completed.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bulk command results");
+        }
+    }
+}
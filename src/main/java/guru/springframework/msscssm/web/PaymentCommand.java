@@ -0,0 +1,32 @@
+package guru.springframework.msscssm.web;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+
+/*
+    una riga dell'upload NDJSON, p.es.
+
+        {"op":"newPayment","amount":12.99,"customerId":"c-42"}
+        {"op":"preAuth","paymentId":42}
+        {"op":"authorize","paymentId":42}
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PaymentCommand {
+
+    public enum Op {
+        @JsonProperty("newPayment") NEW_PAYMENT,
+        @JsonProperty("preAuth") PRE_AUTH,
+        @JsonProperty("authorize") AUTHORIZE
+    }
+
+    private Op op;
+    private Long paymentId;
+    private BigDecimal amount;
+    private String customerId;
+}
@@ -0,0 +1,28 @@
+package guru.springframework.msscssm.web;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import guru.springframework.msscssm.domain.PaymentState;
+import lombok.Builder;
+import lombok.Value;
+
+/*
+    una riga della risposta NDJSON: line è il numero di riga del comando nell'upload (le risposte arrivano
+    nell'ordine in cui finiscono, non in quello di arrivo), micros il tempo da quando la riga è stata letta
+ */
+@Value
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class PaymentCommandResult {
+
+    public enum Status {
+        OK, NOT_FOUND, INVALID, ERROR
+    }
+
+    long line;
+    PaymentCommand.Op op;
+    Long paymentId;
+    PaymentState state;
+    Status status;
+    String error;
+    long micros;
+}
@@ -0,0 +1,119 @@
+package guru.springframework.msscssm.web;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.services.IdempotencyKeyReusedException;
+import guru.springframework.msscssm.services.PaymentEventDispatcher;
+import guru.springframework.msscssm.services.PaymentReconciliation;
+import guru.springframework.msscssm.services.PaymentReconciliationReport;
+import guru.springframework.msscssm.services.PaymentService;
+import guru.springframework.msscssm.services.PaymentStateCounters;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.persistence.EntityNotFoundException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Map;
+
+/*
+    API HTTP dei pagamenti.
+
+    Gli eventi passano dal PaymentEventDispatcher, così restano in ordine per pagamento anche se arrivano insieme
+    da qui e dall'upload bulk.
+
+    /bulk legge comandi NDJSON (vedi PaymentCommand) e risponde con una riga per comando mentre l'upload è ancora
+    in corso, vedi PaymentBulkProcessor.
+
+    pre-auth e authorize accettano l'header Idempotency-Key: i retry con la stessa chiave ricevono l'esito della
+    prima chiamata (422 se la chiave era stata usata per un altro pagamento o evento).
+ */
+@RequiredArgsConstructor
+@RestController
+@RequestMapping(PaymentController.BASE_PATH)
+public class PaymentController {
+
+    public static final String BASE_PATH = "/api/v1/payments";
+    public static final String NDJSON = "application/x-ndjson";
+    public static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+
+    private final PaymentService paymentService;
+    private final PaymentEventDispatcher paymentEventDispatcher;
+    private final PaymentStateCounters paymentStateCounters;
+    private final PaymentBulkProcessor paymentBulkProcessor;
+    private final PaymentReconciliation paymentReconciliation;
+
+    @PostMapping
+    @ResponseStatus(HttpStatus.CREATED)
+    public PaymentResponse newPayment(@RequestBody NewPaymentRequest request) {
+        if (request.getAmount() == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "amount is required");
+        }
+
+        Payment payment = paymentService.newPayment(Payment.builder()
+                .amount(request.getAmount())
+                .customerId(request.getCustomerId())
+                .build());
+
+        return new PaymentResponse(payment.getId(), payment.getState(), payment.getAmount());
+    }
+
+    /*
+        quanti pagamenti ci sono in ogni stato, dai contatori in memoria (vedi PaymentStateCounters)
+     */
+    @GetMapping("/counts")
+    public Map<PaymentState, Long> counts() {
+        return paymentStateCounters.counts();
+    }
+
+    /*
+        riconciliazione con i record del processore, sincrona: riprende la run interrotta se c'è
+     */
+    @PostMapping("/reconciliation")
+    public PaymentReconciliationReport reconcile() {
+        return paymentReconciliation.run();
+    }
+
+    @GetMapping("/{paymentId}")
+    public PaymentResponse getPayment(@PathVariable Long paymentId) {
+        PaymentState state = paymentService.currentState(paymentId);
+
+        if (state == null) {
+            throw new EntityNotFoundException("Unable to find Payment with id " + paymentId);
+        }
+
+        return new PaymentResponse(paymentId, state);
+    }
+
+    @PostMapping("/{paymentId}/pre-auth")
+    public PaymentResponse preAuth(@PathVariable Long paymentId,
+                                   @RequestHeader(name = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        return new PaymentResponse(paymentId, paymentEventDispatcher.submitAndAwait(paymentId, PaymentEvent.PRE_AUTHORIZE, idempotencyKey));
+    }
+
+    @PostMapping("/{paymentId}/authorize")
+    public PaymentResponse authorize(@PathVariable Long paymentId,
+                                     @RequestHeader(name = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        return new PaymentResponse(paymentId, paymentEventDispatcher.submitAndAwait(paymentId, PaymentEvent.AUTHORIZE, idempotencyKey));
+    }
+
+    @PostMapping(path = "/bulk", consumes = NDJSON, produces = NDJSON)
+    public void bulk(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType(NDJSON);
+        paymentBulkProcessor.process(request.getInputStream(), response.getOutputStream());
+    }
+
+    @ExceptionHandler(IdempotencyKeyReusedException.class)
+    @ResponseStatus(HttpStatus.UNPROCESSABLE_ENTITY)
+    public void idempotencyKeyReused() {
+    }
+
+    @ExceptionHandler(EntityNotFoundException.class)
+    @ResponseStatus(HttpStatus.NOT_FOUND)
+    public void notFound() {
+    }
+}
@@ -0,0 +1,64 @@
+package guru.springframework.msscssm.web;
+
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.domain.PaymentStateChange;
+import guru.springframework.msscssm.services.PaymentStateChangeHub;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.Set;
+
+/*
+    transizioni committate in Server-Sent Events, p.es.
+
+        GET /api/v1/payments/events?state=AUTH&state=AUTH_ERROR&state=PRE_AUTH_ERROR
+        GET /api/v1/payments/events?paymentId=42&overflow=DISCONNECT
+
+    ogni evento si chiama state-change, ha per id la sequence e per dati il PaymentStateChange in JSON.
+    La connessione resta aperta finché il client non la chiude (o payment.events.sse-timeout-ms, 0 = mai).
+ */
+@RequiredArgsConstructor
+@RestController
+@RequestMapping(PaymentController.BASE_PATH)
+public class PaymentEventsController {
+
+    private final PaymentStateChangeHub paymentStateChangeHub;
+
+    @Value("${payment.events.sse-timeout-ms:0}")
+    private long timeoutMs;
+
+    @GetMapping(path = "/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter events(@RequestParam(required = false) Long paymentId,
+                             @RequestParam(name = "state", required = false) Set<PaymentState> states,
+                             @RequestParam(required = false) PaymentStateChangeHub.OverflowPolicy overflow) {
+        SseEmitter emitter = new SseEmitter(timeoutMs);
+
+        PaymentStateChangeHub.Subscription subscription = paymentStateChangeHub.subscribe(paymentId, states, overflow,
+                new PaymentStateChangeHub.Sink() {
+                    @Override
+                    public void send(PaymentStateChange change) throws Exception {
+                        emitter.send(SseEmitter.event()
+                                .id(Long.toString(change.getSequence()))
+                                .name("state-change")
+                                .data(change, MediaType.APPLICATION_JSON));
+                    }
+
+                    @Override
+                    public void close() {
+                        emitter.complete();
+                    }
+                });
+
+        emitter.onCompletion(subscription::cancel);
+        emitter.onTimeout(subscription::cancel);
+        emitter.onError(error -> subscription.cancel());
+
+        return emitter;
+    }
+}
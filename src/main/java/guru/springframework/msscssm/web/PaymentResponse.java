@@ -0,0 +1,24 @@
+package guru.springframework.msscssm.web;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import guru.springframework.msscssm.domain.PaymentState;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class PaymentResponse {
+
+    private Long paymentId;
+    private PaymentState state;
+    private BigDecimal amount;
+
+    public PaymentResponse(Long paymentId, PaymentState state) {
+        this(paymentId, state, null);
+    }
+}
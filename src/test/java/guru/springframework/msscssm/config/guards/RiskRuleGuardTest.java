@@ -0,0 +1,83 @@
+package guru.springframework.msscssm.config.guards;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.repository.PaymentRepository;
+import guru.springframework.msscssm.services.PaymentService;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+    le regole di esempio (risk-rules.json) sulla transizione PRE_AUTHORIZE: un pagamento respinto resta in NEW
+ */
+@SpringBootTest(properties = {
+        "payment.auth.decision=APPROVE",
+        "payment.risk.rules=classpath:risk-rules.json"
+})
+class RiskRuleGuardTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Test
+    void amountOverTheCapIsRejected() {
+        Long paymentId = newPayment("20000", "c-amount");
+
+        paymentService.preAuth(paymentId);
+
+        assertEquals(PaymentState.NEW, paymentRepository.findStateById(paymentId));
+        assertEquals(1, meterRegistry.get("payment.risk.rule.matches").tag("rule", "amount-cap").counter().count());
+    }
+
+    @Test
+    void velocityLimitPerCustomer() {
+        // large-and-fast: più di 3 pagamenti sopra 1000 in 10 secondi
+        for (int i = 0; i < 3; i++) {
+            Long paymentId = newPayment("1500", "c-velocity");
+            paymentService.preAuth(paymentId);
+            assertEquals(PaymentState.PRE_AUTH, paymentRepository.findStateById(paymentId));
+        }
+
+        Long fourth = newPayment("1500", "c-velocity");
+        paymentService.preAuth(fourth);
+        assertEquals(PaymentState.NEW, paymentRepository.findStateById(fourth));
+
+        // un altro cliente non ne risente
+        Long other = newPayment("1500", "c-other");
+        paymentService.preAuth(other);
+        assertEquals(PaymentState.PRE_AUTH, paymentRepository.findStateById(other));
+    }
+
+    /*
+        importo e cliente registrati alla creazione: la guard non rilegge il pagamento
+     */
+    @Test
+    void factsAreNotReadBackFromTheRepository() {
+        double loads = meterRegistry.get("payment.risk.facts.loads").counter().count();
+
+        Long paymentId = newPayment("12.99", "c-facts");
+        paymentService.preAuth(paymentId);
+
+        assertEquals(PaymentState.PRE_AUTH, paymentRepository.findStateById(paymentId));
+        assertEquals(loads, meterRegistry.get("payment.risk.facts.loads").counter().count());
+    }
+
+    private Long newPayment(String amount, String customerId) {
+        return paymentService.newPayment(Payment.builder()
+                .amount(new BigDecimal(amount))
+                .customerId(customerId)
+                .build()).getId();
+    }
+}
@@ -0,0 +1,51 @@
+package guru.springframework.msscssm.metrics;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.services.PaymentService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(properties = "payment.auth.decision=APPROVE")
+class PaymentMetricsTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Test
+    void transitionsActionsAndRejectedEventsAreRecorded() {
+        Long paymentId = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+
+        paymentService.preAuth(paymentId);
+
+        Timer approved = meterRegistry.find("payment.transitions")
+                .tags("source", "NEW", "target", "PRE_AUTH", "event", "PRE_AUTH_APPROVED").timer();
+        assertNotNull(approved);
+        assertTrue(approved.count() > 0);
+
+        Timer preAuthAction = meterRegistry.find("payment.action").tag("action", "preAuthAction").timer();
+        assertNotNull(preAuthAction);
+        assertTrue(preAuthAction.count() > 0);
+
+        assertTrue(meterRegistry.find("payment.build").timer().count() > 0);
+
+        paymentService.preAuth(paymentId);
+
+        Counter notAccepted = meterRegistry.find("payment.events.not-accepted")
+                .tags("state", "PRE_AUTH", "event", "PRE_AUTHORIZE").counter();
+        assertNotNull(notAccepted);
+        assertEquals(1.0, notAccepted.count());
+    }
+}
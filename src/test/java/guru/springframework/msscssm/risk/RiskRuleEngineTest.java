@@ -0,0 +1,154 @@
+package guru.springframework.msscssm.risk;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.DefaultResourceLoader;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    compilazione e valutazione delle regole di rischio, finestre di velocità e ricaricamento del file
+ */
+class RiskRuleEngineTest {
+
+    @TempDir
+    Path dir;
+
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void firstMatchingRuleRejects() throws IOException {
+        RiskRuleEngine engine = engine("{\"rules\": ["
+                + "{\"name\": \"amount-cap\", \"when\": {\"amountAbove\": 100}},"
+                + "{\"name\": \"blocklist\", \"when\": {\"customerIn\": [\"c-666\"]}}]}");
+
+        assertNull(engine.evaluate(facts(1L, "c-1", "99.99"), 0));
+        assertEquals("amount-cap", engine.evaluate(facts(2L, "c-666", "100.01"), 0));
+        assertEquals("blocklist", engine.evaluate(facts(3L, "c-666", "10"), 0));
+        assertNull(engine.evaluate(facts(4L, null, null), 0));
+
+        assertEquals(4, meterRegistry.get("payment.risk.rule").tag("rule", "amount-cap").timer().count());
+        assertEquals(3, meterRegistry.get("payment.risk.rule").tag("rule", "blocklist").timer().count());
+        assertEquals(1, meterRegistry.get("payment.risk.rule.matches").tag("rule", "blocklist").counter().count());
+    }
+
+    @Test
+    void velocityWindowSlides() throws IOException {
+        RiskRuleEngine engine = engine("{\"rules\": ["
+                + "{\"name\": \"too-fast\", \"when\": {\"velocity\": {\"max\": 2, \"windowMs\": 1600}}}]}");
+
+        assertNull(engine.evaluate(facts(1L, "c-1", "1"), 10_000));
+        assertNull(engine.evaluate(facts(2L, "c-1", "1"), 10_100));
+        assertEquals("too-fast", engine.evaluate(facts(3L, "c-1", "1"), 10_200));
+        // un altro cliente ha i suoi contatori
+        assertNull(engine.evaluate(facts(4L, "c-2", "1"), 10_200));
+        // lo stesso pagamento rivalutato non conta di nuovo
+        assertEquals("too-fast", engine.evaluate(facts(3L, "c-1", "1"), 10_300));
+
+        // i primi tre tentativi sono usciti dalla finestra
+        assertNull(engine.evaluate(facts(5L, "c-1", "1"), 12_000));
+    }
+
+    /*
+        A, B, A: il secondo A è lo stesso pagamento, anche se in mezzo ne è arrivato un altro
+     */
+    @Test
+    void velocityCountsEachPaymentOncePerWindow() throws IOException {
+        RiskRuleEngine engine = engine("{\"rules\": ["
+                + "{\"name\": \"too-fast\", \"when\": {\"velocity\": {\"max\": 2, \"windowMs\": 1600}}}]}");
+
+        assertNull(engine.evaluate(facts(1L, "c-1", "1"), 10_000));
+        assertNull(engine.evaluate(facts(2L, "c-1", "1"), 10_100));
+        assertNull(engine.evaluate(facts(1L, "c-1", "1"), 10_200));
+        assertNull(engine.evaluate(facts(2L, "c-1", "1"), 10_300));
+        assertEquals("too-fast", engine.evaluate(facts(3L, "c-1", "1"), 10_400));
+
+        // fuori dalla finestra lo stesso pagamento è un tentativo nuovo
+        assertNull(engine.evaluate(facts(1L, "c-1", "1"), 12_500));
+    }
+
+    @Test
+    void nestedConditionsAreFlattened() throws IOException {
+        RiskRuleEngine engine = engine("{\"rules\": [{\"name\": \"big-and-blocked\", \"when\": {\"all\": ["
+                + "{\"all\": [{\"amountAbove\": 10}, {\"not\": {\"not\": {\"amountBelow\": 50}}}]},"
+                + "{\"any\": [{\"customerIn\": [\"c-1\"]}, {\"any\": [{\"customerIn\": [\"c-2\"]}]}]}]}}]}");
+
+        assertEquals("big-and-blocked", engine.evaluate(facts(1L, "c-2", "20"), 0));
+        assertNull(engine.evaluate(facts(2L, "c-2", "60"), 0));
+        assertNull(engine.evaluate(facts(3L, "c-3", "20"), 0));
+    }
+
+    @Test
+    void invalidRulesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> engine("{\"rules\": ["
+                + "{\"name\": \"two-fields\", \"when\": {\"amountAbove\": 1, \"amountBelow\": 2}}]}"));
+        assertThrows(IllegalArgumentException.class, () -> engine("{\"rules\": ["
+                + "{\"name\": \"same\", \"when\": {\"amountAbove\": 1}},"
+                + "{\"name\": \"same\", \"when\": {\"amountAbove\": 2}}]}"));
+        assertThrows(IllegalArgumentException.class, () -> engine("{\"rules\": ["
+                + "{\"name\": \"too-many\", \"when\": {\"velocity\": {\"max\": " + VelocityCounter.MAX_TRACKED + ", \"windowMs\": 1000}}}]}"));
+        assertThrows(IllegalStateException.class, () -> engine("{\"rules\": ["
+                + "{\"name\": \"typo\", \"when\": {\"amountAbvoe\": 1}}]}"));
+    }
+
+    @Test
+    void reloadReplacesRulesOnlyWhenTheFileIsValid() throws IOException {
+        RiskRuleEngine engine = engine("{\"rules\": [{\"name\": \"amount-cap\", \"when\": {\"amountAbove\": 100}}]}");
+        assertFalse(engine.reload());
+
+        write("{\"rules\": [{\"name\": \"lower-cap\", \"when\": {\"amountAbove\": 10}}]}", 1);
+        assertTrue(engine.reload());
+        assertEquals(List.of("lower-cap"), engine.getRuleNames());
+        assertEquals("lower-cap", engine.evaluate(facts(1L, null, "50"), 0));
+
+        write("{\"rules\": [{\"name\": \"broken\", \"when\": {}}]}", 2);
+        assertFalse(engine.reload());
+        assertEquals(List.of("lower-cap"), engine.getRuleNames());
+        assertEquals(1, meterRegistry.get("payment.risk.reloads").tag("result", "rejected").counter().count());
+    }
+
+    @Test
+    void velocityCountersSurviveReload() throws IOException {
+        RiskRuleEngine engine = engine("{\"rules\": ["
+                + "{\"name\": \"too-fast\", \"when\": {\"velocity\": {\"max\": 1, \"windowMs\": 60000}}}]}");
+        assertNull(engine.evaluate(facts(1L, "c-1", "1"), 0));
+
+        write("{\"rules\": [{\"name\": \"renamed\", \"when\": {\"velocity\": {\"max\": 1, \"windowMs\": 60000}}}]}", 1);
+        assertTrue(engine.reload());
+
+        assertEquals("renamed", engine.evaluate(facts(2L, "c-1", "1"), 100));
+    }
+
+    private RiskRuleEngine engine(String rules) throws IOException {
+        write(rules, 0);
+        RiskRuleEngine engine = new RiskRuleEngine(new DefaultResourceLoader(), meterRegistry,
+                dir.resolve("rules.json").toUri().toString(), 1000);
+        engine.load();
+        return engine;
+    }
+
+    /*
+        l'orario di modifica esplicito: due scritture nello stesso millisecondo sembrerebbero lo stesso file
+     */
+    private void write(String rules, int version) throws IOException {
+        Path file = dir.resolve("rules.json");
+        Files.writeString(file, rules);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(1_000_000L + version * 1000L));
+    }
+
+    private static RiskFacts facts(Long paymentId, String customerId, String amount) {
+        return new RiskFacts(paymentId, customerId, amount == null ? null : new BigDecimal(amount));
+    }
+}
@@ -0,0 +1,129 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.domain.PaymentTransition;
+import guru.springframework.msscssm.repository.PaymentRepository;
+import guru.springframework.msscssm.repository.PaymentTransitionRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+    il percorso vero dei conflitti ottimistici, con il DB: la sottoclasse sceglie payment.persistence.mode
+    (ENTITY: @Version dell'entità, COALESCED: compare-and-set sullo stato).
+
+    Un altro "nodo" (InterferingDecisionProvider) porta il pagamento in PRE_AUTH tra la nostra lettura e la nostra
+    scrittura: la transizione perde, OptimisticRetry la ripete rileggendo lo stato e PRE_AUTHORIZE non è più
+    accettato. Il batch non ritenta, segna CONFLICT.
+ */
+abstract class AbstractOptimisticConflictTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    PaymentTransitionRepository paymentTransitionRepository;
+
+    @Autowired
+    InterferingDecisionProvider interferingDecisionProvider;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Test
+    void losingTransitionIsRetriedOnTheNewState() {
+        Long paymentId = newPayment();
+        double conflicts = count("payment.transition.conflicts");
+        double retries = count("payment.transition.retries");
+        double exhausted = count("payment.transition.retries.exhausted");
+
+        interferingDecisionProvider.interfere(paymentId, PaymentState.NEW, PaymentState.PRE_AUTH);
+
+        assertEquals(PaymentState.PRE_AUTH, paymentService.preAuth(paymentId));
+        assertEquals(PaymentState.PRE_AUTH, paymentRepository.findStateById(paymentId));
+        assertEquals(conflicts + 1, count("payment.transition.conflicts"));
+        assertEquals(retries + 1, count("payment.transition.retries"));
+        assertEquals(exhausted, count("payment.transition.retries.exhausted"));
+
+        // la transizione persa non è finita nello storico: c'è solo la creazione
+        assertEquals(List.of(PaymentState.NEW), targets(paymentId));
+    }
+
+    @Test
+    void batchReportsTheLosingRowAsConflict() {
+        Long conflicting = newPayment();
+        Long other = newPayment();
+
+        interferingDecisionProvider.interfere(conflicting, PaymentState.NEW, PaymentState.PRE_AUTH);
+
+        PaymentBatchResult result = paymentService.preAuthAll(List.of(conflicting, other));
+
+        assertEquals(PaymentBatchResult.Status.CONFLICT, result.get(conflicting).getStatus());
+        assertEquals(PaymentBatchResult.Status.TRANSITIONED, result.get(other).getStatus());
+        assertEquals(PaymentState.PRE_AUTH, result.get(other).getState());
+        assertEquals(PaymentState.PRE_AUTH, paymentRepository.findStateById(conflicting));
+        assertEquals(PaymentState.PRE_AUTH, paymentRepository.findStateById(other));
+        assertEquals(List.of(PaymentState.NEW), targets(conflicting));
+    }
+
+    /*
+        due preAuth insieme sullo stesso pagamento: comunque vada la gara, una sola transizione arriva a DB e
+        tutte e due vedono PRE_AUTH
+     */
+    @Test
+    void concurrentEventsOnOnePaymentApplyOnce() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            for (int round = 0; round < 20; round++) {
+                Long paymentId = newPayment();
+                CountDownLatch start = new CountDownLatch(1);
+
+                Future<PaymentState> first = executor.submit(() -> {
+                    start.await();
+                    return paymentService.preAuth(paymentId);
+                });
+                Future<PaymentState> second = executor.submit(() -> {
+                    start.await();
+                    return paymentService.preAuth(paymentId);
+                });
+                start.countDown();
+
+                assertEquals(PaymentState.PRE_AUTH, first.get());
+                assertEquals(PaymentState.PRE_AUTH, second.get());
+                assertEquals(PaymentState.PRE_AUTH, paymentRepository.findStateById(paymentId));
+                assertEquals(List.of(PaymentState.NEW, PaymentState.NEW, PaymentState.PRE_AUTH), targets(paymentId));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Long newPayment() {
+        return paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+    }
+
+    private List<PaymentState> targets(Long paymentId) {
+        return paymentTransitionRepository.findByPaymentIdOrderByIdAsc(paymentId).stream()
+                .map(PaymentTransition::getTarget)
+                .collect(Collectors.toList());
+    }
+
+    private double count(String name) {
+        return meterRegistry.counter(name).count();
+    }
+}
@@ -0,0 +1,153 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.repository.PaymentRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+    in modalità ASYNC preAuth e authorizePayment tornano subito (il pagamento resta NEW / PRE_AUTH) e lo stato
+    cambia quando il gateway risponde. Niente @Transactional qui: la chiamata al gateway parte solo al commit.
+ */
+@SpringBootTest(properties = {"payment.auth.mode=ASYNC", "payment.auth.decision=APPROVE",
+        "payment.auth.gateway.latency-ms=20"})
+class AsyncAuthorizerTest {
+
+    /*
+        il gateway locale, contando le chiamate per pagamento
+     */
+    @TestConfiguration
+    static class Config {
+
+        @Bean
+        @Primary
+        CountingGateway countingGateway(LocalAuthorizationGateway localAuthorizationGateway) {
+            return new CountingGateway(localAuthorizationGateway);
+        }
+    }
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    CountingGateway countingGateway;
+
+    @Autowired
+    AsyncAuthorizer asyncAuthorizer;
+
+    @Test
+    void preAuthThenAuthorize() throws InterruptedException {
+        Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+
+        assertEquals(PaymentState.NEW, paymentService.preAuth(payment.getId()));
+        awaitState(payment.getId(), PaymentState.PRE_AUTH);
+
+        assertEquals(PaymentState.PRE_AUTH, paymentService.authorizePayment(payment.getId()));
+        awaitState(payment.getId(), PaymentState.AUTH);
+    }
+
+    /*
+        la richiesta non scrive nulla (NEW -> NEW), quindi tutte e tre le preAuth vanno a buon fine: il gateway però
+        deve essere chiamato una volta sola
+     */
+    @Test
+    void repeatedPreAuthCallsTheGatewayOnce() throws Exception {
+        Long paymentId = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<PaymentState>> calls = List.of(
+                    executor.submit(() -> {
+                        start.await();
+                        return paymentService.preAuth(paymentId);
+                    }),
+                    executor.submit(() -> {
+                        start.await();
+                        return paymentService.preAuth(paymentId);
+                    }));
+            start.countDown();
+
+            for (Future<PaymentState> call : calls) {
+                call.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        paymentService.preAuth(paymentId);
+        awaitState(paymentId, PaymentState.PRE_AUTH);
+        awaitIdle();
+
+        // arrivata dopo l'esito: la macchina non la accetta più e il gateway non la vede
+        assertEquals(PaymentState.PRE_AUTH, paymentService.preAuth(paymentId));
+        awaitIdle();
+
+        assertEquals(1, countingGateway.preAuthorizations(paymentId));
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+
+        while (asyncAuthorizer.getInFlight() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, asyncAuthorizer.getInFlight());
+    }
+
+    private void awaitState(Long paymentId, PaymentState expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+
+        while (paymentRepository.findStateById(paymentId) != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(expected, paymentRepository.findStateById(paymentId));
+    }
+
+    static class CountingGateway implements AuthorizationGateway {
+
+        private final AuthorizationGateway delegate;
+        private final Map<Long, Integer> preAuthorizations = new ConcurrentHashMap<>();
+
+        CountingGateway(AuthorizationGateway delegate) {
+            this.delegate = delegate;
+        }
+
+        int preAuthorizations(Long paymentId) {
+            return preAuthorizations.getOrDefault(paymentId, 0);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> preAuthorize(Long paymentId) {
+            preAuthorizations.merge(paymentId, 1, Integer::sum);
+            return delegate.preAuthorize(paymentId);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> authorize(Long paymentId) {
+            return delegate.authorize(paymentId);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package guru.springframework.msscssm.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    i provider deterministici: stessi input, stessi esiti
+ */
+class AuthorizationDecisionProviderTest {
+
+    @Test
+    void ratioIsExactOnEveryWindow() {
+        RatioAuthorizationDecisionProvider provider = new RatioAuthorizationDecisionProvider(80);
+
+        int approvedInFirstTen = 0;
+        for (long id = 0; id < 10; id++) {
+            approvedInFirstTen += provider.approvePreAuth(id) ? 1 : 0;
+        }
+        assertEquals(8, approvedInFirstTen);
+
+        int approved = 0;
+        for (long id = 10; id < 1010; id++) {
+            approved += provider.approvePreAuth(id) ? 1 : 0;
+        }
+        assertEquals(800, approved);
+
+        // l'altro passo ha il suo conto
+        assertFalse(provider.approveAuth(1L) && provider.approveAuth(2L) && provider.approveAuth(3L)
+                && provider.approveAuth(4L) && provider.approveAuth(5L));
+    }
+
+    @Test
+    void scriptIsFollowedInOrderAndRepeats() {
+        ScriptedAuthorizationDecisionProvider provider = new ScriptedAuthorizationDecisionProvider(
+                List.of(true, false), List.of(false));
+
+        assertTrue(provider.approvePreAuth(1L));
+        assertFalse(provider.approvePreAuth(2L));
+        assertTrue(provider.approvePreAuth(3L));
+        assertFalse(provider.approveAuth(1L));
+        assertFalse(provider.approveAuth(2L));
+
+        assertThrows(IllegalArgumentException.class, () -> new ScriptedAuthorizationDecisionProvider(List.of(), List.of(true)));
+    }
+
+    @Test
+    void seededDependsOnlyOnSeedAndPayment() {
+        SeededAuthorizationDecisionProvider first = new SeededAuthorizationDecisionProvider(42, 80);
+        SeededAuthorizationDecisionProvider second = new SeededAuthorizationDecisionProvider(42, 80);
+
+        for (long id = 1000; id > 0; id--) {
+            assertEquals(first.approvePreAuth(id), second.approvePreAuth(id));
+            assertEquals(first.approveAuth(id), second.approveAuth(id));
+        }
+    }
+}
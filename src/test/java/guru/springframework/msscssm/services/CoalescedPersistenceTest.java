@@ -0,0 +1,88 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.repository.PaymentRepository;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.persistence.EntityManagerFactory;
+import java.math.BigDecimal;
+import java.util.EnumSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    modalità COALESCED: contiamo gli statement preparati da Hibernate (Statistics) per ogni operazione di business,
+    cioè solo il percorso dello stato del pagamento. Le insert di storico e outbox passano da JdbcTemplate e qui
+    non sono contate.
+
+    Una preAuth fa NEW -> NEW e poi NEW -> PRE_AUTH (o PRE_AUTH_ERROR), ma Hibernate deve preparare solo:
+        -   la select della colonna state
+        -   un update condizionale con lo stato finale
+
+    La cache dello stato (PaymentNearCache) è spenta: al commit della preAuth conterrebbe già PRE_AUTH e
+    l'authorize farebbe solo l'update, mentre qui contiamo il percorso verso il DB.
+ */
+@SpringBootTest(properties = {
+        "payment.persistence.mode=COALESCED",
+        "payment.cache.enabled=false",
+        "spring.jpa.properties.hibernate.generate_statistics=true"
+})
+class CoalescedPersistenceTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+
+    Statistics statistics;
+
+    @BeforeEach
+    void setUp() {
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+    }
+
+    @RepeatedTest(5)
+    void preAuthAndAuthorizeUseOneSelectAndOneUpdateEach() {
+        Long paymentId = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+
+        statistics.clear();
+        PaymentState preAuthState = paymentService.preAuth(paymentId);
+
+        assertEquals(2, statistics.getPrepareStatementCount());
+        assertEquals(0, statistics.getEntityLoadCount());
+        assertTrue(EnumSet.of(PaymentState.PRE_AUTH, PaymentState.PRE_AUTH_ERROR).contains(preAuthState));
+        assertEquals(preAuthState, paymentRepository.findStateById(paymentId));
+
+        if (preAuthState == PaymentState.PRE_AUTH) {
+            statistics.clear();
+            PaymentState authState = paymentService.authorizePayment(paymentId);
+
+            assertEquals(2, statistics.getPrepareStatementCount());
+            assertEquals(0, statistics.getEntityLoadCount());
+            assertEquals(authState, paymentRepository.findStateById(paymentId));
+        }
+    }
+
+    @Test
+    void eventNotAcceptedWritesNothing() {
+        Long paymentId = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+
+        statistics.clear();
+        paymentService.authorizePayment(paymentId);
+
+        assertEquals(1, statistics.getPrepareStatementCount());
+        assertEquals(PaymentState.NEW, paymentRepository.findStateById(paymentId));
+    }
+}
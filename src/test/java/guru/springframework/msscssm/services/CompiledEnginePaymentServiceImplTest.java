@@ -0,0 +1,166 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.engine.CompiledStateMachineEngine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ApplicationContext;
+import org.springframework.messaging.Message;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.statemachine.listener.StateMachineListenerAdapter;
+import org.springframework.statemachine.state.State;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+import org.springframework.statemachine.support.StateMachineInterceptorAdapter;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    stessi scenari di PaymentServiceImplTest, ma con il motore compilato al posto di Spring State Machine
+ */
+@SpringBootTest(properties = {
+        "payment.statemachine.engine=COMPILED",
+        "payment.risk.rules=classpath:risk-rules.json"
+})
+class CompiledEnginePaymentServiceImplTest extends PaymentServiceImplTest {
+
+    @Autowired
+    PaymentStateMachineProvider stateMachineProvider;
+
+    @Autowired
+    ApplicationContext applicationContext;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Test
+    void usesCompiledEngine() {
+        assertTrue(stateMachineProvider instanceof CompiledStateMachineEngine);
+    }
+
+    /*
+        all'avvio niente factory di Spring State Machine e niente pool: solo il modello condiviso
+     */
+    @Test
+    void springStateMachineIsNotBuilt() {
+        assertEquals(0, applicationContext.getBeanNamesForType(StateMachineFactory.class).length);
+        assertEquals(0, applicationContext.getBeanNamesForType(StateMachinePool.class).length);
+    }
+
+    /*
+        un PRE_AUTHORIZE fermato dalla guard (amount-cap di risk-rules.json) si conta come evento non accettato
+     */
+    @Test
+    void guardRejectionsAreCountedAsNotAccepted() {
+        Long paymentId = paymentService.newPayment(Payment.builder().amount(new BigDecimal("20000")).build()).getId();
+        double before = notAccepted(PaymentState.NEW, PaymentEvent.PRE_AUTHORIZE);
+
+        assertEquals(PaymentState.NEW, paymentService.preAuth(paymentId));
+
+        assertEquals(before + 1, notAccepted(PaymentState.NEW, PaymentEvent.PRE_AUTHORIZE));
+    }
+
+    /*
+        accessor (reset allo stato di un contesto, interceptor) e listener sulla macchina compilata, come con
+        Spring State Machine
+     */
+    @Test
+    void accessorAndListeners() {
+        Long paymentId = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+        StateMachine<PaymentState, PaymentEvent> sm = stateMachineProvider.borrow(paymentId, PaymentState.PRE_AUTH);
+        List<String> seen = new ArrayList<>();
+
+        try {
+            sm.getStateMachineAccessor().doWithAllRegions(access ->
+                    access.resetStateMachine(new DefaultStateMachineContext<>(PaymentState.NEW, null, null, null)));
+            assertEquals(PaymentState.NEW, sm.getState().getId());
+
+            sm.addStateListener(new StateMachineListenerAdapter<>() {
+                @Override
+                public void stateChanged(State<PaymentState, PaymentEvent> from, State<PaymentState, PaymentEvent> to) {
+                    seen.add(from.getId() + "->" + to.getId());
+                }
+
+                @Override
+                public void eventNotAccepted(Message<PaymentEvent> event) {
+                    seen.add("not accepted " + event.getPayload());
+                }
+            });
+            sm.getStateMachineAccessor().doWithAllRegions(access -> access.addStateMachineInterceptor(new StateMachineInterceptorAdapter<>() {
+                @Override
+                public Message<PaymentEvent> preEvent(Message<PaymentEvent> message, StateMachine<PaymentState, PaymentEvent> stateMachine) {
+                    seen.add("pre " + message.getPayload() + " " + message.getHeaders().get(PaymentServiceImpl.PAYMENT_ID_HEADER));
+                    return message.getPayload() == PaymentEvent.AUTH_TIMEOUT ? null : message;
+                }
+            }));
+
+            new TransactionTemplate(transactionManager).execute(status -> {
+                assertFalse(sm.sendEvent(PaymentEvent.AUTH_TIMEOUT));
+                assertFalse(sm.sendEvent(PaymentEvent.AUTHORIZE));
+                assertTrue(sm.sendEvent(PaymentEvent.PRE_AUTH_TIMEOUT));
+                return null;
+            });
+        } finally {
+            stateMachineProvider.release(sm);
+        }
+
+        assertEquals(List.of(
+                "pre AUTH_TIMEOUT " + paymentId, "not accepted AUTH_TIMEOUT",
+                "pre AUTHORIZE " + paymentId, "not accepted AUTHORIZE",
+                "pre PRE_AUTH_TIMEOUT " + paymentId, "NEW->PRE_AUTH_ERROR"), seen);
+        assertEquals(PaymentState.PRE_AUTH_ERROR, paymentService.currentState(paymentId));
+    }
+
+    /*
+        una macchina rilasciata torna al prossimo borrow, senza quello che le aveva aggiunto chi l'aveva prima
+     */
+    @Test
+    void releasedMachinesAreReused() {
+        StateMachine<PaymentState, PaymentEvent> first = stateMachineProvider.borrow(1L, PaymentState.PRE_AUTH);
+        List<String> seen = new ArrayList<>();
+        first.addStateListener(new StateMachineListenerAdapter<>() {
+            @Override
+            public void eventNotAccepted(Message<PaymentEvent> event) {
+                seen.add("not accepted " + event.getPayload());
+            }
+        });
+        first.getExtendedState().getVariables().put("key", "value");
+        stateMachineProvider.release(first);
+
+        StateMachine<PaymentState, PaymentEvent> second = stateMachineProvider.borrow(2L, PaymentState.NEW);
+        try {
+            assertSame(first, second);
+            assertEquals("2", second.getId());
+            assertEquals(PaymentState.NEW, second.getState().getId());
+            assertTrue(second.getExtendedState().getVariables().isEmpty());
+
+            assertFalse(second.sendEvent(PaymentEvent.AUTHORIZE));
+            assertTrue(seen.isEmpty());
+        } finally {
+            stateMachineProvider.release(second);
+        }
+    }
+
+    private double notAccepted(PaymentState state, PaymentEvent event) {
+        Counter counter = meterRegistry.find("payment.events.not-accepted")
+                .tags("state", state.name(), "event", event.name()).counter();
+        return counter == null ? 0 : counter.count();
+    }
+}
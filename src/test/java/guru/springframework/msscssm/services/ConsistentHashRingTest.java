@@ -0,0 +1,56 @@
+package guru.springframework.msscssm.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    partizioni divise in modo equilibrato e, al cambio dei membri, spostate solo quelle del nodo che entra o esce
+ */
+class ConsistentHashRingTest {
+
+    private static final int PARTITIONS = 1024;
+
+    @Test
+    void partitionsAreBalanced() {
+        ConsistentHashRing ring = new ConsistentHashRing(Set.of("a", "b", "c", "d"), PARTITIONS, 128);
+
+        for (String member : ring.getMembers()) {
+            int owned = ring.partitionsOf(member).size();
+            assertTrue(owned > PARTITIONS / 4 * 0.7 && owned < PARTITIONS / 4 * 1.3, member + " owns " + owned);
+        }
+    }
+
+    @Test
+    void onlyTheLeavingNodesPartitionsMove() {
+        ConsistentHashRing before = new ConsistentHashRing(Set.of("a", "b", "c", "d"), PARTITIONS, 128);
+        ConsistentHashRing after = new ConsistentHashRing(Set.of("a", "b", "c"), PARTITIONS, 128);
+
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            if (!before.ownerOfPartition(partition).equals("d")) {
+                assertEquals(before.ownerOfPartition(partition), after.ownerOfPartition(partition));
+            }
+        }
+    }
+
+    @Test
+    void paymentsKeepTheirPartition() {
+        ConsistentHashRing small = new ConsistentHashRing(Set.of("a"), PARTITIONS, 16);
+        ConsistentHashRing large = new ConsistentHashRing(Set.of("a", "b", "c"), PARTITIONS, 16);
+
+        for (long paymentId = 1; paymentId < 10_000; paymentId++) {
+            assertEquals(small.partitionOf(paymentId), large.partitionOf(paymentId));
+            assertEquals(large.ownerOfPartition(large.partitionOf(paymentId)), large.ownerOf(paymentId));
+        }
+        assertEquals("a", small.ownerOf(42L));
+    }
+
+    @Test
+    void emptyRingHasNoOwners() {
+        assertNull(new ConsistentHashRing(Set.of(), PARTITIONS, 16).ownerOf(42L));
+    }
+}
@@ -0,0 +1,9 @@
+package guru.springframework.msscssm.services;
+
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+
+@SpringBootTest(properties = "payment.persistence.mode=ENTITY")
+@Import(InterferingDecisionProvider.Config.class)
+class EntityOptimisticConflictTest extends AbstractOptimisticConflictTest {
+}
@@ -0,0 +1,91 @@
+package guru.springframework.msscssm.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    scadenze, cancellazioni e sostituzioni sulla ruota, anche oltre un giro completo
+ */
+class HashedTimingWheelTest {
+
+    private final Map<Long, String> expired = new ConcurrentHashMap<>();
+    private final HashedTimingWheel<String> wheel = new HashedTimingWheel<>("test-wheel", 5, 8, expired::put);
+
+    @AfterEach
+    void stop() {
+        wheel.stop();
+    }
+
+    @Test
+    void expiresAfterTheDelay() throws InterruptedException {
+        long start = System.nanoTime();
+        wheel.schedule(1L, "a", 30);
+        wheel.schedule(2L, "b", 120);   // più di un giro: 8 bucket da 5 ms
+
+        awaitExpired(2);
+
+        assertEquals("a", expired.get(1L));
+        assertEquals("b", expired.get(2L));
+        assertTrue(System.nanoTime() - start >= 120_000_000L);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void cancelledTimeoutsNeverExpire() throws InterruptedException {
+        wheel.schedule(1L, "a", 20);
+        wheel.schedule(2L, "b", 40);
+
+        assertTrue(wheel.cancel(1L));
+        assertFalse(wheel.cancel(3L));
+
+        awaitExpired(1);
+        Thread.sleep(50);
+
+        assertEquals(Map.of(2L, "b"), expired);
+    }
+
+    @Test
+    void scheduleReplacesThePreviousTimeout() throws InterruptedException {
+        wheel.schedule(1L, "a", 20);
+        wheel.schedule(1L, "b", 60);
+        assertEquals(1, wheel.size());
+
+        awaitExpired(1);
+        Thread.sleep(50);
+
+        assertEquals(Map.of(1L, "b"), expired);
+    }
+
+    @Test
+    void manyTimeouts() throws InterruptedException {
+        for (long i = 0; i < 100_000; i++) {
+            wheel.schedule(i, "t", i % 100);
+        }
+        for (long i = 0; i < 100_000; i += 2) {
+            wheel.cancel(i);
+        }
+
+        awaitExpired(50_000);
+        Thread.sleep(50);
+
+        assertEquals(50_000, expired.size());
+        assertTrue(expired.keySet().stream().allMatch(key -> key % 2 == 1));
+    }
+
+    private void awaitExpired(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+
+        while (expired.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        assertEquals(count, expired.size());
+    }
+}
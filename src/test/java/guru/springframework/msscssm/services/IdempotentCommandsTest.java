@@ -0,0 +1,133 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentCommandRecord;
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.repository.PaymentCommandRecordRepository;
+import guru.springframework.msscssm.store.PaymentStateStore;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/*
+    i duplicati tornano l'esito del primo comando senza rieseguirlo, anche se arrivano insieme
+ */
+@SpringBootTest(properties = {"spring.jpa.show-sql=false", "payment.auth.decision=APPROVE"})
+class IdempotentCommandsTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentStateStore paymentStateStore;
+
+    @Autowired
+    PaymentCommandRecordRepository commandRecordRepository;
+
+    @Autowired
+    PaymentHistory paymentHistory;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Test
+    void duplicateReturnsFirstOutcome() {
+        Long paymentId = newPayment();
+        String key = UUID.randomUUID().toString();
+        double executions = executions();
+
+        assertEquals(PaymentState.PRE_AUTH, paymentService.preAuth(paymentId, key));
+        int transitions = paymentHistory.history(paymentId).size();
+
+        assertEquals(PaymentState.PRE_AUTH, paymentService.preAuth(paymentId, key));
+        assertEquals(PaymentState.PRE_AUTH, paymentService.preAuth(paymentId, key));
+
+        assertEquals(executions + 1, executions());
+        assertEquals(transitions, paymentHistory.history(paymentId).size());
+        assertEquals(PaymentState.PRE_AUTH, commandRecordRepository.findById(key).get().getState());
+    }
+
+    @Test
+    void concurrentDuplicatesExecuteOnce() throws Exception {
+        Long paymentId = newPayment();
+        paymentService.preAuth(paymentId);
+        String key = UUID.randomUUID().toString();
+        double executions = executions();
+
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<PaymentState>> results = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return paymentService.authorizePayment(paymentId, key);
+                }));
+            }
+            start.countDown();
+
+            for (Future<PaymentState> result : results) {
+                assertEquals(PaymentState.AUTH, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(executions + 1, executions());
+    }
+
+    /*
+        chiave già in tabella ma non in memoria, come dopo un riavvio: il pagamento non viene toccato
+     */
+    @Test
+    void storedOutcomeSurvivesRestart() {
+        Long paymentId = newPayment();
+        String key = UUID.randomUUID().toString();
+
+        commandRecordRepository.insert(PaymentCommandRecord.builder()
+                .idempotencyKey(key)
+                .paymentId(paymentId)
+                .event(PaymentEvent.PRE_AUTHORIZE)
+                .state(PaymentState.PRE_AUTH_ERROR)
+                .createdAt(Instant.now())
+                .build());
+
+        assertEquals(PaymentState.PRE_AUTH_ERROR, paymentService.preAuth(paymentId, key));
+        assertEquals(PaymentState.NEW, paymentStateStore.load(paymentId));
+    }
+
+    @Test
+    void keyReusedForAnotherCommand() {
+        Long paymentId = newPayment();
+        String key = UUID.randomUUID().toString();
+
+        paymentService.preAuth(paymentId, key);
+
+        assertThrows(IdempotencyKeyReusedException.class, () -> paymentService.authorizePayment(paymentId, key));
+        assertThrows(IdempotencyKeyReusedException.class, () -> paymentService.preAuth(newPayment(), key));
+    }
+
+    private Long newPayment() {
+        return paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+    }
+
+    private double executions() {
+        return meterRegistry.get("payment.idempotency.executions").counter().count();
+    }
+}
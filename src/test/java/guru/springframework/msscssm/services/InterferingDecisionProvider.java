@@ -0,0 +1,78 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.domain.PaymentStateUpdate;
+import guru.springframework.msscssm.repository.PaymentRepository;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    decisore per i test dei conflitti: approva sempre, ma per i pagamenti indicati con interfere, prima di decidere,
+    sposta la riga a DB in un altro stato con una transazione sua, già committata. È quello che farebbe un altro
+    nodo tra la nostra lettura dello stato e la nostra scrittura. Succede una volta sola per pagamento, così il
+    retry trova il DB fermo.
+
+    I test lo sostituiscono al decisore configurato con @Import(InterferingDecisionProvider.Config.class).
+ */
+public class InterferingDecisionProvider implements AuthorizationDecisionProvider {
+
+    @TestConfiguration
+    public static class Config {
+
+        @Bean
+        @Primary
+        public InterferingDecisionProvider interferingDecisionProvider(PaymentRepository paymentRepository,
+                                                                       PlatformTransactionManager transactionManager) {
+            return new InterferingDecisionProvider(paymentRepository, transactionManager);
+        }
+    }
+
+    private final PaymentRepository paymentRepository;
+    private final TransactionTemplate otherNode;
+    private final Map<Long, PaymentStateUpdate> interferences = new ConcurrentHashMap<>();
+
+    public InterferingDecisionProvider(PaymentRepository paymentRepository, PlatformTransactionManager transactionManager) {
+        this.paymentRepository = paymentRepository;
+        this.otherNode = new TransactionTemplate(transactionManager);
+        this.otherNode.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    public void interfere(Long paymentId, PaymentState from, PaymentState to) {
+        interferences.put(paymentId, new PaymentStateUpdate(paymentId, from, to));
+    }
+
+    @Override
+    public boolean approvePreAuth(Long paymentId) {
+        interfere(paymentId);
+        return true;
+    }
+
+    @Override
+    public boolean approveAuth(Long paymentId) {
+        interfere(paymentId);
+        return true;
+    }
+
+    private void interfere(Long paymentId) {
+        PaymentStateUpdate update = interferences.remove(paymentId);
+
+        if (update == null) {
+            return;
+        }
+
+        Integer updated = otherNode.execute(status -> paymentRepository.compareAndSetState(update.getPaymentId(),
+                update.getExpectedState(), update.getState(), Instant.now()));
+
+        if (updated == null || updated != 1) {
+            throw new IllegalStateException("Payment " + paymentId + " is not in state " + update.getExpectedState());
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentNotification;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    una notifica riconsegnata dal relay con lo stesso id (relay fermo tra consegna e cancellazione) conta una
+    volta sola e non torna tra le fallite
+ */
+class LocalPaymentNotificationSinkTest {
+
+    @Test
+    void redeliveredNotificationsAreDiscarded() {
+        LocalPaymentNotificationSink sink = new LocalPaymentNotificationSink(60_000, 1_000);
+        PaymentNotification first = notification(1L, 10L);
+        PaymentNotification second = notification(2L, 11L);
+
+        assertTrue(sink.deliver(List.of(first)).isEmpty());
+        assertTrue(sink.deliver(List.of(first, second)).isEmpty());
+        assertTrue(sink.deliver(List.of(second)).isEmpty());
+
+        assertEquals(2, sink.getDelivered());
+        assertEquals(2, sink.getDuplicates());
+    }
+
+    private static PaymentNotification notification(Long id, Long paymentId) {
+        return PaymentNotification.builder().id(id).paymentId(paymentId).event(PaymentEvent.AUTH_APPROVED).build();
+    }
+}
@@ -0,0 +1,22 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.store.MappedPaymentStateStore;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    stessi scenari di PaymentServiceImplTest, con lo stato nel file mappato invece che nella tabella payment
+ */
+@SpringBootTest(properties = {
+        "payment.state-store=MAPPED",
+        "payment.state-store.mapped.sync=GROUP"
+})
+class MappedStorePaymentServiceImplTest extends PaymentServiceImplTest {
+
+    @Test
+    void usesMappedStore() {
+        assertTrue(paymentStateStore instanceof MappedPaymentStateStore);
+    }
+}
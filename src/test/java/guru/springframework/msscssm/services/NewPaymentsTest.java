@@ -0,0 +1,135 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.repository.PaymentRepository;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.persistence.EntityManagerFactory;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    creazione in blocco contro H2: quanti statement JDBC servono (id dalla sequence a gruppi di 50, INSERT in
+    batch da 50) rispetto a newPayment uno alla volta, validazione prima di scrivere ed esito per blocco.
+    Il confronto dei pagamenti al secondo sta in NewPaymentsBenchmark (JMH)
+ */
+@SpringBootTest(properties = {
+        "spring.datasource.generate-unique-name=true",
+        "spring.jpa.show-sql=false",
+        "spring.jpa.properties.hibernate.generate_statistics=true",
+        "payment.create.chunk-size=1000"
+})
+class NewPaymentsTest {
+
+    static final int SINGLE = 500;
+    static final int BULK = 20_000;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    PaymentStateIndex paymentStateIndex;
+
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+
+    @Test
+    void bulkCreationBatchesStatements() {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        long before = paymentRepository.count();
+
+        statistics.clear();
+        for (Payment payment : payments(SINGLE)) {
+            paymentService.newPayment(payment);
+        }
+        long singleStatements = statistics.getPrepareStatementCount();
+
+        statistics.clear();
+        PaymentCreationResult result = paymentService.newPayments(payments(BULK));
+        long bulkStatements = statistics.getPrepareStatementCount();
+
+        assertTrue(result.isComplete());
+        assertEquals(BULK / 1000, result.getChunks().size());
+
+        List<Payment> created = result.getCreated();
+        assertEquals(BULK, created.size());
+        assertTrue(created.stream().allMatch(payment -> payment.getId() != null && payment.getState() == PaymentState.NEW));
+        assertEquals(BULK, created.stream().map(Payment::getId).distinct().count());
+        assertEquals(before + SINGLE + BULK, paymentRepository.count());
+
+        Payment last = created.get(BULK - 1);
+        assertEquals(PaymentState.NEW, paymentRepository.findStateById(last.getId()));
+        assertEquals(PaymentState.NEW, paymentStateIndex.get(last.getId()));
+
+        // almeno una INSERT per pagamento uno alla volta; in blocco una chiamata alla sequence e un batch di
+        // INSERT ogni 50 pagamenti
+        assertTrue(singleStatements >= SINGLE, singleStatements + " statements");
+        assertTrue(bulkStatements <= BULK / 20, bulkStatements + " statements");
+    }
+
+    @Test
+    void alreadyPersistedPaymentsAreRejectedBeforeAnyWrite() {
+        long before = paymentRepository.count();
+        Payment persisted = paymentService.newPayment(Payment.builder().amount(new BigDecimal("1")).build());
+
+        List<Payment> payments = payments(1_500);
+        payments.add(persisted);
+
+        assertThrows(IllegalArgumentException.class, () -> paymentService.newPayments(payments));
+
+        List<Payment> versioned = payments(10);
+        versioned.get(5).setVersion(3L);
+
+        assertThrows(IllegalArgumentException.class, () -> paymentService.newPayments(versioned));
+
+        assertEquals(before + 1, paymentRepository.count());
+        assertNull(payments.get(0).getId());
+    }
+
+    /*
+        un customerId troppo lungo per la colonna fa fallire il secondo blocco: primo e terzo restano creati
+     */
+    @Test
+    void failedChunkLeavesTheOthersCreated() {
+        long before = paymentRepository.count();
+        List<Payment> payments = payments(3_000);
+        payments.get(1_500).setCustomerId("c".repeat(1_000));
+
+        PaymentCreationResult result = paymentService.newPayments(payments);
+
+        assertFalse(result.isComplete());
+        assertEquals(3, result.getChunks().size());
+        assertEquals(1, result.getFailed().size());
+        assertEquals(1_000, result.getFailed().get(0).getFrom());
+        assertTrue(result.getChunks().get(0).isCreated());
+        assertTrue(result.getChunks().get(2).isCreated());
+
+        assertEquals(2_000, result.getCreated().size());
+        assertEquals(before + 2_000, paymentRepository.count());
+        assertTrue(payments.subList(1_000, 2_000).stream().allMatch(payment -> payment.getId() == null));
+        assertTrue(payments.subList(2_000, 3_000).stream().allMatch(payment -> payment.getId() != null));
+    }
+
+    private static List<Payment> payments(int count) {
+        List<Payment> payments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            payments.add(Payment.builder().amount(new BigDecimal("12.99")).customerId("c-" + (i % 1_000)).build());
+        }
+        return payments;
+    }
+}
@@ -0,0 +1,140 @@
+package guru.springframework.msscssm.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    la mappa confrontata con una HashMap, la crescita, i limiti di chiavi e valori e le scritture concorrenti
+ */
+class OffHeapLongByteMapTest {
+
+    @Test
+    void behavesLikeAHashMap() {
+        OffHeapLongByteMap map = new OffHeapLongByteMap(16);
+        Map<Long, Byte> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 200_000; i++) {
+            // metà chiavi dense (come gli id della sequence), metà sparse su tutto l'intervallo
+            long key = i % 2 == 0 ? random.nextInt(100_000) : (long) (random.nextDouble() * OffHeapLongByteMap.MAX_KEY);
+            byte value = (byte) random.nextInt(OffHeapLongByteMap.MAX_VALUE + 1);
+
+            switch (random.nextInt(4)) {
+                case 0:
+                    map.remove(key);
+                    expected.remove(key);
+                    break;
+                case 1:
+                    assertEquals(!expected.containsKey(key), map.putIfAbsent(key, value));
+                    expected.putIfAbsent(key, value);
+                    break;
+                default:
+                    map.put(key, value);
+                    expected.put(key, value);
+            }
+        }
+
+        expected.forEach((key, value) -> assertEquals((byte) value, map.get(key)));
+        assertEquals(expected.size(), map.size());
+        assertTrue(map.capacity() > 16);
+    }
+
+    @Test
+    void missingKeys() {
+        OffHeapLongByteMap map = new OffHeapLongByteMap(16);
+        map.put(8, (byte) 3);
+
+        assertEquals(OffHeapLongByteMap.MISSING, map.get(9));
+        assertEquals(OffHeapLongByteMap.MISSING, map.get(1_000));
+        assertEquals(OffHeapLongByteMap.MISSING, map.get(-1));
+
+        map.remove(8);
+        assertEquals(OffHeapLongByteMap.MISSING, map.get(8));
+        assertEquals(0, map.size());
+        assertTrue(map.putIfAbsent(9, (byte) 1));
+        assertFalse(map.putIfAbsent(9, (byte) 2));
+        assertEquals(1, map.get(9));
+    }
+
+    @Test
+    void removeIf() {
+        OffHeapLongByteMap map = new OffHeapLongByteMap(16);
+        for (long key = 0; key < 10_000; key++) {
+            map.put(key, (byte) (key % 3));
+        }
+
+        assertEquals(5_000, map.removeIf(key -> key % 2 == 1));
+
+        assertEquals(5_000, map.size());
+        for (long key = 0; key < 10_000; key++) {
+            assertEquals(key % 2 == 1 ? OffHeapLongByteMap.MISSING : (byte) (key % 3), map.get(key));
+        }
+    }
+
+    @Test
+    void rejectsOutOfRangeKeysAndValues() {
+        OffHeapLongByteMap map = new OffHeapLongByteMap(16);
+
+        map.put(OffHeapLongByteMap.MAX_KEY, (byte) OffHeapLongByteMap.MAX_VALUE);
+        assertEquals(OffHeapLongByteMap.MAX_VALUE, map.get(OffHeapLongByteMap.MAX_KEY));
+
+        assertThrows(IllegalArgumentException.class, () -> map.put(OffHeapLongByteMap.MAX_KEY + 1, (byte) 0));
+        assertThrows(IllegalArgumentException.class, () -> map.put(-1, (byte) 0));
+        assertThrows(IllegalArgumentException.class, () -> map.put(1, (byte) (OffHeapLongByteMap.MAX_VALUE + 1)));
+    }
+
+    @Test
+    void denseKeysTakeAboutOneByteAndAHalf() {
+        OffHeapLongByteMap map = new OffHeapLongByteMap(1_000_000);
+        long capacity = map.capacity();
+        // la tabella è una potenza di 2: la si riempie fino al fattore di carico massimo
+        long ids = capacity * 3 / 4 * 8;
+
+        for (long id = 0; id < ids; id++) {
+            map.put(id, (byte) (id % 6));
+        }
+
+        assertEquals(capacity, map.capacity());
+        assertTrue((double) map.memoryBytes() / map.size() < 1.5, map.memoryBytes() + " bytes");
+    }
+
+    @Test
+    void concurrentWritersWhileGrowing() throws Exception {
+        OffHeapLongByteMap map = new OffHeapLongByteMap(1);
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            Future<?>[] writers = new Future<?>[threads];
+            for (int t = 0; t < threads; t++) {
+                long first = t;
+                writers[t] = executor.submit(() -> {
+                    for (long key = first; key < 400_000; key += threads) {
+                        map.put(key, (byte) (key % 15));
+                    }
+                });
+            }
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        for (long key = 0; key < 400_000; key++) {
+            assertEquals((byte) (key % 15), map.get(key));
+        }
+        assertEquals(400_000, map.size());
+    }
+}
@@ -0,0 +1,57 @@
+package guru.springframework.msscssm.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class OptimisticRetryTest {
+
+    SimpleMeterRegistry meterRegistry;
+    OptimisticRetry retry;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        retry = new OptimisticRetry(meterRegistry);
+        ReflectionTestUtils.setField(retry, "maxAttempts", 3);
+        ReflectionTestUtils.setField(retry, "baseBackoffMs", 1L);
+        ReflectionTestUtils.setField(retry, "maxBackoffMs", 5L);
+    }
+
+    @Test
+    void retriesUntilTheTransitionWins() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        String result = retry.execute(() -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new OptimisticLockingFailureException("conflict");
+            }
+            return "done";
+        });
+
+        assertEquals("done", result);
+        assertEquals(3, attempts.get());
+        assertEquals(2.0, meterRegistry.counter("payment.transition.conflicts").count());
+        assertEquals(2.0, meterRegistry.counter("payment.transition.retries").count());
+    }
+
+    @Test
+    void givesUpAfterMaxAttempts() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThrows(OptimisticLockingFailureException.class, () -> retry.execute(() -> {
+            attempts.incrementAndGet();
+            throw new OptimisticLockingFailureException("conflict");
+        }));
+
+        assertEquals(3, attempts.get());
+        assertEquals(1.0, meterRegistry.counter("payment.transition.retries.exhausted").count());
+    }
+}
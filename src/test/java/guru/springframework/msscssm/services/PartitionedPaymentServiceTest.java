@@ -0,0 +1,187 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.repository.PaymentRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    tre nodi nello stesso processo, collegati da LocalPaymentClusterMembership. Tutti usano lo stesso
+    PaymentServiceImpl (stesso DB), ma ognuno attraverso un proxy che registra quale nodo ha eseguito cosa e su
+    quale thread, e ognuno con il suo PaymentEventDispatcher.
+ */
+@SpringBootTest(properties = {"spring.jpa.show-sql=false", "payment.auth.decision=APPROVE"})
+class PartitionedPaymentServiceTest {
+
+    @Autowired
+    PaymentServiceImpl paymentServiceImpl;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    /* id pagamento -> nodo che ha eseguito l'ultima operazione */
+    final Map<Long, String> executedBy = new ConcurrentHashMap<>();
+
+    /* id pagamento -> thread che ha eseguito l'ultima operazione */
+    final Map<Long, String> executedOn = new ConcurrentHashMap<>();
+
+    LocalPaymentClusterMembership membership;
+    List<PartitionedPaymentService> nodes;
+    List<PaymentEventDispatcher> dispatchers;
+
+    @BeforeEach
+    void startNodes() {
+        membership = new LocalPaymentClusterMembership();
+        nodes = new ArrayList<>();
+        dispatchers = new ArrayList<>();
+
+        for (String nodeId : List.of("node-a", "node-b", "node-c")) {
+            StaticListableBeanFactory beans = new StaticListableBeanFactory();
+            PartitionedPaymentService node = new PartitionedPaymentService(nodeId, membership, recording(nodeId),
+                    beans.getBeanProvider(PaymentEventDispatcher.class), new SimpleMeterRegistry(), 256, 64);
+
+            PaymentEventDispatcher dispatcher = new PaymentEventDispatcher(node, new SimpleMeterRegistry(), 2, 64);
+            beans.addBean("paymentEventDispatcher", dispatcher);
+            dispatchers.add(dispatcher);
+
+            node.start();
+            nodes.add(node);
+        }
+    }
+
+    @AfterEach
+    void stopNodes() throws InterruptedException {
+        for (PaymentEventDispatcher dispatcher : dispatchers) {
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    void requestsRunOnTheOwner() {
+        List<Long> paymentIds = newPayments(60);
+
+        for (int i = 0; i < paymentIds.size(); i++) {
+            Long paymentId = paymentIds.get(i);
+            PartitionedPaymentService entry = nodes.get(i % nodes.size());
+
+            assertEquals(PaymentState.PRE_AUTH, entry.preAuth(paymentId, null));
+            assertEquals(entry.ownerOf(paymentId), executedBy.get(paymentId));
+        }
+
+        // ogni nodo ha la sua parte
+        assertEquals(3, executedBy.values().stream().distinct().count());
+    }
+
+    @Test
+    void forwardedRequestsRunInTheOwnersLanes() {
+        List<Long> paymentIds = newPayments(30);
+        PartitionedPaymentService entry = nodes.get(0);
+
+        for (Long paymentId : paymentIds) {
+            executedOn.clear();
+            assertEquals(PaymentState.PRE_AUTH, entry.sendEvent(paymentId, PaymentEvent.PRE_AUTHORIZE));
+
+            if (!entry.owns(paymentId)) {
+                // inoltrata: dentro una corsia del proprietario, non sul thread di chi ha chiamato
+                assertTrue(executedOn.get(paymentId).startsWith("payment-lane-"), executedOn.get(paymentId));
+            } else {
+                assertEquals(Thread.currentThread().getName(), executedOn.get(paymentId));
+            }
+        }
+
+        PaymentBatchResult result = entry.authorizeAll(paymentIds);
+        assertEquals(30, result.count(PaymentBatchResult.Status.TRANSITIONED));
+        paymentIds.stream().filter(paymentId -> !entry.owns(paymentId))
+                .forEach(paymentId -> assertTrue(executedOn.get(paymentId).startsWith("payment-lane-")));
+    }
+
+    @Test
+    void batchesAreSplitByOwner() {
+        List<Long> paymentIds = newPayments(60);
+
+        PaymentBatchResult result = nodes.get(0).preAuthAll(paymentIds);
+
+        assertEquals(60, result.count(PaymentBatchResult.Status.TRANSITIONED));
+        for (Long paymentId : paymentIds) {
+            assertEquals(nodes.get(0).ownerOf(paymentId), executedBy.get(paymentId));
+            assertEquals(PaymentState.PRE_AUTH, paymentRepository.findStateById(paymentId));
+        }
+    }
+
+    @Test
+    void partitionsRebalanceWhenANodeLeaves() {
+        List<Long> paymentIds = newPayments(60);
+        PartitionedPaymentService leaving = nodes.get(2);
+        AtomicInteger rebalanced = new AtomicInteger();
+        nodes.get(0).subscribe(rebalanced::incrementAndGet);
+        int ownedBefore = nodes.get(0).getOwnedPartitions() + nodes.get(1).getOwnedPartitions();
+
+        leaving.stop();
+
+        assertEquals(1, rebalanced.get());
+        assertEquals(256, nodes.get(0).getOwnedPartitions() + nodes.get(1).getOwnedPartitions());
+        assertTrue(nodes.get(0).getOwnedPartitions() + nodes.get(1).getOwnedPartitions() > ownedBefore);
+
+        for (Long paymentId : paymentIds) {
+            assertFalse("node-c".equals(nodes.get(0).ownerOf(paymentId)));
+            assertTrue(nodes.get(0).owns(paymentId) != nodes.get(1).owns(paymentId));
+            assertEquals(PaymentState.PRE_AUTH, nodes.get(1).sendEvent(paymentId, PaymentEvent.PRE_AUTHORIZE));
+            assertEquals(nodes.get(1).ownerOf(paymentId), executedBy.get(paymentId));
+        }
+    }
+
+    private List<Long> newPayments(int count) {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add(nodes.get(0).newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId());
+        }
+        return ids;
+    }
+
+    /*
+        il PaymentServiceImpl del contesto, visto come il servizio locale di nodeId
+     */
+    private PaymentService recording(String nodeId) {
+        return (PaymentService) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{PaymentService.class},
+                (proxy, method, args) -> {
+                    String thread = Thread.currentThread().getName();
+
+                    if (args != null && args[0] instanceof Long) {
+                        executedBy.put((Long) args[0], nodeId);
+                        executedOn.put((Long) args[0], thread);
+                    } else if (args != null && args[0] instanceof Collection) {
+                        for (Object paymentId : (Collection<?>) args[0]) {
+                            executedBy.put((Long) paymentId, nodeId);
+                            executedOn.put((Long) paymentId, thread);
+                        }
+                    }
+
+                    try {
+                        return method.invoke(paymentServiceImpl, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+}
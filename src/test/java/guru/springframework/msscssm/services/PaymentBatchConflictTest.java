@@ -0,0 +1,84 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.domain.PaymentStateChange;
+import guru.springframework.msscssm.repository.PaymentRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    un pagamento del batch cambia stato a DB mentre il batch lo sta facendo transitare (InterferingDecisionProvider):
+    la compare-and-set del blocco non lo trova e l'esito è CONFLICT. Le sue transizioni non sono arrivate a DB,
+    quindi gli iscritti di PaymentStateChangeHub non devono vederle.
+ */
+@SpringBootTest
+@Import(InterferingDecisionProvider.Config.class)
+class PaymentBatchConflictTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    PaymentStateChangeHub paymentStateChangeHub;
+
+    @Autowired
+    InterferingDecisionProvider interferingDecisionProvider;
+
+    @Test
+    void conflictingTransitionsAreNotBroadcast() throws InterruptedException {
+        Long conflicting = newPayment();
+        Long other = newPayment();
+
+        PaymentStateChangeHubTest.RecordingSink sink = new PaymentStateChangeHubTest.RecordingSink();
+        PaymentStateChangeHub.Subscription subscription = paymentStateChangeHub.subscribe(null, null, null, sink);
+
+        try {
+            interferingDecisionProvider.interfere(conflicting, PaymentState.NEW, PaymentState.PRE_AUTH);
+
+            PaymentBatchResult result = paymentService.preAuthAll(List.of(conflicting, other));
+
+            assertEquals(PaymentBatchResult.Status.CONFLICT, result.get(conflicting).getStatus());
+            assertEquals(PaymentBatchResult.Status.TRANSITIONED, result.get(other).getStatus());
+            assertEquals(PaymentState.PRE_AUTH, paymentRepository.findStateById(conflicting));
+            assertEquals(PaymentState.PRE_AUTH, paymentRepository.findStateById(other));
+
+            // fa da barriera: quando arriva questa, tutto quello che il batch ha pubblicato è già stato consegnato
+            paymentService.authorizePayment(other);
+            await(sink, () -> sink.received.stream().anyMatch(change -> change.getTarget() == PaymentState.AUTH));
+
+            assertTrue(sink.received.stream().anyMatch(change -> other.equals(change.getPaymentId())
+                    && change.getTarget() == PaymentState.PRE_AUTH));
+            assertTrue(sink.received.stream().map(PaymentStateChange::getPaymentId).noneMatch(conflicting::equals),
+                    () -> "delivered " + sink.received);
+        } finally {
+            subscription.cancel();
+        }
+    }
+
+    private Long newPayment() {
+        return paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+    }
+
+    private static void await(PaymentStateChangeHubTest.RecordingSink sink, BooleanSupplier condition)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, () -> "timed out, delivered " + sink.received);
+            Thread.sleep(5);
+        }
+    }
+}
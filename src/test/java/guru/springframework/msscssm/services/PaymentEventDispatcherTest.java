@@ -0,0 +1,63 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.repository.PaymentRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+    PRE_AUTHORIZE e AUTHORIZE inviati senza aspettare: se l'ordine per pagamento non fosse rispettato AUTHORIZE
+    arriverebbe su NEW e verrebbe scartato. Code piccole per passare anche dalla backpressure.
+ */
+@SpringBootTest(properties = {"payment.auth.decision=APPROVE", "payment.dispatcher.lanes=4",
+        "payment.dispatcher.queue-capacity=8", "spring.jpa.show-sql=false"})
+class PaymentEventDispatcherTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    PaymentEventDispatcher dispatcher;
+
+    @Test
+    void eventsOfOnePaymentStayOrdered() {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            ids.add(paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId());
+        }
+
+        List<CompletableFuture<PaymentState>> results = new ArrayList<>();
+        for (Long id : ids) {
+            dispatcher.fire(id, PaymentEvent.PRE_AUTHORIZE);
+            results.add(dispatcher.submit(id, PaymentEvent.AUTHORIZE));
+        }
+
+        for (CompletableFuture<PaymentState> result : results) {
+            assertEquals(PaymentState.AUTH, result.join());
+        }
+
+        for (Long id : ids) {
+            assertEquals(PaymentState.AUTH, paymentRepository.findStateById(id));
+        }
+    }
+
+    @Test
+    void submitAndAwait() {
+        Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+
+        assertEquals(PaymentState.PRE_AUTH, dispatcher.submitAndAwait(payment.getId(), PaymentEvent.PRE_AUTHORIZE));
+    }
+}
@@ -0,0 +1,68 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.domain.PaymentTransition;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    lo storico scritto al commit e la ricostruzione dello stato, prima e dopo gli snapshot
+ */
+@SpringBootTest(properties = {"payment.auth.decision=APPROVE", "payment.history.snapshot-every=1"})
+class PaymentHistoryTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentHistory paymentHistory;
+
+    @Test
+    void stateAt() throws InterruptedException {
+        Instant beforeCreation = Instant.now();
+        Thread.sleep(5);
+
+        Long paymentId = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+        Thread.sleep(5);
+        Instant created = Instant.now();
+        Thread.sleep(5);
+
+        paymentService.preAuth(paymentId);
+        Thread.sleep(5);
+        Instant preAuthed = Instant.now();
+        Thread.sleep(5);
+
+        paymentService.authorizePayment(paymentId);
+
+        List<PaymentTransition> history = paymentHistory.history(paymentId);
+        assertTrue(history.size() >= 3);
+        assertNull(history.get(0).getSource());
+        assertEquals(PaymentState.NEW, history.get(0).getTarget());
+        assertEquals(PaymentState.AUTH, history.get(history.size() - 1).getTarget());
+
+        assertStates(paymentId, beforeCreation, created, preAuthed);
+
+        assertTrue(paymentHistory.snapshot() >= 1);
+        assertStates(paymentId, beforeCreation, created, preAuthed);
+
+        // il conteggio è ripartito da zero: senza nuove transizioni non c'è niente da fotografare
+        assertEquals(0, paymentHistory.snapshot());
+    }
+
+    private void assertStates(Long paymentId, Instant beforeCreation, Instant created, Instant preAuthed) {
+        assertNull(paymentHistory.stateAt(paymentId, beforeCreation));
+        assertEquals(PaymentState.NEW, paymentHistory.stateAt(paymentId, created));
+        assertEquals(PaymentState.PRE_AUTH, paymentHistory.stateAt(paymentId, preAuthed));
+        assertEquals(PaymentState.AUTH, paymentHistory.stateAt(paymentId, Instant.now()));
+    }
+}
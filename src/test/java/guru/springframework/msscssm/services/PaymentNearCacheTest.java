@@ -0,0 +1,83 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.store.PaymentStateStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/*
+    la cache si aggiorna con le transizioni, e uno stato vecchio in cache non porta a scritture sbagliate
+    (COALESCED: è la modalità in cui le transizioni partono dallo stato in cache)
+ */
+@SpringBootTest(properties = {"spring.jpa.show-sql=false", "payment.auth.decision=APPROVE", "payment.persistence.mode=COALESCED"})
+class PaymentNearCacheTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentNearCache paymentNearCache;
+
+    @Autowired
+    PaymentStateStore paymentStateStore;
+
+    @Test
+    void transitionsUpdateTheCache() {
+        Long paymentId = newPayment();
+
+        paymentService.preAuth(paymentId);
+        assertEquals(PaymentState.PRE_AUTH, paymentNearCache.getIfPresent(paymentId));
+
+        AtomicInteger loads = new AtomicInteger();
+        assertEquals(PaymentState.PRE_AUTH, paymentNearCache.get(paymentId, id -> {
+            loads.incrementAndGet();
+            return paymentStateStore.load(id);
+        }));
+        assertEquals(0, loads.get());
+
+        paymentService.authorizePayment(paymentId);
+        assertEquals(PaymentState.AUTH, paymentNearCache.getIfPresent(paymentId));
+    }
+
+    /*
+        la cache crede PRE_AUTH (p.es. un'invalidazione persa), il DB dice NEW: authorize non deve passare
+     */
+    @Test
+    void staleEntryIsDetectedOnWrite() {
+        Long paymentId = newPayment();
+        paymentNearCache.written(paymentId, PaymentState.PRE_AUTH);
+
+        paymentService.authorizePayment(paymentId);
+
+        assertEquals(PaymentState.NEW, paymentStateStore.load(paymentId));
+        assertEquals(PaymentState.NEW, paymentNearCache.get(paymentId, paymentStateStore::load));
+    }
+
+    @Test
+    void writesInvalidateOtherNodes() {
+        LocalPaymentCacheInvalidation transport = new LocalPaymentCacheInvalidation();
+        PaymentNearCache nodeA = new PaymentNearCache(transport, new SimpleMeterRegistry(), true, 100, 60_000);
+        PaymentNearCache nodeB = new PaymentNearCache(transport, new SimpleMeterRegistry(), true, 100, 60_000);
+
+        nodeA.get(1L, id -> PaymentState.NEW);
+        nodeB.get(1L, id -> PaymentState.NEW);
+
+        nodeA.written(1L, PaymentState.PRE_AUTH);
+
+        assertEquals(PaymentState.PRE_AUTH, nodeA.getIfPresent(1L));
+        assertNull(nodeB.getIfPresent(1L));
+    }
+
+    private Long newPayment() {
+        return paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+    }
+}
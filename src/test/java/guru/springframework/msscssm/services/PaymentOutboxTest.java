@@ -0,0 +1,168 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentNotification;
+import guru.springframework.msscssm.repository.PaymentNotificationRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/*
+    outbox scritta con la transizione e svuotata dal relay a lotti; il relay programmato è spento e il DB è
+    tutto di questo contesto, così nessun altro relay prende le notifiche
+ */
+@SpringBootTest(properties = {
+        "spring.datasource.generate-unique-name=true",
+        "spring.jpa.show-sql=false",
+        "payment.auth.decision=APPROVE",
+        "payment.outbox.relay-enabled=false",
+        "payment.outbox.batch-size=64",
+        "payment.outbox.max-attempts=3",
+        "payment.outbox.base-backoff-ms=1",
+        "payment.outbox.max-backoff-ms=5"
+})
+class PaymentOutboxTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentOutbox paymentOutbox;
+
+    @Autowired
+    PaymentOutboxRelay paymentOutboxRelay;
+
+    @Autowired
+    PaymentNotificationRepository notificationRepository;
+
+    @Autowired
+    RecordingSink sink;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @BeforeEach
+    void setUp() {
+        notificationRepository.deleteAll();
+        sink.reset();
+    }
+
+    @Test
+    void everyNotificationDeliveredOnce() {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Long id = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+            paymentService.preAuth(id);
+            paymentService.authorizePayment(id);
+            ids.add(id);
+        }
+
+        assertEquals(400, notificationRepository.count());
+
+        assertEquals(400, paymentOutboxRelay.drain());
+        assertEquals(0, notificationRepository.count());
+
+        Map<Long, Long> perNotification = sink.delivered.stream()
+                .collect(Collectors.groupingBy(PaymentNotification::getId, Collectors.counting()));
+        assertEquals(400, perNotification.size());
+        perNotification.values().forEach(count -> assertEquals(1L, count));
+
+        Map<Long, List<PaymentEvent>> perPayment = new HashMap<>();
+        sink.delivered.forEach(n -> perPayment.computeIfAbsent(n.getPaymentId(), id -> new ArrayList<>()).add(n.getEvent()));
+        for (Long id : ids) {
+            assertEquals(List.of(PaymentEvent.PRE_AUTH_APPROVED, PaymentEvent.AUTH_APPROVED), perPayment.get(id));
+        }
+    }
+
+    @Test
+    void failedDeliveriesAreRetriedThenParked() throws InterruptedException {
+        paymentOutbox.append(1L, PaymentEvent.AUTH_APPROVED);
+        paymentOutbox.append(2L, PaymentEvent.AUTH_DECLINED);
+        sink.failing.add(2L);
+
+        for (int i = 0; i < 5; i++) {
+            paymentOutboxRelay.drain();
+            Thread.sleep(20);
+        }
+
+        assertEquals(1, sink.delivered.size());
+        assertEquals(1L, sink.delivered.get(0).getPaymentId());
+
+        PaymentNotification parked = notificationRepository.findAll().get(0);
+        assertEquals(2L, parked.getPaymentId());
+        assertEquals(3, parked.getAttempts());
+        assertNull(parked.getNextAttemptAt());
+        assertNull(parked.getClaimedBy());
+        assertEquals(1, notificationRepository.countByNextAttemptAtIsNull());
+    }
+
+    @Test
+    void rolledBackTransitionWritesNothing() {
+        new TransactionTemplate(transactionManager).execute(status -> {
+            paymentOutbox.append(3L, PaymentEvent.PRE_AUTH_APPROVED);
+            status.setRollbackOnly();
+            return null;
+        });
+
+        assertEquals(0, notificationRepository.count());
+    }
+
+    /*
+        registra le consegne e rifiuta quelle dei pagamenti in failing
+     */
+    static class RecordingSink implements PaymentNotificationSink {
+
+        final List<PaymentNotification> delivered = new ArrayList<>();
+        final Set<Long> failing = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public synchronized Set<Long> deliver(List<PaymentNotification> notifications) {
+            Set<Long> failed = new HashSet<>();
+
+            for (PaymentNotification notification : notifications) {
+                if (failing.contains(notification.getPaymentId())) {
+                    failed.add(notification.getId());
+                } else {
+                    delivered.add(notification);
+                }
+            }
+
+            return failed;
+        }
+
+        synchronized void reset() {
+            delivered.clear();
+            failing.clear();
+        }
+    }
+
+    @TestConfiguration
+    static class SinkConfig {
+
+        @Bean
+        @Primary
+        RecordingSink recordingSink() {
+            return new RecordingSink();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.repository.PaymentRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.annotation.Primary;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    riconciliazione a intervalli e pagine piccole: i pagamenti rimasti indietro arrivano allo stato del processore,
+    quelli più avanti no, e una run interrotta riparte dai checkpoint senza rileggere le pagine già fatte.
+    DB tutto di questo contesto: ogni test parte con la tabella payment vuota.
+ */
+@SpringBootTest(properties = {
+        "spring.datasource.generate-unique-name=true",
+        "spring.jpa.show-sql=false",
+        "payment.auth.decision=APPROVE",
+        "payment.reconciliation.partitions=4",
+        "payment.reconciliation.parallelism=2",
+        "payment.reconciliation.page-size=3"
+})
+class PaymentReconciliationTest {
+
+    @TestConfiguration
+    static class CancellingRecordsConfig {
+
+        /*
+            i record locali, ma alla n-esima pagina ferma la riconciliazione (cancelAfter < 0: mai)
+         */
+        static final AtomicInteger cancelAfter = new AtomicInteger(-1);
+
+        @Bean
+        @Primary
+        PaymentProcessorRecords cancellingRecords(LocalPaymentProcessorRecords records, @Lazy PaymentReconciliation reconciliation) {
+            return new PaymentProcessorRecords() {
+                @Override
+                public Map<Long, PaymentState> lookup(Collection<Long> paymentIds) {
+                    if (cancelAfter.getAndDecrement() == 0) {
+                        reconciliation.cancel();
+                    }
+                    return records.lookup(paymentIds);
+                }
+            };
+        }
+    }
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentReconciliation paymentReconciliation;
+
+    @Autowired
+    LocalPaymentProcessorRecords processorRecords;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @BeforeEach
+    void emptyTable() {
+        CancellingRecordsConfig.cancelAfter.set(-1);
+        paymentRepository.deleteAllInBatch();
+    }
+
+    @Test
+    void paymentsBehindTheProcessorAreFixed() {
+        List<Long> newToAuth = newPayments(10, PaymentState.AUTH);
+        List<Long> newToDeclined = newPayments(10, PaymentState.PRE_AUTH_ERROR);
+        List<Long> preAuthToAuth = newPayments(5, PaymentState.AUTH);
+        preAuthToAuth.forEach(paymentService::preAuth);
+        List<Long> ahead = newPayments(5, PaymentState.PRE_AUTH);
+        ahead.forEach(paymentId -> {
+            paymentService.preAuth(paymentId);
+            paymentService.authorizePayment(paymentId);
+        });
+        List<Long> matching = newPayments(5, PaymentState.NEW);
+
+        PaymentReconciliationReport report = paymentReconciliation.run();
+
+        assertFalse(report.isResumed());
+        assertTrue(report.isCompleted());
+        assertEquals(35, report.getScanned());
+        assertEquals(30, report.getMismatched());
+        assertEquals(25, report.getFixed());
+        assertEquals(5, report.getUnresolved());
+        assertTrue(report.getPeakHeapUsedBytes() > 0);
+
+        assertStates(newToAuth, PaymentState.AUTH);
+        assertStates(newToDeclined, PaymentState.PRE_AUTH_ERROR);
+        assertStates(preAuthToAuth, PaymentState.AUTH);
+        assertStates(ahead, PaymentState.AUTH);
+        assertStates(matching, PaymentState.NEW);
+    }
+
+    @Test
+    void interruptedRunResumesFromCheckpoints() {
+        List<Long> payments = newPayments(40, PaymentState.PRE_AUTH);
+
+        CancellingRecordsConfig.cancelAfter.set(3);
+        PaymentReconciliationReport first = paymentReconciliation.run();
+
+        assertFalse(first.isCompleted());
+        assertTrue(first.getScanned() < 40);
+
+        PaymentReconciliationReport second = paymentReconciliation.run();
+
+        assertTrue(second.isResumed());
+        assertTrue(second.isCompleted());
+        assertEquals(first.getRunId(), second.getRunId());
+        assertEquals(40, second.getScanned());
+        assertEquals(40, second.getFixed());
+        assertStates(payments, PaymentState.PRE_AUTH);
+
+        // la run dopo è nuova e non trova più niente da correggere
+        PaymentReconciliationReport third = paymentReconciliation.run();
+
+        assertFalse(third.isResumed());
+        assertEquals(40, third.getScanned());
+        assertEquals(0, third.getMismatched());
+    }
+
+    private List<Long> newPayments(int count, PaymentState processorState) {
+        List<Long> ids = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            Long paymentId = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+            processorRecords.record(paymentId, processorState);
+            ids.add(paymentId);
+        }
+
+        return ids;
+    }
+
+    private void assertStates(List<Long> paymentIds, PaymentState expected) {
+        for (Long paymentId : paymentIds) {
+            assertEquals(expected, paymentRepository.findStateById(paymentId), "payment " + paymentId);
+        }
+    }
+}
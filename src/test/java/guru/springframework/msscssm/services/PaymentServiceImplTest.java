@@ -1,18 +1,23 @@
 package guru.springframework.msscssm.services;
 
 import guru.springframework.msscssm.domain.Payment;
-import guru.springframework.msscssm.domain.PaymentEvent;
 import guru.springframework.msscssm.domain.PaymentState;
 import guru.springframework.msscssm.repository.PaymentRepository;
+import guru.springframework.msscssm.store.PaymentStateStore;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.RepeatedTest;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.statemachine.StateMachine;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SpringBootTest
 /*
@@ -31,6 +36,9 @@ class PaymentServiceImplTest {
     @Autowired
     PaymentRepository paymentRepository;
 
+    @Autowired
+    PaymentStateStore paymentStateStore;
+
     Payment payment;
 
     @BeforeEach
@@ -46,12 +54,12 @@ class PaymentServiceImplTest {
         System.out.println("Should be NEW");
         System.out.println(savedPayment.getState());
 
-        StateMachine<PaymentState, PaymentEvent> sm = paymentService.preAuth(savedPayment.getId());
+        PaymentState state = paymentService.preAuth(savedPayment.getId());
 
         Payment preAuthedPayment = paymentRepository.getOne(savedPayment.getId());
 
         System.out.println("Should be PRE_AUTH or PRE_AUTH_ERROR");
-        System.out.println(sm.getState().getId());
+        System.out.println(state);
 
         System.out.println(preAuthedPayment);
 
@@ -63,16 +71,50 @@ class PaymentServiceImplTest {
     void testAuth() {
         Payment savedPayment = paymentService.newPayment(payment);
 
-        StateMachine<PaymentState, PaymentEvent> preAuthSM = paymentService.preAuth(savedPayment.getId());
+        PaymentState preAuthState = paymentService.preAuth(savedPayment.getId());
 
-        if (preAuthSM.getState().getId() == PaymentState.PRE_AUTH) {
+        if (preAuthState == PaymentState.PRE_AUTH) {
             System.out.println("Payment is Pre Authorized");
 
-            StateMachine<PaymentState, PaymentEvent> authSM = paymentService.authorizePayment(savedPayment.getId());
+            PaymentState authState = paymentService.authorizePayment(savedPayment.getId());
 
-            System.out.println("Result of Auth: " + authSM.getState().getId());
+            System.out.println("Result of Auth: " + authState);
         } else {
             System.out.println("Payment failed pre-auth...");
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    void preAuthAllThenAuthorizeAll() {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            ids.add(paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId());
+        }
+        ids.add(-42L);
+
+        PaymentBatchResult preAuthResult = paymentService.preAuthAll(ids);
+
+        assertEquals(ids.size(), preAuthResult.size());
+        assertEquals(PaymentBatchResult.Status.NOT_FOUND, preAuthResult.get(-42L).getStatus());
+        assertEquals(25, preAuthResult.count(PaymentBatchResult.Status.TRANSITIONED));
+
+        List<Long> preAuthed = new ArrayList<>();
+        for (Long id : ids.subList(0, 25)) {
+            PaymentState state = preAuthResult.get(id).getState();
+            assertTrue(EnumSet.of(PaymentState.PRE_AUTH, PaymentState.PRE_AUTH_ERROR).contains(state));
+            assertEquals(state, paymentStateStore.load(id));
+
+            if (state == PaymentState.PRE_AUTH) {
+                preAuthed.add(id);
+            }
+        }
+
+        PaymentBatchResult authResult = paymentService.authorizeAll(preAuthed);
+
+        for (Long id : preAuthed) {
+            PaymentState state = authResult.get(id).getState();
+            assertTrue(EnumSet.of(PaymentState.AUTH, PaymentState.AUTH_ERROR).contains(state));
+            assertEquals(state, paymentStateStore.load(id));
+        }
+    }
+}
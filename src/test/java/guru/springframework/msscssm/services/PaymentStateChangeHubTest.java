@@ -0,0 +1,158 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.domain.PaymentStateChange;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    il hub da solo, senza Spring e fuori da transazioni (quindi publish consegna subito)
+ */
+class PaymentStateChangeHubTest {
+
+    PaymentStateChangeHub hub = new PaymentStateChangeHub(new SimpleMeterRegistry(), 8,
+            PaymentStateChangeHub.OverflowPolicy.DROP_OLDEST, 1024, 4);
+
+    @AfterEach
+    void tearDown() {
+        hub.shutdown();
+    }
+
+    @Test
+    void filters() throws InterruptedException {
+        RecordingSink all = new RecordingSink();
+        RecordingSink onePayment = new RecordingSink();
+        RecordingSink terminal = new RecordingSink();
+
+        hub.subscribe(null, null, null, all);
+        hub.subscribe(2L, null, null, onePayment);
+        hub.subscribe(null, Set.of(PaymentState.AUTH, PaymentState.AUTH_ERROR), null, terminal);
+
+        hub.publish(1L, PaymentEvent.PRE_AUTH_APPROVED, PaymentState.NEW, PaymentState.PRE_AUTH);
+        hub.publish(2L, PaymentEvent.PRE_AUTH_APPROVED, PaymentState.NEW, PaymentState.PRE_AUTH);
+        hub.publish(1L, PaymentEvent.AUTH_APPROVED, PaymentState.PRE_AUTH, PaymentState.AUTH);
+
+        await(() -> all.received.size() == 3 && onePayment.received.size() == 1 && terminal.received.size() == 1);
+
+        assertEquals(2L, onePayment.received.get(0).getPaymentId());
+        assertEquals(1L, terminal.received.get(0).getPaymentId());
+        assertEquals(PaymentState.AUTH, terminal.received.get(0).getTarget());
+    }
+
+    @Test
+    void slowSubscriberDropsOldest() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingSink slow = new RecordingSink(release);
+        RecordingSink fast = new RecordingSink();
+
+        PaymentStateChangeHub.Subscription slowSubscription = hub.subscribe(null, null, null, slow);
+        hub.subscribe(null, null, null, fast);
+
+        for (long id = 1; id <= 100; id++) {
+            hub.publish(id, PaymentEvent.PRE_AUTHORIZE, PaymentState.NEW, PaymentState.NEW);
+        }
+
+        // il lento non rallenta gli altri
+        await(() -> fast.received.size() == 100);
+
+        await(() -> slowSubscription.getDropped() > 0);
+        release.countDown();
+        await(() -> slow.received.size() + slowSubscription.getDropped() == 100);
+
+        // uno già in invio quando si è bloccato più al massimo un buffer pieno, e l'ultimo c'è sempre
+        assertTrue(slow.received.size() <= 1 + 8);
+        assertEquals(100L, slow.received.get(slow.received.size() - 1).getPaymentId());
+    }
+
+    @Test
+    void slowSubscriberDisconnected() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingSink slow = new RecordingSink(release);
+
+        PaymentStateChangeHub.Subscription subscription = hub.subscribe(null, null,
+                PaymentStateChangeHub.OverflowPolicy.DISCONNECT, slow);
+
+        for (long id = 1; id <= 100; id++) {
+            hub.publish(id, PaymentEvent.PRE_AUTHORIZE, PaymentState.NEW, PaymentState.NEW);
+        }
+
+        await(subscription::isClosed);
+        release.countDown();
+        await(slow.closed::get);
+
+        assertEquals(0, hub.getSubscribers());
+    }
+
+    @Test
+    void thousandsOfSubscribers() throws InterruptedException {
+        List<RecordingSink> sinks = new ArrayList<>();
+        for (int i = 0; i < 5_000; i++) {
+            RecordingSink sink = new RecordingSink();
+            sinks.add(sink);
+            hub.subscribe(i % 2 == 0 ? null : (long) (i % 10), null, null, sink);
+        }
+
+        for (long id = 0; id < 10; id++) {
+            hub.publish(id, PaymentEvent.PRE_AUTH_APPROVED, PaymentState.NEW, PaymentState.PRE_AUTH);
+        }
+
+        // i pari vedono tutti e 10 i pagamenti, i dispari solo il loro
+        await(() -> {
+            for (int i = 0; i < sinks.size(); i++) {
+                if (sinks.get(i).received.size() != (i % 2 == 0 ? 10 : 1)) {
+                    return false;
+                }
+            }
+            return true;
+        });
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+
+    static class RecordingSink implements PaymentStateChangeHub.Sink {
+
+        final List<PaymentStateChange> received = new CopyOnWriteArrayList<>();
+        final AtomicBoolean closed = new AtomicBoolean();
+        final CountDownLatch release;
+
+        RecordingSink() {
+            this(new CountDownLatch(0));
+        }
+
+        RecordingSink(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void send(PaymentStateChange change) throws Exception {
+            release.await(10, TimeUnit.SECONDS);
+            received.add(change);
+        }
+
+        @Override
+        public void close() {
+            closed.set(true);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.repository.PaymentStateCountRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+    contatori per stato aggiornati dalle transizioni, scritti nella tabella riassuntiva e riallineati al GROUP BY.
+    DB tutto di questo contesto: i contatori degli altri contesti di test non scrivono nella stessa tabella.
+ */
+@SpringBootTest(properties = {
+        "spring.datasource.generate-unique-name=true",
+        "spring.jpa.show-sql=false",
+        "payment.auth.decision=APPROVE",
+        "payment.counters.flush-interval-ms=3600000",
+        "payment.counters.reconcile-interval-ms=3600000"
+})
+class PaymentStateCountersTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentStateCounters paymentStateCounters;
+
+    @Autowired
+    PaymentStateCountRepository countRepository;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Test
+    void countsFollowTransitions() {
+        Map<PaymentState, Long> before = paymentStateCounters.counts();
+
+        for (int i = 0; i < 10; i++) {
+            Long paymentId = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+            paymentService.preAuth(paymentId);
+
+            if (i < 4) {
+                paymentService.authorizePayment(paymentId);
+            }
+        }
+
+        assertEquals(before.get(PaymentState.NEW), paymentStateCounters.count(PaymentState.NEW));
+        assertEquals(before.get(PaymentState.PRE_AUTH) + 6, paymentStateCounters.count(PaymentState.PRE_AUTH));
+        assertEquals(before.get(PaymentState.AUTH) + 4, paymentStateCounters.count(PaymentState.AUTH));
+
+        paymentStateCounters.flush();
+
+        for (PaymentState state : PaymentState.values()) {
+            assertEquals(paymentStateCounters.count(state), countRepository.findById(state).get().getTotal());
+        }
+    }
+
+    @Test
+    void rolledBackTransitionsAreNotCounted() {
+        long before = paymentStateCounters.count(PaymentState.AUTH);
+
+        new TransactionTemplate(transactionManager).execute(status -> {
+            paymentStateCounters.record(-1L, PaymentState.PRE_AUTH, PaymentState.AUTH);
+            status.setRollbackOnly();
+            return null;
+        });
+
+        assertEquals(before, paymentStateCounters.count(PaymentState.AUTH));
+    }
+
+    @Test
+    void reconcileFixesDrift() {
+        paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+
+        // un nodo che è morto senza scrivere le sue variazioni, o qualcuno che ha toccato la tabella a mano
+        paymentStateCounters.record(-2L, null, PaymentState.AUTH_ERROR);
+        paymentStateCounters.flush();
+
+        paymentStateCounters.reconcile();
+
+        Map<PaymentState, Long> actual = countRepository.countPaymentsByState();
+        for (PaymentState state : PaymentState.values()) {
+            long expected = actual.getOrDefault(state, 0L);
+            assertEquals(expected, paymentStateCounters.count(state));
+            assertEquals(expected, countRepository.findById(state).get().getTotal());
+        }
+    }
+}
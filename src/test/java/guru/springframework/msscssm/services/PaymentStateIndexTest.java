@@ -0,0 +1,89 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.repository.PaymentRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    l'indice degli stati segue le transizioni (solo quelle confermate) e all'avvio si ricarica dallo store
+ */
+@SpringBootTest(properties = {
+        "spring.datasource.generate-unique-name=true",
+        "payment.auth.decision=APPROVE"
+})
+class PaymentStateIndexTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentStateIndex paymentStateIndex;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Test
+    void followsTheTransitions() {
+        Long paymentId = newPayment();
+        assertEquals(PaymentState.NEW, paymentStateIndex.get(paymentId));
+
+        paymentService.preAuth(paymentId);
+        assertEquals(PaymentState.PRE_AUTH, paymentStateIndex.get(paymentId));
+        assertEquals(PaymentState.PRE_AUTH, paymentService.currentState(paymentId));
+
+        paymentService.authorizePayment(paymentId);
+        assertEquals(PaymentState.AUTH, paymentService.currentState(paymentId));
+    }
+
+    @Test
+    void rolledBackTransitionsNeverReachTheIndex() {
+        Long paymentId = newPayment();
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+
+        transactionTemplate.execute(status -> {
+            paymentService.preAuth(paymentId);
+            status.setRollbackOnly();
+            return null;
+        });
+
+        assertEquals(PaymentState.NEW, paymentStateIndex.get(paymentId));
+        assertEquals(PaymentState.NEW, paymentRepository.findStateById(paymentId));
+    }
+
+    @Test
+    void loadReadsEveryPaymentFromTheStore() {
+        Long paymentId = newPayment();
+        paymentService.preAuth(paymentId);
+
+        // come dopo un riavvio: l'indice si ricarica con una scansione, quello che c'è già resta
+        paymentStateIndex.load();
+
+        assertTrue(paymentStateIndex.isLoaded());
+        assertTrue(paymentStateIndex.size() >= 1);
+        assertEquals(PaymentState.PRE_AUTH, paymentStateIndex.get(paymentId));
+    }
+
+    @Test
+    void unknownPayments() {
+        assertNull(paymentStateIndex.get(Long.MAX_VALUE));
+        assertNull(paymentService.currentState(1_000_000_000L));
+    }
+
+    private Long newPayment() {
+        return paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+    }
+}
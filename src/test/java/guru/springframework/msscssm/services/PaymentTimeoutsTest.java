@@ -0,0 +1,119 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.repository.PaymentRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+    pagamenti fermi in NEW o PRE_AUTH vanno in errore alla scadenza, quelli che arrivano in fondo no.
+    DB tutto di questo contesto: la ricostruzione all'avvio non deve vedere i pagamenti degli altri test.
+ */
+@SpringBootTest(properties = {
+        "spring.datasource.generate-unique-name=true",
+        "spring.jpa.show-sql=false",
+        "payment.auth.decision=APPROVE",
+        "payment.timeouts.new-ms=200",
+        "payment.timeouts.pre-auth-ms=200",
+        "payment.timeouts.tick-ms=10"
+})
+class PaymentTimeoutsTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentTimeouts paymentTimeouts;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    PaymentStateChangeInterceptor paymentStateChangeInterceptor;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Test
+    void stuckInNew() throws InterruptedException {
+        Long paymentId = newPayment();
+
+        awaitState(paymentId, PaymentState.PRE_AUTH_ERROR);
+    }
+
+    @Test
+    void stuckInPreAuth() throws InterruptedException {
+        Long paymentId = newPayment();
+        paymentService.preAuth(paymentId);
+
+        awaitState(paymentId, PaymentState.AUTH_ERROR);
+    }
+
+    @Test
+    void finalStateCancelsTheTimeout() throws InterruptedException {
+        Long paymentId = newPayment();
+        paymentService.preAuth(paymentId);
+        paymentService.authorizePayment(paymentId);
+
+        Thread.sleep(400);
+
+        assertEquals(PaymentState.AUTH, paymentRepository.findStateById(paymentId));
+    }
+
+    @Test
+    void rebuildRestoresPendingTimeouts() throws InterruptedException {
+        Long paymentId = newPayment();
+        paymentService.preAuth(paymentId);
+
+        // come dopo un riavvio: la scadenza torna dalla scansione dello store
+        paymentTimeouts.rebuild();
+
+        awaitState(paymentId, PaymentState.AUTH_ERROR);
+        assertEquals(0, paymentTimeouts.getPending());
+    }
+
+    /*
+        la NEW -> NEW che preAuth fa prima dell'esito non deve spostare l'istante da cui si ricostruisce la
+        scadenza, altrimenti ogni evento ripetuto la allungherebbe dopo un riavvio
+     */
+    @Test
+    void selfTransitionDoesNotPostponeTheRebuiltTimeout() throws InterruptedException {
+        Long paymentId = newPayment();
+        Instant enteredNew = paymentRepository.findById(paymentId).orElseThrow().getStateChangedAt();
+
+        new TransactionTemplate(transactionManager).execute(status -> {
+            paymentStateChangeInterceptor.onStateChange(paymentId, PaymentEvent.PRE_AUTHORIZE, PaymentState.NEW, PaymentState.NEW);
+            return null;
+        });
+
+        assertEquals(enteredNew, paymentRepository.findById(paymentId).orElseThrow().getStateChangedAt());
+
+        paymentTimeouts.rebuild();
+
+        awaitState(paymentId, PaymentState.PRE_AUTH_ERROR);
+    }
+
+    private Long newPayment() {
+        return paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+    }
+
+    private void awaitState(Long paymentId, PaymentState expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+
+        while (paymentRepository.findStateById(paymentId) != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(expected, paymentRepository.findStateById(paymentId));
+    }
+}
@@ -0,0 +1,87 @@
+package guru.springframework.msscssm.services;
+
+import guru.springframework.msscssm.domain.PaymentEvent;
+import guru.springframework.msscssm.domain.PaymentState;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.statemachine.StateMachine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    test del pool: riuso delle macchine, reidratazione dello stato, eviction e prestiti concorrenti
+ */
+@SpringBootTest(properties = "payment.statemachine.pool.max-idle=2")
+class StateMachinePoolTest {
+
+    @Autowired
+    StateMachinePool pool;
+
+    @Test
+    void releasedMachineIsReusedAndRehydrated() {
+        StateMachine<PaymentState, PaymentEvent> sm = pool.borrow(1L, PaymentState.PRE_AUTH);
+        assertEquals(PaymentState.PRE_AUTH, sm.getState().getId());
+        pool.release(sm);
+
+        long hits = pool.getStats().getHits();
+
+        StateMachine<PaymentState, PaymentEvent> reused = pool.borrow(1L, PaymentState.NEW);
+
+        assertSame(sm, reused);
+        assertEquals(PaymentState.NEW, reused.getState().getId());
+        assertEquals(hits + 1, pool.getStats().getHits());
+
+        pool.release(reused);
+    }
+
+    @Test
+    void machinesAboveMaxIdleAreEvicted() {
+        List<StateMachine<PaymentState, PaymentEvent>> borrowed = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            borrowed.add(pool.borrow(1L, PaymentState.NEW));
+        }
+
+        long evictions = pool.getStats().getEvictions();
+
+        borrowed.forEach(pool::release);
+
+        assertEquals(2, pool.getStats().getIdle());
+        assertEquals(evictions + 2, pool.getStats().getEvictions());
+    }
+
+    @Test
+    void concurrentBorrowersNeverShareAMachine() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        Set<StateMachine<PaymentState, PaymentEvent>> inUse = Collections.synchronizedSet(
+                Collections.newSetFromMap(new IdentityHashMap<>()));
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(executor.submit(() -> {
+                    StateMachine<PaymentState, PaymentEvent> sm = pool.borrow(1L, PaymentState.NEW);
+                    assertTrue(inUse.add(sm), "machine handed out twice");
+                    inUse.remove(sm);
+                    pool.release(sm);
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package guru.springframework.msscssm.store;
+
+import guru.springframework.msscssm.domain.PaymentState;
+import guru.springframework.msscssm.domain.PaymentStateUpdate;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    il file da solo, senza Spring: compare and set, riapertura, recupero dopo una scrittura interrotta e scritture
+    dentro una transazione (synchronization attivata a mano)
+ */
+class MappedPaymentStateStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void compareAndSet() {
+        MappedPaymentStateStore store = new MappedPaymentStateStore(dir.resolve("states.dat"), MappedPaymentStateStore.SyncMode.EACH, 0);
+        store.open();
+
+        try {
+            store.create(1L, PaymentState.NEW);
+
+            assertNull(store.load(2L));
+            assertNull(store.load(1L + MappedPaymentStateStore.RECORDS_PER_SEGMENT));
+            assertEquals(PaymentState.NEW, store.load(1L));
+
+            assertTrue(store.compareAndSet(new PaymentStateUpdate(1L, PaymentState.NEW, PaymentState.PRE_AUTH)));
+            assertFalse(store.compareAndSet(new PaymentStateUpdate(1L, PaymentState.NEW, PaymentState.PRE_AUTH_ERROR)));
+            assertFalse(store.compareAndSet(new PaymentStateUpdate(2L, PaymentState.NEW, PaymentState.PRE_AUTH)));
+            assertEquals(PaymentState.PRE_AUTH, store.load(1L));
+            assertEquals(2L, store.version(1L));
+
+            store.create(3L, PaymentState.NEW);
+            assertArrayEquals(new int[]{1, 0}, store.compareAndSetAll(List.of(
+                    new PaymentStateUpdate(3L, PaymentState.NEW, PaymentState.PRE_AUTH),
+                    new PaymentStateUpdate(1L, PaymentState.NEW, PaymentState.PRE_AUTH))));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void groupCommitAndReopen() {
+        Path file = dir.resolve("states.dat");
+        MappedPaymentStateStore store = new MappedPaymentStateStore(file, MappedPaymentStateStore.SyncMode.GROUP, 1);
+        store.open();
+
+        for (long id = 1; id <= 100; id++) {
+            store.create(id, PaymentState.NEW);
+            store.compareAndSet(new PaymentStateUpdate(id, PaymentState.NEW, PaymentState.PRE_AUTH));
+        }
+
+        store.close();
+
+        MappedPaymentStateStore reopened = new MappedPaymentStateStore(file, MappedPaymentStateStore.SyncMode.NONE, 0);
+        reopened.open();
+
+        try {
+            for (long id = 1; id <= 100; id++) {
+                assertEquals(PaymentState.PRE_AUTH, reopened.load(id));
+                assertEquals(2L, reopened.version(id));
+            }
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void tornWriteFallsBackToPreviousVersion() throws IOException {
+        Path file = dir.resolve("states.dat");
+        MappedPaymentStateStore store = new MappedPaymentStateStore(file, MappedPaymentStateStore.SyncMode.EACH, 0);
+        store.open();
+        store.create(7L, PaymentState.NEW);
+        store.compareAndSet(new PaymentStateUpdate(7L, PaymentState.NEW, PaymentState.PRE_AUTH));
+        store.close();
+
+        // la versione 2 sta nello slot 0: simuliamo un crash a metà scrittura rompendo il suo stato
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            long slot = 7L * MappedPaymentStateStore.RECORD_BYTES + MappedPaymentStateStore.STATE;
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) (PaymentState.AUTH.ordinal() + 1)}), slot);
+        }
+
+        MappedPaymentStateStore reopened = new MappedPaymentStateStore(file, MappedPaymentStateStore.SyncMode.NONE, 0);
+        reopened.open();
+
+        try {
+            assertEquals(PaymentState.NEW, reopened.load(7L));
+            assertEquals(1L, reopened.version(7L));
+
+            assertTrue(reopened.compareAndSet(new PaymentStateUpdate(7L, PaymentState.NEW, PaymentState.PRE_AUTH_ERROR)));
+            assertEquals(PaymentState.PRE_AUTH_ERROR, reopened.load(7L));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /*
+        in una transazione il file cambia solo al commit; fino ad allora le altre transazioni vedono lo stato
+        precedente e non possono scrivere il pagamento
+     */
+    @Test
+    void transactionalWritesReachTheFileAfterCommit() {
+        MappedPaymentStateStore store = new MappedPaymentStateStore(dir.resolve("states.dat"), MappedPaymentStateStore.SyncMode.EACH, 0);
+        store.open();
+
+        try {
+            store.create(1L, PaymentState.NEW);
+
+            TransactionSynchronizationManager.initSynchronization();
+            try {
+                store.create(2L, PaymentState.NEW);
+                assertTrue(store.compareAndSet(new PaymentStateUpdate(1L, PaymentState.NEW, PaymentState.PRE_AUTH)));
+                assertTrue(store.compareAndSet(new PaymentStateUpdate(1L, PaymentState.PRE_AUTH, PaymentState.AUTH)));
+                assertEquals(PaymentState.AUTH, store.load(1L));
+                assertEquals(PaymentState.NEW, store.load(2L));
+
+                assertEquals(PaymentState.NEW, outsideTransaction(() -> store.load(1L)));
+                assertNull(outsideTransaction(() -> store.load(2L)));
+                assertFalse(outsideTransaction(() ->
+                        store.compareAndSet(new PaymentStateUpdate(1L, PaymentState.NEW, PaymentState.PRE_AUTH_ERROR))));
+            } finally {
+                complete(TransactionSynchronization.STATUS_COMMITTED);
+            }
+
+            assertEquals(PaymentState.AUTH, store.load(1L));
+            assertEquals(2L, store.version(1L));
+            assertEquals(PaymentState.NEW, store.load(2L));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void rolledBackWritesNeverReachTheFile() {
+        MappedPaymentStateStore store = new MappedPaymentStateStore(dir.resolve("states.dat"), MappedPaymentStateStore.SyncMode.NONE, 0);
+        store.open();
+
+        try {
+            store.create(1L, PaymentState.NEW);
+
+            TransactionSynchronizationManager.initSynchronization();
+            try {
+                assertArrayEquals(new int[]{1, 0}, store.compareAndSetAll(List.of(
+                        new PaymentStateUpdate(1L, PaymentState.NEW, PaymentState.PRE_AUTH),
+                        new PaymentStateUpdate(1L, PaymentState.NEW, PaymentState.PRE_AUTH_ERROR))));
+            } finally {
+                complete(TransactionSynchronization.STATUS_ROLLED_BACK);
+            }
+
+            assertEquals(PaymentState.NEW, store.load(1L));
+            assertEquals(1L, store.version(1L));
+            assertTrue(store.compareAndSet(new PaymentStateUpdate(1L, PaymentState.NEW, PaymentState.PRE_AUTH_ERROR)));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void temporaryFileIsDeletedOnClose() {
+        MappedPaymentStateStore store = MappedPaymentStateStore.temporary(MappedPaymentStateStore.SyncMode.NONE, 0);
+        store.open();
+        store.create(1L, PaymentState.NEW);
+        Path file = store.getFile();
+        assertTrue(Files.exists(file));
+
+        store.close();
+
+        assertFalse(Files.exists(file));
+    }
+
+    private static <T> T outsideTransaction(Supplier<T> supplier) {
+        return CompletableFuture.supplyAsync(supplier).join();
+    }
+
+    private static void complete(int status) {
+        List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+        TransactionSynchronizationManager.clearSynchronization();
+        if (status == TransactionSynchronization.STATUS_COMMITTED) {
+            TransactionSynchronizationUtils.invokeAfterCommit(synchronizations);
+        }
+        TransactionSynchronizationUtils.invokeAfterCompletion(synchronizations, status);
+    }
+}
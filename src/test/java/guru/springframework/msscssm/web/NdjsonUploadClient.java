@@ -0,0 +1,143 @@
+package guru.springframework.msscssm.web;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/*
+    client dell'upload NDJSON (POST /api/v1/payments/bulk) su un socket a mano: un thread manda il body a pezzi
+    (chunked) mentre questo legge già le risposte, come un client vero che rispetta la backpressure del server.
+    Lo usano PaymentControllerTest e BulkUploadBenchmark.
+ */
+public final class NdjsonUploadClient {
+
+    private NdjsonUploadClient() {
+    }
+
+    /*
+        manda lines righe (line(i) per la riga i, senza a capo) e passa ogni riga di risposta a onResult
+     */
+    public static void upload(int port, int lines, IntFunction<String> line, Consumer<String> onResult) throws Exception {
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+
+            Thread uploader = new Thread(() -> {
+                try {
+                    out.write(("POST " + PaymentController.BASE_PATH + "/bulk HTTP/1.1\r\n"
+                            + "Host: localhost:" + port + "\r\n"
+                            + "Content-Type: " + PaymentController.NDJSON + "\r\n"
+                            + "Accept: " + PaymentController.NDJSON + "\r\n"
+                            + "Transfer-Encoding: chunked\r\n"
+                            + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+
+                    ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+                    for (int i = 0; i < lines; i++) {
+                        chunk.write((line.apply(i) + "\n").getBytes(StandardCharsets.UTF_8));
+
+                        if (chunk.size() > 16 * 1024 || i == lines - 1) {
+                            out.write((Integer.toHexString(chunk.size()) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                            chunk.writeTo(out);
+                            out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+                            chunk.reset();
+                        }
+                    }
+
+                    out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, "bulk-uploader");
+            uploader.start();
+
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            String status = readLine(in);
+            if (!status.contains(" 200 ")) {
+                throw new IOException("Unexpected response: " + status);
+            }
+
+            boolean chunked = false;
+            for (String header = readLine(in); !header.isEmpty(); header = readLine(in)) {
+                chunked |= header.toLowerCase(Locale.ROOT).startsWith("transfer-encoding: chunked");
+            }
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    chunked ? new ChunkedInputStream(in) : in, StandardCharsets.UTF_8));
+
+            for (String result = reader.readLine(); result != null; result = reader.readLine()) {
+                onResult.accept(result);
+            }
+
+            uploader.join();
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+
+        for (int b = in.read(); b != -1 && b != '\n'; b = in.read()) {
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+
+        return line.toString();
+    }
+
+    /*
+        decodifica Transfer-Encoding: chunked
+     */
+    static class ChunkedInputStream extends InputStream {
+
+        private final InputStream in;
+        private int remaining;
+        private boolean started;
+        private boolean finished;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0 && !nextChunk()) {
+                return -1;
+            }
+
+            remaining--;
+            return in.read();
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (finished) {
+                return false;
+            }
+
+            if (started) {
+                readLine(in);
+            }
+            started = true;
+
+            String size = readLine(in);
+            int semicolon = size.indexOf(';');
+            remaining = Integer.parseInt((semicolon < 0 ? size : size.substring(0, semicolon)).trim(), 16);
+
+            if (remaining == 0) {
+                finished = true;
+                return false;
+            }
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package guru.springframework.msscssm.web;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import guru.springframework.msscssm.domain.PaymentState;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.IntFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    API HTTP su un Tomcat vero (porta casuale).
+
+    Per l'upload bulk usiamo un socket a mano (NdjsonUploadClient): il body va mandato a pezzi (chunked) mentre si
+    leggono già le risposte, cosa che i client HTTP bloccanti non fanno (leggono la risposta solo a upload finito).
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "spring.jpa.show-sql=false",
+        "payment.auth.decision=APPROVE"
+})
+class PaymentControllerTest {
+
+    static final int LINES = 20_000;
+
+    @LocalServerPort
+    int port;
+
+    @Autowired
+    TestRestTemplate restTemplate;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Test
+    void singlePayment() {
+        ResponseEntity<PaymentResponse> created = restTemplate.postForEntity(PaymentController.BASE_PATH,
+                new NewPaymentRequest(new BigDecimal("12.99")), PaymentResponse.class);
+        assertEquals(HttpStatus.CREATED, created.getStatusCode());
+        assertEquals(PaymentState.NEW, created.getBody().getState());
+
+        String path = PaymentController.BASE_PATH + "/" + created.getBody().getPaymentId();
+
+        assertEquals(PaymentState.PRE_AUTH, restTemplate.postForObject(path + "/pre-auth", null, PaymentResponse.class).getState());
+        assertEquals(PaymentState.AUTH, restTemplate.postForObject(path + "/authorize", null, PaymentResponse.class).getState());
+        assertEquals(PaymentState.AUTH, restTemplate.getForObject(path, PaymentResponse.class).getState());
+
+        assertEquals(HttpStatus.NOT_FOUND, restTemplate.getForEntity(PaymentController.BASE_PATH + "/-1", String.class).getStatusCode());
+        assertEquals(HttpStatus.NOT_FOUND, restTemplate.postForEntity(PaymentController.BASE_PATH + "/-1/pre-auth", null, String.class).getStatusCode());
+    }
+
+    /*
+        una chiave di idempotenza usata per un altro pagamento è un 422, non un errore generico
+     */
+    @Test
+    void idempotencyKeyReusedForAnotherPayment() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(PaymentController.IDEMPOTENCY_KEY, "reused-" + System.nanoTime());
+
+        String first = PaymentController.BASE_PATH + "/" + restTemplate.postForObject(PaymentController.BASE_PATH,
+                new NewPaymentRequest(new BigDecimal("12.99")), PaymentResponse.class).getPaymentId();
+        String second = PaymentController.BASE_PATH + "/" + restTemplate.postForObject(PaymentController.BASE_PATH,
+                new NewPaymentRequest(new BigDecimal("12.99")), PaymentResponse.class).getPaymentId();
+
+        assertEquals(HttpStatus.OK, restTemplate.postForEntity(first + "/pre-auth", new HttpEntity<>(headers), PaymentResponse.class).getStatusCode());
+        assertEquals(HttpStatus.OK, restTemplate.postForEntity(first + "/pre-auth", new HttpEntity<>(headers), PaymentResponse.class).getStatusCode());
+        assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, restTemplate.postForEntity(second + "/pre-auth", new HttpEntity<>(headers), String.class).getStatusCode());
+    }
+
+    @Test
+    void bulkReportsEveryLine() throws IOException {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.parseMediaType(PaymentController.NDJSON));
+
+        String body = "{\"op\":\"newPayment\",\"amount\":12.99}\n"
+                + "not json\n"
+                + "\n"
+                + "{\"op\":\"preAuth\"}\n"
+                + "{\"op\":\"authorize\",\"paymentId\":-1}\n";
+
+        String response = restTemplate.postForObject(PaymentController.BASE_PATH + "/bulk", new HttpEntity<>(body, headers), String.class);
+
+        List<JsonNode> results = new ArrayList<>();
+        for (String line : response.split("\n")) {
+            results.add(objectMapper.readTree(line));
+        }
+        results.sort((a, b) -> Long.compare(a.get("line").asLong(), b.get("line").asLong()));
+
+        assertEquals(4, results.size());
+        assertEquals("OK", results.get(0).get("status").asText());
+        assertEquals("NEW", results.get(0).get("state").asText());
+        assertEquals("INVALID", results.get(1).get("status").asText());
+        assertEquals(4, results.get(2).get("line").asLong());
+        assertEquals("INVALID", results.get(2).get("status").asText());
+        assertEquals("NOT_FOUND", results.get(3).get("status").asText());
+    }
+
+    /*
+        metà dei pagamenti creati con un primo upload, poi LINES righe preAuth / authorize alternate su quelli,
+        mandate a pezzi mentre arrivano già le risposte: ogni riga ha la sua risposta, con il tempo misurato dal
+        server.
+
+        Solo correttezza, e su 20000 righe invece delle 100000 dell'upload di riferimento: niente throughput né p99
+        qui (dipendono dalla macchina e renderebbero il test instabile). Quelli li misura BulkUploadBenchmark (JMH),
+        con 100000 righe sullo stesso percorso HTTP in streaming
+     */
+    @Test
+    void bulkUploadAnswersEveryLine() throws Exception {
+        List<JsonNode> created = upload(LINES / 2, i -> "{\"op\":\"newPayment\",\"amount\":12.99}");
+
+        long[] ids = created.stream().mapToLong(result -> result.get("paymentId").asLong()).toArray();
+        assertEquals(LINES / 2, ids.length);
+
+        List<JsonNode> results = upload(LINES, i -> String.format(Locale.ROOT, "{\"op\":\"%s\",\"paymentId\":%d}",
+                i % 2 == 0 ? "preAuth" : "authorize", ids[i / 2]));
+
+        assertEquals(LINES, results.size());
+        assertEquals(LINES, results.stream().mapToLong(result -> result.get("line").asLong()).distinct().count());
+
+        for (JsonNode result : results) {
+            assertEquals("OK", result.get("status").asText(), result::toString);
+            if ("authorize".equals(result.get("op").asText())) {
+                assertEquals("AUTH", result.get("state").asText());
+            }
+            assertTrue(result.get("micros").asLong() >= 0, result::toString);
+        }
+    }
+
+    private List<JsonNode> upload(int lines, IntFunction<String> line) throws Exception {
+        List<JsonNode> results = new ArrayList<>(lines);
+
+        NdjsonUploadClient.upload(port, lines, line, result -> {
+            try {
+                results.add(objectMapper.readTree(result));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        return results;
+    }
+}
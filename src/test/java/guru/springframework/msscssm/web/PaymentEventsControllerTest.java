@@ -0,0 +1,59 @@
+package guru.springframework.msscssm.web;
+
+import guru.springframework.msscssm.domain.Payment;
+import guru.springframework.msscssm.services.PaymentService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    un client SSE iscritto solo a PRE_AUTH riceve la transizione del pagamento, committata
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = "payment.auth.decision=APPROVE")
+class PaymentEventsControllerTest {
+
+    @LocalServerPort
+    int port;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Test
+    void streamsCommittedTransitions() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port
+                + PaymentController.BASE_PATH + "/events?state=PRE_AUTH").openConnection();
+        connection.setRequestProperty("Accept", "text/event-stream");
+        connection.setReadTimeout(10_000);
+
+        // la risposta parte quando l'iscrizione c'è già
+        assertEquals(200, connection.getResponseCode());
+
+        Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+        paymentService.preAuth(payment.getId());
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+            String data = reader.readLine();
+
+            while (data != null && !data.startsWith("data:")) {
+                data = reader.readLine();
+            }
+
+            assertTrue(data.contains("\"paymentId\":" + payment.getId()), data);
+            assertTrue(data.contains("\"target\":\"PRE_AUTH\""), data);
+            assertTrue(data.contains("\"event\":\"PRE_AUTH_APPROVED\""), data);
+        } finally {
+            connection.disconnect();
+        }
+    }
+}